@@ -0,0 +1,80 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.benchmarks;
+
+import org.cloudfoundry.autosleep.util.ApplicationLocker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Locking of an application around each of its checks. A single id measures contention on one lock, many ids the
+ * cost of the lock registry.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ApplicationLockerBenchmark {
+
+    private String[] applicationIds;
+
+    private ApplicationLocker applicationLocker;
+
+    @Param({"1", "100", "100000"})
+    private int applications;
+
+    @Setup
+    public void buildLocker() {
+        applicationLocker = new ApplicationLocker();
+        applicationIds = new String[applications];
+        for (int i = 0; i < applications; i++) {
+            applicationIds[i] = UUID.randomUUID().toString();
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void executeThreadSafe(Blackhole blackhole) {
+        String applicationId = applicationIds[ThreadLocalRandom.current().nextInt(applicationIds.length)];
+        applicationLocker.executeThreadSafe(applicationId, () -> blackhole.consume(applicationId));
+    }
+
+    /**
+     * New application ids each time, as when a whole space is enrolled.
+     */
+    @Benchmark
+    @Threads(4)
+    public void executeThreadSafeOnceThenRemove(Blackhole blackhole) {
+        String applicationId = UUID.randomUUID().toString();
+        applicationLocker.executeThreadSafe(applicationId, () -> blackhole.consume(applicationId));
+        applicationLocker.removeApplication(applicationId);
+    }
+
+}
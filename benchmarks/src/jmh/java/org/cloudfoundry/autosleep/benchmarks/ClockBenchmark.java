@@ -0,0 +1,90 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.benchmarks;
+
+import org.cloudfoundry.autosleep.util.TimeManager;
+import org.cloudfoundry.autosleep.worker.scheduling.Clock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.lang.reflect.Field;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Task (re)scheduling, done by every stopper and enroller at each run, from the threads of the scheduler.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ClockBenchmark {
+
+    private static final Runnable NO_OP = () -> {
+    };
+
+    private Clock clock;
+
+    private String[] taskIds;
+
+    @Param({"100", "10000"})
+    private int tasks;
+
+    @Setup(Level.Trial)
+    public void buildClock() throws ReflectiveOperationException {
+        clock = new Clock();
+        Field timeManager = Clock.class.getDeclaredField("timeManager");
+        timeManager.setAccessible(true);
+        timeManager.set(clock, new TimeManager());
+        taskIds = new String[tasks];
+        for (int i = 0; i < tasks; i++) {
+            taskIds[i] = "task-" + i;
+        }
+    }
+
+    private String pickTaskId() {
+        return taskIds[ThreadLocalRandom.current().nextInt(taskIds.length)];
+    }
+
+    /**
+     * Tasks are scheduled to run at once so that the scheduler queue does not grow with iterations.
+     */
+    @Benchmark
+    @Threads(4)
+    public void scheduleThenRemove() {
+        String taskId = pickTaskId();
+        clock.scheduleTask(taskId, Duration.ZERO, NO_OP);
+        clock.removeTask(taskId);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void reschedule() {
+        clock.scheduleTask(pickTaskId(), Duration.ZERO, NO_OP);
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.benchmarks;
+
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enrollment states are stored as a serialized map ({@code @Lob}), written and read again each time an application
+ * is saved or loaded.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class EnrollmentStateBenchmark {
+
+    private ApplicationInfo.EnrollmentState enrollmentState;
+
+    private byte[] serializedStates;
+
+    @Param({"1", "10"})
+    private int services;
+
+    @Setup
+    public void buildEnrollmentState() throws IOException {
+        enrollmentState = ApplicationInfo.builder()
+                .uuid(UUID.randomUUID().toString())
+                .build()
+                .getEnrollmentState();
+        for (int i = 0; i < services; i++) {
+            enrollmentState.addEnrollmentState(UUID.randomUUID().toString());
+        }
+        serializedStates = serialize();
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(serializedStates))) {
+            return input.readObject();
+        }
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(enrollmentState.getStates());
+        }
+        return bytes.toByteArray();
+    }
+
+}
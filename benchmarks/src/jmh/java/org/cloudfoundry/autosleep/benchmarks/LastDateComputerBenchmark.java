@@ -0,0 +1,67 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.benchmarks;
+
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.util.BeanGenerator;
+import org.cloudfoundry.autosleep.util.LastDateComputer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Last activity of an application, computed for each application at each check and for each wake group member.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class LastDateComputerBenchmark {
+
+    private ApplicationInfo.DiagnosticInfo.ApplicationEvent lastEvent;
+
+    private ApplicationInfo.DiagnosticInfo.ApplicationLog lastLog;
+
+    @Setup
+    public void buildActivity() {
+        Instant now = Instant.now();
+        lastEvent = BeanGenerator.createCloudEvent(now.minusSeconds(60));
+        lastLog = BeanGenerator.createAppLog(now);
+    }
+
+    @Benchmark
+    public Instant computeFromEventAndLog() {
+        return LastDateComputer.computeLastDate(lastLog, lastEvent);
+    }
+
+    /**
+     * An application without recent logs, the most common case for idle applications.
+     */
+    @Benchmark
+    public Instant computeFromEventOnly() {
+        return LastDateComputer.computeLastDate(null, lastEvent);
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.model.OrgEnrollmentConfig;
+import org.cloudfoundry.autosleep.ui.web.model.ServerResponse;
+import org.cloudfoundry.autosleep.util.BeanGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Json answers of the api, which go through the custom {@link Instant} and {@link Duration} serializers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ServerResponseSerializationBenchmark {
+
+    private ServerResponse<List<ApplicationInfo>> applications;
+
+    @Param({"10", "1000"})
+    private int applicationsCount;
+
+    private ObjectMapper objectMapper;
+
+    private OrgEnrollmentConfig orgEnrollmentConfig;
+
+    @Setup
+    public void buildResponses() {
+        objectMapper = new ObjectMapper();
+        Instant now = Instant.now();
+        List<ApplicationInfo> body = new ArrayList<>(applicationsCount);
+        for (int i = 0; i < applicationsCount; i++) {
+            body.add(BeanGenerator.createAppInfoWithDiagnostic(UUID.randomUUID().toString(), "app-" + i, "STARTED",
+                    now.minusSeconds(i), now.minusSeconds(2 * i)));
+        }
+        applications = new ServerResponse<>(body, now);
+        orgEnrollmentConfig = OrgEnrollmentConfig.builder()
+                .organizationGuid(UUID.randomUUID().toString())
+                .idleDuration(Duration.ofHours(24))
+                .build();
+    }
+
+    @Benchmark
+    public String serializeApplications() throws JsonProcessingException {
+        return objectMapper.writeValueAsString(applications);
+    }
+
+    @Benchmark
+    public String serializeOrgEnrollmentConfig() throws JsonProcessingException {
+        return objectMapper.writeValueAsString(orgEnrollmentConfig);
+    }
+
+}
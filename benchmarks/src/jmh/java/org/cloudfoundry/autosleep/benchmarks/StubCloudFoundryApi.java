@@ -0,0 +1,209 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.benchmarks;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationAuditEvent;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.SpaceIdentity;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.autosleep.util.BeanGenerator;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Cloudfoundry api answering at once, whose applications are always started and active. Each check of an
+ * application therefore plans the next one an idle duration later, which lets the lag of the checks behind their
+ * planned time be measured.
+ */
+class StubCloudFoundryApi implements CloudFoundryApiService {
+
+    private final Duration idleDuration;
+
+    private final Queue<Long> lags = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean measuring;
+
+    private final Map<String, Instant> plannedChecks = new ConcurrentHashMap<>();
+
+    StubCloudFoundryApi(Duration idleDuration) {
+        this.idleDuration = idleDuration;
+    }
+
+    @Override
+    public List<ApplicationIdentity> bindApplications(String serviceInstanceId,
+                                                      List<ApplicationIdentity> application) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> bindRoutes(String serviceInstanceId, List<String> routeIds) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> createServiceInstances(List<String> spaceIds, String servicePlanId, String name,
+                                               Map<String, Object> parameters) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<ApplicationIdentity> filterAliveApplications(List<ApplicationIdentity> applications) {
+        return applications;
+    }
+
+    /**
+     * Called once per check, before any other request on the application.
+     */
+    @Override
+    public String getApplicationState(String applicationUuid) {
+        Instant planned = plannedChecks.get(applicationUuid);
+        if (measuring && planned != null) {
+            lags.add(Duration.between(planned, Instant.now()).toMillis());
+        }
+        return CloudFoundryAppState.STARTED;
+    }
+
+    @Override
+    public String getHost(String routeId) {
+        return null;
+    }
+
+    @Override
+    public List<String> getHosts(List<String> routeIds) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Instant getLastContainerActivity(String appUid) {
+        return null;
+    }
+
+    /**
+     * The application was just used, so that the stopper plans its next check an idle duration after now.
+     */
+    @Override
+    public ApplicationInfo.DiagnosticInfo.ApplicationEvent getLastEvent(String appUid) {
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        plannedChecks.put(appUid, now.plus(idleDuration));
+        return BeanGenerator.createCloudEvent(now);
+    }
+
+    @Override
+    public ApplicationInfo.DiagnosticInfo.ApplicationLog getLastLog(String appUid) {
+        return null;
+    }
+
+    @Override
+    public String getServicePlanId(String serviceLabel, String planUniqueId) {
+        return null;
+    }
+
+    @Override
+    public boolean isAppRunning(String appUid) {
+        return true;
+    }
+
+    @Override
+    public boolean isValidOrganization(String organizationGuid) {
+        return true;
+    }
+
+    @Override
+    public List<ApplicationIdentity> listAliveApplications(String spaceUuid, Pattern excludeNames,
+                                                           Predicate<String> isCandidate) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<ApplicationAuditEvent> listApplicationAuditEvents(String spaceUuid, Instant since) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> listApplicationRoutes(String applicationUuid) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<SpaceIdentity> listOrganizationSpaces(String organizationGuid) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> listRouteApplications(String routeUuid) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Record when the first check of an application is expected.
+     */
+    void plan(String applicationId, Instant firstCheck) {
+        plannedChecks.put(applicationId, firstCheck);
+    }
+
+    @Override
+    public boolean startApplication(String applicationUuid) {
+        return true;
+    }
+
+    void startMeasure() {
+        lags.clear();
+        measuring = true;
+    }
+
+    @Override
+    public boolean stopApplication(String applicationUuid) {
+        return true;
+    }
+
+    /**
+     * Stop recording the checks.
+     *
+     * @return the lag in milliseconds of every check run since the measure started
+     */
+    List<Long> stopMeasure() {
+        measuring = false;
+        return new ArrayList<>(lags);
+    }
+
+    @Override
+    public void unbind(String bindingId) {
+    }
+
+    @Override
+    public CompletableFuture<Void> watchApplicationReadiness(String appUid) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+}
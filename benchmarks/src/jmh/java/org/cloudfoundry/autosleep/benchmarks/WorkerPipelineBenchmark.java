@@ -0,0 +1,196 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.cloudfoundry.autosleep.Application;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
+import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.ContextInitializer;
+import org.cloudfoundry.autosleep.util.BeanGenerator;
+import org.cloudfoundry.autosleep.worker.WorkerManagerService;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+
+import javax.persistence.EntityManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * End-to-end run of the worker pipeline. autosleep-core is booted on the in-memory database, with a stubbed
+ * cloudfoundry api whose applications always look active, so that every binding is checked again once per idle
+ * duration. For each number of bindings, measures the startup time, the sustained checks per second, the lag of the
+ * checks behind their planned time, the database write rate and the heap in use.
+ * <p>
+ * Not a jmh benchmark: spring boot does not run from the jmh fat jar, and the measures are those of a background
+ * pipeline rather than of a method. Run with {@code ./gradlew :benchmarks:pipeline}.
+ */
+public class WorkerPipelineBenchmark {
+
+    @Configuration
+    static class StubConfiguration {
+
+        @Bean
+        @Primary
+        public StubCloudFoundryApi stubCloudFoundryApi(Environment env) {
+            return new StubCloudFoundryApi(Duration.parse(env.getProperty(IDLE_DURATION_PROPERTY)));
+        }
+
+    }
+
+    static final String BINDINGS_PROPERTY = "benchmark.pipeline.bindings";
+
+    static final String IDLE_DURATION_PROPERTY = "benchmark.pipeline.idle.duration";
+
+    static final String MEASURE_DURATION_PROPERTY = "benchmark.pipeline.measure.duration";
+
+    static final String RESULTS_PROPERTY = "benchmark.pipeline.results";
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private static final Logger log = LoggerFactory.getLogger(WorkerPipelineBenchmark.class);
+
+    private static ConfigurableApplicationContext boot(Duration idleDuration) {
+        return new SpringApplicationBuilder(StubConfiguration.class, Application.class)
+                .initializers(new ContextInitializer())
+                .properties(IDLE_DURATION_PROPERTY + "=" + idleDuration,
+                        Config.EnvKey.APPLICATION_DESCRIPTION_ENVIRONMENT_KEY + "="
+                                + BeanGenerator.getSampleVcapApplication(UUID.randomUUID(), "autosleep",
+                                "http://localhost"),
+                        //the stub answers instead of the cloud controller, which only has to be built
+                        Config.EnvKey.SIMULATOR_ENABLED + "=true",
+                        Config.EnvKey.SIMULATOR_APPLICATIONS + "=1",
+                        Config.EnvKey.SIMULATOR_SPACES + "=1",
+                        "server.port=0",
+                        "spring.jpa.properties.hibernate.generate_statistics=true",
+                        "logging.level.org.cloudfoundry.autosleep=WARN")
+                .run();
+    }
+
+    private static long countWrites(Statistics statistics) {
+        return statistics.getEntityInsertCount() + statistics.getEntityUpdateCount();
+    }
+
+    private static long getUsedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        Duration idleDuration = Duration.parse(System.getProperty(IDLE_DURATION_PROPERTY, "PT30S"));
+        Duration measureDuration = Duration.parse(System.getProperty(MEASURE_DURATION_PROPERTY, "PT1M"));
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (String bindings : System.getProperty(BINDINGS_PROPERTY, "1000,10000,100000").split(",")) {
+            results.add(run(Integer.parseInt(bindings.trim()), idleDuration, measureDuration));
+        }
+        File resultsFile = new File(System.getProperty(RESULTS_PROPERTY, "pipeline-results.json"));
+        if (resultsFile.getParentFile() != null) {
+            resultsFile.getParentFile().mkdirs();
+        }
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(resultsFile, results);
+        log.info("results written in {}", resultsFile.getAbsolutePath());
+        //reactor and simulator threads outlive the contexts
+        System.exit(0);
+    }
+
+    private static long percentile(List<Long> sortedValues, double percentile) {
+        if (sortedValues.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedValues.size()) - 1;
+        return sortedValues.get(Math.max(index, 0));
+    }
+
+    private static Map<String, Object> run(int bindings, Duration idleDuration, Duration measureDuration)
+            throws InterruptedException {
+        long heapBefore = getUsedHeap();
+        long bootStart = System.nanoTime();
+        ConfigurableApplicationContext context = boot(idleDuration);
+        long startupMillis = Duration.ofNanos(System.nanoTime() - bootStart).toMillis();
+        try {
+            StubCloudFoundryApi cloudFoundryApi = context.getBean(StubCloudFoundryApi.class);
+            Statistics statistics = context.getBean(EntityManagerFactory.class).unwrap(SessionFactory.class)
+                    .getStatistics();
+
+            SpaceEnrollerConfig config = BeanGenerator.createServiceInstance();
+            config.setIdleDuration(idleDuration);
+            context.getBean(SpaceEnrollerConfigRepository.class).save(config);
+            List<ApplicationInfo> applications = new ArrayList<>(bindings);
+            for (int i = 0; i < bindings; i++) {
+                applications.add(BeanGenerator.createAppInfoLinkedToService(config.getId()));
+            }
+            context.getBean(ApplicationRepository.class).save(applications);
+
+            WorkerManagerService workerManager = context.getBean(WorkerManagerService.class);
+            for (ApplicationInfo application : applications) {
+                cloudFoundryApi.plan(application.getUuid(), Instant.now());
+                workerManager.registerApplicationStopper(config, application.getUuid(),
+                        UUID.randomUUID().toString());
+            }
+            //every binding is checked once before measuring, so that only the steady state is measured
+            Thread.sleep(idleDuration.toMillis());
+
+            long writesBefore = countWrites(statistics);
+            cloudFoundryApi.startMeasure();
+            long measureStart = System.nanoTime();
+            Thread.sleep(measureDuration.toMillis());
+            List<Long> lags = cloudFoundryApi.stopMeasure();
+            double measureSeconds = (System.nanoTime() - measureStart) / 1e9;
+            long writes = countWrites(statistics) - writesBefore;
+            Collections.sort(lags);
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("bindings", bindings);
+            result.put("startupMillis", startupMillis);
+            result.put("checksPerSecond", lags.size() / measureSeconds);
+            result.put("expectedChecksPerSecond", bindings * 1000.0 / idleDuration.toMillis());
+            result.put("lagMeanMillis", lags.stream().mapToLong(Long::longValue).average().orElse(0));
+            result.put("lagP99Millis", percentile(lags, 0.99));
+            result.put("lagMaxMillis", percentile(lags, 1));
+            result.put("dbWritesPerSecond", writes / measureSeconds);
+            result.put("heapUsedMegabytes", (getUsedHeap() - heapBefore) / MEGABYTE);
+            log.warn("pipeline with {} bindings: {}", bindings, result);
+            return result;
+        } finally {
+            context.close();
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.cloudfoundry.autosleep.WakeUpApplication;
+import org.cloudfoundry.autosleep.access.dao.model.ProxyMapEntry;
+import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.ContextInitializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load run of autowakeup-proxy: thousands of concurrent requests reach sleeping applications, spread over a
+ * varying number of hosts, from a single host (every request waits for the same wake) to one host per few requests.
+ * The cloud controller is stubbed with a configurable start delay, and woken applications are served by a local
+ * upstream. For each scenario, reports the wake latency seen by clients, the threads started by the proxy, the cloud
+ * controller calls per wake and the heap used per request parked while its application starts.
+ * <p>
+ * Run with {@code ./gradlew :benchmarks:proxyLoad}.
+ */
+public class ProxyLoadBenchmark {
+
+    @Configuration
+    static class StubConfiguration {
+
+        @Bean
+        @Primary
+        public SleepingCloudFoundryApi sleepingCloudFoundryApi(Environment env) {
+            return new SleepingCloudFoundryApi(Duration.parse(env.getProperty(START_DELAY_PROPERTY)));
+        }
+
+        /**
+         * Forward every woken request to the local upstream, whatever its host.
+         */
+        @Bean
+        @Primary
+        public RestTemplate upstreamRestTemplate(Environment env) {
+            int upstreamPort = Integer.parseInt(env.getProperty(UPSTREAM_PORT_PROPERTY));
+            return new RestTemplate(new SimpleClientHttpRequestFactory() {
+
+                @Override
+                public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+                    return super.createRequest(UriComponentsBuilder.fromUri(uri)
+                            .scheme("http")
+                            .host("localhost")
+                            .port(upstreamPort)
+                            .build()
+                            .toUri(), httpMethod);
+                }
+            });
+        }
+
+    }
+
+    static final String HOSTS_PROPERTY = "benchmark.proxy.hosts";
+
+    static final String LOG_STREAM_PROPERTY = "benchmark.proxy.log.stream";
+
+    static final String REQUESTS_PROPERTY = "benchmark.proxy.requests";
+
+    static final String RESULTS_PROPERTY = "benchmark.proxy.results";
+
+    static final String START_DELAY_PROPERTY = "benchmark.proxy.start.delay";
+
+    static final String UPSTREAM_PORT_PROPERTY = "benchmark.proxy.upstream.port";
+
+    private static final int UPSTREAM_THREADS = 16;
+
+    private static final Logger log = LoggerFactory.getLogger(ProxyLoadBenchmark.class);
+
+    private static ConfigurableApplicationContext boot(Duration startDelay, int upstreamPort) {
+        return new SpringApplicationBuilder(StubConfiguration.class, WakeUpApplication.class)
+                .initializers(new ContextInitializer())
+                .properties(START_DELAY_PROPERTY + "=" + startDelay,
+                        UPSTREAM_PORT_PROPERTY + "=" + upstreamPort,
+                        "autowakeup.readiness.log.stream=" + System.getProperty(LOG_STREAM_PROPERTY, "false"),
+                        //the stub answers instead of the cloud controller, which only has to be built
+                        Config.EnvKey.SIMULATOR_ENABLED + "=true",
+                        Config.EnvKey.SIMULATOR_APPLICATIONS + "=1",
+                        Config.EnvKey.SIMULATOR_SPACES + "=1",
+                        "server.port=0",
+                        "logging.level.org.cloudfoundry.autosleep=WARN")
+                .run();
+    }
+
+    private static ThreadPoolExecutor buildStartedPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        pool.prestartAllCoreThreads();
+        return pool;
+    }
+
+    private static HttpServer buildUpstream(ThreadPoolExecutor executor) throws IOException {
+        HttpServer upstream = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+        upstream.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        upstream.setExecutor(executor);
+        upstream.start();
+        return upstream;
+    }
+
+    private static long getUsedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    public static void main(String[] args) throws Exception {
+        //lets clients set the host header, as the gorouter does
+        System.setProperty("sun.net.http.allowRestrictedHeaders", "true");
+        Duration startDelay = Duration.parse(System.getProperty(START_DELAY_PROPERTY, "PT5S"));
+        int requests = Integer.parseInt(System.getProperty(REQUESTS_PROPERTY, "2000"));
+
+        ThreadPoolExecutor upstreamExecutor = buildStartedPool(UPSTREAM_THREADS);
+        HttpServer upstream = buildUpstream(upstreamExecutor);
+        ConfigurableApplicationContext context = boot(startDelay, upstream.getAddress().getPort());
+        List<Map<String, Object>> results = new ArrayList<>();
+        try {
+            int proxyPort = Integer.parseInt(context.getEnvironment().getProperty("local.server.port"));
+            for (String hosts : System.getProperty(HOSTS_PROPERTY, "1,100,1000").split(",")) {
+                results.add(run(context, proxyPort, requests, Integer.parseInt(hosts.trim()), startDelay));
+            }
+        } finally {
+            context.getBean(SleepingCloudFoundryApi.class).shutdown();
+            context.close();
+            upstream.stop(0);
+            upstreamExecutor.shutdownNow();
+        }
+        File resultsFile = new File(System.getProperty(RESULTS_PROPERTY, "proxy-results.json"));
+        if (resultsFile.getParentFile() != null) {
+            resultsFile.getParentFile().mkdirs();
+        }
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(resultsFile, results);
+        log.info("results written in {}", resultsFile.getAbsolutePath());
+        //reactor and simulator threads outlive the context
+        System.exit(0);
+    }
+
+    private static long percentile(List<Long> sortedValues, double percentile) {
+        if (sortedValues.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedValues.size()) - 1;
+        return sortedValues.get(Math.max(index, 0));
+    }
+
+    /**
+     * Send a request as the gorouter would, to the host of a sleeping application.
+     *
+     * @return the response status and the latency in milliseconds
+     */
+    private static long[] request(int proxyPort, String host) throws IOException {
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", "localhost", proxyPort, "/")
+                .openConnection();
+        connection.setRequestProperty("Host", host);
+        connection.setRequestProperty("x-forwarded-proto", "http");
+        try {
+            int status = connection.getResponseCode();
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                try (InputStream ignored = body) {
+                    while (body.read() != -1) {
+                        //drain, for the latency to include the body
+                    }
+                }
+            }
+            return new long[]{status, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)};
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static Map<String, Object> run(ConfigurableApplicationContext context, int proxyPort, int requests,
+                                           int hosts, Duration startDelay)
+            throws InterruptedException, ExecutionException {
+        SleepingCloudFoundryApi cloudFoundryApi = context.getBean(SleepingCloudFoundryApi.class);
+        ProxyMapEntryRepository proxyMap = context.getBean(ProxyMapEntryRepository.class);
+        cloudFoundryApi.reset();
+        proxyMap.deleteAll();
+        List<ProxyMapEntry> entries = new ArrayList<>(hosts);
+        for (int i = 0; i < hosts; i++) {
+            entries.add(new ProxyMapEntry("app-" + i + ".load.local", "app-" + i));
+        }
+        proxyMap.save(entries);
+
+        ThreadPoolExecutor clients = buildStartedPool(requests);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            long heapBefore = getUsedHeap();
+            threads.resetPeakThreadCount();
+            int threadsBefore = threads.getThreadCount();
+
+            CountDownLatch go = new CountDownLatch(1);
+            List<Future<long[]>> responses = new ArrayList<>(requests);
+            for (int i = 0; i < requests; i++) {
+                String host = entries.get(i % hosts).getHost();
+                responses.add(clients.submit(() -> {
+                    go.await();
+                    return request(proxyPort, host);
+                }));
+            }
+            go.countDown();
+
+            //measure while the requests are parked, waiting for their application to start
+            long parkDeadline = System.nanoTime() + startDelay.dividedBy(2).toNanos();
+            while (cloudFoundryApi.getStateRequests() < requests && System.nanoTime() < parkDeadline) {
+                Thread.sleep(10);
+            }
+            int parkedRequests = cloudFoundryApi.getStateRequests();
+            long heapParked = getUsedHeap();
+
+            List<Long> latencies = new ArrayList<>(requests);
+            Map<Long, Integer> statuses = new TreeMap<>();
+            for (Future<long[]> response : responses) {
+                long[] statusAndLatency = response.get();
+                statuses.merge(statusAndLatency[0], 1, Integer::sum);
+                if (statusAndLatency[0] == 200) {
+                    latencies.add(statusAndLatency[1]);
+                }
+            }
+            Collections.sort(latencies);
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("requests", requests);
+            result.put("hosts", hosts);
+            result.put("startDelayMillis", startDelay.toMillis());
+            result.put("statuses", statuses);
+            result.put("wakeLatencyP50Millis", percentile(latencies, 0.5));
+            result.put("wakeLatencyP99Millis", percentile(latencies, 0.99));
+            result.put("wakeLatencyMaxMillis", percentile(latencies, 1));
+            result.put("proxyThreadsStarted", threads.getPeakThreadCount() - threadsBefore);
+            result.put("wakes", cloudFoundryApi.getStarts());
+            result.put("ccCallsPerWake", cloudFoundryApi.getStarts() == 0 ? 0
+                    : cloudFoundryApi.getCalls() / (double) cloudFoundryApi.getStarts());
+            result.put("parkedRequests", parkedRequests);
+            result.put("heapPerParkedRequestBytes", parkedRequests == 0 ? 0
+                    : (heapParked - heapBefore) / parkedRequests);
+            log.warn("proxy load of {} requests on {} hosts: {}", requests, hosts, result);
+            return result;
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.benchmarks;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationAuditEvent;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.SpaceIdentity;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Cloudfoundry api whose applications all sleep until started, then take a given delay to be running. Calls are
+ * counted, so that the cost of a wake on the cloud controller can be reported.
+ */
+class SleepingCloudFoundryApi implements CloudFoundryApiService {
+
+    private static final Duration READINESS_CHECK_PERIOD = Duration.ofMillis(100);
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private final ScheduledExecutorService readinessNotifier = Executors.newSingleThreadScheduledExecutor();
+
+    private final Duration startDelay;
+
+    private final Map<String, Instant> startedAt = new ConcurrentHashMap<>();
+
+    private final AtomicInteger starts = new AtomicInteger();
+
+    private final AtomicInteger stateRequests = new AtomicInteger();
+
+    SleepingCloudFoundryApi(Duration startDelay) {
+        this.startDelay = startDelay;
+    }
+
+    @Override
+    public List<ApplicationIdentity> bindApplications(String serviceInstanceId,
+                                                      List<ApplicationIdentity> application) {
+        calls.incrementAndGet();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> bindRoutes(String serviceInstanceId, List<String> routeIds) {
+        calls.incrementAndGet();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> createServiceInstances(List<String> spaceIds, String servicePlanId, String name,
+                                               Map<String, Object> parameters) {
+        calls.incrementAndGet();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<ApplicationIdentity> filterAliveApplications(List<ApplicationIdentity> applications) {
+        calls.incrementAndGet();
+        return applications;
+    }
+
+    /**
+     * Called once by each request reaching the proxy.
+     */
+    @Override
+    public String getApplicationState(String applicationUuid) {
+        calls.incrementAndGet();
+        stateRequests.incrementAndGet();
+        return startedAt.containsKey(applicationUuid) ? CloudFoundryAppState.STARTED : CloudFoundryAppState.STOPPED;
+    }
+
+    int getCalls() {
+        return calls.get();
+    }
+
+    @Override
+    public String getHost(String routeId) {
+        calls.incrementAndGet();
+        return null;
+    }
+
+    @Override
+    public List<String> getHosts(List<String> routeIds) {
+        calls.incrementAndGet();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Instant getLastContainerActivity(String appUid) {
+        calls.incrementAndGet();
+        return null;
+    }
+
+    @Override
+    public ApplicationInfo.DiagnosticInfo.ApplicationEvent getLastEvent(String appUid) {
+        calls.incrementAndGet();
+        return null;
+    }
+
+    @Override
+    public ApplicationInfo.DiagnosticInfo.ApplicationLog getLastLog(String appUid) {
+        calls.incrementAndGet();
+        return null;
+    }
+
+    @Override
+    public String getServicePlanId(String serviceLabel, String planUniqueId) {
+        calls.incrementAndGet();
+        return null;
+    }
+
+    int getStarts() {
+        return starts.get();
+    }
+
+    int getStateRequests() {
+        return stateRequests.get();
+    }
+
+    @Override
+    public boolean isAppRunning(String appUid) {
+        calls.incrementAndGet();
+        return isRunning(appUid);
+    }
+
+    private boolean isRunning(String appUid) {
+        Instant started = startedAt.get(appUid);
+        return started != null && !Instant.now().isBefore(started.plus(startDelay));
+    }
+
+    @Override
+    public boolean isValidOrganization(String organizationGuid) {
+        calls.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public List<ApplicationIdentity> listAliveApplications(String spaceUuid, Pattern excludeNames,
+                                                           Predicate<String> isCandidate) {
+        calls.incrementAndGet();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<ApplicationAuditEvent> listApplicationAuditEvents(String spaceUuid, Instant since) {
+        calls.incrementAndGet();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> listApplicationRoutes(String applicationUuid) {
+        calls.incrementAndGet();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<SpaceIdentity> listOrganizationSpaces(String organizationGuid) {
+        calls.incrementAndGet();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> listRouteApplications(String routeUuid) {
+        calls.incrementAndGet();
+        return Collections.emptyList();
+    }
+
+    /**
+     * Put every application back to sleep, and forget the calls made.
+     */
+    void reset() {
+        startedAt.clear();
+        calls.set(0);
+        starts.set(0);
+        stateRequests.set(0);
+    }
+
+    void shutdown() {
+        readinessNotifier.shutdownNow();
+    }
+
+    @Override
+    public boolean startApplication(String applicationUuid) {
+        calls.incrementAndGet();
+        starts.incrementAndGet();
+        startedAt.putIfAbsent(applicationUuid, Instant.now());
+        return true;
+    }
+
+    @Override
+    public boolean stopApplication(String applicationUuid) {
+        calls.incrementAndGet();
+        startedAt.remove(applicationUuid);
+        return true;
+    }
+
+    @Override
+    public void unbind(String bindingId) {
+        calls.incrementAndGet();
+    }
+
+    /**
+     * The readiness log is emitted once the start delay of the application has elapsed.
+     */
+    @Override
+    public CompletableFuture<Void> watchApplicationReadiness(String appUid) {
+        calls.incrementAndGet();
+        CompletableFuture<Void> readiness = new CompletableFuture<>();
+        ScheduledFuture<?> check = readinessNotifier.scheduleWithFixedDelay(() -> {
+            if (isRunning(appUid)) {
+                readiness.complete(null);
+            }
+        }, 0, READINESS_CHECK_PERIOD.toMillis(), TimeUnit.MILLISECONDS);
+        readiness.whenComplete((result, error) -> check.cancel(false));
+        return readiness;
+    }
+
+}
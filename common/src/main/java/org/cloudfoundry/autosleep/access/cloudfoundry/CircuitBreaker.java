@@ -0,0 +1,113 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.Consumer;
+
+/**
+ * Stop sending requests to an unhealthy api for a while. The circuit opens after a number of consecutive failures,
+ * then lets a single probe request through once open long enough: its success closes the circuit, its failure opens
+ * it again.
+ */
+@Slf4j
+class CircuitBreaker {
+
+    enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final int failureThreshold;
+
+    private final Duration openDuration;
+
+    private final Consumer<State> stateListener;
+
+    private int consecutiveFailures;
+
+    private Instant openUntil;
+
+    private boolean probeInFlight;
+
+    private State state = State.CLOSED;
+
+    CircuitBreaker(int failureThreshold, Duration openDuration, Consumer<State> stateListener) {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.stateListener = stateListener;
+    }
+
+    /**
+     * Tell whether a request may be sent. A caller allowed in while half-open must report the outcome.
+     */
+    synchronized boolean allowRequest() {
+        if (state == State.OPEN) {
+            if (Instant.now().isBefore(openUntil)) {
+                return false;
+            }
+            changeState(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probeInFlight) {
+                return false;
+            }
+            probeInFlight = true;
+        }
+        return true;
+    }
+
+    private void changeState(State newState) {
+        log.info("circuit {} -> {}", state, newState);
+        state = newState;
+        stateListener.accept(newState);
+    }
+
+    /**
+     * How long callers should wait before trying again.
+     */
+    synchronized Duration getRetryDelay() {
+        Instant now = Instant.now();
+        return state == State.OPEN && openUntil.isAfter(now) ? Duration.between(now, openUntil) : openDuration;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized void onFailure() {
+        probeInFlight = false;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            openUntil = Instant.now().plus(openDuration);
+            changeState(State.OPEN);
+        }
+    }
+
+    synchronized void onSuccess() {
+        probeInFlight = false;
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            changeState(State.CLOSED);
+        }
+    }
+
+}
@@ -20,44 +20,63 @@
 package org.cloudfoundry.autosleep.access.cloudfoundry;
 
 import lombok.extern.slf4j.Slf4j;
-import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.AbstractCloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationAuditEvent;
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.SpaceIdentity;
 import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
 import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.autosleep.util.FlightRecorderEvent;
 import org.cloudfoundry.client.CloudFoundryClient;
 import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.cloudfoundry.client.v2.OrderDirection;
+import org.cloudfoundry.client.v2.PaginatedResponse;
+import org.cloudfoundry.client.v2.Resource;
 import org.cloudfoundry.client.v2.applications.*;
 import org.cloudfoundry.client.v2.domains.GetDomainRequest;
-import org.cloudfoundry.client.v2.domains.GetDomainResponse;
 import org.cloudfoundry.client.v2.events.EventEntity;
 import org.cloudfoundry.client.v2.events.EventResource;
 import org.cloudfoundry.client.v2.events.ListEventsRequest;
-import org.cloudfoundry.client.v2.events.ListEventsResponse;
 import org.cloudfoundry.client.v2.organizations.GetOrganizationRequest;
 import org.cloudfoundry.client.v2.organizations.GetOrganizationResponse;
 import org.cloudfoundry.client.v2.routes.*;
 import org.cloudfoundry.client.v2.servicebindings.CreateServiceBindingRequest;
 import org.cloudfoundry.client.v2.servicebindings.DeleteServiceBindingRequest;
 import org.cloudfoundry.client.v2.serviceinstances.BindServiceInstanceRouteRequest;
+import org.cloudfoundry.client.v2.serviceinstances.CreateServiceInstanceRequest;
+import org.cloudfoundry.client.v2.services.ListServiceServicePlansRequest;
+import org.cloudfoundry.client.v2.services.ListServicesRequest;
+import org.cloudfoundry.client.v2.spaces.ListSpacesRequest;
+import org.cloudfoundry.doppler.ContainerMetricsRequest;
 import org.cloudfoundry.doppler.DopplerClient;
 import org.cloudfoundry.doppler.LogMessage;
 import org.cloudfoundry.doppler.RecentLogsRequest;
-import org.reactivestreams.Subscriber;
-import org.reactivestreams.Subscription;
+import org.cloudfoundry.doppler.StreamRequest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
+import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.Consumer;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -66,74 +85,345 @@ import java.util.stream.Collectors;
 @Service
 public class CloudFoundryApi implements CloudFoundryApiService {
 
-    private static class BaseSubscriber<T> implements Subscriber<T> {
+    private static class AppState {
 
-        Consumer<Throwable> errorConsumer;
+        Instant expiration;
 
-        CountDownLatch latch;
+        String state;
 
-        Consumer<T> resultConsumer;
-
-        public BaseSubscriber(CountDownLatch latch, Consumer<Throwable> errorConsumer, Consumer<T> resultConsumer) {
-            this.latch = latch;
-            this.resultConsumer = resultConsumer;
-            this.errorConsumer = errorConsumer;
+        AppState(String state) {
+            this.state = state;
+            this.expiration = Instant.now().plus(Config.APP_STATE_CACHE_TTL);
         }
 
-        @Override
-        public void onComplete() {
-            latch.countDown();
-        }
+    }
 
-        @Override
-        public void onError(Throwable throwable) {
-            if (errorConsumer != null) {
-                errorConsumer.accept(throwable);
-            }
-            latch.countDown();
-        }
+    private static class DomainName {
 
-        @Override
-        public void onNext(T result) {
-            if (resultConsumer != null) {
-                resultConsumer.accept(result);
-            }
-        }
+        Instant expiration;
 
-        @Override
-        public void onSubscribe(Subscription subscription) {
-            subscription.request(Long.MAX_VALUE);
+        String name;
+
+        DomainName(String name) {
+            this.name = name;
+            this.expiration = Instant.now().plus(Config.DOMAIN_CACHE_TTL);
         }
+
     }
 
+    static final int CF_APPLICATION_NOT_FOUND = 100_004;
+
     static final int CF_INSTANCES_ERROR = 220_001;
 
     static final int CF_STAGING_NOT_FINISHED = 170_002;
 
     static final int CF_ORGANIZATION_NOT_FOUND = 30_003;
 
+    static final String BINDING_FAILURE_METRIC = "counter.autosleep.cf.bindings.failed";
+
+    static final String CIRCUIT_OPENED_METRIC = "counter.autosleep.cf.circuit.opened";
+
+    static final String CIRCUIT_REJECTED_METRIC = "counter.autosleep.cf.circuit.rejected";
+
+    static final String CIRCUIT_STATE_METRIC = "gauge.autosleep.cf.circuit.state";
+
+    static final String COALESCED_REQUEST_METRIC = "counter.autosleep.cf.requests.coalesced";
+
+    static final String ERROR_METRIC_PREFIX = "counter.autosleep.cf.errors.";
+
+    static final int FIRST_SERVER_ERROR_STATUS = 500;
+
+    static final String INSTANCES_REQUEST_AVOIDED_METRIC = "counter.autosleep.cf.instances.avoided";
+
+    static final String LATENCY_METRIC_PREFIX = "histogram.autosleep.cf.latency.";
+
+    static final String PACKAGE_STATE_STAGED = "STAGED";
+
+    static final String READINESS_LOG_MESSAGE = "Container became healthy";
+
+    static final String READINESS_LOG_SOURCE_TYPE = "APP/PROC/WEB";
+
+    static final String RETRY_METRIC_PREFIX = "counter.autosleep.cf.retry.";
+
     @Autowired
     private CloudFoundryClient cfClient;
 
+    @Autowired
+    private CounterService counterService;
+
     @Autowired
     private DopplerClient dopplerClient;
 
-    private <T, U> void bind(List<T> objectsToBind, Function<T, Mono<U>> caller)
-            throws CloudFoundryException {
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private GaugeService gaugeService;
+
+    /**
+     * Shared by every request, the cloud controller being unhealthy as a whole more often than one of its endpoints.
+     */
+    CircuitBreaker circuitBreaker = new CircuitBreaker(Config.CF_API_CIRCUIT_FAILURE_THRESHOLD,
+            Config.CF_API_CIRCUIT_OPEN_DURATION, this::onCircuitStateChanged);
+
+    /**
+     * Shared by every enrollment of spaces, to keep bulk creations from overwhelming the cloud controller.
+     */
+    RateLimiter enrollmentRateLimiter = new RateLimiter(Config.CF_API_ENROLLMENT_RATE);
+
+    int bindConcurrency = Config.CF_API_MAX_CONCURRENCY;
+
+    /**
+     * Whether state changes are sent without reading the current state first.
+     */
+    boolean optimisticStateChange = true;
+
+    int pageSize = Config.CF_API_PAGE_SIZE;
+
+    private final Map<String /**applicationId**/, AppState> appStates = new ConcurrentHashMap<>();
+
+    private final Map<String /**domainId**/, DomainName> domainNames = new ConcurrentHashMap<>();
+
+    private final Map<String /**endpoint/resourceId**/, CompletableFuture<Object>> inFlightReads =
+            new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void init() {
+        bindConcurrency = env.getProperty(Config.EnvKey.CF_BIND_CONCURRENCY, Integer.class,
+                Config.CF_API_MAX_CONCURRENCY);
+        pageSize = env.getProperty(Config.EnvKey.CF_PAGE_SIZE, Integer.class, Config.CF_API_PAGE_SIZE);
+        optimisticStateChange = env.getProperty(Config.EnvKey.CF_OPTIMISTIC_STATE_CHANGE, Boolean.class,
+                Boolean.TRUE);
+        enrollmentRateLimiter = new RateLimiter(env.getProperty(Config.EnvKey.CF_ENROLLMENT_RATE, Integer.class,
+                Config.CF_API_ENROLLMENT_RATE));
+    }
+
+    /**
+     * Send a single request and wait for its result.
+     *
+     * @return the result of the request, errors being thrown as they are
+     * @throws CloudFoundryUnavailableException when the circuit is open and the request was not sent
+     * @see #send(String, String, boolean, Supplier)
+     */
+    private <T> T call(String endpoint, String applicationId, boolean idempotent, Supplier<Mono<T>> request)
+            throws CloudFoundryUnavailableException {
+        try {
+            return send(endpoint, applicationId, idempotent, request).block();
+        } catch (RuntimeException r) {
+            Throwable error = Exceptions.unwrap(r);
+            if (error instanceof CloudFoundryUnavailableException) {
+                throw (CloudFoundryUnavailableException) error;
+            }
+            throw r;
+        }
+    }
+
+    /**
+     * Send a read request, unless the same one is already in flight, in which case its response is shared.
+     *
+     * @param resourceId id of the resource read, requests being identical when sent to the same endpoint with the
+     *                   same resource id
+     * @see #call(String, String, boolean, Supplier)
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T callShared(String endpoint, String applicationId, String resourceId, Supplier<Mono<T>> request)
+            throws CloudFoundryUnavailableException {
+        final String key = endpoint + "/" + resourceId;
+        final CompletableFuture<Object> flight = new CompletableFuture<>();
+        final CompletableFuture<Object> sharedFlight = inFlightReads.putIfAbsent(key, flight);
+        if (sharedFlight != null) {
+            log.debug("{} already requested, sharing its response", key);
+            counterService.increment(COALESCED_REQUEST_METRIC);
+            try {
+                return (T) sharedFlight.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof CloudFoundryUnavailableException) {
+                    throw (CloudFoundryUnavailableException) e.getCause();
+                } else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            T result = call(endpoint, applicationId, true, request);
+            flight.complete(result);
+            return result;
+        } catch (CloudFoundryUnavailableException | RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightReads.remove(key, flight);
+        }
+    }
+
+    /**
+     * Send a single request through the circuit breaker, with its own timeout. Idempotent requests failing with a
+     * transient error are retried, with an exponential backoff. The latency and the failure of each attempt are
+     * recorded per endpoint, and as a flight recorder event. Listings reading several pages, or checking each of their
+     * resources, send each of these requests this way: a slow listing is then not sent again as a whole.
+     *
+     * @param endpoint      name of the endpoint, for logs and metrics
+     * @param applicationId id of the application the request is about, null if none
+     * @param idempotent    whether the request may be sent again
+     * @return the result of the request, failing with a {@link CloudFoundryUnavailableException} when the circuit is
+     * open and the request was not sent
+     */
+    private <T> Mono<T> send(String endpoint, String applicationId, boolean idempotent,
+                             Supplier<? extends Mono<? extends T>> request) {
+        return send(endpoint, applicationId, idempotent, request, 1);
+    }
+
+    private <T> Mono<T> send(String endpoint, String applicationId, boolean idempotent,
+                             Supplier<? extends Mono<? extends T>> request, int attempt) {
+        return Mono.defer(() -> {
+            if (!circuitBreaker.allowRequest()) {
+                counterService.increment(CIRCUIT_REJECTED_METRIC);
+                return Mono.error(new CloudFoundryUnavailableException(endpoint, circuitBreaker.getRetryDelay()));
+            }
+            return record(endpoint, applicationId, Mono.<T>defer(request)
+                    .timeout(Config.CF_API_TIMEOUT))
+                    .doOnSuccess(result -> circuitBreaker.onSuccess())
+                    .otherwise(error -> {
+                        if (!isTransientError(error)) {
+                            //the api did answer
+                            circuitBreaker.onSuccess();
+                            return Mono.error(error);
+                        }
+                        circuitBreaker.onFailure();
+                        if (!idempotent || attempt >= Config.CF_API_RETRY_MAX_ATTEMPTS
+                                || circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+                            return Mono.error(error);
+                        }
+                        log.warn("{} failed ({}), retrying", endpoint, error.getMessage());
+                        counterService.increment(RETRY_METRIC_PREFIX + endpoint);
+                        return Mono.delay(getRetryDelay(attempt))
+                                .then(ignored -> send(endpoint, applicationId, idempotent, request, attempt + 1));
+                    });
+        });
+    }
+
+    private void onCircuitStateChanged(CircuitBreaker.State state) {
+        if (state == CircuitBreaker.State.OPEN) {
+            counterService.increment(CIRCUIT_OPENED_METRIC);
+        }
+        gaugeService.submit(CIRCUIT_STATE_METRIC, state.ordinal());
+    }
+
+    /**
+     * Record the latency and the failure of a request per endpoint, and as a flight recorder event, on subscription.
+     * A request cancelled by its subscriber, such as a stream no longer watched, ends its event as "cancelled".
+     * Unlike {@link #send(String, String, boolean, Supplier)}, the request is neither retried nor sent through the
+     * circuit breaker: for the doppler, whose failures say nothing of the cloud controller, and for the requests sent
+     * in bulk, their failures being handled one by one.
+     *
+     * @param endpoint      name of the endpoint, for metrics
+     * @param applicationId id of the application the request is about, null if none
+     */
+    private <T> Mono<T> record(String endpoint, String applicationId, Mono<T> request) {
+        return Mono.defer(() -> {
+            final long start = System.nanoTime();
+            final FlightRecorderEvent event = FlightRecorderEvent.begin(FlightRecorderEvent.Type.CLOUD_CONTROLLER_CALL)
+                    .application(applicationId)
+                    .detail(endpoint);
+            return request
+                    .doOnSuccess(result -> {
+                        recordLatency(endpoint, start);
+                        event.end("success");
+                    })
+                    .doOnError(error -> {
+                        recordLatency(endpoint, start);
+                        event.end(error.getClass().getSimpleName());
+                        counterService.increment(ERROR_METRIC_PREFIX + endpoint);
+                    })
+                    .doOnCancel(() -> {
+                        recordLatency(endpoint, start);
+                        event.end("cancelled");
+                    });
+        });
+    }
+
+    private void recordLatency(String endpoint, long start) {
+        gaugeService.submit(LATENCY_METRIC_PREFIX + endpoint, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Exponential delay, half of it random so that concurrent callers do not retry at once.
+     */
+    private Duration getRetryDelay(int attempt) {
+        long delay = Math.min(Config.CF_API_RETRY_MAX_DELAY.toMillis(),
+                Config.CF_API_RETRY_BASE_DELAY.toMillis() << (attempt - 1));
+        return Duration.ofMillis(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+    }
+
+    /**
+     * @return whether a failed request may succeed if sent again: network errors, timeouts and server errors
+     */
+    static boolean isTransientError(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException || cause instanceof TimeoutException) {
+                return true;
+            } else if (cause instanceof AbstractCloudFoundryException) {
+                Integer statusCode = ((AbstractCloudFoundryException) cause).getStatusCode();
+                return statusCode != null && statusCode >= FIRST_SERVER_ERROR_STATUS;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bind objects one by one, no more than the bind concurrency at once, each binding having its own timeout.
+     * Bindings are not sent while the circuit is open, and are reported as failed.
+     *
+     * @param endpoint      name of the endpoint, for metrics
+     * @param applicationId id of the application an object is about, null if none
+     * @return the objects that could not be bound
+     * @throws CloudFoundryException when none could be bound
+     */
+    private <T, U> List<T> bind(String endpoint, List<T> objectsToBind, Function<T, String> applicationId,
+                                Function<T, Mono<U>> caller) throws CloudFoundryException {
         log.debug("bind - {} objects", objectsToBind.size());
-        final CountDownLatch latch = new CountDownLatch(objectsToBind.size());
-        final AtomicReference<Throwable> errorEncountered = new AtomicReference<>(null);
-        final Subscriber<U> subscriber
-                = new BaseSubscriber<>(latch, errorEncountered::set, null);
+        List<T> failures;
+        try {
+            //no global timeout, the duration depending on the number of objects
+            failures = Flux.fromIterable(objectsToBind)
+                    .flatMap(objectToBind -> Mono.defer(() -> requestBinding(endpoint,
+                                    applicationId.apply(objectToBind), objectToBind, caller))
+                                    .doOnSuccess(result -> circuitBreaker.onSuccess())
+                                    .then(result -> Mono.<T>empty())
+                                    .otherwise(throwable -> {
+                                        log.error("Couldn't bind " + objectToBind, throwable);
+                                        counterService.increment(BINDING_FAILURE_METRIC);
+                                        if (isTransientError(throwable)) {
+                                            circuitBreaker.onFailure();
+                                        }
+                                        return Mono.just(objectToBind);
+                                    }),
+                            bindConcurrency)
+                    .collect(ArrayList<T>::new, ArrayList::add)
+                    .block();
+        } catch (RuntimeException r) {
+            throw new CloudFoundryException(r);
+        }
+        if (!failures.isEmpty() && failures.size() == objectsToBind.size()) {
+            throw new CloudFoundryException("failed binding all of " + failures.size() + " objects", null);
+        }
+        return failures;
+    }
 
-        objectsToBind.forEach(objectToBind -> caller.apply(objectToBind).subscribe(subscriber));
-        waitForResult(latch, errorEncountered, null);
+    private <T, U> Mono<U> requestBinding(String endpoint, String applicationId, T objectToBind,
+                                          Function<T, Mono<U>> caller) {
+        if (circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+            counterService.increment(CIRCUIT_REJECTED_METRIC);
+            return Mono.error(new CloudFoundryUnavailableException(endpoint, circuitBreaker.getRetryDelay()));
+        }
+        return record(endpoint, applicationId, caller.apply(objectToBind).timeout(Config.CF_API_TIMEOUT));
     }
 
     @Override
-    public void bindApplications(String serviceInstanceId, List<ApplicationIdentity> applications) throws
-            CloudFoundryException {
-        bind(applications,
+    public List<ApplicationIdentity> bindApplications(String serviceInstanceId, List<ApplicationIdentity> applications)
+            throws CloudFoundryException {
+        return bind("serviceBindings.create", applications, ApplicationIdentity::getGuid,
                 application -> cfClient.serviceBindingsV2()
                         .create(
                                 CreateServiceBindingRequest
@@ -143,8 +433,8 @@ public class CloudFoundryApi implements CloudFoundryApiService {
                                         .build()));
     }
 
-    public void bindRoutes(String serviceInstanceId, List<String> routeIds) throws CloudFoundryException {
-        bind(routeIds,
+    public List<String> bindRoutes(String serviceInstanceId, List<String> routeIds) throws CloudFoundryException {
+        return bind("serviceInstances.bindRoute", routeIds, routeId -> null,
                 routeId -> cfClient.serviceInstances()
                         .bindRoute(
                                 BindServiceInstanceRouteRequest.builder()
@@ -183,17 +473,27 @@ public class CloudFoundryApi implements CloudFoundryApiService {
         return logMessage.getMessageType() != null ? logMessage.getMessageType().name() : null;
     }
 
+    /**
+     * Change the state of an application. In optimistic mode, the update is sent without reading the current state,
+     * unless it was read recently, an application already in the target state accepting the update as well. Callers
+     * needing to know whether the state actually changed read it first, which also fills the known state.
+     *
+     * @return false when the application was known to be in the target state already, true when the update was sent
+     */
     private boolean changeApplicationState(String applicationUuid, String targetState) throws CloudFoundryException {
         log.debug("changeApplicationState to {}", targetState);
         try {
-            if (!targetState.equals(getApplicationState(applicationUuid))) {
-                cfClient.applicationsV2()
-                        .update(
+            String currentState = optimisticStateChange ? getKnownState(applicationUuid)
+                    : getApplicationState(applicationUuid);
+            if (!targetState.equals(currentState)) {
+                UpdateApplicationResponse response = call("applications.update", applicationUuid, true,
+                        () -> cfClient.applicationsV2().update(
                                 UpdateApplicationRequest.builder()
                                         .applicationId(applicationUuid)
                                         .state(targetState)
-                                        .build())
-                        .block(Config.CF_API_TIMEOUT);
+                                        .build()));
+                rememberState(applicationUuid, response != null && response.getEntity() != null
+                        ? response.getEntity().getState() : null);
                 return true;
             } else {
                 log.warn("application {} already in state {}, nothing to do", applicationUuid, targetState);
@@ -204,73 +504,20 @@ public class CloudFoundryApi implements CloudFoundryApiService {
         }
     }
 
-    @Override
-    public ApplicationActivity getApplicationActivity(String appUid) throws CloudFoundryException {
-        log.debug("getApplicationActivity -  {}", appUid);
-
-        //We need to call for appState, lastlogs and lastEvents
-        final CountDownLatch latch = new CountDownLatch(3);
-        final AtomicReference<Throwable> errorEncountered = new AtomicReference<>(null);
-        final AtomicReference<LogMessage> lastLogReference = new AtomicReference<>(null);
-        final AtomicReference<ListEventsResponse> lastEventsReference = new AtomicReference<>(null);
-        final AtomicReference<GetApplicationResponse> appReference = new AtomicReference<>(null);
-        final AtomicReference<Instant> mostRecentLogInstant = new AtomicReference<>(null);
-
-        cfClient.applicationsV2()
-                .get(GetApplicationRequest.builder()
-                        .applicationId(appUid)
-                        .build())
-                .subscribe(new BaseSubscriber<>(latch, errorEncountered::set, appReference::set));
-
-        cfClient.events()
-                .list(ListEventsRequest.builder()
-                        .actee(appUid)
-                        .build())
-                .subscribe(new BaseSubscriber<>(latch, errorEncountered::set, lastEventsReference::set));
-
-        dopplerClient.recentLogs(RecentLogsRequest.builder()
-                .applicationId(appUid)
-                .build())
-                .subscribe(new BaseSubscriber<>(
-                        latch,
-                        errorEncountered::set,
-                        envelope -> {
-                            //Sometimes observed missing log envelope timestamp, rather relying on log message timestamp
-                            LogMessage logMessage = envelope.getLogMessage();
-                            if (logMessage == null) {
-                                log.warn("recent log without log message. Skipping. Envelope: {}", envelope);
-                                return;
-                            }
-                            Long timestamp = logMessage.getTimestamp();
-                            if (timestamp == null) {
-                                log.warn("recent log without log message timestamp. Skipping. Envelope: {}", envelope);
-                                return;
-                            }
-
-                            //logs are not ordered, must find the most recent
-                            Instant msgInstant = getInstantFromLogMessageTimestamp(timestamp);
-                            if (mostRecentLogInstant.get() == null || mostRecentLogInstant.get().isBefore(msgInstant)) {
-                                mostRecentLogInstant.set(msgInstant);
-                                lastLogReference.set(envelope.getLogMessage());
-                            }
-                        }
-                ));
-
-        ApplicationActivity applicationActivity = waitForResult(latch, errorEncountered,
-                () -> ApplicationActivity.builder()
-                        .application(ApplicationIdentity.builder()
-                                .guid(appUid)
-                                .name(appReference.get().getEntity().getName())
-                                .build())
-                        .lastEvent(
-                                lastEventsReference.get().getResources().isEmpty() ? null
-                                        : buildAppEvent(lastEventsReference.get().getResources().get(0)))
-                        .lastLog(buildAppLog(lastLogReference.get()))
-                        .state(appReference.get().getEntity().getState())
-                        .build());
+    /**
+     * State of an application if read or changed recently, null otherwise.
+     */
+    private String getKnownState(String applicationUuid) {
+        AppState known = appStates.get(applicationUuid);
+        return known != null && known.expiration.isAfter(Instant.now()) ? known.state : null;
+    }
 
-        log.debug("getApplicationActivity -  {}  - resulted in {}", appUid, applicationActivity);
-        return applicationActivity;
+    private void rememberState(String applicationUuid, String state) {
+        if (state == null) {
+            appStates.remove(applicationUuid);
+        } else {
+            appStates.put(applicationUuid, new AppState(state));
+        }
     }
 
     public Instant getInstantFromLogMessageTimestamp(Long logMessageTimestamp) {
@@ -298,14 +545,72 @@ public class CloudFoundryApi implements CloudFoundryApiService {
     public String getApplicationState(String applicationUuid) throws CloudFoundryException {
         log.debug("getApplicationState");
         try {
-            return this.cfClient
+            String state = callShared("applications.get", applicationUuid, applicationUuid, () -> this.cfClient
                     .applicationsV2()
                     .get(GetApplicationRequest.builder()
                             .applicationId(applicationUuid)
-                            .build())
-                    .block(Config.CF_API_TIMEOUT)
+                            .build()))
                     .getEntity().getState();
+            rememberState(applicationUuid, state);
+            return state;
+
+        } catch (RuntimeException r) {
+            throw new CloudFoundryException(r);
+        }
+    }
+
+    @Override
+    public Instant getLastContainerActivity(String appUid) throws CloudFoundryException {
+        log.debug("getLastContainerActivity - {}", appUid);
+        try {
+            return record("doppler.containerMetrics", appUid, dopplerClient
+                    .containerMetrics(ContainerMetricsRequest.builder()
+                            .applicationId(appUid)
+                            .build())
+                    .filter(envelope -> envelope.getContainerMetric() != null
+                            && envelope.getContainerMetric().getCpuPercentage() != null
+                            && envelope.getContainerMetric().getCpuPercentage() >= Config.ACTIVITY_CPU_THRESHOLD)
+                    .map(envelope -> envelope.getTimestamp() == null ? Instant.now()
+                            : getInstantFromLogMessageTimestamp(envelope.getTimestamp()))
+                    .reduce((first, second) -> first.isAfter(second) ? first : second))
+                    .block(Config.CF_API_TIMEOUT);
+        } catch (RuntimeException r) {
+            throw new CloudFoundryException(r);
+        }
+    }
+
+    @Override
+    public ApplicationInfo.DiagnosticInfo.ApplicationEvent getLastEvent(String appUid) throws CloudFoundryException {
+        log.debug("getLastEvent - {}", appUid);
+        try {
+            return callShared("events.last", appUid, appUid, () -> cfClient.events()
+                    .list(ListEventsRequest.builder()
+                            .actee(appUid)
+                            .orderDirection(OrderDirection.DESCENDING)
+                            .resultsPerPage(1)
+                            .build())
+                    .flatMap(response -> Flux.fromIterable(response.getResources()))
+                    .next()
+                    .map(this::buildAppEvent));
+        } catch (RuntimeException r) {
+            throw new CloudFoundryException(r);
+        }
+    }
 
+    @Override
+    public ApplicationInfo.DiagnosticInfo.ApplicationLog getLastLog(String appUid) throws CloudFoundryException {
+        log.debug("getLastLog - {}", appUid);
+        try {
+            return record("doppler.recentLogs", appUid, dopplerClient.recentLogs(RecentLogsRequest.builder()
+                    .applicationId(appUid)
+                    .build())
+                    .filter(envelope -> envelope.getLogMessage() != null
+                            && envelope.getLogMessage().getTimestamp() != null)
+                    .map(envelope -> envelope.getLogMessage())
+                    //logs are not ordered, must find the most recent
+                    .reduce((first, second) -> first.getTimestamp() >= second.getTimestamp() ? first : second)
+                    .map(this::buildAppLog))
+                    .block(Config.CF_API_TIMEOUT);
         } catch (RuntimeException r) {
             throw new CloudFoundryException(r);
         }
@@ -320,41 +625,139 @@ public class CloudFoundryApi implements CloudFoundryApiService {
     public String getHost(String routeId) throws CloudFoundryException {
         try {
             log.debug("getHost");
-            GetRouteResponse response = cfClient.routes()
-                    .get(GetRouteRequest.builder()
-                            .routeId(routeId)
-                            .build())
-                    .block(Config.CF_API_TIMEOUT);
-            RouteEntity routeEntity = response.getEntity();
-            String route = routeEntity.getHost() + routeEntity.getPath();
-            log.debug("route =  {}", route);
-            String domainId = routeEntity.getDomainId();
-            String domain = getDeprecatedDomain(domainId);
-            return route + "." + domain;
+            return callShared("routes.get", null, routeId, () -> requestHost(routeId));
         } catch (RuntimeException r) {
             throw new CloudFoundryException(r);
         }
     }
 
-    private String getDeprecatedDomain(String domainId) {
-        GetDomainResponse domainResponse = cfClient.domains()
+    @Override
+    public List<String> getHosts(List<String> routeIds) throws CloudFoundryException {
+        log.debug("getHosts - {} routes", routeIds.size());
+        try {
+            //no global timeout, each route being requested on its own
+            return Flux.fromIterable(routeIds)
+                    .flatMap(routeId -> send("routes.get", null, true, () -> requestHost(routeId))
+                                    .otherwise(throwable -> {
+                                        log.error("Couldn't get host corresponding to route " + routeId, throwable);
+                                        return Mono.empty();
+                                    }),
+                            Config.CF_API_MAX_CONCURRENCY)
+                    .collect(ArrayList<String>::new, ArrayList::add)
+                    .block();
+        } catch (RuntimeException r) {
+            throw new CloudFoundryException(r);
+        }
+    }
+
+    /**
+     * Stream the resources of a listing, one page at a time. The next page is requested while the current one is
+     * processed, and no more than two pages are held at once. Pages being requested one by one, the listing has no
+     * global timeout.
+     *
+     * @param pageRequester request of a page, sent with {@link #send(String, String, boolean, Supplier)}
+     */
+    private <R extends Resource<?>> Flux<R> requestPages(
+            Function<Integer, Mono<? extends PaginatedResponse<R>>> pageRequester) {
+        return pageRequester.apply(1)
+                .flatMap(firstPage -> {
+                    int totalPages = firstPage.getTotalPages() == null ? 1 : firstPage.getTotalPages();
+                    log.debug("{} pages to read", totalPages);
+                    return Flux.fromIterable(firstPage.getResources())
+                            .concatWith(Flux.range(2, Math.max(0, totalPages - 1))
+                                    .flatMapSequential(pageRequester, 2)
+                                    .concatMap(page -> Flux.fromIterable(page.getResources())));
+                });
+    }
+
+    private Mono<String> requestDeprecatedDomain(String domainId) {
+        DomainName cached = domainNames.get(domainId);
+        if (cached != null && cached.expiration.isAfter(Instant.now())) {
+            return Mono.just(cached.name);
+        }
+        return cfClient.domains()
                 .get(GetDomainRequest.builder()
                         .domainId(domainId)
                         .build())
-                .block(Config.CF_API_TIMEOUT);
-        log.debug("domain = {}", domainResponse.getEntity());
-        return domainResponse.getEntity().getName();
+                .map(domainResponse -> {
+                    log.debug("domain = {}", domainResponse.getEntity());
+                    String name = domainResponse.getEntity().getName();
+                    domainNames.put(domainId, new DomainName(name));
+                    return name;
+                });
+    }
+
+    private Mono<String> requestHost(String routeId) {
+        return cfClient.routes()
+                .get(GetRouteRequest.builder()
+                        .routeId(routeId)
+                        .build())
+                .then(response -> {
+                    RouteEntity routeEntity = response.getEntity();
+                    String route = routeEntity.getHost() + routeEntity.getPath();
+                    log.debug("route =  {}", route);
+                    return requestDeprecatedDomain(routeEntity.getDomainId())
+                            .map(domain -> route + "." + domain);
+                });
+    }
+
+    /**
+     * Tell whether an application has instances from its state, as found in the application list. Instances are only
+     * requested when this state is not conclusive, e.g. started but not staged yet.
+     */
+    private Mono<Boolean> hasInstances(String applicationUuid, ApplicationEntity application) {
+        if (CloudFoundryAppState.STOPPED.equals(application.getState())) {
+            counterService.increment(INSTANCES_REQUEST_AVOIDED_METRIC);
+            return Mono.just(false);
+        } else if (CloudFoundryAppState.STARTED.equals(application.getState())
+                && PACKAGE_STATE_STAGED.equals(application.getPackageState())) {
+            counterService.increment(INSTANCES_REQUEST_AVOIDED_METRIC);
+            return Mono.just(true);
+        } else {
+            return send("applications.instances", applicationUuid, true, () -> getApplicationInstances(applicationUuid))
+                    .map(response -> !response.getInstances().isEmpty());
+        }
+    }
+
+    @Override
+    public List<ApplicationIdentity> filterAliveApplications(List<ApplicationIdentity> applications)
+            throws CloudFoundryException {
+        log.debug("filterAliveApplications - {} applications", applications.size());
+        try {
+            //no global timeout, each application being requested on its own
+            return Flux.fromIterable(applications)
+                    .flatMap(application -> send("applications.get", application.getGuid(), true,
+                            () -> cfClient.applicationsV2().get(GetApplicationRequest.builder()
+                                    .applicationId(application.getGuid())
+                                    .build()))
+                                    .then(response -> hasInstances(application.getGuid(), response.getEntity()))
+                                    .otherwise(throwable -> {
+                                        if (!(throwable instanceof ClientV2Exception
+                                                && isNoApplicationFoundError((ClientV2Exception) throwable))) {
+                                            //the next reconciliation will list it again
+                                            log.error("Couldn't check whether application " + application.getGuid()
+                                                    + " is alive", throwable);
+                                        }
+                                        return Mono.just(false);
+                                    })
+                                    .filter(alive -> alive)
+                                    .map(alive -> application),
+                            Config.CF_API_MAX_CONCURRENCY)
+                    .collect(ArrayList<ApplicationIdentity>::new, ArrayList::add)
+                    .block();
+        } catch (RuntimeException r) {
+            throw new CloudFoundryException(r);
+        }
     }
 
     @Override
     public boolean isAppRunning(String appUid) throws CloudFoundryException {
         log.debug("isAppRunning");
         try {
-            return !getApplicationInstances(appUid)
+            return !callShared("applications.instances", appUid, appUid, () -> getApplicationInstances(appUid)
                     .flatMap(response -> Flux.fromIterable(response.getInstances().values()))
                     .filter(instanceInfo -> "RUNNING".equals(instanceInfo.getState()))
-                    .collect(ArrayList<ApplicationInstanceInfo>::new, ArrayList::add)
-                    .block(Config.CF_API_TIMEOUT)
+                    .collect(ArrayList<ApplicationInstanceInfo>::new, ArrayList::add))
                     .isEmpty();
 
         } catch (RuntimeException r) {
@@ -362,52 +765,104 @@ public class CloudFoundryApi implements CloudFoundryApiService {
         }
     }
 
+    private boolean isReadinessLog(LogMessage logMessage) {
+        return logMessage != null
+                && ((logMessage.getMessage() != null && logMessage.getMessage().contains(READINESS_LOG_MESSAGE))
+                || (logMessage.getSourceType() != null
+                && logMessage.getSourceType().startsWith(READINESS_LOG_SOURCE_TYPE)));
+    }
+
+    private boolean isNoApplicationFoundError(ClientV2Exception cloudfoundryException) {
+        return cloudfoundryException.getCode() == CF_APPLICATION_NOT_FOUND;
+    }
+
     private boolean isNoInstanceFoundError(ClientV2Exception cloudfoundryException) {
         return cloudfoundryException.getCode() == CF_INSTANCES_ERROR
                 || cloudfoundryException.getCode() == CF_STAGING_NOT_FINISHED;
     }
 
     @Override
-    public List<ApplicationIdentity> listAliveApplications(String spaceUuid, Pattern excludeNames) throws
+    public List<ApplicationIdentity> listAliveApplications(String spaceUuid, Pattern excludeNames,
+                                                           Predicate<String> isCandidate) throws
             CloudFoundryException {
         log.debug("listAliveApplications from space_guid:" + spaceUuid);
         try {
-            return Mono.just(spaceUuid)
-                    .then(spaceId -> this.cfClient
-                            .applicationsV2()
-                            .list(ListApplicationsRequest.builder()
-                                    .spaceId(spaceUuid)
-                                    .build()))
-                    .flatMap(listApplicationsResponse -> Flux.fromIterable(listApplicationsResponse.getResources()))
+            //no global timeout, each page and instances request having its own
+            return listApplications(spaceUuid)
                     //remove all filtered applications
                     .filter(applicationResource -> excludeNames == null
                             || !excludeNames.matcher(applicationResource.getEntity().getName()).matches())
-                    //get instances
-                    .flatMap(applicationResource -> Mono.when(Mono.just(applicationResource),
-                            getApplicationInstances(applicationResource.getMetadata().getId())))
+                    .filter(applicationResource -> isCandidate.test(applicationResource.getMetadata().getId()))
                     //filter the one that has no instances (ie. STOPPED)
-                    .filter(tuple -> !tuple.getT2().getInstances().isEmpty())
-                    .map(tuple -> ApplicationIdentity.builder()
-                            .guid(tuple.getT1().getMetadata().getId())
-                            .name(tuple.getT1().getEntity().getName())
+                    .flatMap(applicationResource -> hasInstances(applicationResource.getMetadata().getId(),
+                            applicationResource.getEntity())
+                                    .filter(alive -> alive)
+                                    .map(alive -> applicationResource),
+                            Config.CF_API_MAX_CONCURRENCY)
+                    .map(applicationResource -> ApplicationIdentity.builder()
+                            .guid(applicationResource.getMetadata().getId())
+                            .name(applicationResource.getEntity().getName())
                             .build())
                     .collect(ArrayList<ApplicationIdentity>::new, ArrayList::add)
-                    .block(Config.CF_API_TIMEOUT);
+                    .block();
         } catch (RuntimeException r) {
             throw new CloudFoundryException("failed listing applications from space_id: " + spaceUuid, r);
         }
     }
 
+    @Override
+    public List<ApplicationAuditEvent> listApplicationAuditEvents(String spaceUuid, Instant since) throws
+            CloudFoundryException {
+        log.debug("listApplicationAuditEvents from space_guid: {} since {}", spaceUuid, since);
+        try {
+            return requestPages(page -> send("events.list", null, true, () -> cfClient.events()
+                    .list(ListEventsRequest.builder()
+                            .spaceId(spaceUuid)
+                            .timestamp(since.toString())
+                            .type(Config.CloudFoundryAuditEvent.APP_CREATE)
+                            .type(Config.CloudFoundryAuditEvent.APP_START)
+                            .type(Config.CloudFoundryAuditEvent.APP_DELETE_REQUEST)
+                            .orderDirection(OrderDirection.ASCENDING)
+                            .page(page)
+                            .resultsPerPage(pageSize)
+                            .build())))
+                    .map(eventResource -> {
+                        EventEntity event = eventResource.getEntity();
+                        return ApplicationAuditEvent.builder()
+                                .application(ApplicationIdentity.builder()
+                                        .guid(event.getActee())
+                                        .name(event.getActeeName())
+                                        .build())
+                                .timestamp(Instant.parse(event.getTimestamp()))
+                                .type(event.getType())
+                                .build();
+                    })
+                    .collect(ArrayList<ApplicationAuditEvent>::new, ArrayList::add)
+                    .block();
+        } catch (RuntimeException r) {
+            throw new CloudFoundryException("failed listing audit events from space_id: " + spaceUuid, r);
+        }
+    }
+
+    private Flux<ApplicationResource> listApplications(String spaceUuid) {
+        return requestPages(page -> send("applications.list", null, true, () -> cfClient.applicationsV2()
+                .list(ListApplicationsRequest.builder()
+                        .spaceId(spaceUuid)
+                        .page(page)
+                        .resultsPerPage(pageSize)
+                        .build())));
+    }
+
     @Override
     public List<String> listApplicationRoutes(String applicationUuid) throws CloudFoundryException {
         log.debug("listApplicationRoutes");
         try {
-            ListApplicationRoutesResponse response = cfClient.applicationsV2()
-                    .listRoutes(
-                            ListApplicationRoutesRequest.builder()
-                                    .applicationId(applicationUuid)
-                                    .build())
-                    .block(Config.CF_API_TIMEOUT);
+            ListApplicationRoutesResponse response = callShared("applications.routes", applicationUuid, applicationUuid,
+                    () -> cfClient.applicationsV2()
+                            .listRoutes(
+                                    ListApplicationRoutesRequest.builder()
+                                            .applicationId(applicationUuid)
+                                            .build()));
             return response.getResources().stream()
                     .map(routeResource -> routeResource.getMetadata().getId())
                     .collect(Collectors.toList());
@@ -420,12 +875,12 @@ public class CloudFoundryApi implements CloudFoundryApiService {
     public List<String> listRouteApplications(String routeUuid) throws CloudFoundryException {
         log.debug("listRouteApplications");
         try {
-            ListRouteApplicationsResponse response = cfClient.routes()
-                    .listApplications(
-                            ListRouteApplicationsRequest.builder()
-                                    .routeId(routeUuid)
-                                    .build())
-                    .block(Config.CF_API_TIMEOUT);
+            ListRouteApplicationsResponse response = callShared("routes.applications", null, routeUuid,
+                    () -> cfClient.routes()
+                            .listApplications(
+                                    ListRouteApplicationsRequest.builder()
+                                            .routeId(routeUuid)
+                                            .build()));
             return response.getResources().stream()
                     .map(appResource -> appResource.getMetadata().getId())
                     .collect(Collectors.toList());
@@ -449,39 +904,105 @@ public class CloudFoundryApi implements CloudFoundryApiService {
     @Override
     public void unbind(String bindingId) throws CloudFoundryException {
         try {
-            cfClient.serviceBindingsV2()
+            //not retried, the binding may be gone after a timed out attempt
+            call("serviceBindings.delete", null, false, () -> cfClient.serviceBindingsV2()
                     .delete(DeleteServiceBindingRequest.builder()
                             .serviceBindingId(bindingId)
+                            .build()));
+        } catch (RuntimeException r) {
+            throw new CloudFoundryException(r);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> watchApplicationReadiness(String appUid) {
+        log.debug("watchApplicationReadiness - {}", appUid);
+        //its latency is the time the application took to become healthy
+        return record("doppler.stream", appUid, dopplerClient.stream(StreamRequest.builder()
+                .applicationId(appUid)
+                .build())
+                .filter(envelope -> isReadinessLog(envelope.getLogMessage()))
+                .next())
+                .then()
+                .toFuture();
+    }
+
+    @Override
+    public List<String> createServiceInstances(List<String> spaceIds, String servicePlanId, String name,
+                                               Map<String, Object> parameters) throws CloudFoundryException {
+        log.debug("createServiceInstances - {} spaces", spaceIds.size());
+        try {
+            //no global timeout, as the rate limiter may delay requests longer than a single request
+            return Flux.fromIterable(spaceIds)
+                    .flatMap(spaceId -> Mono.defer(() -> Mono.delay(enrollmentRateLimiter.reserve()))
+                                    .then(ignored -> record("serviceInstances.create", null, cfClient.serviceInstances()
+                                            .create(CreateServiceInstanceRequest.builder()
+                                                    .name(name)
+                                                    .parameters(parameters)
+                                                    .servicePlanId(servicePlanId)
+                                                    .spaceId(spaceId)
+                                                    .build())
+                                            .timeout(Config.CF_API_TIMEOUT)))
+                                    .map(response -> spaceId)
+                                    .otherwise(throwable -> {
+                                        log.error("Couldn't create service instance in space " + spaceId,
+                                                throwable);
+                                        return Mono.empty();
+                                    }),
+                            Config.CF_API_MAX_CONCURRENCY)
+                    .collect(ArrayList<String>::new, ArrayList::add)
+                    .block();
+        } catch (RuntimeException r) {
+            throw new CloudFoundryException(r);
+        }
+    }
+
+    @Override
+    public String getServicePlanId(String serviceLabel, String planUniqueId) throws CloudFoundryException {
+        log.debug("getServicePlanId - {} {}", serviceLabel, planUniqueId);
+        try {
+            return call("services.plans", null, true, () -> cfClient.services()
+                    .list(ListServicesRequest.builder()
+                            .label(serviceLabel)
                             .build())
-                    .block(Config.CF_API_TIMEOUT);
+                    .flatMap(response -> Flux.fromIterable(response.getResources()))
+                    .concatMap(service -> cfClient.services()
+                            .listServicePlans(ListServiceServicePlansRequest.builder()
+                                    .serviceId(service.getMetadata().getId())
+                                    .build()))
+                    .flatMap(response -> Flux.fromIterable(response.getResources()))
+                    .filter(plan -> planUniqueId.equals(plan.getEntity().getUniqueId()))
+                    .map(plan -> plan.getMetadata().getId())
+                    .next());
         } catch (RuntimeException r) {
             throw new CloudFoundryException(r);
         }
     }
 
-    private <T> T waitForResult(CountDownLatch latch, AtomicReference<Throwable> errorEncountered,
-                                Supplier<T> callback) throws CloudFoundryException {
+    @Override
+    public List<SpaceIdentity> listOrganizationSpaces(String organizationGuid) throws CloudFoundryException {
+        log.debug("listOrganizationSpaces - {}", organizationGuid);
         try {
-            if (!latch.await(Config.CF_API_TIMEOUT.getSeconds(), TimeUnit.SECONDS)) {
-                throw new IllegalStateException("subscriber timed out");
-            } else if (errorEncountered.get() != null) {
-                throw new CloudFoundryException(errorEncountered.get());
-            } else {
-                if (callback != null) {
-                    return callback.get();
-                } else {
-                    return null;
-                }
-            }
-        } catch (InterruptedException e) {
-            log.error(e.getMessage());
-            return null;
+            return requestPages(page -> send("spaces.list", null, true, () -> cfClient.spaces()
+                    .list(ListSpacesRequest.builder()
+                            .organizationId(organizationGuid)
+                            .page(page)
+                            .resultsPerPage(pageSize)
+                            .build())))
+                    .map(spaceResource -> SpaceIdentity.builder()
+                            .guid(spaceResource.getMetadata().getId())
+                            .name(spaceResource.getEntity().getName())
+                            .build())
+                    .collect(ArrayList<SpaceIdentity>::new, ArrayList::add)
+                    .block();
+        } catch (RuntimeException r) {
+            throw new CloudFoundryException("failed listing spaces from organization_id: " + organizationGuid, r);
         }
     }
 
     public boolean isValidOrganization(String organizationGuid) throws CloudFoundryException {
 
-        GetOrganizationResponse response = cfClient.organizations()
+        GetOrganizationResponse response = call("organizations.get", null, true, () -> cfClient.organizations()
                 .get(GetOrganizationRequest.builder().organizationId(organizationGuid).build())
                 .otherwise(throwable -> {
                     if (throwable instanceof org.cloudfoundry.client.v2.ClientV2Exception
@@ -491,7 +1012,7 @@ public class CloudFoundryApi implements CloudFoundryApiService {
                     } else {
                         return Mono.error(throwable);
                     }
-                }).block(Config.CF_API_TIMEOUT);
+                }));
         return response.getEntity() != null;
     }
 
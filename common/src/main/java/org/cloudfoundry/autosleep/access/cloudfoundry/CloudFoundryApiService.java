@@ -19,39 +19,136 @@
 
 package org.cloudfoundry.autosleep.access.cloudfoundry;
 
-import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationAuditEvent;
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.SpaceIdentity;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
 
+import java.time.Instant;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 public interface CloudFoundryApiService {
 
-    void bindApplications(String serviceInstanceId, List<ApplicationIdentity> application) throws CloudFoundryException;
-
-    void bindRoutes(String serviceInstanceId, List<String> routeIds) throws CloudFoundryException;
+    /**
+     * Bind applications, one failure not preventing the others from being bound.
+     *
+     * @return the applications that could not be bound
+     * @throws CloudFoundryException when none could be bound
+     */
+    List<ApplicationIdentity> bindApplications(String serviceInstanceId, List<ApplicationIdentity> application)
+            throws CloudFoundryException;
 
-    ApplicationActivity getApplicationActivity(String appUid) throws CloudFoundryException;
+    /**
+     * Bind routes, one failure not preventing the others from being bound.
+     *
+     * @return the routes that could not be bound
+     * @see #bindApplications(String, List)
+     */
+    List<String> bindRoutes(String serviceInstanceId, List<String> routeIds) throws CloudFoundryException;
+
+    /**
+     * Create a service instance in each space, no faster than the enrollment rate. Failures are logged and skipped.
+     *
+     * @return ids of the spaces where an instance was created
+     */
+    List<String> createServiceInstances(List<String> spaceIds, String servicePlanId, String name,
+                                        Map<String, Object> parameters) throws CloudFoundryException;
 
     String getApplicationState(String applicationUuid) throws CloudFoundryException;
 
+    /**
+     * Newest instant at which a container of the application used more cpu than
+     * {@link org.cloudfoundry.autosleep.config.Config#ACTIVITY_CPU_THRESHOLD}, null if none did.
+     */
+    Instant getLastContainerActivity(String appUid) throws CloudFoundryException;
+
+    /**
+     * Newest event of the application, null if it has none.
+     */
+    ApplicationInfo.DiagnosticInfo.ApplicationEvent getLastEvent(String appUid) throws CloudFoundryException;
+
+    /**
+     * Newest of the recent logs of the application, null if it has none.
+     */
+    ApplicationInfo.DiagnosticInfo.ApplicationLog getLastLog(String appUid) throws CloudFoundryException;
+
     String getHost(String routeId) throws CloudFoundryException;
 
+    /**
+     * Resolve the hosts of several routes concurrently. Routes that cannot be resolved are logged and skipped.
+     */
+    List<String> getHosts(List<String> routeIds) throws CloudFoundryException;
+
+    /**
+     * Find the cloudfoundry id of a service plan from the ids declared in the broker catalog.
+     *
+     * @return null if the plan is not visible from the cloudfoundry api
+     */
+    String getServicePlanId(String serviceLabel, String planUniqueId) throws CloudFoundryException;
+
+    /**
+     * Keep the started applications among some, as {@link #listAliveApplications} does in a whole space. Applications
+     * that could not be checked are left out, one failure not preventing the others from being checked.
+     */
+    List<ApplicationIdentity> filterAliveApplications(List<ApplicationIdentity> applications)
+            throws CloudFoundryException;
+
     boolean isAppRunning(String appUid) throws CloudFoundryException;
 
-    List<ApplicationIdentity> listAliveApplications(String spaceUuid, Pattern excludeNames)
+    /**
+     * List the started applications of a space, page after page.
+     *
+     * @param excludeNames applications whose names match are ignored, may be null
+     * @param isCandidate  filter on application ids, applied before any further request on an application
+     */
+    List<ApplicationIdentity> listAliveApplications(String spaceUuid, Pattern excludeNames,
+                                                    Predicate<String> isCandidate)
+            throws CloudFoundryException;
+
+    /**
+     * List the creations, starts and deletion requests of applications in a space, oldest first.
+     *
+     * @param since events older than this instant are ignored
+     */
+    List<ApplicationAuditEvent> listApplicationAuditEvents(String spaceUuid, Instant since)
             throws CloudFoundryException;
 
     List<String/**ids**/> listApplicationRoutes(String applicationUuid) throws CloudFoundryException;
 
+    List<SpaceIdentity> listOrganizationSpaces(String organizationGuid) throws CloudFoundryException;
+
     List<String/**ids**/> listRouteApplications(String routeUuid) throws CloudFoundryException;
 
+    /**
+     * Request an application to be started.
+     *
+     * @return false when the application was known to be started already. True only means the update was sent: in
+     * optimistic mode, an application whose state was not read recently may have been started already.
+     */
     boolean startApplication(String applicationUuid) throws CloudFoundryException;
 
+    /**
+     * Request an application to be stopped.
+     *
+     * @return false when the application was known to be stopped already, true when the update was sent
+     * @see #startApplication(String)
+     */
     boolean stopApplication(String applicationUuid) throws CloudFoundryException;
 
     void unbind(String bindingId) throws CloudFoundryException;
 
+    /**
+     * Listen to the application log stream until it shows that an instance became healthy.
+     *
+     * @param appUid application to watch
+     * @return a future completed on the first readiness log, cancel it to stop listening
+     */
+    CompletableFuture<Void> watchApplicationReadiness(String appUid);
+
     boolean isValidOrganization(String organizationGuid) throws CloudFoundryException;
 
 }
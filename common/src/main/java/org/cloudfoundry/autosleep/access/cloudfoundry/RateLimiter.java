@@ -0,0 +1,49 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Spread requests evenly in time: each caller is given a slot, at least one interval after the previous one.
+ */
+class RateLimiter {
+
+    private final Duration interval;
+
+    private Instant nextSlot = Instant.EPOCH;
+
+    RateLimiter(int requestsPerSecond) {
+        this.interval = Duration.ofNanos(Duration.ofSeconds(1).toNanos() / Math.max(1, requestsPerSecond));
+    }
+
+    /**
+     * Reserve the next slot.
+     *
+     * @return how long the caller must wait before sending its request
+     */
+    synchronized Duration reserve() {
+        Instant now = Instant.now();
+        Instant slot = nextSlot.isAfter(now) ? nextSlot : now;
+        nextSlot = slot.plus(interval);
+        return Duration.between(now, slot);
+    }
+
+}
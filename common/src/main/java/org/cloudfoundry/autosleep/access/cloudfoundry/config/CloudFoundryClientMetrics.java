@@ -0,0 +1,57 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry.config;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Publish the state of the access token shared by the clients. Simulated clients have none.
+ */
+class CloudFoundryClientMetrics implements PublicMetrics {
+
+    static final String PREFIX = "cf.client.";
+
+    private final RefreshingTokenProvider tokenProvider;
+
+    CloudFoundryClientMetrics(RefreshingTokenProvider tokenProvider) {
+        this.tokenProvider = tokenProvider;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        if (tokenProvider == null) {
+            return metrics;
+        }
+        metrics.add(new Metric<>(PREFIX + "token.refresh.count", tokenProvider.getRefreshes()));
+        metrics.add(new Metric<>(PREFIX + "token.refresh.failures", tokenProvider.getRefreshFailures()));
+        Duration expiresIn = tokenProvider.getExpiresIn();
+        if (expiresIn != null) {
+            metrics.add(new Metric<>(PREFIX + "token.expires.in", expiresIn.getSeconds()));
+        }
+        return metrics;
+    }
+
+}
@@ -22,23 +22,30 @@ package org.cloudfoundry.autosleep.access.cloudfoundry.config;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.simulator.Simulator;
+import org.cloudfoundry.autosleep.access.cloudfoundry.simulator.SimulatorSettings;
 import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.Config.DefaultClientIdentification;
+import org.cloudfoundry.autosleep.util.VirtualTimeManager;
 import org.cloudfoundry.client.CloudFoundryClient;
 import org.cloudfoundry.doppler.DopplerClient;
 import org.cloudfoundry.reactor.ConnectionContext;
 import org.cloudfoundry.reactor.DefaultConnectionContext;
-import org.cloudfoundry.reactor.TokenProvider;
 import org.cloudfoundry.reactor.client.ReactorCloudFoundryClient;
 import org.cloudfoundry.reactor.doppler.ReactorDopplerClient;
 import org.cloudfoundry.reactor.tokenprovider.PasswordGrantTokenProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.ApplicationContextException;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
 
+import java.time.Duration;
+import java.time.Instant;
+
 @Configuration
 @Slf4j
 public class CloudfoundryClientBuilder {
@@ -51,14 +58,26 @@ public class CloudfoundryClientBuilder {
 
         private DopplerClient dopplerClient;
 
+        private CloudFoundryClientMetrics metrics;
+
         @Builder
         ClientContainer(CloudFoundryClient cloudFoundryClient,
-                        DopplerClient dopplerClient) {
+                        DopplerClient dopplerClient,
+                        CloudFoundryClientMetrics metrics) {
             this.cloudFoundryClient = cloudFoundryClient;
             this.dopplerClient = dopplerClient;
+            this.metrics = metrics;
         }
     }
 
+    private static final String CLIENT_PROPERTY_PREFIX = "cf.client.";
+
+    private static final String CLOUD_CONTROLLER_CLIENT = "cc";
+
+    private static final String DOPPLER_CLIENT = "doppler";
+
+    private static final Duration VIRTUAL_TIME_IDLE_PERIOD = Duration.ofMillis(100);
+
     private ClientContainer clientContainer;
 
     @Autowired
@@ -67,7 +86,20 @@ public class CloudfoundryClientBuilder {
     private RuntimeException initializationError;
 
     private synchronized ClientContainer buildIfNeeded() {
-        if (clientContainer == null && initializationError == null) {
+        if (clientContainer == null && initializationError == null
+                && Boolean.parseBoolean(env.getProperty(Config.EnvKey.SIMULATOR_ENABLED))) {
+            log.warn("buildClient - cloud controller and doppler are simulated");
+            SimulatorSettings settings = SimulatorSettings.fromEnvironment(env);
+            Simulator simulator = Boolean.parseBoolean(env.getProperty(Config.EnvKey.SIMULATOR_VIRTUAL_TIME))
+                    ? new Simulator(settings, virtualTimeManager())
+                    : new Simulator(settings);
+            this.clientContainer = ClientContainer.builder()
+                    .cloudFoundryClient(simulator.getCloudFoundryClient())
+                    .dopplerClient(simulator.getDopplerClient())
+                    .metrics(new CloudFoundryClientMetrics(null))
+                    .build();
+            return this.clientContainer;
+        } else if (clientContainer == null && initializationError == null) {
             final String targetHost = env.getProperty(Config.EnvKey.CF_HOST);
             final boolean skipSslValidation = Boolean.parseBoolean(env.getProperty(
                     Config.EnvKey.CF_SKIP_SSL_VALIDATION, Boolean.FALSE.toString()));
@@ -81,29 +113,32 @@ public class CloudfoundryClientBuilder {
                 log.debug("buildClient - targetHost={}", targetHost);
                 log.debug("buildClient - skipSslValidation={}", skipSslValidation);
                 log.debug("buildClient - username={}", username);
-                ConnectionContext connectionContext = DefaultConnectionContext.builder()
-                        .apiHost(targetHost)
-                        .skipSslValidation(skipSslValidation)
-                        .build();
-                TokenProvider tokenProvider = PasswordGrantTokenProvider.builder()
-                        .username(username)
-                        .password(password)
-                        .clientId(clientId)
-                        .clientSecret(clientSecret)
-                        .build();
+                RefreshingTokenProvider tokenProvider = new RefreshingTokenProvider(
+                        PasswordGrantTokenProvider.builder()
+                                .username(username)
+                                .password(password)
+                                .clientId(clientId)
+                                .clientSecret(clientSecret)
+                                .build(),
+                        Duration.parse(env.getProperty(Config.EnvKey.CF_TOKEN_REFRESH_MARGIN,
+                                Config.CF_TOKEN_REFRESH_MARGIN.toString())));
+                CloudFoundryClientMetrics metrics = new CloudFoundryClientMetrics(tokenProvider);
 
                 CloudFoundryClient client = ReactorCloudFoundryClient.builder()
-                        .connectionContext(connectionContext)
+                        .connectionContext(buildConnectionContext(CLOUD_CONTROLLER_CLIENT, targetHost,
+                                skipSslValidation))
                         .tokenProvider(tokenProvider)
                         .build();
                 DopplerClient dopplerClient = ReactorDopplerClient.builder()
-                        .connectionContext(connectionContext)
+                        .connectionContext(buildConnectionContext(DOPPLER_CLIENT, targetHost,
+                                skipSslValidation))
                         .tokenProvider(tokenProvider)
                         .build();
 
                 this.clientContainer = ClientContainer.builder()
                         .cloudFoundryClient(client)
                         .dopplerClient(dopplerClient)
+                        .metrics(metrics)
                         .build();
                 return this.clientContainer;
             } catch (RuntimeException r) {
@@ -118,6 +153,53 @@ public class CloudfoundryClientBuilder {
         }
     }
 
+    private ConnectionContext buildConnectionContext(String clientName, String targetHost,
+                                                     boolean skipSslValidation) {
+        final int poolSize = Integer.parseInt(getClientProperty(clientName, Config.EnvKey.CF_CONNECTION_POOL_SIZE,
+                String.valueOf(Config.CF_API_CONNECTION_POOL_SIZE)));
+        final Duration connectTimeout = Duration.parse(getClientProperty(clientName,
+                Config.EnvKey.CF_CONNECT_TIMEOUT, Config.CF_API_CONNECT_TIMEOUT.toString()));
+        final boolean keepAlive = Boolean.parseBoolean(getClientProperty(clientName, Config.EnvKey.CF_KEEP_ALIVE,
+                Boolean.TRUE.toString()));
+        log.debug("buildConnectionContext - {} poolSize={} connectTimeout={} keepAlive={}",
+                clientName, poolSize, connectTimeout, keepAlive);
+        return DefaultConnectionContext.builder()
+                .apiHost(targetHost)
+                .skipSslValidation(skipSslValidation)
+                .connectionPoolSize(poolSize)
+                .connectTimeout(connectTimeout)
+                .sslHandshakeTimeout(connectTimeout)
+                .keepAlive(keepAlive)
+                .build();
+    }
+
+    /**
+     * Read a client setting, which may be overridden for a given client (ex: cf.client.doppler.keep.alive overrides
+     * cf.client.keep.alive).
+     */
+    private String getClientProperty(String clientName, String key, String defaultValue) {
+        String clientKey = CLIENT_PROPERTY_PREFIX + clientName + "." + key.substring(CLIENT_PROPERTY_PREFIX.length());
+        return env.getProperty(clientKey, env.getProperty(key, defaultValue));
+    }
+
+    /**
+     * Time manager of the application when the simulator runs in virtual time, the checks of months of traffic
+     * then running in minutes. Only meaningful against the simulator, whose applications age at the same pace.
+     */
+    @Bean
+    @ConditionalOnProperty(Config.EnvKey.SIMULATOR_VIRTUAL_TIME)
+    public VirtualTimeManager virtualTimeManager() {
+        log.warn("virtualTimeManager - time is virtual, running as fast as the tasks do");
+        VirtualTimeManager timeManager = new VirtualTimeManager(Instant.now());
+        timeManager.startDriver(VIRTUAL_TIME_IDLE_PERIOD);
+        return timeManager;
+    }
+
+    @Bean
+    public PublicMetrics cloudFoundryClientMetrics() {
+        return buildIfNeeded().getMetrics();
+    }
+
     @Bean
     @ConditionalOnMissingBean(CloudFoundryClient.class)
     public CloudFoundryClient cloudFoundryClient() {
@@ -0,0 +1,181 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry.config;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.reactor.TokenProvider;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token provider shared by all clients, that keeps a single access token and refreshes it in background before it
+ * expires. Callers never wait for a refresh while the token is valid, and concurrent callers of an expired token
+ * share the same refresh request.
+ */
+@Slf4j
+class RefreshingTokenProvider implements TokenProvider {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final TokenProvider delegate;
+
+    private final Duration refreshMargin;
+
+    private final AtomicLong refreshFailures = new AtomicLong();
+
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler;
+
+    private volatile Instant expiry;
+
+    private Mono<String> pendingRefresh;
+
+    private volatile String token;
+
+    RefreshingTokenProvider(TokenProvider delegate, Duration refreshMargin) {
+        this(delegate, refreshMargin, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cf-token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    RefreshingTokenProvider(TokenProvider delegate, Duration refreshMargin, ScheduledExecutorService scheduler) {
+        this.delegate = delegate;
+        this.refreshMargin = refreshMargin;
+        this.scheduler = scheduler;
+    }
+
+    static Instant readExpiry(String token) {
+        try {
+            String[] parts = token.substring(token.lastIndexOf(' ') + 1).split("\\.");
+            if (parts.length < 2) {
+                return null;
+            }
+            JsonNode claims = OBJECT_MAPPER.readTree(new String(Base64.getUrlDecoder().decode(parts[1]),
+                    StandardCharsets.UTF_8));
+            return claims.has("exp") ? Instant.ofEpochSecond(claims.get("exp").asLong()) : null;
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Cannot read expiry of access token", e);
+            return null;
+        }
+    }
+
+    /**
+     * Time left before the current token expires, null when unknown.
+     */
+    Duration getExpiresIn() {
+        Instant currentExpiry = expiry;
+        return currentExpiry == null ? null : Duration.between(Instant.now(), currentExpiry);
+    }
+
+    long getRefreshFailures() {
+        return refreshFailures.get();
+    }
+
+    long getRefreshes() {
+        return refreshes.get();
+    }
+
+    @Override
+    public Mono<String> getToken(ConnectionContext connectionContext) {
+        String currentToken = token;
+        if (currentToken != null && !isDueForRefresh()) {
+            return Mono.just(currentToken);
+        }
+        return refresh(connectionContext);
+    }
+
+    @Override
+    public void invalidate(ConnectionContext connectionContext) {
+        log.debug("invalidate - token rejected, a new one will be requested");
+        synchronized (this) {
+            token = null;
+            expiry = null;
+        }
+        delegate.invalidate(connectionContext);
+    }
+
+    private boolean isDueForRefresh() {
+        Instant currentExpiry = expiry;
+        return currentExpiry != null && !Instant.now().isBefore(currentExpiry.minus(refreshMargin));
+    }
+
+    private synchronized void onRefreshFailed(ConnectionContext connectionContext, Throwable error) {
+        pendingRefresh = null;
+        refreshFailures.incrementAndGet();
+        log.error("Failed to refresh access token", error);
+        if (token != null) {
+            //token still usable, retry in background
+            scheduleRefresh(connectionContext, Config.CF_TOKEN_REFRESH_RETRY_DELAY);
+        }
+    }
+
+    private synchronized void onRefreshed(ConnectionContext connectionContext, String newToken) {
+        pendingRefresh = null;
+        refreshes.incrementAndGet();
+        token = newToken;
+        expiry = newToken == null ? null : readExpiry(newToken);
+        log.debug("onRefreshed - token expires at {}", expiry);
+        if (expiry != null) {
+            Duration delay = Duration.between(Instant.now(), expiry.minus(refreshMargin));
+            scheduleRefresh(connectionContext, delay.isNegative() ? Duration.ZERO : delay);
+        }
+    }
+
+    private synchronized Mono<String> refresh(ConnectionContext connectionContext) {
+        if (pendingRefresh == null) {
+            if (token != null) {
+                //the delegate keeps serving its cached token until invalidated
+                delegate.invalidate(connectionContext);
+            }
+            pendingRefresh = delegate.getToken(connectionContext)
+                    .doOnSuccess(newToken -> onRefreshed(connectionContext, newToken))
+                    .doOnError(error -> onRefreshFailed(connectionContext, error))
+                    .cache();
+        }
+        return pendingRefresh;
+    }
+
+    private void scheduleRefresh(ConnectionContext connectionContext, Duration delay) {
+        scheduler.schedule(() -> {
+            //the token may have been renewed in the meantime
+            if (token == null || isDueForRefresh()) {
+                refresh(connectionContext)
+                        .subscribe(newToken -> log.debug("access token refreshed in background"),
+                                error -> log.debug("background refresh failed"));
+            }
+        }, delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+}
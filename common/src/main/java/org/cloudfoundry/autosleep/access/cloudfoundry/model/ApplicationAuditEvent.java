@@ -16,36 +16,31 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.cloudfoundry.autosleep.access.cloudfoundry.model;
 
 import lombok.Builder;
 import lombok.Getter;
 import lombok.ToString;
-import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+
+import java.time.Instant;
 
 @Getter
 @ToString
-public class ApplicationActivity {
+public class ApplicationAuditEvent {
 
     private final ApplicationIdentity application;
 
-    private final ApplicationInfo.DiagnosticInfo.ApplicationEvent lastEvent;
-
-    private final ApplicationInfo.DiagnosticInfo.ApplicationLog lastLog;
-
-    private final String state;
+    private final Instant timestamp;
 
+    private final String type;
 
     @Builder
-    ApplicationActivity(ApplicationIdentity application,
-                        ApplicationInfo.DiagnosticInfo.ApplicationEvent lastEvent,
-                        ApplicationInfo.DiagnosticInfo.ApplicationLog lastLog,
-                        String state) {
+    ApplicationAuditEvent(ApplicationIdentity application,
+                          Instant timestamp,
+                          String type) {
         this.application = application;
-        this.lastEvent = lastEvent;
-        this.lastLog = lastLog;
-        this.state = state;
+        this.timestamp = timestamp;
+        this.type = type;
     }
 
 }
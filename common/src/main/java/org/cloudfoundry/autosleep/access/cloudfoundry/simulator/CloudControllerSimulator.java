@@ -0,0 +1,511 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry.simulator;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.simulator.SimulatedFoundation.Application;
+import org.cloudfoundry.autosleep.access.cloudfoundry.simulator.SimulatedFoundation.Binding;
+import org.cloudfoundry.autosleep.access.cloudfoundry.simulator.SimulatedFoundation.Event;
+import org.cloudfoundry.autosleep.access.cloudfoundry.simulator.SimulatedFoundation.Route;
+import org.cloudfoundry.autosleep.access.cloudfoundry.simulator.SimulatedFoundation.ServiceInstance;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.cloudfoundry.client.v2.Metadata;
+import org.cloudfoundry.client.v2.OrderDirection;
+import org.cloudfoundry.client.v2.applications.ApplicationEntity;
+import org.cloudfoundry.client.v2.applications.ApplicationInstanceInfo;
+import org.cloudfoundry.client.v2.applications.ApplicationInstancesRequest;
+import org.cloudfoundry.client.v2.applications.ApplicationInstancesResponse;
+import org.cloudfoundry.client.v2.applications.ApplicationResource;
+import org.cloudfoundry.client.v2.applications.GetApplicationRequest;
+import org.cloudfoundry.client.v2.applications.GetApplicationResponse;
+import org.cloudfoundry.client.v2.applications.ListApplicationRoutesRequest;
+import org.cloudfoundry.client.v2.applications.ListApplicationRoutesResponse;
+import org.cloudfoundry.client.v2.applications.ListApplicationsRequest;
+import org.cloudfoundry.client.v2.applications.ListApplicationsResponse;
+import org.cloudfoundry.client.v2.applications.UpdateApplicationRequest;
+import org.cloudfoundry.client.v2.applications.UpdateApplicationResponse;
+import org.cloudfoundry.client.v2.domains.DomainEntity;
+import org.cloudfoundry.client.v2.domains.GetDomainRequest;
+import org.cloudfoundry.client.v2.domains.GetDomainResponse;
+import org.cloudfoundry.client.v2.events.EventEntity;
+import org.cloudfoundry.client.v2.events.EventResource;
+import org.cloudfoundry.client.v2.events.ListEventsRequest;
+import org.cloudfoundry.client.v2.events.ListEventsResponse;
+import org.cloudfoundry.client.v2.organizations.GetOrganizationRequest;
+import org.cloudfoundry.client.v2.organizations.GetOrganizationResponse;
+import org.cloudfoundry.client.v2.organizations.OrganizationEntity;
+import org.cloudfoundry.client.v2.routes.GetRouteRequest;
+import org.cloudfoundry.client.v2.routes.GetRouteResponse;
+import org.cloudfoundry.client.v2.routes.ListRouteApplicationsRequest;
+import org.cloudfoundry.client.v2.routes.ListRouteApplicationsResponse;
+import org.cloudfoundry.client.v2.routes.RouteEntity;
+import org.cloudfoundry.client.v2.routes.RouteResource;
+import org.cloudfoundry.client.v2.servicebindings.CreateServiceBindingRequest;
+import org.cloudfoundry.client.v2.servicebindings.CreateServiceBindingResponse;
+import org.cloudfoundry.client.v2.servicebindings.DeleteServiceBindingRequest;
+import org.cloudfoundry.client.v2.servicebindings.ServiceBindingEntity;
+import org.cloudfoundry.client.v2.serviceinstances.BindServiceInstanceRouteRequest;
+import org.cloudfoundry.client.v2.serviceinstances.BindServiceInstanceRouteResponse;
+import org.cloudfoundry.client.v2.serviceinstances.CreateServiceInstanceRequest;
+import org.cloudfoundry.client.v2.serviceinstances.CreateServiceInstanceResponse;
+import org.cloudfoundry.client.v2.serviceinstances.ServiceInstanceEntity;
+import org.cloudfoundry.client.v2.serviceplans.ServicePlanEntity;
+import org.cloudfoundry.client.v2.serviceplans.ServicePlanResource;
+import org.cloudfoundry.client.v2.services.ListServiceServicePlansRequest;
+import org.cloudfoundry.client.v2.services.ListServiceServicePlansResponse;
+import org.cloudfoundry.client.v2.services.ListServicesRequest;
+import org.cloudfoundry.client.v2.services.ListServicesResponse;
+import org.cloudfoundry.client.v2.services.ServiceEntity;
+import org.cloudfoundry.client.v2.services.ServiceResource;
+import org.cloudfoundry.client.v2.spaces.ListSpacesRequest;
+import org.cloudfoundry.client.v2.spaces.ListSpacesResponse;
+import org.cloudfoundry.client.v2.spaces.SpaceEntity;
+import org.cloudfoundry.client.v2.spaces.SpaceResource;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Cloud controller (v2 api) requests of autosleep, answered from the simulated foundation.
+ */
+class CloudControllerSimulator extends SimulatedOperations {
+
+    static final int APP_NOT_FOUND = 100_004;
+
+    static final int DEFAULT_PAGE_SIZE = 50;
+
+    static final int DOMAIN_NOT_FOUND = 130_002;
+
+    static final int INSTANCES_ERROR = 220_001;
+
+    static final int NOT_FOUND_STATUS = 404;
+
+    static final int ORGANIZATION_NOT_FOUND = 30_003;
+
+    static final int ROUTE_NOT_FOUND = 210_002;
+
+    static final int SERVICE_BINDING_NOT_FOUND = 90_004;
+
+    static final int SERVICE_INSTANCE_NOT_FOUND = 60_004;
+
+    static final int SERVICE_PLAN_NOT_FOUND = 110_003;
+
+    static final int SPACE_NOT_FOUND = 40_004;
+
+    private final ServiceBrokerClient broker;
+
+    private final SimulatedFoundation foundation;
+
+    private final Duration startDuration;
+
+    CloudControllerSimulator(SimulatedFoundation foundation, ServiceBrokerClient broker, Duration startDuration) {
+        this.foundation = foundation;
+        this.broker = broker;
+        this.startDuration = startDuration;
+        registerApplications();
+        registerEvents();
+        registerOrganizations();
+        registerRoutes();
+        registerServices();
+    }
+
+    static ClientV2Exception buildError(Integer status, String description) {
+        return new ClientV2Exception(status, 0, description, "CF-Simulated");
+    }
+
+    private static ClientV2Exception buildNotFound(int code, String description) {
+        return new ClientV2Exception(NOT_FOUND_STATUS, code, description, "CF-NotFound");
+    }
+
+    private static Metadata buildMetadata(String id) {
+        return Metadata.builder()
+                .id(id)
+                .build();
+    }
+
+    private static <T> List<T> page(List<T> resources, Integer page, Integer resultsPerPage) {
+        int size = resultsPerPage == null ? DEFAULT_PAGE_SIZE : resultsPerPage;
+        int from = ((page == null ? 1 : page) - 1) * size;
+        if (from >= resources.size()) {
+            return Collections.emptyList();
+        }
+        return resources.subList(from, Math.min(from + size, resources.size()));
+    }
+
+    private static int totalPages(List<?> resources, Integer resultsPerPage) {
+        int size = resultsPerPage == null ? DEFAULT_PAGE_SIZE : resultsPerPage;
+        return Math.max(1, (resources.size() + size - 1) / size);
+    }
+
+    private static <T> Mono<T> find(T resource, int code, String description) {
+        return resource == null ? Mono.error(buildNotFound(code, description)) : Mono.just(resource);
+    }
+
+    /**
+     * Run a request that calls the service broker, which may take a while, out of the reactive threads.
+     */
+    private <T> Mono<T> callBroker(Callable<T> request) {
+        return Mono.fromCallable(request).subscribeOn(Schedulers.elastic());
+    }
+
+    private ApplicationResource buildApplicationResource(Application application) {
+        return ApplicationResource.builder()
+                .metadata(buildMetadata(application.getId()))
+                .entity(buildApplicationEntity(application))
+                .build();
+    }
+
+    private ApplicationEntity buildApplicationEntity(Application application) {
+        return ApplicationEntity.builder()
+                .name(application.getName())
+                .spaceId(application.getSpaceId())
+                .state(application.getState())
+                .packageState("STAGED")
+                .instances(1)
+                .build();
+    }
+
+    private EventResource buildEventResource(Event event) {
+        return EventResource.builder()
+                .metadata(buildMetadata(event.getId()))
+                .entity(EventEntity.builder()
+                        .actee(event.getActee())
+                        .acteeName(event.getActeeName())
+                        .acteeType("app")
+                        .actor("simulated-user")
+                        .actorName("simulated-user")
+                        .actorType("user")
+                        .spaceId(event.getSpaceId())
+                        .timestamp(event.getTimestamp().toString())
+                        .type(event.getType())
+                        .build())
+                .build();
+    }
+
+    private RouteEntity buildRouteEntity(Route route) {
+        return RouteEntity.builder()
+                .host(route.getHost())
+                .path("")
+                .domainId(foundation.getDomainId())
+                .build();
+    }
+
+    private ServiceInstanceEntity buildServiceInstanceEntity(ServiceInstance serviceInstance) {
+        return ServiceInstanceEntity.builder()
+                .name(serviceInstance.getName())
+                .servicePlanId(serviceInstance.getServicePlanId())
+                .spaceId(serviceInstance.getSpaceId())
+                .build();
+    }
+
+    private Mono<Application> findApplication(String applicationId) {
+        return find(foundation.getApplication(applicationId), APP_NOT_FOUND, "The app could not be found");
+    }
+
+    private Mono<ServiceInstance> findServiceInstance(String serviceInstanceId) {
+        return find(foundation.getServiceInstance(serviceInstanceId), SERVICE_INSTANCE_NOT_FOUND,
+                "The service instance could not be found");
+    }
+
+    private ServiceBrokerClient.Plan getPlan(ServiceInstance serviceInstance) {
+        return broker.findPlan(serviceInstance.getServicePlanId());
+    }
+
+    private List<Event> listEvents(ListEventsRequest request) {
+        Stream<Application> applications;
+        if (!request.getActees().isEmpty()) {
+            applications = request.getActees().stream()
+                    .map(foundation::getApplication)
+                    .filter(Objects::nonNull);
+        } else {
+            applications = request.getSpaceIds().stream()
+                    .flatMap(spaceId -> foundation.listApplications(spaceId).stream());
+        }
+        //timestamps are used as lower bounds, as autosleep does
+        Instant since = request.getTimestamps().stream()
+                .map(Instant::parse)
+                .min(Comparator.naturalOrder())
+                .orElse(Instant.EPOCH);
+        Comparator<Event> order = Comparator.comparing(Event::getTimestamp);
+        return applications
+                .flatMap(application -> application.getEvents().stream())
+                .filter(event -> request.getTypes().isEmpty() || request.getTypes().contains(event.getType()))
+                .filter(event -> !event.getTimestamp().isBefore(since))
+                .sorted(request.getOrderDirection() == OrderDirection.DESCENDING ? order.reversed() : order)
+                .collect(Collectors.toList());
+    }
+
+    private void registerApplications() {
+        register("applicationsV2.get", GetApplicationRequest.class,
+                request -> findApplication(request.getApplicationId())
+                        .map(application -> GetApplicationResponse.builder()
+                                .metadata(buildMetadata(application.getId()))
+                                .entity(buildApplicationEntity(application))
+                                .build()));
+        register("applicationsV2.instances", ApplicationInstancesRequest.class,
+                request -> findApplication(request.getApplicationId())
+                        .then(application -> {
+                            if (!CloudFoundryAppState.STARTED.equals(application.getState())) {
+                                return Mono.<ApplicationInstancesResponse>error(new ClientV2Exception(400,
+                                        INSTANCES_ERROR,
+                                        "Instances information unavailable",
+                                        "CF-InstancesError"));
+                            }
+                            return Mono.just(ApplicationInstancesResponse.builder()
+                                    .instance("0", ApplicationInstanceInfo.builder()
+                                            .state(application.isRunning(foundation.now(), startDuration)
+                                                    ? "RUNNING" : "STARTING")
+                                            .build())
+                                    .build());
+                        }));
+        register("applicationsV2.list", ListApplicationsRequest.class, request -> {
+            List<ApplicationResource> applications = request.getSpaceIds().stream()
+                    .flatMap(spaceId -> foundation.listApplications(spaceId).stream())
+                    .map(this::buildApplicationResource)
+                    .collect(Collectors.toList());
+            return Mono.just(ListApplicationsResponse.builder()
+                    .resources(page(applications, request.getPage(), request.getResultsPerPage()))
+                    .totalPages(totalPages(applications, request.getResultsPerPage()))
+                    .totalResults(applications.size())
+                    .build());
+        });
+        register("applicationsV2.listRoutes", ListApplicationRoutesRequest.class,
+                request -> findApplication(request.getApplicationId())
+                        .map(application -> ListApplicationRoutesResponse.builder()
+                                .resources(application.getRouteIds().stream()
+                                        .map(foundation::getRoute)
+                                        .map(route -> RouteResource.builder()
+                                                .metadata(buildMetadata(route.getId()))
+                                                .entity(buildRouteEntity(route))
+                                                .build())
+                                        .collect(Collectors.toList()))
+                                .totalPages(1)
+                                .totalResults(application.getRouteIds().size())
+                                .build()));
+        register("applicationsV2.update", UpdateApplicationRequest.class,
+                request -> findApplication(request.getApplicationId())
+                        .map(application -> {
+                            if (request.getState() != null) {
+                                foundation.changeState(application.getId(), request.getState());
+                            }
+                            return UpdateApplicationResponse.builder()
+                                    .metadata(buildMetadata(application.getId()))
+                                    .entity(buildApplicationEntity(application))
+                                    .build();
+                        }));
+    }
+
+    private void registerEvents() {
+        register("events.list", ListEventsRequest.class, request -> {
+            List<Event> events = listEvents(request);
+            return Mono.just(ListEventsResponse.builder()
+                    .resources(page(events, request.getPage(), request.getResultsPerPage()).stream()
+                            .map(this::buildEventResource)
+                            .collect(Collectors.toList()))
+                    .totalPages(totalPages(events, request.getResultsPerPage()))
+                    .totalResults(events.size())
+                    .build());
+        });
+    }
+
+    private void registerOrganizations() {
+        register("organizations.get", GetOrganizationRequest.class,
+                request -> find(foundation.getOrganization(request.getOrganizationId()), ORGANIZATION_NOT_FOUND,
+                        "The organization could not be found")
+                        .map(organization -> GetOrganizationResponse.builder()
+                                .metadata(buildMetadata(organization.getId()))
+                                .entity(OrganizationEntity.builder()
+                                        .name(organization.getName())
+                                        .build())
+                                .build()));
+        register("spaces.list", ListSpacesRequest.class, request -> {
+            List<SpaceResource> spaces = request.getOrganizationIds().stream()
+                    .map(foundation::getOrganization)
+                    .filter(Objects::nonNull)
+                    .flatMap(organization -> organization.getSpaceIds().stream())
+                    .map(foundation::getSpace)
+                    .map(space -> SpaceResource.builder()
+                            .metadata(buildMetadata(space.getId()))
+                            .entity(SpaceEntity.builder()
+                                    .name(space.getName())
+                                    .organizationId(space.getOrganizationId())
+                                    .build())
+                            .build())
+                    .collect(Collectors.toList());
+            return Mono.just(ListSpacesResponse.builder()
+                    .resources(page(spaces, request.getPage(), request.getResultsPerPage()))
+                    .totalPages(totalPages(spaces, request.getResultsPerPage()))
+                    .totalResults(spaces.size())
+                    .build());
+        });
+    }
+
+    private void registerRoutes() {
+        register("domains.get", GetDomainRequest.class, request -> {
+            if (!foundation.getDomainId().equals(request.getDomainId())) {
+                return Mono.error(buildNotFound(DOMAIN_NOT_FOUND, "The domain could not be found"));
+            }
+            return Mono.just(GetDomainResponse.builder()
+                    .metadata(buildMetadata(foundation.getDomainId()))
+                    .entity(DomainEntity.builder()
+                            .name(SimulatedFoundation.DOMAIN_NAME)
+                            .build())
+                    .build());
+        });
+        register("routes.get", GetRouteRequest.class,
+                request -> find(foundation.getRoute(request.getRouteId()), ROUTE_NOT_FOUND,
+                        "The route could not be found")
+                        .map(route -> GetRouteResponse.builder()
+                                .metadata(buildMetadata(route.getId()))
+                                .entity(buildRouteEntity(route))
+                                .build()));
+        register("routes.listApplications", ListRouteApplicationsRequest.class,
+                request -> find(foundation.getRoute(request.getRouteId()), ROUTE_NOT_FOUND,
+                        "The route could not be found")
+                        .map(route -> ListRouteApplicationsResponse.builder()
+                                .resources(route.getApplicationIds().stream()
+                                        .map(foundation::getApplication)
+                                        .map(this::buildApplicationResource)
+                                        .collect(Collectors.toList()))
+                                .totalPages(1)
+                                .totalResults(route.getApplicationIds().size())
+                                .build()));
+    }
+
+    private void registerServices() {
+        register("services.list", ListServicesRequest.class,
+                request -> callBroker(() -> ListServicesResponse.builder()
+                        .resources(broker.getCatalog().stream()
+                                .filter(service -> request.getLabels().isEmpty()
+                                        || request.getLabels().contains(service.getLabel()))
+                                .map(service -> ServiceResource.builder()
+                                        .metadata(buildMetadata(service.getId()))
+                                        .entity(ServiceEntity.builder()
+                                                .label(service.getLabel())
+                                                .uniqueId(service.getUniqueId())
+                                                .active(true)
+                                                .bindable(true)
+                                                .build())
+                                        .build())
+                                .collect(Collectors.toList()))
+                        .totalPages(1)
+                        .build()));
+        register("services.listServicePlans", ListServiceServicePlansRequest.class,
+                request -> callBroker(() -> ListServiceServicePlansResponse.builder()
+                        .resources(broker.getCatalog().stream()
+                                .filter(service -> service.getId().equals(request.getServiceId()))
+                                .flatMap(service -> service.getPlans().stream())
+                                .map(plan -> ServicePlanResource.builder()
+                                        .metadata(buildMetadata(plan.getId()))
+                                        .entity(ServicePlanEntity.builder()
+                                                .name(plan.getName())
+                                                .serviceId(plan.getService().getId())
+                                                .uniqueId(plan.getUniqueId())
+                                                .build())
+                                        .build())
+                                .collect(Collectors.toList()))
+                        .totalPages(1)
+                        .build()));
+        register("serviceInstances.create", CreateServiceInstanceRequest.class,
+                request -> find(foundation.getSpace(request.getSpaceId()), SPACE_NOT_FOUND,
+                        "The space could not be found")
+                        .then(space -> callBroker(() -> {
+                            ServiceBrokerClient.Plan plan = broker.findPlan(request.getServicePlanId());
+                            if (plan == null) {
+                                throw buildNotFound(SERVICE_PLAN_NOT_FOUND, "The service plan could not be found");
+                            }
+                            ServiceInstance serviceInstance = foundation.addServiceInstance(request.getName(),
+                                    plan.getId(), space.getId());
+                            try {
+                                broker.provision(serviceInstance.getId(), plan, space.getOrganizationId(),
+                                        space.getId(), request.getParameters());
+                            } catch (RuntimeException r) {
+                                foundation.removeServiceInstance(serviceInstance.getId());
+                                throw r;
+                            }
+                            return CreateServiceInstanceResponse.builder()
+                                    .metadata(buildMetadata(serviceInstance.getId()))
+                                    .entity(buildServiceInstanceEntity(serviceInstance))
+                                    .build();
+                        })));
+        register("serviceInstances.bindRoute", BindServiceInstanceRouteRequest.class,
+                request -> findServiceInstance(request.getServiceInstanceId())
+                        .then(serviceInstance -> find(foundation.getRoute(request.getRouteId()), ROUTE_NOT_FOUND,
+                                "The route could not be found")
+                                .then(route -> callBroker(() -> {
+                                    Binding binding = foundation.addBinding(serviceInstance.getId(), null,
+                                            route.getId());
+                                    try {
+                                        broker.bindRoute(serviceInstance.getId(), getPlan(serviceInstance),
+                                                binding.getId(), route.getHost() + "."
+                                                        + SimulatedFoundation.DOMAIN_NAME);
+                                    } catch (RuntimeException r) {
+                                        foundation.removeBinding(binding.getId());
+                                        throw r;
+                                    }
+                                    return BindServiceInstanceRouteResponse.builder()
+                                            .metadata(buildMetadata(serviceInstance.getId()))
+                                            .entity(buildServiceInstanceEntity(serviceInstance))
+                                            .build();
+                                }))));
+        register("serviceBindingsV2.create", CreateServiceBindingRequest.class,
+                request -> findServiceInstance(request.getServiceInstanceId())
+                        .then(serviceInstance -> findApplication(request.getApplicationId())
+                                .then(application -> callBroker(() -> {
+                                    Binding binding = foundation.addBinding(serviceInstance.getId(),
+                                            application.getId(), null);
+                                    try {
+                                        broker.bindApplication(serviceInstance.getId(), getPlan(serviceInstance),
+                                                binding.getId(), application.getId());
+                                    } catch (RuntimeException r) {
+                                        foundation.removeBinding(binding.getId());
+                                        throw r;
+                                    }
+                                    return CreateServiceBindingResponse.builder()
+                                            .metadata(buildMetadata(binding.getId()))
+                                            .entity(ServiceBindingEntity.builder()
+                                                    .applicationId(application.getId())
+                                                    .serviceInstanceId(serviceInstance.getId())
+                                                    .build())
+                                            .build();
+                                }))));
+        register("serviceBindingsV2.delete", DeleteServiceBindingRequest.class,
+                request -> find(foundation.getBinding(request.getServiceBindingId()), SERVICE_BINDING_NOT_FOUND,
+                        "The service binding could not be found")
+                        .then(binding -> callBroker(() -> {
+                            ServiceInstance serviceInstance = foundation.getServiceInstance(
+                                    binding.getServiceInstanceId());
+                            broker.unbind(binding.getServiceInstanceId(), getPlan(serviceInstance),
+                                    binding.getId());
+                            foundation.removeBinding(binding.getId());
+                            return binding.getId();
+                        }))
+                        .then());
+    }
+
+}
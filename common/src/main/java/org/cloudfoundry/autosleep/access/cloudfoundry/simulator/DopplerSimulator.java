@@ -0,0 +1,140 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry.simulator;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.simulator.SimulatedFoundation.Application;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.doppler.ContainerMetric;
+import org.cloudfoundry.doppler.ContainerMetricsRequest;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.doppler.MessageType;
+import org.cloudfoundry.doppler.RecentLogsRequest;
+import org.cloudfoundry.doppler.StreamRequest;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Doppler requests of autosleep, answered from the simulated foundation: recent logs carry the last activity of
+ * applications, and the log stream of a starting application reports it healthy once started.
+ */
+class DopplerSimulator extends SimulatedOperations {
+
+    /**
+     * Message logged by the cell when an instance passes its health check.
+     */
+    static final String READINESS_LOG_MESSAGE = "Container became healthy";
+
+    static final Duration STREAM_CHECK_PERIOD = Duration.ofMillis(100);
+
+    private final SimulatedFoundation foundation;
+
+    private final Duration startDuration;
+
+    DopplerSimulator(SimulatedFoundation foundation, Duration startDuration) {
+        this.foundation = foundation;
+        this.startDuration = startDuration;
+        register("doppler.containerMetrics", ContainerMetricsRequest.class,
+                request -> readContainerMetrics(foundation.getApplication(request.getApplicationId())));
+        register("doppler.recentLogs", RecentLogsRequest.class,
+                request -> readRecentLogs(foundation.getApplication(request.getApplicationId())));
+        register("doppler.stream", StreamRequest.class,
+                request -> stream(foundation.getApplication(request.getApplicationId())));
+    }
+
+    static Throwable buildError(Integer status, String description) {
+        return new IOException(description + " (" + status + ")");
+    }
+
+    private static long toNanos(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    private Envelope buildLogEnvelope(Application application, String message, String sourceType, Instant time) {
+        return Envelope.builder()
+                .deployment("simulator")
+                .eventType(EventType.LOG_MESSAGE)
+                .index("0")
+                .ip("127.0.0.1")
+                .job("cell")
+                .logMessage(LogMessage.builder()
+                        .applicationId(application.getId())
+                        .message(message)
+                        .messageType(MessageType.OUT)
+                        .sourceInstance("0")
+                        .sourceType(sourceType)
+                        .timestamp(toNanos(time))
+                        .build())
+                .origin("rep")
+                .timestamp(toNanos(time))
+                .build();
+    }
+
+    private Flux<Envelope> readContainerMetrics(Application application) {
+        if (application == null || !CloudFoundryAppState.STARTED.equals(application.getState())) {
+            return Flux.empty();
+        }
+        Instant now = foundation.now();
+        boolean busy = application.getLastActivity(now).isAfter(now.minus(Config.Simulator.ACTIVITY_WINDOW));
+        return Flux.just(Envelope.builder()
+                .deployment("simulator")
+                .eventType(EventType.CONTAINER_METRIC)
+                .index("0")
+                .ip("127.0.0.1")
+                .job("cell")
+                .containerMetric(ContainerMetric.builder()
+                        .applicationId(application.getId())
+                        .cpuPercentage(busy ? 2 * Config.ACTIVITY_CPU_THRESHOLD : 0.1)
+                        .diskBytes(0L)
+                        .instanceIndex(0)
+                        .memoryBytes(0L)
+                        .build())
+                .origin("rep")
+                .timestamp(toNanos(now))
+                .build());
+    }
+
+    private Flux<Envelope> readRecentLogs(Application application) {
+        if (application == null) {
+            return Flux.empty();
+        }
+        return Flux.just(buildLogEnvelope(application, "GET / 200", "RTR",
+                application.getLastActivity(foundation.now())));
+    }
+
+    /**
+     * Stream the logs of an application, which never ends: only the readiness log of a started application is sent.
+     */
+    private Flux<Envelope> stream(Application application) {
+        if (application == null) {
+            return Flux.never();
+        }
+        return Flux.interval(STREAM_CHECK_PERIOD)
+                .filter(tick -> application.isRunning(foundation.now(), startDuration))
+                .take(1)
+                .map(tick -> buildLogEnvelope(application, READINESS_LOG_MESSAGE, "CELL", foundation.now()))
+                .concatWith(Flux.never());
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry.simulator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Calls made by the simulated cloud controller to the service broker, as a real one does once the broker is
+ * registered: the catalog is read once, then service instances and bindings are created in the broker before being
+ * created in the foundation. Without broker url, the catalog is the default autosleep one and the broker is not
+ * called.
+ */
+@Slf4j
+class ServiceBrokerClient {
+
+    @Getter
+    static class Plan {
+
+        private final String id;
+
+        private final String name;
+
+        private final Service service;
+
+        private final String uniqueId;
+
+        Plan(Service service, String uniqueId, String name) {
+            this.id = UUID.randomUUID().toString();
+            this.service = service;
+            this.uniqueId = uniqueId;
+            this.name = name;
+        }
+
+    }
+
+    @Getter
+    static class Service {
+
+        private final String id;
+
+        private final String label;
+
+        private final List<Plan> plans = new ArrayList<>();
+
+        private final String uniqueId;
+
+        Service(String uniqueId, String label) {
+            this.id = UUID.randomUUID().toString();
+            this.uniqueId = uniqueId;
+            this.label = label;
+        }
+
+    }
+
+    static final String API_VERSION = "2.10";
+
+    static final int BROKER_ERROR_CODE = 10_001;
+
+    static final int BROKER_ERROR_STATUS = 502;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final String authorization;
+
+    private volatile List<Service> catalog;
+
+    private final String url;
+
+    ServiceBrokerClient(SimulatorSettings settings) {
+        this.url = settings.getBrokerUrl();
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString(
+                (settings.getBrokerUsername() + ":" + settings.getBrokerPassword()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    void bindApplication(String serviceInstanceId, Plan plan, String bindingId, String applicationId) {
+        if (isEnabled()) {
+            Map<String, Object> body = buildBody(plan);
+            body.put("app_guid", applicationId);
+            body.put("bind_resource", Collections.singletonMap("app_guid", applicationId));
+            request("PUT", bindingPath(serviceInstanceId, bindingId), body);
+        }
+    }
+
+    void bindRoute(String serviceInstanceId, Plan plan, String bindingId, String route) {
+        if (isEnabled()) {
+            Map<String, Object> body = buildBody(plan);
+            body.put("bind_resource", Collections.singletonMap("route", route));
+            request("PUT", bindingPath(serviceInstanceId, bindingId), body);
+        }
+    }
+
+    private String bindingPath(String serviceInstanceId, String bindingId) {
+        return Config.Path.SERVICE_BROKER_SERVICE_CONTROLLER_BASE_PATH + "/" + serviceInstanceId
+                + "/service_bindings/" + bindingId;
+    }
+
+    private Map<String, Object> buildBody(Plan plan) {
+        Map<String, Object> body = new HashMap<>();
+        body.put("service_id", plan.getService().getUniqueId());
+        body.put("plan_id", plan.getUniqueId());
+        return body;
+    }
+
+    private List<Service> buildDefaultCatalog() {
+        Service service = new Service(Config.ServiceCatalog.DEFAULT_SERVICE_BROKER_ID,
+                Config.ServiceCatalog.DEFAULT_SERVICE_BROKER_NAME);
+        service.getPlans().add(new Plan(service, Config.ServiceCatalog.DEFAULT_SERVICE_PLAN_ID,
+                Config.ServiceCatalog.DEFAULT_SERVICE_PLAN_NAME));
+        return Collections.singletonList(service);
+    }
+
+    private ClientV2Exception buildError(String description) {
+        return new ClientV2Exception(BROKER_ERROR_STATUS, BROKER_ERROR_CODE, description,
+                "CF-ServiceBrokerBadResponse");
+    }
+
+    Plan findPlan(String planId) {
+        return getCatalog().stream()
+                .flatMap(service -> service.getPlans().stream())
+                .filter(plan -> plan.getId().equals(planId))
+                .findAny()
+                .orElse(null);
+    }
+
+    List<Service> getCatalog() {
+        if (catalog == null) {
+            synchronized (this) {
+                if (catalog == null) {
+                    catalog = isEnabled() ? readCatalog() : buildDefaultCatalog();
+                }
+            }
+        }
+        return catalog;
+    }
+
+    private boolean isEnabled() {
+        return url != null;
+    }
+
+    void provision(String serviceInstanceId, Plan plan, String organizationId, String spaceId,
+                   Map<String, Object> parameters) {
+        if (isEnabled()) {
+            Map<String, Object> body = buildBody(plan);
+            body.put("organization_guid", organizationId);
+            body.put("space_guid", spaceId);
+            if (parameters != null) {
+                body.put("parameters", parameters);
+            }
+            request("PUT", Config.Path.SERVICE_BROKER_SERVICE_CONTROLLER_BASE_PATH + "/" + serviceInstanceId, body);
+        }
+    }
+
+    private List<Service> readCatalog() {
+        JsonNode response = request("GET", "/v2/catalog", null);
+        List<Service> services = new ArrayList<>();
+        if (response != null) {
+            response.path("services").forEach(serviceNode -> {
+                Service service = new Service(serviceNode.path("id").asText(), serviceNode.path("name").asText());
+                serviceNode.path("plans").forEach(planNode -> service.getPlans().add(
+                        new Plan(service, planNode.path("id").asText(), planNode.path("name").asText())));
+                services.add(service);
+            });
+        }
+        log.info("service broker catalog read from {}: {} services", url, services.size());
+        return services;
+    }
+
+    private JsonNode request(String method, String path, Map<String, Object> body) {
+        log.debug("{} {}{}", method, url, path);
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout((int) Config.CF_API_TIMEOUT.toMillis());
+            connection.setReadTimeout((int) Config.CF_API_TIMEOUT.toMillis());
+            connection.setRequestProperty("Authorization", authorization);
+            connection.setRequestProperty("X-Broker-API-Version", API_VERSION);
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                try (OutputStream output = connection.getOutputStream()) {
+                    OBJECT_MAPPER.writeValue(output, body);
+                }
+            }
+            int status = connection.getResponseCode();
+            if (status >= 300) {
+                throw buildError("Service broker answered " + status + " to " + method + " " + path);
+            }
+            try (InputStream input = connection.getInputStream()) {
+                return OBJECT_MAPPER.readTree(input);
+            }
+        } catch (IOException e) {
+            throw buildError("Service broker unreachable: " + e.getMessage());
+        }
+    }
+
+    void unbind(String serviceInstanceId, Plan plan, String bindingId) {
+        if (isEnabled()) {
+            request("DELETE", bindingPath(serviceInstanceId, bindingId) + "?service_id="
+                    + plan.getService().getUniqueId() + "&plan_id=" + plan.getUniqueId(), null);
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry.simulator;
+
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Implementation of a client interface (or of one of its apis, such as {@code applicationsV2()}) that answers with
+ * the operations of the simulator, named after the api and the method (ex: {@code applicationsV2.get}). Operations
+ * not simulated fail, so that a client stack using them is noticed at once.
+ */
+class SimulatedApi implements InvocationHandler {
+
+    private final BiFunction<Integer, String, Throwable> errorFactory;
+
+    private final String name;
+
+    private final SimulatedNetwork network;
+
+    private final Map<String, Function<Object, Publisher<?>>> operations;
+
+    private SimulatedApi(String name, Map<String, Function<Object, Publisher<?>>> operations,
+                         SimulatedNetwork network, BiFunction<Integer, String, Throwable> errorFactory) {
+        this.name = name;
+        this.operations = operations;
+        this.network = network;
+        this.errorFactory = errorFactory;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T create(Class<T> type, String name, Map<String, Function<Object, Publisher<?>>> operations,
+                        SimulatedNetwork network, BiFunction<Integer, String, Throwable> errorFactory) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                new SimulatedApi(name, operations, network, errorFactory));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "simulated " + name;
+            }
+        }
+        Class<?> returnType = method.getReturnType();
+        if ((args == null || args.length == 0) && returnType.isInterface()
+                && !Publisher.class.isAssignableFrom(returnType)) {
+            return create(returnType, method.getName(), operations, network, errorFactory);
+        }
+        String operation = name + "." + method.getName();
+        Function<Object, Publisher<?>> handler = operations.get(operation);
+        Flux<Object> response = handler == null
+                ? Flux.<Object>error(new UnsupportedOperationException(operation + " is not simulated"))
+                : network.send(operation, () -> handler.apply(args == null ? null : args[0]), errorFactory);
+        return Mono.class.isAssignableFrom(returnType) ? Mono.from(response) : response;
+    }
+
+}
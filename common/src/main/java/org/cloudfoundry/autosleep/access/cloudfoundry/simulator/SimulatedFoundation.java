@@ -0,0 +1,416 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry.simulator;
+
+import lombok.Getter;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.autosleep.util.TimeManager;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Organizations, spaces, applications, routes and service instances of a simulated foundation. Applications in use
+ * keep on producing activity, whereas the other ones only do when started.
+ */
+public class SimulatedFoundation {
+
+    @Getter
+    static class Application {
+
+        private final boolean active;
+
+        private final Instant createdAt;
+
+        private final Deque<Event> events = new ArrayDeque<>();
+
+        private final String id;
+
+        private volatile Instant lastActivity;
+
+        private final String name;
+
+        private final List<String> routeIds = new ArrayList<>();
+
+        private final String spaceId;
+
+        private volatile Instant startedAt;
+
+        private volatile String state;
+
+        Application(String id, String name, String spaceId, boolean active, Instant createdAt,
+                    Instant lastActivity) {
+            this.id = id;
+            this.name = name;
+            this.spaceId = spaceId;
+            this.active = active;
+            this.createdAt = createdAt;
+            this.lastActivity = lastActivity;
+            this.startedAt = createdAt;
+            this.state = CloudFoundryAppState.STARTED;
+        }
+
+        synchronized List<Event> getEvents() {
+            return new ArrayList<>(events);
+        }
+
+        /**
+         * Last log of the application, applications in use logging all the time while started.
+         */
+        Instant getLastActivity(Instant now) {
+            if (active && CloudFoundryAppState.STARTED.equals(state)) {
+                long window = Config.Simulator.ACTIVITY_WINDOW.toMillis();
+                return now.minusMillis(ThreadLocalRandom.current().nextLong(window));
+            }
+            return lastActivity;
+        }
+
+        boolean isRunning(Instant now, Duration startDuration) {
+            return CloudFoundryAppState.STARTED.equals(state) && !startedAt.plus(startDuration).isAfter(now);
+        }
+
+        synchronized void record(Event event) {
+            events.addFirst(event);
+            if (events.size() > Config.Simulator.EVENTS_PER_APPLICATION) {
+                events.removeLast();
+            }
+        }
+
+    }
+
+    @Getter
+    static class Binding {
+
+        private final String applicationId;
+
+        private final String id;
+
+        private final String routeId;
+
+        private final String serviceInstanceId;
+
+        Binding(String id, String serviceInstanceId, String applicationId, String routeId) {
+            this.id = id;
+            this.serviceInstanceId = serviceInstanceId;
+            this.applicationId = applicationId;
+            this.routeId = routeId;
+        }
+
+    }
+
+    @Getter
+    static class Event {
+
+        private final String actee;
+
+        private final String acteeName;
+
+        private final String id;
+
+        private final String spaceId;
+
+        private final Instant timestamp;
+
+        private final String type;
+
+        Event(Application application, String type, Instant timestamp) {
+            this.id = UUID.randomUUID().toString();
+            this.actee = application.getId();
+            this.acteeName = application.getName();
+            this.spaceId = application.getSpaceId();
+            this.type = type;
+            this.timestamp = timestamp;
+        }
+
+    }
+
+    @Getter
+    static class Organization {
+
+        private final String id;
+
+        private final String name;
+
+        private final List<String> spaceIds = new ArrayList<>();
+
+        Organization(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+    }
+
+    @Getter
+    static class Route {
+
+        private final List<String> applicationIds = new ArrayList<>();
+
+        private final String host;
+
+        private final String id;
+
+        Route(String id, String host) {
+            this.id = id;
+            this.host = host;
+        }
+
+    }
+
+    @Getter
+    static class ServiceInstance {
+
+        private final String id;
+
+        private final String name;
+
+        private final String servicePlanId;
+
+        private final String spaceId;
+
+        ServiceInstance(String id, String name, String servicePlanId, String spaceId) {
+            this.id = id;
+            this.name = name;
+            this.servicePlanId = servicePlanId;
+            this.spaceId = spaceId;
+        }
+
+    }
+
+    @Getter
+    static class Space {
+
+        private final List<String> applicationIds = new ArrayList<>();
+
+        private final String id;
+
+        private final String name;
+
+        private final String organizationId;
+
+        Space(String id, String name, String organizationId) {
+            this.id = id;
+            this.name = name;
+            this.organizationId = organizationId;
+        }
+
+    }
+
+    static final String APP_UPDATE_EVENT = "audit.app.update";
+
+    static final String DOMAIN_NAME = "apps.simulated.local";
+
+    private final Map<String, Application> applications = new ConcurrentHashMap<>();
+
+    private final Map<String, Binding> bindings = new ConcurrentHashMap<>();
+
+    @Getter
+    private final String domainId;
+
+    private final Map<String, Organization> organizations = new ConcurrentHashMap<>();
+
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+    private final Map<String, ServiceInstance> serviceInstances = new ConcurrentHashMap<>();
+
+    private final Map<String, Space> spaces = new ConcurrentHashMap<>();
+
+    private final AtomicInteger stateChanges = new AtomicInteger();
+
+    private final TimeManager timeManager;
+
+    /**
+     * Populate a foundation with the organizations, spaces and applications of the settings. Each application has
+     * a route of its own, and was last used some time ago, unless it is in use.
+     */
+    SimulatedFoundation(SimulatorSettings settings, TimeManager timeManager) {
+        this.timeManager = timeManager;
+        Random random = new Random(settings.getSeed());
+        Instant now = now();
+        long idlePeriod = Config.Simulator.IDLE_PERIOD.toMillis();
+        this.domainId = generateId(random);
+        for (int o = 0; o < settings.getOrganizations(); o++) {
+            Organization organization = new Organization(generateId(random), "organization-" + o);
+            organizations.put(organization.getId(), organization);
+            for (int s = 0; s < settings.getSpacesPerOrganization(); s++) {
+                Space space = new Space(generateId(random), "space-" + o + "-" + s, organization.getId());
+                spaces.put(space.getId(), space);
+                organization.getSpaceIds().add(space.getId());
+                for (int a = 0; a < settings.getApplicationsPerSpace(); a++) {
+                    Instant lastActivity = now.minusMillis((long) (random.nextDouble() * idlePeriod));
+                    Application application = new Application(generateId(random),
+                            "application-" + o + "-" + s + "-" + a, space.getId(),
+                            random.nextDouble() < settings.getActiveRatio(),
+                            lastActivity.minusMillis(idlePeriod), lastActivity);
+                    application.record(new Event(application, Config.CloudFoundryAuditEvent.APP_CREATE,
+                            application.getCreatedAt()));
+                    Route route = new Route(generateId(random), application.getName());
+                    route.getApplicationIds().add(application.getId());
+                    application.getRouteIds().add(route.getId());
+                    routes.put(route.getId(), route);
+                    applications.put(application.getId(), application);
+                    space.getApplicationIds().add(application.getId());
+                }
+            }
+        }
+    }
+
+    private static String generateId(Random random) {
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+
+    Binding addBinding(String serviceInstanceId, String applicationId, String routeId) {
+        Binding binding = new Binding(UUID.randomUUID().toString(), serviceInstanceId, applicationId, routeId);
+        bindings.put(binding.getId(), binding);
+        return binding;
+    }
+
+    ServiceInstance addServiceInstance(String name, String servicePlanId, String spaceId) {
+        ServiceInstance serviceInstance = new ServiceInstance(UUID.randomUUID().toString(), name, servicePlanId,
+                spaceId);
+        serviceInstances.put(serviceInstance.getId(), serviceInstance);
+        return serviceInstance;
+    }
+
+    /**
+     * Change the state of an application, as a user or autosleep would.
+     */
+    public void changeState(String applicationId, String state) {
+        Application application = applications.get(applicationId);
+        if (application == null) {
+            throw new IllegalArgumentException("unknown application " + applicationId);
+        }
+        Instant now = now();
+        synchronized (application) {
+            if (!state.equals(application.state)) {
+                stateChanges.incrementAndGet();
+                application.state = state;
+                if (CloudFoundryAppState.STARTED.equals(state)) {
+                    application.startedAt = now;
+                    application.lastActivity = now;
+                    application.record(new Event(application, Config.CloudFoundryAuditEvent.APP_START, now));
+                }
+            }
+            application.record(new Event(application, APP_UPDATE_EVENT, now));
+        }
+    }
+
+    /**
+     * Count the applications in a given state.
+     */
+    public long countApplications(String state) {
+        return applications.values().stream()
+                .filter(application -> state.equals(application.getState()))
+                .count();
+    }
+
+    Application getApplication(String applicationId) {
+        return applications.get(applicationId);
+    }
+
+    /**
+     * Ids of all applications, in no particular order.
+     */
+    public List<String> getApplicationIds() {
+        return new ArrayList<>(applications.keySet());
+    }
+
+    Binding getBinding(String bindingId) {
+        return bindings.get(bindingId);
+    }
+
+    public int getBindingsCount() {
+        return bindings.size();
+    }
+
+    public List<String> getOrganizationIds() {
+        return new ArrayList<>(organizations.keySet());
+    }
+
+    Organization getOrganization(String organizationId) {
+        return organizations.get(organizationId);
+    }
+
+    Route getRoute(String routeId) {
+        return routes.get(routeId);
+    }
+
+    ServiceInstance getServiceInstance(String serviceInstanceId) {
+        return serviceInstances.get(serviceInstanceId);
+    }
+
+    Space getSpace(String spaceId) {
+        return spaces.get(spaceId);
+    }
+
+    public List<String> getSpaceIds() {
+        return new ArrayList<>(spaces.keySet());
+    }
+
+    /**
+     * Number of starts and stops of applications since the foundation was populated.
+     */
+    public int getStateChanges() {
+        return stateChanges.get();
+    }
+
+    List<Application> listApplications(String spaceId) {
+        Space space = spaces.get(spaceId);
+        if (space == null) {
+            return Collections.emptyList();
+        }
+        List<Application> result = new ArrayList<>(space.getApplicationIds().size());
+        space.getApplicationIds().forEach(applicationId -> result.add(applications.get(applicationId)));
+        return result;
+    }
+
+    Instant now() {
+        return timeManager.now();
+    }
+
+    Binding removeBinding(String bindingId) {
+        return bindings.remove(bindingId);
+    }
+
+    void removeServiceInstance(String serviceInstanceId) {
+        serviceInstances.remove(serviceInstanceId);
+    }
+
+    /**
+     * Record a use of an application, such as a request received on one of its routes.
+     */
+    public void use(String applicationId) {
+        Application application = applications.get(applicationId);
+        if (application != null) {
+            application.lastActivity = now();
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry.simulator;
+
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Conditions met by the requests sent to the simulated foundation: response time, server errors and rate limit.
+ */
+public class SimulatedNetwork {
+
+    static final int RATE_LIMITED_STATUS = 429;
+
+    static final int SERVER_ERROR_STATUS = 503;
+
+    private long currentSecond;
+
+    private final double errorRate;
+
+    private final Duration latency;
+
+    private final int rateLimit;
+
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+
+    private int requestsInCurrentSecond;
+
+    SimulatedNetwork(SimulatorSettings settings) {
+        this.latency = settings.getLatency();
+        this.errorRate = settings.getErrorRate();
+        this.rateLimit = settings.getRateLimit();
+    }
+
+    private synchronized boolean admit() {
+        long second = System.currentTimeMillis() / 1000;
+        if (second != currentSecond) {
+            currentSecond = second;
+            requestsInCurrentSecond = 0;
+        }
+        return ++requestsInCurrentSecond <= rateLimit;
+    }
+
+    /**
+     * Number of requests received per operation (ex: applicationsV2.get), rejected ones included.
+     */
+    public Map<String, Long> getRequests() {
+        Map<String, Long> result = new TreeMap<>();
+        requests.forEach((operation, count) -> result.put(operation, count.sum()));
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Send a request: the response is delayed, and the request may be rejected before reaching the foundation.
+     *
+     * @param errorFactory builds the error of a rejected request from its http status and a description
+     */
+    Flux<Object> send(String operation, Supplier<? extends Publisher<?>> handler,
+                      BiFunction<Integer, String, Throwable> errorFactory) {
+        requests.computeIfAbsent(operation, key -> new LongAdder()).increment();
+        Flux<Object> response = Flux.defer(() -> {
+            if (rateLimit > 0 && !admit()) {
+                return Flux.<Object>error(errorFactory.apply(RATE_LIMITED_STATUS, "Rate Limit Exceeded"));
+            } else if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                return Flux.<Object>error(errorFactory.apply(SERVER_ERROR_STATUS,
+                        "Simulated failure of " + operation));
+            } else {
+                return Flux.<Object>from(handler.get());
+            }
+        });
+        if (latency.isZero()) {
+            return response;
+        }
+        return Mono.defer(() -> Mono.delay(Duration.ofMillis(
+                (long) (latency.toMillis() * (0.5 + ThreadLocalRandom.current().nextDouble())))))
+                .flatMap(ignored -> response);
+    }
+
+}
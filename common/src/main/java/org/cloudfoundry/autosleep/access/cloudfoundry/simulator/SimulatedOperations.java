@@ -0,0 +1,42 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry.simulator;
+
+import org.reactivestreams.Publisher;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Operations of a simulated client, each answering a request type.
+ */
+abstract class SimulatedOperations {
+
+    private final Map<String, Function<Object, Publisher<?>>> operations = new HashMap<>();
+
+    Map<String, Function<Object, Publisher<?>>> getOperations() {
+        return operations;
+    }
+
+    <Q> void register(String operation, Class<Q> requestType, Function<Q, ? extends Publisher<?>> handler) {
+        operations.put(operation, request -> handler.apply(requestType.cast(request)));
+    }
+
+}
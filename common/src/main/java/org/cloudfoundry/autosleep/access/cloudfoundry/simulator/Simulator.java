@@ -0,0 +1,66 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry.simulator;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.util.TimeManager;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.doppler.DopplerClient;
+
+/**
+ * Local stand-in for a foundation, whose clients may replace the cloud controller and doppler ones to run autosleep
+ * at scale without a real foundation. Both clients share the same network conditions.
+ */
+@Getter
+@Slf4j
+public class Simulator {
+
+    private final CloudFoundryClient cloudFoundryClient;
+
+    private final DopplerClient dopplerClient;
+
+    private final SimulatedFoundation foundation;
+
+    private final SimulatedNetwork network;
+
+    public Simulator(SimulatorSettings settings) {
+        this(settings, new TimeManager());
+    }
+
+    /**
+     * Build a simulator whose foundation follows the time of the given manager, possibly a virtual one, so that
+     * applications age at the pace of the simulation.
+     */
+    public Simulator(SimulatorSettings settings, TimeManager timeManager) {
+        this.foundation = new SimulatedFoundation(settings, timeManager);
+        this.network = new SimulatedNetwork(settings);
+        this.cloudFoundryClient = SimulatedApi.create(CloudFoundryClient.class, "cloudFoundryClient",
+                new CloudControllerSimulator(foundation, new ServiceBrokerClient(settings),
+                        settings.getStartDuration()).getOperations(),
+                network, CloudControllerSimulator::buildError);
+        this.dopplerClient = SimulatedApi.create(DopplerClient.class, "doppler",
+                new DopplerSimulator(foundation, settings.getStartDuration()).getOperations(),
+                network, DopplerSimulator::buildError);
+        log.info("simulated foundation of {} organizations, {} spaces and {} applications",
+                settings.getOrganizations(), settings.getOrganizations() * settings.getSpacesPerOrganization(),
+                settings.getApplications());
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry.simulator;
+
+import lombok.Builder;
+import lombok.Getter;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.EnvKey;
+import org.springframework.core.env.Environment;
+
+import java.time.Duration;
+
+@Getter
+public class SimulatorSettings {
+
+    /**
+     * Share of the applications that are in use.
+     */
+    private final double activeRatio;
+
+    private final int applicationsPerSpace;
+
+    /**
+     * Url of the service broker called back when service instances and bindings are created, none when null.
+     */
+    private final String brokerUrl;
+
+    private final String brokerPassword;
+
+    private final String brokerUsername;
+
+    /**
+     * Share of the requests that fail with a server error.
+     */
+    private final double errorRate;
+
+    /**
+     * Average response time of requests, actual ones being spread between half and one and a half of it.
+     */
+    private final Duration latency;
+
+    private final int organizations;
+
+    /**
+     * Maximum number of requests per second, beyond which requests are rejected, none when 0.
+     */
+    private final int rateLimit;
+
+    /**
+     * Seed of the generation of ids and activity, so that two simulated foundations are alike.
+     */
+    private final long seed;
+
+    private final int spacesPerOrganization;
+
+    private final Duration startDuration;
+
+    @Builder
+    SimulatorSettings(Double activeRatio, Integer applicationsPerSpace, String brokerUrl, String brokerPassword,
+                      String brokerUsername, Double errorRate, Duration latency, Integer organizations,
+                      Integer rateLimit, Long seed, Integer spacesPerOrganization, Duration startDuration) {
+        this.activeRatio = activeRatio == null ? Config.Simulator.ACTIVE_RATIO : activeRatio;
+        this.applicationsPerSpace = applicationsPerSpace == null ? Config.Simulator.APPLICATIONS_PER_SPACE
+                : applicationsPerSpace;
+        this.brokerUrl = brokerUrl;
+        this.brokerPassword = brokerPassword;
+        this.brokerUsername = brokerUsername;
+        this.errorRate = errorRate == null ? 0 : errorRate;
+        this.latency = latency == null ? Config.Simulator.LATENCY : latency;
+        this.organizations = organizations == null ? Config.Simulator.ORGANIZATIONS : organizations;
+        this.rateLimit = rateLimit == null ? 0 : rateLimit;
+        this.seed = seed == null ? Config.Simulator.SEED : seed;
+        this.spacesPerOrganization = spacesPerOrganization == null ? Config.Simulator.SPACES_PER_ORGANIZATION
+                : spacesPerOrganization;
+        this.startDuration = startDuration == null ? Config.Simulator.START_DURATION : startDuration;
+    }
+
+    public static SimulatorSettings fromEnvironment(Environment env) {
+        return SimulatorSettings.builder()
+                .activeRatio(env.getProperty(EnvKey.SIMULATOR_ACTIVE_RATIO, Double.class))
+                .applicationsPerSpace(env.getProperty(EnvKey.SIMULATOR_APPLICATIONS, Integer.class))
+                .brokerUrl(env.getProperty(EnvKey.SIMULATOR_BROKER_URL))
+                .brokerPassword(env.getProperty(EnvKey.SECURITY_PASSWORD))
+                .brokerUsername(env.getProperty(EnvKey.SECURITY_USERNAME))
+                .errorRate(env.getProperty(EnvKey.SIMULATOR_ERROR_RATE, Double.class))
+                .latency(readDuration(env, EnvKey.SIMULATOR_LATENCY))
+                .organizations(env.getProperty(EnvKey.SIMULATOR_ORGANIZATIONS, Integer.class))
+                .rateLimit(env.getProperty(EnvKey.SIMULATOR_RATE_LIMIT, Integer.class))
+                .seed(env.getProperty(EnvKey.SIMULATOR_SEED, Long.class))
+                .spacesPerOrganization(env.getProperty(EnvKey.SIMULATOR_SPACES, Integer.class))
+                .startDuration(readDuration(env, EnvKey.SIMULATOR_START_DURATION))
+                .build();
+    }
+
+    private static Duration readDuration(Environment env, String key) {
+        String value = env.getProperty(key);
+        return value == null ? null : Duration.parse(value);
+    }
+
+    public int getApplications() {
+        return organizations * spacesPerOrganization * applicationsPerSpace;
+    }
+
+}
@@ -45,6 +45,7 @@ import javax.persistence.Lob;
 
 import java.time.Instant;
 import java.util.HashMap;
+import java.util.regex.Pattern;
 
 @Getter
 @Slf4j
@@ -281,25 +282,40 @@ public class ApplicationInfo {
         this.uuid = uuid;
     }
 
-    public void clearCheckInformation() {
-        this.diagnosticInfo.lastCheck = Instant.now();
+    public void clearCheckInformation(Instant now) {
+        this.diagnosticInfo.lastCheck = now;
         this.diagnosticInfo.nextCheck = null;
         this.diagnosticInfo.appState = null;
     }
 
-    public void markAsChecked(Instant next) {
-        this.diagnosticInfo.lastCheck = Instant.now();
+    /**
+     * @param wakeGroup names of the applications of the group, may be null
+     * @return true if the application is enrolled by the service instance, and its name matches the wake group
+     */
+    public boolean isWakeGroupMember(String serviceInstanceId, Pattern wakeGroup) {
+        return wakeGroup != null
+                && name != null
+                && enrollmentState.isEnrolledByService(serviceInstanceId)
+                && wakeGroup.matcher(name).matches();
+    }
+
+    public void markAsChecked(Instant now, Instant next) {
+        this.diagnosticInfo.lastCheck = now;
         this.diagnosticInfo.nextCheck = next;
     }
 
-    public void markAsPutToSleep() {
+    public void markAsPutToSleep(Instant now) {
         this.diagnosticInfo.appState = CloudFoundryAppState.STOPPED;
         this.diagnosticInfo.lastEvent = DiagnosticInfo.ApplicationEvent.builder()
                 .actor("autosleep")
-                .timestamp(Instant.now().toEpochMilli())
+                .timestamp(now.toEpochMilli())
                 .build();
     }
 
+    public void updateAppState(String state) {
+        this.diagnosticInfo.appState = state;
+    }
+
     public void updateDiagnosticInfo(DiagnosticInfo.ApplicationLog lastLog,
                                      DiagnosticInfo.ApplicationEvent lastEvent,
                                      String name,
@@ -310,4 +326,12 @@ public class ApplicationInfo {
         this.diagnosticInfo.appState = state;
     }
 
+    public void updateLastEvent(DiagnosticInfo.ApplicationEvent lastEvent) {
+        this.diagnosticInfo.lastEvent = lastEvent;
+    }
+
+    public void updateLastLog(DiagnosticInfo.ApplicationLog lastLog) {
+        this.diagnosticInfo.lastLog = lastLog;
+    }
+
 }
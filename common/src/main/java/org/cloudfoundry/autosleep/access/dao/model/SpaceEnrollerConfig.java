@@ -97,5 +97,17 @@ public class SpaceEnrollerConfig {
     @JsonProperty
     private String spaceId;
 
+    /**
+     * Names of the applications woken up and put to sleep together.
+     */
+    @JsonSerialize(using = PatternSerializer.class)
+    @JsonDeserialize(using = PatternDeserializer.class)
+    @Lob
+    @Column
+    private Pattern wakeGroup;
+
+    public boolean isWakeGroupMember(ApplicationInfo applicationInfo) {
+        return applicationInfo.isWakeGroupMember(id, wakeGroup);
+    }
 
 }
@@ -0,0 +1,76 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.dao.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import org.springframework.data.domain.Persistable;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Ownership of an application wake by one of the proxy instances.
+ */
+@Getter
+@Setter
+@Builder
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@AllArgsConstructor(access = AccessLevel.PUBLIC)
+@ToString
+@EqualsAndHashCode(of = "appId")
+@Entity
+public class WakeLease implements Persistable<String> {
+
+    @Id
+    @JsonProperty
+    private String appId;
+
+    /**
+     * Epoch millis after which the lease may be taken over by another owner.
+     */
+    @JsonProperty
+    private long expiration;
+
+    @JsonProperty
+    private String owner;
+
+    @Override
+    public String getId() {
+        return appId;
+    }
+
+    /**
+     * A lease is always persisted as new, so that saving it fails when another owner already holds it instead of
+     * overwriting it. Existing leases are modified through {@link
+     * org.cloudfoundry.autosleep.access.dao.repositories.WakeLeaseRepository} queries.
+     */
+    @Override
+    public boolean isNew() {
+        return true;
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.dao.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import org.cloudfoundry.autosleep.config.Config;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+/**
+ * Weekly wake pattern of an application: one counter per hour of the week, and the accuracy of the pre-wakes it led
+ * to.
+ */
+@Getter
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@ToString(of = {"appId", "lastWake", "lastPreWake", "preWakePending", "usedPreWakes", "wastedPreWakes"})
+@EqualsAndHashCode(of = "appId")
+@Entity
+public class WakeStatistics {
+
+    static final int MAX_SLOT_COUNT = 0xFF;
+
+    static final int SLOTS = 7 * 24;
+
+    @Id
+    @JsonProperty
+    private String appId;
+
+    /**
+     * Epoch millis of the last pre-wake.
+     */
+    @JsonProperty
+    private long lastPreWake;
+
+    /**
+     * Epoch millis of the last recorded wake.
+     */
+    @JsonProperty
+    private long lastWake;
+
+    @JsonProperty
+    private boolean preWakePending;
+
+    @JsonProperty
+    private int usedPreWakes;
+
+    /**
+     * Unsigned wake count per hour of the week (UTC), starting on monday at midnight.
+     */
+    @Lob
+    @Column(length = SLOTS)
+    private byte[] wakeSlots;
+
+    @JsonProperty
+    private int wastedPreWakes;
+
+    public WakeStatistics(String appId) {
+        this.appId = appId;
+        this.wakeSlots = new byte[SLOTS];
+    }
+
+    static int slotOf(Instant instant) {
+        ZonedDateTime dateTime = instant.atZone(ZoneOffset.UTC);
+        return (dateTime.getDayOfWeek().getValue() - 1) * 24 + dateTime.getHour();
+    }
+
+    public int getWakeCount(Instant instant) {
+        return Byte.toUnsignedInt(wakeSlots[slotOf(instant)]);
+    }
+
+    public boolean isWakeExpected(Instant instant) {
+        return getWakeCount(instant) >= Config.PRE_WAKE_MIN_OCCURRENCES;
+    }
+
+    public void markAsPreWoken(Instant instant) {
+        this.lastPreWake = instant.toEpochMilli();
+        this.preWakePending = true;
+    }
+
+    /**
+     * Record a wake, unless one was already recorded around the same time (the same wake may be seen both by the
+     * proxy and through the application events). Counters are halved when one of them saturates, so that old
+     * habits fade out.
+     */
+    public void recordWake(Instant instant) {
+        long wake = instant.toEpochMilli();
+        if (Math.abs(wake - lastWake) < Config.WAKE_DEDUPLICATION_WINDOW.toMillis()) {
+            return;
+        }
+        int slot = slotOf(instant);
+        if (Byte.toUnsignedInt(wakeSlots[slot]) == MAX_SLOT_COUNT) {
+            for (int i = 0; i < SLOTS; i++) {
+                wakeSlots[i] = (byte) (Byte.toUnsignedInt(wakeSlots[i]) >> 1);
+            }
+        }
+        wakeSlots[slot] = (byte) (Byte.toUnsignedInt(wakeSlots[slot]) + 1);
+        lastWake = Math.max(lastWake, wake);
+    }
+
+    public void resolvePreWake(boolean used) {
+        if (used) {
+            usedPreWakes++;
+        } else {
+            wastedPreWakes++;
+        }
+        preWakePending = false;
+    }
+
+}
@@ -20,6 +20,7 @@
 package org.cloudfoundry.autosleep.access.dao.repositories;
 
 import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.model.Binding.ResourceType;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
@@ -30,4 +31,9 @@ public interface ApplicationRepository extends JpaRepository<ApplicationInfo, St
 
     @Query("select count(a) from ApplicationInfo a where a.uuid in (:ids)")
     Long countByApplicationIds(@Param("ids") List<String> ids);
+
+    @Query("select a from ApplicationInfo a, Binding b where b.serviceInstanceId = :serviceInstanceId "
+            + "and b.resourceType = :resType and b.resourceId = a.uuid")
+    List<ApplicationInfo> findBoundToServiceInstance(@Param("serviceInstanceId") String serviceInstanceId,
+                                                     @Param("resType") ResourceType resType);
 }
@@ -30,6 +30,13 @@ import org.springframework.data.jpa.repository.JpaRepository;
 
 public interface ProxyMapEntryRepository extends JpaRepository<ProxyMapEntry, String> {
 
+    long countByAppId(String appId);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM ProxyMapEntry e WHERE e.appId = :appId")
+    void deleteByAppId(@Param("appId") String appId);
+
     @Modifying
     @Transactional
     @Query("DELETE FROM ProxyMapEntry e WHERE e.host = :host")
@@ -19,9 +19,19 @@
 
 package org.cloudfoundry.autosleep.access.dao.repositories;
 
+import org.cloudfoundry.autosleep.access.dao.model.Binding.ResourceType;
 import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
 
 public interface SpaceEnrollerConfigRepository extends JpaRepository<SpaceEnrollerConfig, String> {
 
+    @Query("select c from SpaceEnrollerConfig c, Binding b where b.resourceId = :resourceId "
+            + "and b.resourceType = :resType and b.serviceInstanceId = c.id")
+    List<SpaceEnrollerConfig> findBoundToResource(@Param("resourceId") String resourceId,
+                                                  @Param("resType") ResourceType resType);
+
 }
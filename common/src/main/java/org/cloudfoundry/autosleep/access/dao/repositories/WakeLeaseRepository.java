@@ -0,0 +1,51 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.access.dao.repositories;
+
+import org.cloudfoundry.autosleep.access.dao.model.WakeLease;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Lease operations run in their own transaction, to be visible to the other proxy instances as soon as they return.
+ */
+public interface WakeLeaseRepository extends JpaRepository<WakeLease, String> {
+
+    @Modifying
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    @Query("DELETE FROM WakeLease l WHERE l.appId = :appId AND l.owner = :owner")
+    int release(@Param("appId") String appId, @Param("owner") String owner);
+
+    @Override
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    <S extends WakeLease> S saveAndFlush(S lease);
+
+    @Modifying
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    @Query("UPDATE WakeLease l SET l.owner = :owner, l.expiration = :expiration "
+            + "WHERE l.appId = :appId AND l.expiration < :now")
+    int takeOver(@Param("appId") String appId, @Param("owner") String owner, @Param("now") long now,
+                 @Param("expiration") long expiration);
+
+}
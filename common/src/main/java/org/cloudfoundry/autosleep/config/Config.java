@@ -31,6 +31,16 @@ public interface Config {
 
     }
 
+    interface CloudFoundryAuditEvent {
+
+        String APP_CREATE = "audit.app.create";
+
+        String APP_DELETE_REQUEST = "audit.app.delete-request";
+
+        String APP_START = "audit.app.start";
+
+    }
+
     interface DefaultClientIdentification {
 
         String ID = "cf";
@@ -43,14 +53,30 @@ public interface Config {
 
         String APPLICATION_DESCRIPTION_ENVIRONMENT_KEY = "VCAP_APPLICATION";
 
+        String CF_BIND_CONCURRENCY = "cf.client.bind.concurrency";
+
         String CF_CLIENT_ID = "cf.client.clientId";
 
         String CF_CLIENT_SECRET = "cf.client.clientSecret";
 
+        String CF_CONNECT_TIMEOUT = "cf.client.connect.timeout";
+
+        String CF_CONNECTION_POOL_SIZE = "cf.client.connection.pool.size";
+
         String CF_ENCODING_SECRET = "cf.security.password.encodingSecret";
 
+        String CF_ENROLLMENT_RATE = "cf.client.enrollment.rate";
+
         String CF_HOST = "cf.client.target.host";
 
+        String CF_INSTANCE_GUID = "CF_INSTANCE_GUID";
+
+        String CF_KEEP_ALIVE = "cf.client.keep.alive";
+
+        String CF_OPTIMISTIC_STATE_CHANGE = "cf.client.optimistic.state.change";
+
+        String CF_PAGE_SIZE = "cf.client.page.size";
+
         String CF_PASSWORD = "cf.client.password";
 
         String CF_SERVICE_BROKER_ID = "cf.service.broker.id";
@@ -63,10 +89,50 @@ public interface Config {
 
         String CF_SKIP_SSL_VALIDATION = "cf.client.skip.ssl.validation";
 
+        String CF_TOKEN_REFRESH_MARGIN = "cf.client.token.refresh.margin";
+
         String CF_USERNAME = "cf.client.username";
 
+        String ENROLLMENT_EVENT_PERIOD = "autosleep.enrollment.event.period";
+
+        String PRE_WAKE_LEAD_TIME = "autosleep.prewake.lead.time";
+
+        String SCHEDULER_LAG_THRESHOLD = "autosleep.scheduler.lag.threshold";
+
+        String SCHEDULER_MAX_THREADS = "autosleep.scheduler.threads.max";
+
+        String SCHEDULER_MIN_THREADS = "autosleep.scheduler.threads.min";
+
+        String SCHEDULER_QUEUE_CAPACITY = "autosleep.scheduler.queue.capacity";
+
         String SECURITY_PASSWORD = "security.user.password";
 
+        String SECURITY_USERNAME = "security.user.name";
+
+        String SIMULATOR_ACTIVE_RATIO = "cf.simulator.active.ratio";
+
+        String SIMULATOR_APPLICATIONS = "cf.simulator.applications";
+
+        String SIMULATOR_BROKER_URL = "cf.simulator.broker.url";
+
+        String SIMULATOR_ENABLED = "cf.simulator.enabled";
+
+        String SIMULATOR_ERROR_RATE = "cf.simulator.error.rate";
+
+        String SIMULATOR_LATENCY = "cf.simulator.latency";
+
+        String SIMULATOR_ORGANIZATIONS = "cf.simulator.organizations";
+
+        String SIMULATOR_RATE_LIMIT = "cf.simulator.rate.limit";
+
+        String SIMULATOR_SEED = "cf.simulator.seed";
+
+        String SIMULATOR_SPACES = "cf.simulator.spaces";
+
+        String SIMULATOR_START_DURATION = "cf.simulator.start.duration";
+
+        String SIMULATOR_VIRTUAL_TIME = "cf.simulator.virtual.time";
+
     }
 
     interface Path {
@@ -112,17 +178,236 @@ public interface Config {
 
         String SECRET = "secret";
 
+        String WAKE_GROUP = "wake-group";
+
     }
 
+    /**
+     * Default settings of the simulated foundation that may stand in for the cloud controller and doppler.
+     */
+    interface Simulator {
+
+        /**
+         * Share of the simulated applications that are in use, and never idle.
+         */
+        double ACTIVE_RATIO = 0.1;
+
+        /**
+         * Activity of applications in use is spread over this period before each read.
+         */
+        Duration ACTIVITY_WINDOW = Duration.ofMinutes(1);
+
+        int APPLICATIONS_PER_SPACE = 100;
+
+        /**
+         * Number of most recent events kept per application.
+         */
+        int EVENTS_PER_APPLICATION = 5;
+
+        /**
+         * Last activity of idle applications is spread over this period before the foundation is populated.
+         */
+        Duration IDLE_PERIOD = Duration.ofDays(2);
+
+        Duration LATENCY = Duration.ofMillis(50);
+
+        int ORGANIZATIONS = 1;
+
+        long SEED = 42;
+
+        int SPACES_PER_ORGANIZATION = 10;
+
+        /**
+         * How long a started application takes before its instances are running.
+         */
+        Duration START_DURATION = Duration.ofSeconds(10);
+
+    }
+
+    /**
+     * Cpu usage, in percent of a core, above which a container is considered as active.
+     */
+    double ACTIVITY_CPU_THRESHOLD = 10.0;
+
+    /**
+     * How long the state of an application, once read or changed, spares reading it again before changing it.
+     */
+    Duration APP_STATE_CACHE_TTL = Duration.ofSeconds(5);
+
+    /**
+     * Number of consecutive transient failures of cloudfoundry api requests after which requests are no longer sent.
+     */
+    int CF_API_CIRCUIT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * How long cloudfoundry api requests are no longer sent, once too many failed, before trying again.
+     */
+    Duration CF_API_CIRCUIT_OPEN_DURATION = Duration.ofSeconds(30);
+
+    /**
+     * Default connection timeout of the cloudfoundry and doppler clients.
+     */
+    Duration CF_API_CONNECT_TIMEOUT = Duration.ofSeconds(5);
+
+    /**
+     * Default size of the connection pool of each of the cloudfoundry and doppler clients.
+     */
+    int CF_API_CONNECTION_POOL_SIZE = 16;
+
+    /**
+     * Default maximum number of service instances created per second when enrolling spaces of organizations.
+     */
+    int CF_API_ENROLLMENT_RATE = 10;
+
+    /**
+     * Maximum number of concurrent cloudfoundry api requests sent for a single operation.
+     */
+    int CF_API_MAX_CONCURRENCY = 8;
+
+    /**
+     * Default number of resources per page of cloudfoundry api listings (the api does not allow more).
+     */
+    int CF_API_PAGE_SIZE = 100;
+
+    /**
+     * Delay before the first retry of an idempotent cloudfoundry api request, doubled at each retry.
+     */
+    Duration CF_API_RETRY_BASE_DELAY = Duration.ofMillis(200);
+
+    /**
+     * Maximum number of attempts of an idempotent cloudfoundry api request failing with a transient error.
+     */
+    int CF_API_RETRY_MAX_ATTEMPTS = 3;
+
+    Duration CF_API_RETRY_MAX_DELAY = Duration.ofSeconds(2);
+
     Duration CF_API_TIMEOUT = Duration.ofSeconds(8);
 
+    /**
+     * Default delay before the expiry of the access token at which it is refreshed in background.
+     */
+    Duration CF_TOKEN_REFRESH_MARGIN = Duration.ofMinutes(2);
+
+    /**
+     * Delay before retrying a failed background refresh of the access token.
+     */
+    Duration CF_TOKEN_REFRESH_RETRY_DELAY = Duration.ofSeconds(10);
+
     Boolean DEFAULT_IGNORE_SERVICE_ERROR = Boolean.FALSE;
 
     Duration DEFAULT_INACTIVITY_PERIOD = Duration.ofDays(1);
 
     Duration DELAY_BEFORE_FIRST_SERVICE_CHECK = Duration.ofSeconds(10);
 
+    /**
+     * How long domain names resolved from their id are kept, routes of a foundation sharing a handful of domains.
+     */
+    Duration DOMAIN_CACHE_TTL = Duration.ofHours(1);
+
+    /**
+     * Number of enrollments in a row an application may fail to be bound at, before it is left to the next listing
+     * of its space.
+     */
+    int ENROLLMENT_BIND_MAX_ATTEMPTS = 5;
+
+    /**
+     * Audit events are read back from this long before the last enrollment, to cope with clock skews.
+     */
+    Duration ENROLLMENT_EVENT_MARGIN = Duration.ofMinutes(1);
+
+    /**
+     * Minimum number of threads running the tasks, the pool growing with the load up to
+     * {@link #SCHEDULER_MAX_THREADS}.
+     */
     int NB_THREAD_FOR_TASK = 5;
 
+    /**
+     * Name of the service instances created in spaces of enrolled organizations.
+     */
+    String ORG_ENROLLMENT_SERVICE_INSTANCE_NAME = "autosleep-org-enrollment";
+
+    Duration ORG_ENROLLER_PERIOD = Duration.ofMinutes(10);
+
     Duration PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART = Duration.ofSeconds(3);
+
+    /**
+     * Activity of a pre-woken application during this period is considered as its own startup, not as usage.
+     */
+    Duration PRE_WAKE_GRACE_PERIOD = Duration.ofMinutes(2);
+
+    /**
+     * Minimum number of wakes recorded in an hour of the week, to pre-wake an application before it.
+     */
+    int PRE_WAKE_MIN_OCCURRENCES = 3;
+
+    Duration PRE_WAKE_PLANNER_PERIOD = Duration.ofMinutes(5);
+
+    /**
+     * First wait between two readiness checks of a waking application, doubled on each unsuccessful check up to
+     * {@link #PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART}.
+     */
+    Duration READINESS_CHECK_INITIAL_PERIOD = Duration.ofMillis(200);
+
+    int READINESS_CHECK_BACKOFF_FACTOR = 2;
+
+    /**
+     * Threads running tasks above the minimum are released after being idle this long.
+     */
+    Duration SCHEDULER_IDLE_THREAD_TIMEOUT = Duration.ofMinutes(1);
+
+    /**
+     * Tasks starting, or still waiting, this long after their planned time show a saturated scheduler.
+     */
+    Duration SCHEDULER_LAG_THRESHOLD = Duration.ofMinutes(1);
+
+    int SCHEDULER_MAX_THREADS = 50;
+
+    /**
+     * Tasks due, waiting for a thread. Beyond, tasks are handed off again after
+     * {@link #SCHEDULER_REJECTION_RETRY_DELAY}.
+     */
+    int SCHEDULER_QUEUE_CAPACITY = 1000;
+
+    Duration SCHEDULER_REJECTION_RETRY_DELAY = Duration.ofSeconds(1);
+
+    Duration SCHEDULER_RESIZE_PERIOD = Duration.ofSeconds(10);
+
+    /**
+     * Share of their time, in percent, the threads running tasks should be busy. Blocked waiting for the cloud
+     * controller counts as busy.
+     */
+    int SCHEDULER_TARGET_UTILIZATION = 75;
+
+    /**
+     * Wakes recorded closer than this are considered as the same one.
+     */
+    Duration WAKE_DEDUPLICATION_WINDOW = Duration.ofMinutes(10);
+
+    /**
+     * Starts of wake group members waiting for a thread. Beyond, members are left to wake up on their own traffic.
+     */
+    int WAKE_GROUP_START_QUEUE_CAPACITY = 1000;
+
+    /**
+     * Threads of a proxy instance sending the starts of wake group members, a start blocking on the cloud controller.
+     */
+    int WAKE_GROUP_START_THREADS = 10;
+
+    /**
+     * How long a proxy instance owns the wake of an application, before another instance may take it over.
+     */
+    Duration WAKE_LEASE_DURATION = Duration.ofMinutes(2);
+
+    /**
+     * How often a proxy instance waiting for the wake of an application by another one tries to take its lease over,
+     * should the owner have failed to start it or crashed.
+     */
+    Duration WAKE_LEASE_RETRY_PERIOD = Duration.ofSeconds(10);
+
+    /**
+     * How long a request waits for a sleeping application to be running, before being answered that it is still
+     * starting. Shorter than {@link #WAKE_LEASE_DURATION}, so that the owner of a wake releases its lease before it
+     * expires.
+     */
+    Duration WAKE_TIMEOUT = Duration.ofSeconds(90);
 }
@@ -0,0 +1,96 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.ui.metrics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.Endpoint;
+import org.springframework.boot.actuate.endpoint.MetricsEndpoint;
+import org.springframework.boot.actuate.endpoint.mvc.MvcEndpoint;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Render the metrics of the actuator metrics endpoint in the Prometheus text format, for scrapers. Counters keep
+ * their type, every other metric being a gauge.
+ */
+@Component
+public class PrometheusEndpoint implements MvcEndpoint {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    static final String COUNTER_PREFIX = "counter.";
+
+    static final String PATH = "/prometheus";
+
+    private static final Pattern INVALID_NAME_CHARACTERS = Pattern.compile("[^a-zA-Z0-9_:]");
+
+    @Autowired
+    private MetricsEndpoint metricsEndpoint;
+
+    @Override
+    public Class<? extends Endpoint> getEndpointType() {
+        return null;
+    }
+
+    @Override
+    public String getPath() {
+        return PATH;
+    }
+
+    @Override
+    public boolean isSensitive() {
+        return metricsEndpoint.isSensitive();
+    }
+
+    static String render(Map<String, Object> metrics) {
+        StringBuilder result = new StringBuilder();
+        new TreeMap<>(metrics).forEach((name, value) -> {
+            if (value instanceof Number) {
+                String sanitizedName = sanitize(name);
+                result.append("# TYPE ").append(sanitizedName)
+                        .append(name.startsWith(COUNTER_PREFIX) ? " counter\n" : " gauge\n")
+                        .append(sanitizedName).append(' ').append(value).append('\n');
+            }
+        });
+        return result.toString();
+    }
+
+    static String sanitize(String name) {
+        return INVALID_NAME_CHARACTERS.matcher(name).replaceAll("_");
+    }
+
+    @RequestMapping(method = RequestMethod.GET, produces = CONTENT_TYPE)
+    @ResponseBody
+    public Object scrape() {
+        if (!metricsEndpoint.isEnabled()) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return render(metricsEndpoint.invoke());
+    }
+
+}
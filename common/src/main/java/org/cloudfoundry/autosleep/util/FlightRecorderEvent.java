@@ -0,0 +1,211 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Java Flight Recorder event, carrying the application, the service instance, a detail and the outcome of an
+ * operation, its duration being recorded by the recorder. Event types are defined at runtime through the
+ * {@code jdk.jfr.EventFactory}, so that the build keeps targeting Java 8: on a JVM without it, or while no recording
+ * is running, events are not emitted and cost next to nothing.
+ */
+@Slf4j
+public final class FlightRecorderEvent {
+
+    public enum Type {
+        CHECK("autosleep.Check", "Application Check"),
+        CLOUD_CONTROLLER_CALL("autosleep.CloudControllerCall", "Cloud Controller Call"),
+        ENROLLMENT("autosleep.Enrollment", "Space Enrollment"),
+        PROXY("autowakeup.Proxy", "Proxied Request"),
+        STOP("autosleep.Stop", "Application Stop");
+
+        private final String label;
+
+        private final String name;
+
+        Type(String name, String label) {
+            this.name = name;
+            this.label = label;
+        }
+
+    }
+
+    /**
+     * Access to the recorder, through reflection.
+     */
+    private static final class Recorder {
+
+        private static final String CATEGORY = "Autosleep";
+
+        private static final String[] FIELD_LABELS = {"Application Id", "Service Instance Id", "Detail", "Outcome"};
+
+        private static final String[] FIELD_NAMES = {"applicationId", "serviceInstanceId", "detail", "outcome"};
+
+        private final Method begin;
+
+        private final Method commit;
+
+        private final Method end;
+
+        private final Map<Type, Object> factories = new EnumMap<>(Type.class);
+
+        private final Method isEnabled;
+
+        private final Method newEvent;
+
+        private final Method set;
+
+        @SuppressWarnings("unchecked")
+        Recorder() throws ReflectiveOperationException {
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<? extends Annotation> categoryClass = (Class<? extends Annotation>) Class.forName("jdk.jfr.Category");
+            Class<? extends Annotation> labelClass = (Class<? extends Annotation>) Class.forName("jdk.jfr.Label");
+            Class<? extends Annotation> nameClass = (Class<? extends Annotation>) Class.forName("jdk.jfr.Name");
+            Constructor<?> annotation = Class.forName("jdk.jfr.AnnotationElement")
+                    .getConstructor(Class.class, Object.class);
+            Constructor<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor")
+                    .getConstructor(Class.class, String.class, List.class);
+            Method create = factoryClass.getMethod("create", List.class, List.class);
+
+            List<Object> fields = new ArrayList<>();
+            for (int i = 0; i < FIELD_NAMES.length; i++) {
+                fields.add(valueDescriptor.newInstance(String.class, FIELD_NAMES[i],
+                        Collections.singletonList(annotation.newInstance(labelClass, FIELD_LABELS[i]))));
+            }
+            for (Type type : Type.values()) {
+                factories.put(type, create.invoke(null, Arrays.asList(
+                        annotation.newInstance(nameClass, type.name),
+                        annotation.newInstance(labelClass, type.label),
+                        annotation.newInstance(categoryClass, new String[]{CATEGORY})), fields));
+            }
+            newEvent = factoryClass.getMethod("newEvent");
+            begin = eventClass.getMethod("begin");
+            commit = eventClass.getMethod("commit");
+            end = eventClass.getMethod("end");
+            isEnabled = eventClass.getMethod("isEnabled");
+            set = eventClass.getMethod("set", int.class, Object.class);
+        }
+
+    }
+
+    private static final FlightRecorderEvent DISABLED = new FlightRecorderEvent(null);
+
+    private static final int FIELD_APPLICATION = 0;
+
+    private static final int FIELD_DETAIL = 2;
+
+    private static final int FIELD_OUTCOME = 3;
+
+    private static final int FIELD_SERVICE_INSTANCE = 1;
+
+    private static final Recorder RECORDER = loadRecorder();
+
+    private final Object event;
+
+    private FlightRecorderEvent(Object event) {
+        this.event = event;
+    }
+
+    /**
+     * Start an event. Its duration ends with {@link #end(String)}.
+     *
+     * @param type type of the event
+     * @return the event, that does nothing when the type is not recorded
+     */
+    public static FlightRecorderEvent begin(Type type) {
+        if (RECORDER == null) {
+            return DISABLED;
+        }
+        try {
+            Object event = RECORDER.newEvent.invoke(RECORDER.factories.get(type));
+            if (!(Boolean) RECORDER.isEnabled.invoke(event)) {
+                return DISABLED;
+            }
+            RECORDER.begin.invoke(event);
+            return new FlightRecorderEvent(event);
+        } catch (ReflectiveOperationException e) {
+            log.debug("flight recorder event not started", e);
+            return DISABLED;
+        }
+    }
+
+    private static Recorder loadRecorder() {
+        try {
+            return new Recorder();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            log.debug("flight recorder events unavailable: {}", e.toString());
+            return null;
+        }
+    }
+
+    public FlightRecorderEvent application(String applicationId) {
+        return set(FIELD_APPLICATION, applicationId);
+    }
+
+    public FlightRecorderEvent detail(String detail) {
+        return set(FIELD_DETAIL, detail);
+    }
+
+    /**
+     * End the event, and record it if it lasted longer than the threshold of the recording.
+     *
+     * @param outcome what came out of the operation
+     */
+    public void end(String outcome) {
+        if (event == null) {
+            return;
+        }
+        set(FIELD_OUTCOME, outcome);
+        try {
+            RECORDER.end.invoke(event);
+            RECORDER.commit.invoke(event);
+        } catch (ReflectiveOperationException e) {
+            log.debug("flight recorder event not committed", e);
+        }
+    }
+
+    public FlightRecorderEvent serviceInstance(String serviceInstanceId) {
+        return set(FIELD_SERVICE_INSTANCE, serviceInstanceId);
+    }
+
+    private FlightRecorderEvent set(int field, String value) {
+        if (event != null) {
+            try {
+                RECORDER.set.invoke(event, field, value);
+            } catch (ReflectiveOperationException e) {
+                log.debug("flight recorder event field not set", e);
+            }
+        }
+        return this;
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+/**
+ * A task telling how urgent its next run is. When the workers are saturated, due tasks are run by priority, then
+ * the most overdue first.
+ */
+public interface PrioritizedTask extends Runnable {
+
+    enum Priority {
+        /**
+         * Check of an application whose idle deadline is due: running it late keeps the application awake.
+         */
+        IDLE_DEADLINE,
+        NORMAL,
+        /**
+         * Retry after a failure, that may wait for the other tasks.
+         */
+        RETRY
+    }
+
+    /**
+     * Read when the task is scheduled.
+     *
+     * @return the priority of the next run
+     */
+    Priority getPriority();
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import org.cloudfoundry.autosleep.config.Config;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Report the scheduler as degraded when tasks start, or wait to start, later than a threshold behind their planned
+ * time. Checks then run late, and applications stay awake past their idle duration: the pool lacks threads.
+ */
+@Component
+public class SchedulerHealthIndicator extends AbstractHealthIndicator {
+
+    public static final Status DEGRADED = new Status("DEGRADED", "tasks run late, the pool lacks threads");
+
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private TimeManager timeManager;
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) throws Exception {
+        Duration threshold = getLagThreshold();
+        Duration lastLag = timeManager.getLastLag();
+        Duration overdue = timeManager.getOverdue();
+        if (lastLag.compareTo(threshold) > 0 || overdue.compareTo(threshold) > 0) {
+            builder.status(DEGRADED);
+        } else {
+            builder.up();
+        }
+        builder.withDetail("lagThreshold", threshold.toString())
+                .withDetail("lastLag", lastLag.toString())
+                .withDetail("overdue", overdue.toString())
+                .withDetail("backlog", timeManager.getBacklog())
+                .withDetail("pendingTasks", timeManager.getPendingTasks())
+                .withDetail("poolSize", timeManager.getPoolSize())
+                .withDetail("activeThreads", timeManager.getActiveThreads())
+                .withDetail("utilization", timeManager.getUtilization())
+                .withDetail("rejections", timeManager.getRejections());
+    }
+
+    private Duration getLagThreshold() {
+        String threshold = env.getProperty(Config.EnvKey.SCHEDULER_LAG_THRESHOLD);
+        return threshold == null ? Config.SCHEDULER_LAG_THRESHOLD : Duration.parse(threshold);
+    }
+
+}
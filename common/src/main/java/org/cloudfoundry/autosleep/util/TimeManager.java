@@ -16,26 +16,310 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.cloudfoundry.autosleep.util;
 
+import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.util.PrioritizedTask.Priority;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.time.Duration;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Run tasks after a delay. Scheduling is split from execution: a timer thread hands the tasks falling due to a
+ * bounded pool of workers, as checks mostly wait for the cloud controller. The pool is resized periodically, between
+ * a minimum and a maximum, to keep its threads busy at a target utilization, and grown while tasks wait for a thread.
+ * Tasks waiting for a thread are run by priority, then the most overdue first.
+ * Replaced by a {@link VirtualTimeManager} when the simulator runs in virtual time.
+ */
 @Service
-public class TimeManager {
+@ConditionalOnProperty(name = Config.EnvKey.SIMULATOR_VIRTUAL_TIME, havingValue = "false", matchIfMissing = true)
+@Slf4j
+public class TimeManager implements PublicMetrics {
+
+    /**
+     * A task handed to the workers, along with its priority and planned start.
+     */
+    private class WorkerTask implements Runnable {
+
+        private final Runnable command;
+
+        private final long plannedStart;
+
+        private final Priority priority;
+
+        WorkerTask(Runnable command, long plannedStart, Priority priority) {
+            this.command = command;
+            this.plannedStart = plannedStart;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            long lag = TimeUnit.NANOSECONDS.toMillis(start - plannedStart);
+            lastLagMillis.set(lag);
+            if (gaugeService != null) {
+                gaugeService.submit(LAG_METRIC, lag);
+            }
+            try {
+                command.run();
+            } finally {
+                busyNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+    }
+
+    static final String BACKLOG_METRIC = "autosleep.scheduler.backlog";
+
+    static final String LAG_METRIC = "histogram.autosleep.scheduler.lag";
+
+    static final String REJECTIONS_METRIC = "autosleep.scheduler.rejections";
+
+    static final String TASKS_METRIC = "autosleep.scheduler.tasks";
+
+    static final String THREADS_METRIC = "autosleep.scheduler.threads";
 
-    private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Config.NB_THREAD_FOR_TASK);
+    static final String UTILIZATION_METRIC = "autosleep.scheduler.utilization";
+
+    private static final Comparator<Runnable> RUN_ORDER = Comparator
+            .comparing((Runnable task) -> ((WorkerTask) task).priority)
+            .thenComparingLong(task -> ((WorkerTask) task).plannedStart);
+
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    /**
+     * Null when built outside of a context, the pool keeping its default settings.
+     */
+    @Autowired(required = false)
+    private Environment env;
+
+    /**
+     * Null when built outside of a context.
+     */
+    @Autowired(required = false)
+    private GaugeService gaugeService;
+
+    private long lastResize = System.nanoTime();
+
+    private final AtomicLong lastLagMillis = new AtomicLong();
+
+    private int maxThreads = Config.SCHEDULER_MAX_THREADS;
+
+    private int minThreads = Config.NB_THREAD_FOR_TASK;
+
+    private int queueCapacity = Config.SCHEDULER_QUEUE_CAPACITY;
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+
+    private volatile int utilization;
+
+    private ThreadPoolExecutor workers = buildWorkers();
+
+    @PostConstruct
+    void init() {
+        if (env != null) {
+            minThreads = env.getProperty(Config.EnvKey.SCHEDULER_MIN_THREADS, Integer.class,
+                    Config.NB_THREAD_FOR_TASK);
+            maxThreads = Math.max(minThreads, env.getProperty(Config.EnvKey.SCHEDULER_MAX_THREADS, Integer.class,
+                    Config.SCHEDULER_MAX_THREADS));
+            queueCapacity = env.getProperty(Config.EnvKey.SCHEDULER_QUEUE_CAPACITY, Integer.class,
+                    Config.SCHEDULER_QUEUE_CAPACITY);
+            workers.shutdown();
+            workers = buildWorkers();
+        }
+        log.debug("task workers between {} and {} threads", minThreads, maxThreads);
+        long resizePeriod = Config.SCHEDULER_RESIZE_PERIOD.toMillis();
+        timer.scheduleAtFixedRate(this::resize, resizePeriod, resizePeriod, TimeUnit.MILLISECONDS);
+    }
 
+    /**
+     * The queue of priority being unbounded, its capacity is enforced on hand-off.
+     */
+    private ThreadPoolExecutor buildWorkers() {
+        return new ThreadPoolExecutor(minThreads, maxThreads, Config.SCHEDULER_IDLE_THREAD_TIMEOUT.toMillis(),
+                TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(Config.SCHEDULER_QUEUE_CAPACITY, RUN_ORDER));
+    }
+
+    /**
+     * Count the threads running a task.
+     *
+     * @return the number of busy threads
+     */
+    public int getActiveThreads() {
+        return workers.getActiveCount();
+    }
+
+    /**
+     * Count the tasks that are due, but not started yet for lack of a free thread: the depth of the queue of the
+     * workers.
+     *
+     * @return the number of late tasks
+     */
+    public int getBacklog() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * How late the last task started, behind its planned time.
+     *
+     * @return the lag of the last task started
+     */
+    public Duration getLastLag() {
+        return Duration.ofMillis(lastLagMillis.get());
+    }
+
+    /**
+     * How late the most overdue task is, while still waiting for a free thread.
+     *
+     * @return the delay of the oldest task due, zero if none is
+     */
+    public Duration getOverdue() {
+        long now = System.nanoTime();
+        long overdue = 0;
+        for (Runnable task : workers.getQueue()) {
+            overdue = Math.max(overdue, now - ((WorkerTask) task).plannedStart);
+        }
+        for (Runnable task : timer.getQueue()) {
+            overdue = Math.max(overdue, -((Delayed) task).getDelay(TimeUnit.NANOSECONDS));
+        }
+        return Duration.ofNanos(overdue);
+    }
+
+    /**
+     * Count the tasks waiting for their due time.
+     *
+     * @return the number of pending tasks
+     */
+    public int getPendingTasks() {
+        return timer.getQueue().size();
+    }
+
+    /**
+     * Current size of the pool, as last adapted.
+     *
+     * @return the number of threads the pool keeps
+     */
+    public int getPoolSize() {
+        return workers.getCorePoolSize();
+    }
+
+    /**
+     * Count the tasks delayed since the start, their workers and queue being full.
+     *
+     * @return the number of rejected hand-offs
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * Share of the time the threads of the pool spent running tasks, over the last resize period.
+     *
+     * @return the utilization, in percent
+     */
+    public int getUtilization() {
+        return utilization;
+    }
+
+    /**
+     * Workers and queue being full, the task is handed off again later rather than lost.
+     */
+    private void handOff(WorkerTask task) {
+        if (workers.isShutdown()) {
+            return;
+        }
+        if (workers.getQueue().size() >= queueCapacity) {
+            rejections.incrementAndGet();
+            timer.schedule(() -> handOff(task), Config.SCHEDULER_REJECTION_RETRY_DELAY.toMillis(),
+                    TimeUnit.MILLISECONDS);
+        } else {
+            workers.execute(task);
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(new Metric<>(BACKLOG_METRIC, getBacklog()),
+                new Metric<>(REJECTIONS_METRIC, getRejections()),
+                new Metric<>(TASKS_METRIC, getPendingTasks()),
+                new Metric<>(THREADS_METRIC, getPoolSize()),
+                new Metric<>(UTILIZATION_METRIC, getUtilization()));
+    }
+
+    /**
+     * Current time, as seen by the tasks scheduled through this manager.
+     *
+     * @return the wall clock time
+     */
+    public Instant now() {
+        return Instant.now();
+    }
+
+    /**
+     * Size the pool for the threads it needed over the last period to be at the target utilization, growing it
+     * while tasks wait, and shrinking it one thread at a time.
+     */
+    void resize() {
+        long now = System.nanoTime();
+        long elapsed = Math.max(1, now - lastResize);
+        lastResize = now;
+        long busy = busyNanos.getAndSet(0);
+        int size = workers.getCorePoolSize();
+        utilization = (int) Math.min(100, busy * 100 / (elapsed * size));
+        int target = (int) Math.ceil(busy * 100.0 / (elapsed * Config.SCHEDULER_TARGET_UTILIZATION));
+        if (!workers.getQueue().isEmpty()) {
+            target = Math.max(target, size + 1);
+        }
+        target = Math.min(maxThreads, Math.max(minThreads, Math.max(target, size - 1)));
+        if (target != size) {
+            log.debug("resizing task workers from {} to {} threads, utilization {}%", size, target, utilization);
+            workers.setCorePoolSize(target);
+        }
+    }
+
+    /**
+     * Run a task after a delay. The lag of its start behind the planned time is recorded.
+     *
+     * @param command task to run, with a normal priority unless it is a {@link PrioritizedTask}
+     */
     public ScheduledFuture<?> schedule(Runnable command,
                                        Duration duration) {
-        return scheduler.schedule(command, duration.toMillis(), TimeUnit.MILLISECONDS);
+        Priority priority = command instanceof PrioritizedTask
+                ? ((PrioritizedTask) command).getPriority() : Priority.NORMAL;
+        WorkerTask task = new WorkerTask(command, System.nanoTime() + duration.toNanos(), priority);
+        return timer.schedule(() -> handOff(task), duration.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancel the pending tasks along with the context, so that none runs against closed beans.
+     */
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+        workers.shutdownNow();
     }
 
     public void sleep(Duration duration) throws InterruptedException {
@@ -43,4 +327,3 @@ public class TimeManager {
     }
 
 }
-
@@ -0,0 +1,260 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.PriorityQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discrete-event time manager, whose time only moves when told to. Scheduled tasks are run in order of due time
+ * on the thread advancing the time, so that months of scheduling can be simulated in seconds. Sleeping advances the
+ * time as well, running the tasks that fall due in the meantime.
+ */
+@Slf4j
+public class VirtualTimeManager extends TimeManager {
+
+    private class VirtualTask implements ScheduledFuture<Object> {
+
+        private volatile boolean cancelled;
+
+        private final Runnable command;
+
+        private volatile boolean done;
+
+        private final Instant dueTime;
+
+        private final long sequence;
+
+        VirtualTask(Runnable command, Instant dueTime, long sequence) {
+            this.command = command;
+            this.dueTime = dueTime;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+            synchronized (VirtualTimeManager.this) {
+                tasks.remove(this);
+            }
+            return true;
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other instanceof VirtualTask) {
+                VirtualTask task = (VirtualTask) other;
+                int byDueTime = dueTime.compareTo(task.dueTime);
+                return byDueTime != 0 ? byDueTime : Long.compare(sequence, task.sequence);
+            }
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public Object get() {
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) {
+            return null;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(Duration.between(now(), dueTime).toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done || cancelled;
+        }
+
+    }
+
+    private Instant current;
+
+    private Thread driver;
+
+    private long sequence;
+
+    private final PriorityQueue<VirtualTask> tasks = new PriorityQueue<>();
+
+    public VirtualTimeManager(Instant start) {
+        this.current = start;
+    }
+
+    /**
+     * Move the time forward, running every task falling due meanwhile.
+     *
+     * @param duration how much time passes
+     * @return the number of tasks run
+     */
+    public int advance(Duration duration) {
+        Instant end;
+        synchronized (this) {
+            end = current.plus(duration);
+        }
+        return runUntil(end);
+    }
+
+    /**
+     * Jump to the due time of the next task, running every task due then.
+     *
+     * @return the number of tasks run, zero if none is scheduled
+     */
+    public int advanceToNextTask() {
+        Instant next;
+        synchronized (this) {
+            VirtualTask task = tasks.peek();
+            if (task == null) {
+                return 0;
+            }
+            next = task.dueTime;
+        }
+        return runUntil(next);
+    }
+
+    @Override
+    public synchronized int getBacklog() {
+        return (int) tasks.stream()
+                .filter(task -> !task.dueTime.isAfter(current))
+                .count();
+    }
+
+    @Override
+    public synchronized Duration getOverdue() {
+        VirtualTask next = tasks.peek();
+        return next == null || next.dueTime.isAfter(current) ? Duration.ZERO : Duration.between(next.dueTime, current);
+    }
+
+    @Override
+    public synchronized int getPendingTasks() {
+        return tasks.size();
+    }
+
+    @Override
+    public synchronized Instant now() {
+        return current;
+    }
+
+    /**
+     * Run the tasks in order of due time, jumping from one due time to the next, until the given time is reached.
+     * Tasks scheduled by the tasks themselves are run as well if they fall due before the end.
+     *
+     * @param end time to stop at
+     * @return the number of tasks run
+     */
+    public int runUntil(Instant end) {
+        int executed = 0;
+        VirtualTask task;
+        while ((task = pollDue(end)) != null) {
+            try {
+                task.command.run();
+            } catch (RuntimeException r) {
+                log.error("virtual task failed", r);
+            } finally {
+                task.done = true;
+            }
+            executed++;
+        }
+        synchronized (this) {
+            if (current.isBefore(end)) {
+                current = end;
+            }
+        }
+        return executed;
+    }
+
+    /**
+     * Advance the time from a thread of its own, as fast as the tasks run, for a whole application to be simulated.
+     * The thread polls while no task is scheduled, waiting for the other threads to schedule some.
+     *
+     * @param idlePeriod real time between two polls
+     */
+    public synchronized void startDriver(Duration idlePeriod) {
+        if (driver != null) {
+            return;
+        }
+        driver = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (advanceToNextTask() == 0) {
+                        Thread.sleep(idlePeriod.toMillis());
+                    }
+                }
+            } catch (InterruptedException i) {
+                log.debug("virtual time driver stopped");
+            }
+        }, "virtual-time");
+        driver.setDaemon(true);
+        driver.start();
+    }
+
+    private synchronized VirtualTask pollDue(Instant end) {
+        VirtualTask next = tasks.peek();
+        if (next == null || next.dueTime.isAfter(end)) {
+            return null;
+        }
+        tasks.poll();
+        if (next.dueTime.isAfter(current)) {
+            current = next.dueTime;
+        }
+        return next;
+    }
+
+    @Override
+    public synchronized ScheduledFuture<?> schedule(Runnable command, Duration duration) {
+        VirtualTask task = new VirtualTask(command, current.plus(duration), sequence++);
+        tasks.add(task);
+        return task;
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            if (driver != null) {
+                driver.interrupt();
+            }
+            tasks.clear();
+        }
+        super.shutdown();
+    }
+
+    @Override
+    public void sleep(Duration duration) {
+        advance(duration);
+    }
+
+}
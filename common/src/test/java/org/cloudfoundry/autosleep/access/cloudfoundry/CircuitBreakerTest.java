@@ -0,0 +1,74 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    private final List<CircuitBreaker.State> transitions = new ArrayList<>();
+
+    @Test
+    public void test_circuit_opens_after_consecutive_failures() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, Duration.ofMinutes(1), transitions::add);
+        circuitBreaker.onFailure();
+        circuitBreaker.onSuccess();
+        circuitBreaker.onFailure();
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.onFailure();
+        assertFalse(circuitBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertTrue(circuitBreaker.getRetryDelay().compareTo(Duration.ofMinutes(1)) <= 0);
+        assertTrue(circuitBreaker.getRetryDelay().compareTo(Duration.ofSeconds(50)) > 0);
+    }
+
+    @Test
+    public void test_single_probe_closes_circuit() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, Duration.ofMillis(20), transitions::add);
+        circuitBreaker.onFailure();
+        Thread.sleep(30);
+        assertTrue(circuitBreaker.allowRequest());
+        assertFalse("only one probe while half open", circuitBreaker.allowRequest());
+        circuitBreaker.onSuccess();
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(Arrays.asList(CircuitBreaker.State.OPEN, CircuitBreaker.State.HALF_OPEN,
+                CircuitBreaker.State.CLOSED), transitions);
+    }
+
+    @Test
+    public void test_failed_probe_opens_circuit_again() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, Duration.ofMillis(20), transitions::add);
+        circuitBreaker.onFailure();
+        Thread.sleep(30);
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.onFailure();
+        assertFalse(circuitBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+}
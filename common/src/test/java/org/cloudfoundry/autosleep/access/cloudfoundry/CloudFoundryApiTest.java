@@ -19,10 +19,14 @@
 
 package org.cloudfoundry.autosleep.access.cloudfoundry;
 
-import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationAuditEvent;
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
 import org.cloudfoundry.client.CloudFoundryClient;
 import org.cloudfoundry.client.v2.Metadata;
+import org.cloudfoundry.client.v2.OrderDirection;
 import org.cloudfoundry.client.v2.applications.ApplicationEntity;
 import org.cloudfoundry.client.v2.applications.ApplicationInstanceInfo;
 import org.cloudfoundry.client.v2.applications.ApplicationInstancesRequest;
@@ -64,36 +68,56 @@ import org.cloudfoundry.client.v2.servicebindings.ServiceBindingEntity;
 import org.cloudfoundry.client.v2.servicebindings.ServiceBindingsV2;
 import org.cloudfoundry.client.v2.serviceinstances.BindServiceInstanceRouteRequest;
 import org.cloudfoundry.client.v2.serviceinstances.BindServiceInstanceRouteResponse;
+import org.cloudfoundry.client.v2.serviceinstances.CreateServiceInstanceRequest;
+import org.cloudfoundry.client.v2.serviceinstances.CreateServiceInstanceResponse;
 import org.cloudfoundry.client.v2.serviceinstances.ServiceInstanceEntity;
 import org.cloudfoundry.client.v2.serviceinstances.ServiceInstances;
+import org.cloudfoundry.doppler.ContainerMetric;
+import org.cloudfoundry.doppler.ContainerMetricsRequest;
 import org.cloudfoundry.doppler.DopplerClient;
 import org.cloudfoundry.doppler.Envelope;
 import org.cloudfoundry.doppler.EventType;
 import org.cloudfoundry.doppler.LogMessage;
 import org.cloudfoundry.doppler.MessageType;
 import org.cloudfoundry.doppler.RecentLogsRequest;
+import org.cloudfoundry.doppler.StreamRequest;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import static org.cloudfoundry.autosleep.util.TestUtils.verifyThrown;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -107,9 +131,15 @@ public class CloudFoundryApiTest {
     @InjectMocks
     private CloudFoundryApi cloudFoundryApi;
 
+    @Mock
+    private CounterService counterService;
+
     @Mock
     private DopplerClient dopplerClient;
 
+    @Mock
+    private GaugeService gaugeService;
+
     private void mockGetApplication(ApplicationsV2 mockApplications, String name, String applicationState) {
         when(mockApplications.get(any(GetApplicationRequest.class)))
                 .thenReturn(Mono.just(GetApplicationResponse.builder()
@@ -135,6 +165,43 @@ public class CloudFoundryApiTest {
                 CloudFoundryException.class);
     }
 
+    @Test
+    public void test_bind_applications_reports_failed_applications() throws CloudFoundryException {
+        ServiceBindingsV2 serviceBindings = mock(ServiceBindingsV2.class);
+        when(cfClient.serviceBindingsV2()).thenReturn(serviceBindings);
+        when(serviceBindings.create(any(CreateServiceBindingRequest.class)))
+                .then(invocation -> {
+                    CreateServiceBindingRequest request = (CreateServiceBindingRequest) invocation.getArguments()[0];
+                    return "failing-application-id".equals(request.getApplicationId())
+                            ? Mono.error(new RuntimeException("some error"))
+                            : Mono.just(CreateServiceBindingResponse.builder()
+                            .metadata(Metadata.builder()
+                                    .build())
+                            .entity(ServiceBindingEntity.builder()
+                                    .build())
+                            .build());
+                });
+        ApplicationIdentity failingApplication = ApplicationIdentity.builder()
+                .guid("failing-application-id")
+                .name("failing-application-name")
+                .build();
+
+        List<ApplicationIdentity> failures = cloudFoundryApi.bindApplications("service-instance-id",
+                Arrays.asList(ApplicationIdentity.builder()
+                                .guid("application-id")
+                                .name("application-name")
+                                .build(),
+                        failingApplication));
+
+        assertEquals(Collections.singletonList(failingApplication), failures);
+        verify(serviceBindings, times(2)).create(any(CreateServiceBindingRequest.class));
+        verify(counterService, times(1)).increment(CloudFoundryApi.BINDING_FAILURE_METRIC);
+        //each binding is recorded like any other request
+        verify(gaugeService, times(2)).submit(eq(CloudFoundryApi.LATENCY_METRIC_PREFIX + "serviceBindings.create"),
+                anyDouble());
+        verify(counterService, times(1)).increment(CloudFoundryApi.ERROR_METRIC_PREFIX + "serviceBindings.create");
+    }
+
     @Test
     public void test_bind_applications_should_succeed() throws CloudFoundryException {
         ServiceBindingsV2 serviceBindings = mock(ServiceBindingsV2.class);
@@ -182,6 +249,32 @@ public class CloudFoundryApiTest {
         verify(serviceInstances, times(1)).bindRoute(any(BindServiceInstanceRouteRequest.class));
     }
 
+    @Test
+    public void test_create_service_instances_skips_failing_spaces() throws CloudFoundryException {
+        ServiceInstances serviceInstances = mock(ServiceInstances.class);
+        when(cfClient.serviceInstances()).thenReturn(serviceInstances);
+        when(serviceInstances.create(any(CreateServiceInstanceRequest.class)))
+                .then(invocation -> {
+                    CreateServiceInstanceRequest request = (CreateServiceInstanceRequest) invocation.getArguments()[0];
+                    assertEquals("plan-id", request.getServicePlanId());
+                    if ("failing-space".equals(request.getSpaceId())) {
+                        return Mono.error(new RuntimeException("some error"));
+                    }
+                    return Mono.just(CreateServiceInstanceResponse.builder()
+                            .metadata(Metadata.builder()
+                                    .build())
+                            .entity(ServiceInstanceEntity.builder()
+                                    .build())
+                            .build());
+                });
+
+        List<String> result = cloudFoundryApi.createServiceInstances(Arrays.asList("space", "failing-space"),
+                "plan-id", "instance-name", Collections.singletonMap("idle-duration", "PT1H"));
+
+        assertEquals(Collections.singletonList("space"), result);
+        verify(serviceInstances, times(2)).create(any(CreateServiceInstanceRequest.class));
+    }
+
     @Test
     public void test_it_extracts_timestamps_from_log_messages() {
         //Make sure we properly understand Java Instant API
@@ -206,44 +299,8 @@ public class CloudFoundryApiTest {
 
     @Test
     @SuppressWarnings("PMD.AvoidUsingHardCodedIP") // we document real-life IPs to illustrate returned CF API values
-    public void test_get_application_activity() throws CloudFoundryException {
-        final String applicationId = "application-id";
-        final String applicationState = "RUNNING";
-        final String applicationName = "application-name";
-        ApplicationsV2 applications = mock(ApplicationsV2.class);
-        Events events = mock(Events.class);
-        when(cfClient.applicationsV2()).thenReturn(applications);
-        when(cfClient.events()).thenReturn(events);
-
-        mockGetApplication(applications, applicationName, applicationState);
-
-
+    public void test_get_last_log_should_pick_the_most_recent() throws CloudFoundryException {
         Instant now = Instant.now();
-        Instant eventTimestamp = now.minus(Duration.ofDays(3));
-
-        //given typical event request we make
-        //        ListEventsRequest eventsRequest = ListEventsRequest.builder()
-        //                .actee("43dc8103-6d62-46c7-8456-6dcebfa2f2d1") //app Guid
-        //                .build();
-        //CF is returning the following real-life recorded values
-        when(events.list(any(ListEventsRequest.class)))
-                .thenReturn(Mono.just(ListEventsResponse.builder()
-                        .resource(EventResource.builder()
-                                .metadata(Metadata.builder().build())
-                                .entity(EventEntity.builder()
-                                        .actee("43dc8103-6d62-46c7-8456-6dcebfa2f2d1") //app Guid
-                                        .acteeName("hello-cf-java-client") //app name
-                                        .acteeType("app")
-                                        .actor("526cc2f7-3d07-4e04-85b2-e3c96282541c") //user Guid
-                                        .actorName("user@email.com")
-                                        .acteeType("user")
-                                        .organizationId("37816bdf-a476-473d-9ae4-75d7cfefabca")
-                                        .spaceId("3518c030-0b99-4075-834e-1b47e6ec7909")
-                                        .timestamp(eventTimestamp.toString()) //String "2017-03-14T08:21:22Z" returned by PWS
-                                        .type("audit.app.create")
-                                        .build())
-                                .build())
-                        .build()));
 
         long lastTimestampNanos = now.getEpochSecond() * 1000000000 + now.getNano();
         Function<Integer, Envelope> envelopeBuilder = diff -> Envelope.builder()
@@ -270,7 +327,7 @@ public class CloudFoundryApiTest {
         //Given a recent log response with 5 logs, arriving out of order through the log pipeline
         // w.r.t. their original enveloppe + log message timestamp
         //and the most recent event by 4 ns
-                when(dopplerClient.recentLogs(any(RecentLogsRequest.class)))
+        when(dopplerClient.recentLogs(any(RecentLogsRequest.class)))
                 .thenReturn(Flux.fromIterable(
                         Arrays.asList(envelopeBuilder.apply(1),
                                 envelopeBuilder.apply(2),
@@ -279,15 +336,11 @@ public class CloudFoundryApiTest {
                                 envelopeBuilder.apply(4))
                 ));
 
-        ApplicationActivity activity = cloudFoundryApi.getApplicationActivity(applicationId);
-        assertNotNull(activity);
-        assertNotNull(activity.getApplication());
-        assertEquals(applicationId, activity.getApplication().getGuid());
-        assertEquals(applicationName, activity.getApplication().getName());
-        assertNotNull(activity.getLastEvent());
-        assertEquals(eventTimestamp, activity.getLastEvent().getTimestamp());
-        assertEquals("last event ordered by timestamp be the most recent by 4 nanosecs", Instant.ofEpochSecond(0, lastTimestampNanos +4), activity.getLastLog().getTimestamp());
-        assertEquals("message-" + 4, activity.getLastLog().getMessage());
+        ApplicationInfo.DiagnosticInfo.ApplicationLog lastLog = cloudFoundryApi.getLastLog("application-id");
+        assertNotNull(lastLog);
+        assertEquals("last log ordered by timestamp be the most recent by 4 nanosecs",
+                Instant.ofEpochSecond(0, lastTimestampNanos + 4), lastLog.getTimestamp());
+        assertEquals("message-" + 4, lastLog.getMessage());
     }
 
     @Test
@@ -312,6 +365,135 @@ public class CloudFoundryApiTest {
         assertEquals(applicationState, result);
     }
 
+    @Test
+    public void test_get_application_state_retries_server_errors() throws CloudFoundryException {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(applications.get(any(GetApplicationRequest.class)))
+                .thenReturn(Mono.error(new org.cloudfoundry.client.v2.ClientV2Exception(503, 0, "", "")))
+                .thenReturn(Mono.just(GetApplicationResponse.builder()
+                        .metadata(Metadata.builder().build())
+                        .entity(ApplicationEntity.builder()
+                                .state(CloudFoundryAppState.STARTED)
+                                .build())
+                        .build()));
+
+        assertEquals(CloudFoundryAppState.STARTED, cloudFoundryApi.getApplicationState("application-id"));
+
+        verify(applications, times(2)).get(any(GetApplicationRequest.class));
+        verify(counterService, times(1)).increment(CloudFoundryApi.RETRY_METRIC_PREFIX + "applications.get");
+    }
+
+    @Test
+    public void test_concurrent_identical_reads_share_one_request() throws Exception {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        CountDownLatch requestSent = new CountDownLatch(1);
+        CountDownLatch responseReceived = new CountDownLatch(1);
+        when(applications.get(any(GetApplicationRequest.class)))
+                .thenReturn(Mono.fromCallable(() -> {
+                    requestSent.countDown();
+                    responseReceived.await();
+                    return GetApplicationResponse.builder()
+                            .metadata(Metadata.builder().build())
+                            .entity(ApplicationEntity.builder()
+                                    .state(CloudFoundryAppState.STARTED)
+                                    .build())
+                            .build();
+                }));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> firstRead = executor.submit(() -> cloudFoundryApi.getApplicationState("application-id"));
+            requestSent.await();
+            Future<String> secondRead = executor.submit(() -> cloudFoundryApi.getApplicationState("application-id"));
+            verify(counterService, timeout(1000)).increment(CloudFoundryApi.COALESCED_REQUEST_METRIC);
+            responseReceived.countDown();
+
+            assertEquals(CloudFoundryAppState.STARTED, firstRead.get());
+            assertEquals(CloudFoundryAppState.STARTED, secondRead.get());
+            verify(applications, times(1)).get(any(GetApplicationRequest.class));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void test_requests_are_not_sent_while_circuit_is_open() throws CloudFoundryException {
+        cloudFoundryApi.circuitBreaker = new CircuitBreaker(1, Duration.ofMinutes(1),
+                state -> gaugeService.submit(CloudFoundryApi.CIRCUIT_STATE_METRIC, state.ordinal()));
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(applications.get(any(GetApplicationRequest.class)))
+                .thenReturn(Mono.error(new org.cloudfoundry.client.v2.ClientV2Exception(502, 0, "", "")));
+
+        verifyThrown(() -> cloudFoundryApi.getApplicationState("application-id"), CloudFoundryException.class);
+        verifyThrown(() -> cloudFoundryApi.getApplicationState("application-id"),
+                CloudFoundryUnavailableException.class);
+
+        //first failure opened the circuit, no retry sent
+        verify(applications, times(1)).get(any(GetApplicationRequest.class));
+        verify(gaugeService, times(1)).submit(CloudFoundryApi.CIRCUIT_STATE_METRIC,
+                CircuitBreaker.State.OPEN.ordinal());
+        verify(counterService, times(1)).increment(CloudFoundryApi.CIRCUIT_REJECTED_METRIC);
+    }
+
+    @Test
+    public void test_get_last_container_activity_ignores_idle_containers() throws CloudFoundryException {
+        Instant now = Instant.now();
+        long nowNanos = now.getEpochSecond() * 1000000000 + now.getNano();
+        BiFunction<Integer, Double, Envelope> envelopeBuilder = (instanceIndex, cpuPercentage) -> Envelope.builder()
+                .eventType(EventType.CONTAINER_METRIC)
+                .origin("rep")
+                .containerMetric(ContainerMetric.builder()
+                        .applicationId("application-id")
+                        .cpuPercentage(cpuPercentage)
+                        .diskBytes(0L)
+                        .instanceIndex(instanceIndex)
+                        .memoryBytes(0L)
+                        .build())
+                .timestamp(nowNanos - instanceIndex)
+                .build();
+        when(dopplerClient.containerMetrics(any(ContainerMetricsRequest.class)))
+                .thenReturn(Flux.just(envelopeBuilder.apply(0, 0.5),
+                        envelopeBuilder.apply(1, Config.ACTIVITY_CPU_THRESHOLD + 1),
+                        envelopeBuilder.apply(2, Config.ACTIVITY_CPU_THRESHOLD + 1)));
+
+        assertEquals(Instant.ofEpochSecond(0, nowNanos - 1),
+                cloudFoundryApi.getLastContainerActivity("application-id"));
+
+        when(dopplerClient.containerMetrics(any(ContainerMetricsRequest.class)))
+                .thenReturn(Flux.just(envelopeBuilder.apply(0, 0.5)));
+
+        assertNull(cloudFoundryApi.getLastContainerActivity("application-id"));
+        verify(gaugeService, times(2)).submit(eq(CloudFoundryApi.LATENCY_METRIC_PREFIX + "doppler.containerMetrics"),
+                anyDouble());
+    }
+
+    @Test
+    public void test_get_last_event_requests_the_newest_one() throws CloudFoundryException {
+        Instant eventTimestamp = Instant.ofEpochSecond(Instant.now().getEpochSecond());
+        Events events = mock(Events.class);
+        when(cfClient.events()).thenReturn(events);
+        when(events.list(any(ListEventsRequest.class)))
+                .then(invocation -> {
+                    ListEventsRequest request = (ListEventsRequest) invocation.getArguments()[0];
+                    assertEquals(OrderDirection.DESCENDING, request.getOrderDirection());
+                    assertEquals(Integer.valueOf(1), request.getResultsPerPage());
+                    return Mono.just(ListEventsResponse.builder()
+                            .resource(EventResource.builder()
+                                    .metadata(Metadata.builder().build())
+                                    .entity(EventEntity.builder()
+                                            .actee("application-id")
+                                            .timestamp(eventTimestamp.toString())
+                                            .type(Config.CloudFoundryAuditEvent.APP_START)
+                                            .build())
+                                    .build())
+                            .build());
+                });
+
+        assertEquals(eventTimestamp, cloudFoundryApi.getLastEvent("application-id").getTimestamp());
+    }
+
     @Test
     public void test_get_host_by_route_id_should_fail() throws CloudFoundryException {
         Routes routes = mock(Routes.class);
@@ -359,6 +541,43 @@ public class CloudFoundryApiTest {
         assertEquals(host + path + "." + domain, result);
     }
 
+    @Test
+    public void test_get_hosts_should_resolve_shared_domain_once() throws CloudFoundryException {
+        final String domain = "the.rainbow";
+        Routes routes = mock(Routes.class);
+        when(cfClient.routes()).thenReturn(routes);
+        Domains domains = mock(Domains.class);
+        when(cfClient.domains()).thenReturn(domains);
+        when(routes.get(any(GetRouteRequest.class)))
+                .then(invocation -> {
+                    GetRouteRequest request = (GetRouteRequest) invocation.getArguments()[0];
+                    if ("broken-route".equals(request.getRouteId())) {
+                        return Mono.error(new RuntimeException());
+                    }
+                    return Mono.just(GetRouteResponse.builder()
+                            .metadata(Metadata.builder().build())
+                            .entity(RouteEntity.builder()
+                                    .host(request.getRouteId())
+                                    .path("")
+                                    .domainId("domain-id")
+                                    .build())
+                            .build());
+                });
+        when(domains.get(any(GetDomainRequest.class)))
+                .thenReturn(Mono.just(GetDomainResponse.builder()
+                        .metadata(Metadata.builder().build())
+                        .entity(DomainEntity.builder()
+                                .name(domain)
+                                .build())
+                        .build()));
+
+        cloudFoundryApi.getHost("first");
+        List<String> result = cloudFoundryApi.getHosts(Arrays.asList("second", "broken-route", "third"));
+
+        assertEquals(new HashSet<>(Arrays.asList("second." + domain, "third." + domain)), new HashSet<>(result));
+        verify(domains, times(1)).get(any(GetDomainRequest.class));
+    }
+
     @Test
     public void test_is_app_running_should_fail() throws CloudFoundryException {
         ApplicationsV2 applications = mock(ApplicationsV2.class);
@@ -464,13 +683,261 @@ public class CloudFoundryApiTest {
                     }
                 });
         List<ApplicationIdentity> result = cloudFoundryApi
-                .listAliveApplications("space-id", excludePattern);
+                .listAliveApplications("space-id", excludePattern, applicationId -> true);
         assertNotNull(result);
         assertEquals(1, result.size());
         assertEquals(returnedApplication, result.get(0).getGuid());
 
     }
 
+    @Test
+    public void test_filter_alive_applications() throws CloudFoundryException {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(applications.get(any(GetApplicationRequest.class)))
+                .then(invocation -> {
+                    GetApplicationRequest request = (GetApplicationRequest) invocation.getArguments()[0];
+                    return Mono.just(GetApplicationResponse.builder()
+                            .metadata(Metadata.builder()
+                                    .id(request.getApplicationId())
+                                    .build())
+                            .entity(ApplicationEntity.builder()
+                                    .name(request.getApplicationId())
+                                    .state("application-started".equals(request.getApplicationId())
+                                            ? CloudFoundryAppState.STARTED : CloudFoundryAppState.STOPPED)
+                                    .packageState(CloudFoundryApi.PACKAGE_STATE_STAGED)
+                                    .build())
+                            .build());
+                });
+
+        List<ApplicationIdentity> result = cloudFoundryApi.filterAliveApplications(Arrays.asList(
+                ApplicationIdentity.builder().guid("application-started").name("application-started").build(),
+                ApplicationIdentity.builder().guid("application-created").name("application-created").build()));
+
+        assertEquals(Collections.singletonList("application-started"), result.stream()
+                .map(ApplicationIdentity::getGuid)
+                .collect(Collectors.toList()));
+        //the state was conclusive for both
+        verify(applications, never()).instances(any(ApplicationInstancesRequest.class));
+    }
+
+    @Test
+    public void test_filter_alive_applications_leaves_out_applications_not_checked() throws CloudFoundryException {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(applications.get(any(GetApplicationRequest.class)))
+                .then(invocation -> {
+                    GetApplicationRequest request = (GetApplicationRequest) invocation.getArguments()[0];
+                    if ("application-failing".equals(request.getApplicationId())) {
+                        return Mono.error(new org.cloudfoundry.client.v2.ClientV2Exception(403, 0, "", ""));
+                    } else if ("application-deleted".equals(request.getApplicationId())) {
+                        return Mono.error(new org.cloudfoundry.client.v2.ClientV2Exception(404,
+                                CloudFoundryApi.CF_APPLICATION_NOT_FOUND, "", ""));
+                    }
+                    return Mono.just(GetApplicationResponse.builder()
+                            .metadata(Metadata.builder()
+                                    .id(request.getApplicationId())
+                                    .build())
+                            .entity(ApplicationEntity.builder()
+                                    .name(request.getApplicationId())
+                                    .state(CloudFoundryAppState.STARTED)
+                                    .packageState(CloudFoundryApi.PACKAGE_STATE_STAGED)
+                                    .build())
+                            .build());
+                });
+
+        List<ApplicationIdentity> result = cloudFoundryApi.filterAliveApplications(Arrays.asList(
+                ApplicationIdentity.builder().guid("application-failing").name("application-failing").build(),
+                ApplicationIdentity.builder().guid("application-deleted").name("application-deleted").build(),
+                ApplicationIdentity.builder().guid("application-started").name("application-started").build()));
+
+        assertEquals(Collections.singletonList("application-started"), result.stream()
+                .map(ApplicationIdentity::getGuid)
+                .collect(Collectors.toList()));
+        //each application was requested once
+        verify(applications, times(3)).get(any(GetApplicationRequest.class));
+    }
+
+    @Test
+    public void test_list_alive_applications_only_requests_instances_when_state_is_ambiguous()
+            throws CloudFoundryException {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(applications.list(any(ListApplicationsRequest.class)))
+                .thenReturn(Mono.just(ListApplicationsResponse.builder()
+                        .resource(ApplicationResource.builder()
+                                .metadata(Metadata.builder()
+                                        .id("application-started")
+                                        .build())
+                                .entity(ApplicationEntity.builder()
+                                        .name("application-started")
+                                        .state(CloudFoundryAppState.STARTED)
+                                        .packageState(CloudFoundryApi.PACKAGE_STATE_STAGED)
+                                        .build())
+                                .build())
+                        .resource(ApplicationResource.builder()
+                                .metadata(Metadata.builder()
+                                        .id("application-stopped")
+                                        .build())
+                                .entity(ApplicationEntity.builder()
+                                        .name("application-stopped")
+                                        .state(CloudFoundryAppState.STOPPED)
+                                        .packageState(CloudFoundryApi.PACKAGE_STATE_STAGED)
+                                        .build())
+                                .build())
+                        .resource(ApplicationResource.builder()
+                                .metadata(Metadata.builder()
+                                        .id("application-staging")
+                                        .build())
+                                .entity(ApplicationEntity.builder()
+                                        .name("application-staging")
+                                        .state(CloudFoundryAppState.STARTED)
+                                        .packageState("PENDING")
+                                        .build())
+                                .build())
+                        .build()));
+        when(applications.instances(any(ApplicationInstancesRequest.class)))
+                .thenReturn(Mono.just(ApplicationInstancesResponse.builder()
+                        .instance("1", ApplicationInstanceInfo.builder()
+                                .state("STARTING")
+                                .build())
+                        .build()));
+
+        List<ApplicationIdentity> result = cloudFoundryApi
+                .listAliveApplications("space-id", null, applicationId -> true);
+
+        assertEquals(new HashSet<>(Arrays.asList("application-started", "application-staging")), result.stream()
+                .map(ApplicationIdentity::getGuid)
+                .collect(Collectors.toSet()));
+        //only the application still staging required its instances
+        verify(applications, times(1)).instances(ApplicationInstancesRequest.builder()
+                .applicationId("application-staging")
+                .build());
+        verify(counterService, times(2)).increment(CloudFoundryApi.INSTANCES_REQUEST_AVOIDED_METRIC);
+    }
+
+    @Test
+    public void test_list_alive_applications_reads_every_page() throws CloudFoundryException {
+        final int totalPages = 3;
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(applications.list(any(ListApplicationsRequest.class)))
+                .then(invocation -> {
+                    ListApplicationsRequest request = (ListApplicationsRequest) invocation.getArguments()[0];
+                    assertEquals(Integer.valueOf(Config.CF_API_PAGE_SIZE), request.getResultsPerPage());
+                    String applicationId = "application-" + request.getPage();
+                    return Mono.just(ListApplicationsResponse.builder()
+                            .totalPages(totalPages)
+                            .resource(ApplicationResource.builder()
+                                    .metadata(Metadata.builder()
+                                            .id(applicationId)
+                                            .build())
+                                    .entity(ApplicationEntity.builder()
+                                            .name(applicationId)
+                                            .build())
+                                    .build())
+                            .build());
+                });
+        when(applications.instances(any(ApplicationInstancesRequest.class)))
+                .thenReturn(Mono.just(ApplicationInstancesResponse.builder()
+                        .instance("1", ApplicationInstanceInfo.builder()
+                                .state("RUNNING")
+                                .build())
+                        .build()));
+
+        List<ApplicationIdentity> result = cloudFoundryApi
+                .listAliveApplications("space-id", null, applicationId -> !"application-2".equals(applicationId));
+
+        assertEquals(Arrays.asList("application-1", "application-3"), result.stream()
+                .map(ApplicationIdentity::getGuid)
+                .collect(Collectors.toList()));
+        verify(applications, times(totalPages)).list(any(ListApplicationsRequest.class));
+        //the application filtered out was not requested any further
+        verify(applications, times(2)).instances(any(ApplicationInstancesRequest.class));
+    }
+
+    @Test
+    public void test_list_alive_applications_retries_the_failing_page_only() throws CloudFoundryException {
+        final int totalPages = 3;
+        final AtomicBoolean failed = new AtomicBoolean();
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(applications.list(any(ListApplicationsRequest.class)))
+                .then(invocation -> {
+                    ListApplicationsRequest request = (ListApplicationsRequest) invocation.getArguments()[0];
+                    //the second page fails once
+                    if (request.getPage() == 2 && failed.compareAndSet(false, true)) {
+                        return Mono.error(new org.cloudfoundry.client.v2.ClientV2Exception(503, 0, "", ""));
+                    }
+                    String applicationId = "application-" + request.getPage();
+                    return Mono.just(ListApplicationsResponse.builder()
+                            .totalPages(totalPages)
+                            .resource(ApplicationResource.builder()
+                                    .metadata(Metadata.builder()
+                                            .id(applicationId)
+                                            .build())
+                                    .entity(ApplicationEntity.builder()
+                                            .name(applicationId)
+                                            .state(CloudFoundryAppState.STARTED)
+                                            .packageState(CloudFoundryApi.PACKAGE_STATE_STAGED)
+                                            .build())
+                                    .build())
+                            .build());
+                });
+
+        List<ApplicationIdentity> result = cloudFoundryApi
+                .listAliveApplications("space-id", null, applicationId -> true);
+
+        assertEquals(Arrays.asList("application-1", "application-2", "application-3"), result.stream()
+                .map(ApplicationIdentity::getGuid)
+                .collect(Collectors.toList()));
+        //the listing was not read again from its first page
+        verify(applications, times(1)).list(ListApplicationsRequest.builder()
+                .spaceId("space-id")
+                .page(1)
+                .resultsPerPage(Config.CF_API_PAGE_SIZE)
+                .build());
+        verify(applications, times(totalPages + 1)).list(any(ListApplicationsRequest.class));
+        verify(counterService, times(1)).increment(CloudFoundryApi.RETRY_METRIC_PREFIX + "applications.list");
+    }
+
+    @Test
+    public void test_list_application_audit_events_reads_every_page() throws CloudFoundryException {
+        final int totalPages = 2;
+        final Instant since = Instant.now().minus(Duration.ofMinutes(5));
+        Events events = mock(Events.class);
+        when(cfClient.events()).thenReturn(events);
+        when(events.list(any(ListEventsRequest.class)))
+                .then(invocation -> {
+                    ListEventsRequest request = (ListEventsRequest) invocation.getArguments()[0];
+                    assertEquals(Collections.singletonList("space-id"), request.getSpaceIds());
+                    assertEquals(Collections.singletonList(since.toString()), request.getTimestamps());
+                    assertEquals(3, request.getTypes().size());
+                    String applicationId = "application-" + request.getPage();
+                    return Mono.just(ListEventsResponse.builder()
+                            .totalPages(totalPages)
+                            .resource(EventResource.builder()
+                                    .metadata(Metadata.builder().build())
+                                    .entity(EventEntity.builder()
+                                            .actee(applicationId)
+                                            .acteeName(applicationId + "-name")
+                                            .timestamp(since.plus(Duration.ofMinutes(request.getPage())).toString())
+                                            .type(Config.CloudFoundryAuditEvent.APP_START)
+                                            .build())
+                                    .build())
+                            .build());
+                });
+
+        List<ApplicationAuditEvent> result = cloudFoundryApi.listApplicationAuditEvents("space-id", since);
+
+        assertEquals(Arrays.asList("application-1", "application-2"), result.stream()
+                .map(event -> event.getApplication().getGuid())
+                .collect(Collectors.toList()));
+        assertEquals("application-1-name", result.get(0).getApplication().getName());
+        assertEquals(since.plus(Duration.ofMinutes(2)), result.get(1).getTimestamp());
+        verify(events, times(totalPages)).list(any(ListEventsRequest.class));
+    }
+
     @Test
     public void test_list_applications_of_route_should_fail() throws CloudFoundryException {
         Routes routes = mock(Routes.class);
@@ -560,6 +1027,7 @@ public class CloudFoundryApiTest {
 
     @Test
     public void test_start_application_should_not_start_a_started_application() throws CloudFoundryException {
+        cloudFoundryApi.optimisticStateChange = false;
         ApplicationsV2 applications = mock(ApplicationsV2.class);
         when(cfClient.applicationsV2()).thenReturn(applications);
         mockGetApplication(applications, "name", "STARTED");
@@ -575,6 +1043,7 @@ public class CloudFoundryApiTest {
 
     @Test
     public void test_start_application_should_start_a_stopped_application() throws CloudFoundryException {
+        cloudFoundryApi.optimisticStateChange = false;
         ApplicationsV2 applications = mock(ApplicationsV2.class);
         when(cfClient.applicationsV2()).thenReturn(applications);
         mockGetApplication(applications, "name", "STOPPED");
@@ -604,6 +1073,7 @@ public class CloudFoundryApiTest {
 
     @Test
     public void test_stop_application_should_not_stop_a_stopped_application() throws CloudFoundryException {
+        cloudFoundryApi.optimisticStateChange = false;
         ApplicationsV2 applications = mock(ApplicationsV2.class);
         when(cfClient.applicationsV2()).thenReturn(applications);
         mockGetApplication(applications, "name", "STOPPED");
@@ -619,6 +1089,7 @@ public class CloudFoundryApiTest {
 
     @Test
     public void test_stop_application_should_stop_a_started_application() throws CloudFoundryException {
+        cloudFoundryApi.optimisticStateChange = false;
         ApplicationsV2 applications = mock(ApplicationsV2.class);
         when(cfClient.applicationsV2()).thenReturn(applications);
         mockGetApplication(applications, "name", "STARTED");
@@ -632,6 +1103,39 @@ public class CloudFoundryApiTest {
 
     }
 
+    @Test
+    public void test_optimistic_stop_application_does_not_read_state() throws CloudFoundryException {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        when(applications.update(any(UpdateApplicationRequest.class)))
+                .thenReturn(Mono.just(UpdateApplicationResponse.builder()
+                        .metadata(Metadata.builder().build())
+                        .entity(ApplicationEntity.builder()
+                                .state(CloudFoundryAppState.STOPPED)
+                                .build())
+                        .build()));
+
+        assertTrue(cloudFoundryApi.stopApplication("application-id"));
+        //state returned by the update is known, no need to send the second one
+        assertFalse(cloudFoundryApi.stopApplication("application-id"));
+
+        verify(applications, never()).get(any(GetApplicationRequest.class));
+        verify(applications, times(1)).update(any(UpdateApplicationRequest.class));
+    }
+
+    @Test
+    public void test_optimistic_start_application_uses_state_recently_read() throws CloudFoundryException {
+        ApplicationsV2 applications = mock(ApplicationsV2.class);
+        when(cfClient.applicationsV2()).thenReturn(applications);
+        mockGetApplication(applications, "name", CloudFoundryAppState.STARTED);
+
+        cloudFoundryApi.getApplicationState("application-id");
+        assertFalse(cloudFoundryApi.startApplication("application-id"));
+
+        verify(applications, times(1)).get(any(GetApplicationRequest.class));
+        verify(applications, never()).update(any(UpdateApplicationRequest.class));
+    }
+
     @Test
     public void test_unbind_application_should_fail() throws CloudFoundryException {
         ServiceBindingsV2 serviceBindings = mock(ServiceBindingsV2.class);
@@ -699,4 +1203,45 @@ public class CloudFoundryApiTest {
         assertFalse(cloudFoundryApi.isValidOrganization(fakeOrgId));
     }
 
+    @Test
+    public void test_watch_application_readiness_completes_on_healthy_log() throws Exception {
+        String applicationId = "application-id";
+        Function<String, Envelope> envelopeBuilder = message -> Envelope.builder()
+                .eventType(EventType.LOG_MESSAGE)
+                .origin("rep")
+                .logMessage(LogMessage.builder()
+                        .applicationId(applicationId)
+                        .message(message)
+                        .messageType(MessageType.OUT)
+                        .sourceInstance("0")
+                        .sourceType("CELL")
+                        .timestamp(System.nanoTime())
+                        .build())
+                .build();
+        when(dopplerClient.stream(any(StreamRequest.class)))
+                .thenReturn(Flux.just(envelopeBuilder.apply("Creating container"),
+                        envelopeBuilder.apply("Container became healthy"))
+                        .concatWith(Flux.never()));
+
+        CompletableFuture<Void> readiness = cloudFoundryApi.watchApplicationReadiness(applicationId);
+
+        readiness.get(1, TimeUnit.SECONDS);
+        assertTrue(readiness.isDone());
+        verify(dopplerClient, times(1)).stream(any(StreamRequest.class));
+        verify(gaugeService, times(1)).submit(eq(CloudFoundryApi.LATENCY_METRIC_PREFIX + "doppler.stream"),
+                anyDouble());
+    }
+
+    @Test
+    public void test_watch_application_readiness_cancelled_is_recorded_without_error() throws Exception {
+        when(dopplerClient.stream(any(StreamRequest.class))).thenReturn(Flux.never());
+
+        CompletableFuture<Void> readiness = cloudFoundryApi.watchApplicationReadiness("appId");
+
+        assertTrue(readiness.cancel(true));
+        verify(gaugeService, times(1)).submit(eq(CloudFoundryApi.LATENCY_METRIC_PREFIX + "doppler.stream"),
+                anyDouble());
+        verify(counterService, never()).increment(CloudFoundryApi.ERROR_METRIC_PREFIX + "doppler.stream");
+    }
+
 }
\ No newline at end of file
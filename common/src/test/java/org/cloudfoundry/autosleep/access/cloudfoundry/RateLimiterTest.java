@@ -0,0 +1,41 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @Test
+    public void test_reserve_spreads_requests_over_time() {
+        RateLimiter rateLimiter = new RateLimiter(10);
+        assertEquals(Duration.ZERO, rateLimiter.reserve());
+        Duration secondWait = rateLimiter.reserve();
+        Duration thirdWait = rateLimiter.reserve();
+        assertTrue(secondWait.compareTo(Duration.ofMillis(90)) > 0);
+        assertTrue(secondWait.compareTo(Duration.ofMillis(100)) <= 0);
+        assertTrue(thirdWait.minus(secondWait).compareTo(Duration.ofMillis(90)) > 0);
+    }
+
+}
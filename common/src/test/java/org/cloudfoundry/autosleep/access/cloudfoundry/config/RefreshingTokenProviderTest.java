@@ -0,0 +1,131 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry.config;
+
+import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.reactor.TokenProvider;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RefreshingTokenProviderTest {
+
+    private static final Duration REFRESH_MARGIN = Duration.ofMinutes(2);
+
+    @Mock
+    private ConnectionContext connectionContext;
+
+    @Mock
+    private TokenProvider delegate;
+
+    @Mock
+    private ScheduledExecutorService scheduler;
+
+    private RefreshingTokenProvider tokenProvider;
+
+    private static String buildToken(Instant expiry) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return "bearer " + encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8))
+                + "." + encoder.encodeToString(("{\"exp\":" + expiry.getEpochSecond() + "}")
+                .getBytes(StandardCharsets.UTF_8))
+                + ".signature";
+    }
+
+    @Before
+    public void buildProvider() {
+        tokenProvider = new RefreshingTokenProvider(delegate, REFRESH_MARGIN, scheduler);
+    }
+
+    @Test
+    public void test_read_expiry() {
+        Instant expiry = Instant.ofEpochSecond(Instant.now().getEpochSecond());
+        assertEquals(expiry, RefreshingTokenProvider.readExpiry(buildToken(expiry)));
+        assertNull(RefreshingTokenProvider.readExpiry("bearer opaque-token"));
+    }
+
+    @Test
+    public void test_valid_token_is_served_from_cache_and_refreshed_in_background() {
+        String token = buildToken(Instant.now().plus(Duration.ofHours(12)));
+        when(delegate.getToken(connectionContext)).thenReturn(Mono.just(token));
+
+        assertEquals(token, tokenProvider.getToken(connectionContext).block());
+        assertEquals(token, tokenProvider.getToken(connectionContext).block());
+
+        verify(delegate, times(1)).getToken(connectionContext);
+        verify(delegate, never()).invalidate(connectionContext);
+        verify(scheduler, times(1)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+        assertEquals(1L, tokenProvider.getRefreshes());
+    }
+
+    @Test
+    public void test_token_close_to_expiry_is_refreshed_once_for_concurrent_callers() {
+        String expiringToken = buildToken(Instant.now().plus(REFRESH_MARGIN.dividedBy(2)));
+        String newToken = buildToken(Instant.now().plus(Duration.ofHours(12)));
+        when(delegate.getToken(connectionContext))
+                .thenReturn(Mono.just(expiringToken))
+                .thenReturn(Mono.just(newToken));
+        tokenProvider.getToken(connectionContext).block();
+
+        Mono<String> firstCaller = tokenProvider.getToken(connectionContext);
+        Mono<String> secondCaller = tokenProvider.getToken(connectionContext);
+
+        assertEquals(newToken, firstCaller.block());
+        assertEquals(newToken, secondCaller.block());
+        verify(delegate, times(2)).getToken(connectionContext);
+        verify(delegate, times(1)).invalidate(connectionContext);
+    }
+
+    @Test
+    public void test_failed_refresh_is_counted() {
+        when(delegate.getToken(connectionContext)).thenReturn(Mono.error(new IllegalStateException("uaa down")));
+
+        try {
+            tokenProvider.getToken(connectionContext).block();
+            fail("refresh should have failed");
+        } catch (IllegalStateException e) {
+            assertEquals("uaa down", e.getMessage());
+        }
+
+        assertEquals(1L, tokenProvider.getRefreshFailures());
+        assertNull(tokenProvider.getExpiresIn());
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.cloudfoundry.simulator;
+
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.cloudfoundry.client.v2.OrderDirection;
+import org.cloudfoundry.client.v2.applications.ApplicationInstancesRequest;
+import org.cloudfoundry.client.v2.applications.DeleteApplicationRequest;
+import org.cloudfoundry.client.v2.applications.GetApplicationRequest;
+import org.cloudfoundry.client.v2.applications.ListApplicationsRequest;
+import org.cloudfoundry.client.v2.applications.ListApplicationsResponse;
+import org.cloudfoundry.client.v2.applications.UpdateApplicationRequest;
+import org.cloudfoundry.client.v2.events.ListEventsRequest;
+import org.cloudfoundry.client.v2.events.ListEventsResponse;
+import org.cloudfoundry.client.v2.spaces.ListSpacesRequest;
+import org.cloudfoundry.client.v2.spaces.ListSpacesResponse;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.StreamRequest;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.cloudfoundry.autosleep.util.TestUtils.verifyThrown;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimulatorTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private static Simulator buildSimulator(SimulatorSettings.SimulatorSettingsBuilder settings) {
+        return new Simulator(settings
+                .organizations(1)
+                .spacesPerOrganization(2)
+                .applicationsPerSpace(3)
+                .latency(Duration.ZERO)
+                .startDuration(Duration.ZERO)
+                .build());
+    }
+
+    private void changeState(CloudFoundryClient client, String applicationId, String state) {
+        client.applicationsV2()
+                .update(UpdateApplicationRequest.builder()
+                        .applicationId(applicationId)
+                        .state(state)
+                        .build())
+                .block(TIMEOUT);
+    }
+
+    @Test
+    public void test_applications_of_a_space_are_listed_by_page() {
+        Simulator simulator = buildSimulator(SimulatorSettings.builder());
+        String organizationId = simulator.getFoundation().getOrganizationIds().get(0);
+        ListSpacesResponse spaces = simulator.getCloudFoundryClient().spaces()
+                .list(ListSpacesRequest.builder()
+                        .organizationId(organizationId)
+                        .build())
+                .block(TIMEOUT);
+        assertEquals(2, spaces.getResources().size());
+
+        ListApplicationsResponse secondPage = simulator.getCloudFoundryClient().applicationsV2()
+                .list(ListApplicationsRequest.builder()
+                        .spaceId(spaces.getResources().get(0).getMetadata().getId())
+                        .page(2)
+                        .resultsPerPage(2)
+                        .build())
+                .block(TIMEOUT);
+        assertEquals(Integer.valueOf(2), secondPage.getTotalPages());
+        assertEquals(1, secondPage.getResources().size());
+    }
+
+    @Test
+    public void test_stopped_application_has_no_instances_and_an_update_event() {
+        Simulator simulator = buildSimulator(SimulatorSettings.builder());
+        CloudFoundryClient client = simulator.getCloudFoundryClient();
+        String applicationId = simulator.getFoundation().getApplicationIds().get(0);
+
+        changeState(client, applicationId, CloudFoundryAppState.STOPPED);
+
+        assertEquals(1, simulator.getFoundation().countApplications(CloudFoundryAppState.STOPPED));
+        verifyThrown(() -> client.applicationsV2()
+                        .instances(ApplicationInstancesRequest.builder()
+                                .applicationId(applicationId)
+                                .build())
+                        .block(TIMEOUT),
+                ClientV2Exception.class,
+                exception -> assertEquals(Integer.valueOf(CloudControllerSimulator.INSTANCES_ERROR),
+                        exception.getCode()));
+        ListEventsResponse events = client.events()
+                .list(ListEventsRequest.builder()
+                        .actee(applicationId)
+                        .orderDirection(OrderDirection.DESCENDING)
+                        .resultsPerPage(1)
+                        .build())
+                .block(TIMEOUT);
+        assertEquals(SimulatedFoundation.APP_UPDATE_EVENT, events.getResources().get(0).getEntity().getType());
+    }
+
+    @Test
+    public void test_readiness_is_streamed_once_application_started() {
+        Simulator simulator = buildSimulator(SimulatorSettings.builder());
+        String applicationId = simulator.getFoundation().getApplicationIds().get(0);
+        changeState(simulator.getCloudFoundryClient(), applicationId, CloudFoundryAppState.STOPPED);
+        changeState(simulator.getCloudFoundryClient(), applicationId, CloudFoundryAppState.STARTED);
+
+        Envelope readiness = simulator.getDopplerClient()
+                .stream(StreamRequest.builder()
+                        .applicationId(applicationId)
+                        .build())
+                .next()
+                .block(TIMEOUT);
+
+        assertEquals(DopplerSimulator.READINESS_LOG_MESSAGE, readiness.getLogMessage().getMessage());
+        assertEquals(2, simulator.getFoundation().getStateChanges());
+    }
+
+    @Test
+    public void test_requests_fail_at_configured_error_rate() {
+        Simulator simulator = buildSimulator(SimulatorSettings.builder().errorRate(1.0));
+        verifyThrown(() -> simulator.getCloudFoundryClient().applicationsV2()
+                        .get(GetApplicationRequest.builder()
+                                .applicationId(simulator.getFoundation().getApplicationIds().get(0))
+                                .build())
+                        .block(TIMEOUT),
+                ClientV2Exception.class,
+                exception -> assertEquals(Integer.valueOf(SimulatedNetwork.SERVER_ERROR_STATUS),
+                        exception.getStatusCode()));
+        assertEquals(Long.valueOf(1), simulator.getNetwork().getRequests().get("applicationsV2.get"));
+    }
+
+    @Test
+    public void test_requests_beyond_rate_limit_are_rejected() {
+        Simulator simulator = buildSimulator(SimulatorSettings.builder().rateLimit(1));
+        String applicationId = simulator.getFoundation().getApplicationIds().get(0);
+        int rejected = 0;
+        for (int i = 0; i < 3; i++) {
+            try {
+                simulator.getCloudFoundryClient().applicationsV2()
+                        .get(GetApplicationRequest.builder()
+                                .applicationId(applicationId)
+                                .build())
+                        .block(TIMEOUT);
+            } catch (ClientV2Exception e) {
+                assertEquals(Integer.valueOf(SimulatedNetwork.RATE_LIMITED_STATUS), e.getStatusCode());
+                rejected++;
+            }
+        }
+        assertTrue(rejected > 0);
+    }
+
+    @Test
+    public void test_operations_not_simulated_fail() {
+        Simulator simulator = buildSimulator(SimulatorSettings.builder());
+        verifyThrown(() -> simulator.getCloudFoundryClient().applicationsV2()
+                        .delete(DeleteApplicationRequest.builder()
+                                .applicationId("application-id")
+                                .build())
+                        .block(TIMEOUT),
+                UnsupportedOperationException.class);
+    }
+
+}
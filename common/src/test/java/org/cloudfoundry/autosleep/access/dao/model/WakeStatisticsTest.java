@@ -0,0 +1,80 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.dao.model;
+
+import org.cloudfoundry.autosleep.config.Config;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class WakeStatisticsTest {
+
+    private static final Instant MONDAY_NINE_AM = Instant.parse("2016-06-06T09:10:00Z");
+
+    private static final Duration WEEK = Duration.ofDays(7);
+
+    @Test
+    public void test_halves_counters_on_saturation() {
+        WakeStatistics statistics = new WakeStatistics("appId");
+        statistics.recordWake(MONDAY_NINE_AM.minus(Duration.ofHours(1)));
+        for (int week = 0; week <= WakeStatistics.MAX_SLOT_COUNT; week++) {
+            statistics.recordWake(MONDAY_NINE_AM.plus(WEEK.multipliedBy(week)));
+        }
+        assertThat(statistics.getWakeCount(MONDAY_NINE_AM), is(equalTo(WakeStatistics.MAX_SLOT_COUNT / 2 + 1)));
+        assertThat(statistics.getWakeCount(MONDAY_NINE_AM.minus(Duration.ofHours(1))), is(equalTo(0)));
+    }
+
+    @Test
+    public void test_ignores_duplicated_wakes() {
+        WakeStatistics statistics = new WakeStatistics("appId");
+        statistics.recordWake(MONDAY_NINE_AM);
+        statistics.recordWake(MONDAY_NINE_AM.plus(Config.WAKE_DEDUPLICATION_WINDOW.dividedBy(2)));
+        assertThat(statistics.getWakeCount(MONDAY_NINE_AM), is(equalTo(1)));
+    }
+
+    @Test
+    public void test_expects_wake_after_repeated_wakes() {
+        WakeStatistics statistics = new WakeStatistics("appId");
+        for (int week = 0; week < Config.PRE_WAKE_MIN_OCCURRENCES; week++) {
+            assertThat(statistics.isWakeExpected(MONDAY_NINE_AM), is(false));
+            statistics.recordWake(MONDAY_NINE_AM.plus(WEEK.multipliedBy(week)));
+        }
+        assertThat(statistics.isWakeExpected(MONDAY_NINE_AM.plus(Duration.ofMinutes(30))), is(true));
+        assertThat(statistics.isWakeExpected(MONDAY_NINE_AM.plus(Duration.ofHours(1))), is(false));
+    }
+
+    @Test
+    public void test_resolves_pre_wakes() {
+        WakeStatistics statistics = new WakeStatistics("appId");
+        statistics.markAsPreWoken(MONDAY_NINE_AM);
+        assertThat(statistics.isPreWakePending(), is(true));
+        statistics.resolvePreWake(true);
+        statistics.markAsPreWoken(MONDAY_NINE_AM.plus(WEEK));
+        statistics.resolvePreWake(false);
+        assertThat(statistics.isPreWakePending(), is(false));
+        assertThat(statistics.getUsedPreWakes(), is(equalTo(1)));
+        assertThat(statistics.getWastedPreWakes(), is(equalTo(1)));
+    }
+
+}
@@ -22,6 +22,7 @@ package org.cloudfoundry.autosleep.access.dao.repositories;
 import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.autosleep.access.dao.config.RepositoryConfig;
 import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.model.Binding.ResourceType;
 import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
 import org.cloudfoundry.autosleep.util.ApplicationConfiguration;
 import org.cloudfoundry.autosleep.util.BeanGenerator;
@@ -36,6 +37,7 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
@@ -50,6 +52,9 @@ public abstract class ApplicationRepositoryTest extends CrudRepositoryTest<Appli
     @Autowired
     private ApplicationRepository applicationRepository;
 
+    @Autowired
+    private BindingRepository bindingRepository;
+
     @Override
     protected ApplicationInfo build(String id) {
         ApplicationInfo result = BeanGenerator.createAppInfoLinkedToService(id, "APTestServiceId");
@@ -98,6 +103,7 @@ public abstract class ApplicationRepositoryTest extends CrudRepositoryTest<Appli
     public void setAndClearDao() {
         setDao(applicationRepository);
         applicationRepository.deleteAll();
+        bindingRepository.deleteAll();
     }
 
     @Test
@@ -112,4 +118,20 @@ public abstract class ApplicationRepositoryTest extends CrudRepositoryTest<Appli
 
     }
 
+    @Test
+    public void test_find_bound_to_service_instance() {
+        //Given applications bound to different service instances
+        Arrays.asList("testBoundId1", "testBoundId2", "testBoundId3")
+                .forEach(id -> applicationRepository.save(build(id)));
+        bindingRepository.save(BeanGenerator.createBinding("boundService", null, "testBoundId1"));
+        bindingRepository.save(BeanGenerator.createBinding("boundService", null, "testBoundId2"));
+        bindingRepository.save(BeanGenerator.createBinding("otherService", null, "testBoundId3"));
+        //When we read the applications bound to one of them
+        List<ApplicationInfo> bound = applicationRepository.findBoundToServiceInstance("boundService",
+                ResourceType.Application);
+        //Then we only get its applications
+        assertThat(bound.stream().map(ApplicationInfo::getUuid).sorted().collect(Collectors.toList()),
+                is(equalTo(Arrays.asList("testBoundId1", "testBoundId2"))));
+    }
+
 }
\ No newline at end of file
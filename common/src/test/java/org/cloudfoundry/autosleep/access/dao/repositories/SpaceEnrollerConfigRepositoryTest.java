@@ -21,16 +21,20 @@ package org.cloudfoundry.autosleep.access.dao.repositories;
 
 import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.autosleep.access.dao.config.RepositoryConfig;
+import org.cloudfoundry.autosleep.access.dao.model.Binding.ResourceType;
 import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
 import org.cloudfoundry.autosleep.util.ApplicationConfiguration;
+import org.cloudfoundry.autosleep.util.BeanGenerator;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.time.Duration;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import static org.hamcrest.CoreMatchers.equalTo;
@@ -57,6 +61,9 @@ public abstract class SpaceEnrollerConfigRepositoryTest extends CrudRepositoryTe
 
     private Pattern excludePattern = Pattern.compile(".*");
 
+    @Autowired
+    private BindingRepository bindingRepository;
+
     @Autowired
     private SpaceEnrollerConfigRepository spaceEnrollerConfigRepository;
 
@@ -97,6 +104,21 @@ public abstract class SpaceEnrollerConfigRepositoryTest extends CrudRepositoryTe
     public void setAndClearDao() {
         setDao(spaceEnrollerConfigRepository);
         spaceEnrollerConfigRepository.deleteAll();
+        bindingRepository.deleteAll();
+    }
+
+    @Test
+    public void test_find_bound_to_resource() {
+        //Given an application bound to one of two service instances
+        spaceEnrollerConfigRepository.save(build("boundService"));
+        spaceEnrollerConfigRepository.save(build("otherService"));
+        bindingRepository.save(BeanGenerator.createBinding("boundService", null, "boundApp"));
+        //When we read the service instances it is bound to
+        List<SpaceEnrollerConfig> bound = spaceEnrollerConfigRepository.findBoundToResource("boundApp",
+                ResourceType.Application);
+        //Then we only get the first one
+        assertThat(bound.size(), is(equalTo(1)));
+        assertThat(bound.get(0).getId(), is(equalTo("boundService")));
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.access.dao.repositories;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.dao.config.RepositoryConfig;
+import org.cloudfoundry.autosleep.access.dao.model.WakeLease;
+import org.cloudfoundry.autosleep.util.ApplicationConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import static org.cloudfoundry.autosleep.util.TestUtils.verifyThrown;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@Slf4j
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {ApplicationConfiguration.class, RepositoryConfig.class, EnableJpaConfiguration.class})
+public abstract class WakeLeaseRepositoryTest extends CrudRepositoryTest<WakeLease> {
+
+    private static final long EXPIRATION = 1_000L;
+
+    private static final String OWNER = "owner";
+
+    @Autowired
+    private WakeLeaseRepository repository;
+
+    @Override
+    protected WakeLease build(String appId) {
+        return WakeLease.builder().appId(appId).owner(OWNER).expiration(EXPIRATION).build();
+    }
+
+    @Override
+    protected void compareReloaded(WakeLease original, WakeLease reloaded) {
+        assertThat(reloaded.getAppId(), is(equalTo(original.getAppId())));
+        assertThat(reloaded.getOwner(), is(equalTo(original.getOwner())));
+        assertThat(reloaded.getExpiration(), is(equalTo(original.getExpiration())));
+        assertThat(reloaded, is(equalTo(original)));
+    }
+
+    @Before
+    @After
+    public void setAndClearDao() {
+        setDao(repository);
+        repository.deleteAll();
+    }
+
+    @Test
+    public void test_lease_is_not_overwritten() {
+        //Given a lease is held
+        repository.saveAndFlush(build("appId"));
+
+        //When another owner tries to save a lease on the same application
+        //Then it fails
+        verifyThrown(() -> repository.saveAndFlush(WakeLease.builder()
+                        .appId("appId")
+                        .owner("other")
+                        .expiration(EXPIRATION)
+                        .build()),
+                DataIntegrityViolationException.class);
+        assertThat(repository.findOne("appId").getOwner(), is(equalTo(OWNER)));
+    }
+
+    @Test
+    public void test_release_only_own_lease() {
+        //Given a lease is held
+        repository.saveAndFlush(build("appId"));
+
+        //When another owner releases it, then nothing is done
+        assertThat(repository.release("appId", "other"), is(equalTo(0)));
+        //When the owner releases it, then it is removed
+        assertThat(repository.release("appId", OWNER), is(equalTo(1)));
+        assertThat(repository.count(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void test_take_over_only_expired_lease() {
+        //Given a lease is held
+        repository.saveAndFlush(build("appId"));
+
+        //When another owner tries to take it over before expiration, then it fails
+        assertThat(repository.takeOver("appId", "other", EXPIRATION - 1, EXPIRATION * 2), is(equalTo(0)));
+        //When the owner renews it, then it succeeds
+        assertThat(repository.takeOver("appId", OWNER, EXPIRATION - 1, EXPIRATION * 2), is(equalTo(1)));
+        //When another owner tries to take it over after expiration, then it succeeds
+        assertThat(repository.takeOver("appId", "other", EXPIRATION * 3, EXPIRATION * 4), is(equalTo(1)));
+        assertThat(repository.findOne("appId").getOwner(), is(equalTo("other")));
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.ui.metrics;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PrometheusEndpointTest {
+
+    @Test
+    public void test_counters_keep_their_type() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("gauge.autosleep.cf.circuit.state", 1.0);
+        metrics.put("counter.autosleep.checks.executed.instance-1", 3L);
+
+        assertThat(PrometheusEndpoint.render(metrics), is(equalTo(
+                "# TYPE counter_autosleep_checks_executed_instance_1 counter\n"
+                        + "counter_autosleep_checks_executed_instance_1 3\n"
+                        + "# TYPE gauge_autosleep_cf_circuit_state gauge\n"
+                        + "gauge_autosleep_cf_circuit_state 1.0\n")));
+    }
+
+    @Test
+    public void test_non_numeric_metrics_are_skipped() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("autosleep.scheduler.backlog", 0);
+        metrics.put("systemload.description", "n/a");
+
+        assertThat(PrometheusEndpoint.render(metrics), is(equalTo(
+                "# TYPE autosleep_scheduler_backlog gauge\n"
+                        + "autosleep_scheduler_backlog 0\n")));
+    }
+
+}
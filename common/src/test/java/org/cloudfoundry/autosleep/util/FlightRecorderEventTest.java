@@ -0,0 +1,110 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FlightRecorderEventTest {
+
+    private static final String APPLICATION_ID = "9AF63B10-9D25-4162-9AD2-5AA8173FFC3B";
+
+    private static final String SERVICE_INSTANCE_ID = "serviceInstanceId";
+
+    private static Class<?> loadRecordingClass() {
+        try {
+            return Class.forName("jdk.jfr.Recording");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static void emitCheckEvent() {
+        FlightRecorderEvent.begin(FlightRecorderEvent.Type.CHECK)
+                .application(APPLICATION_ID)
+                .serviceInstance(SERVICE_INSTANCE_ID)
+                .detail("detail")
+                .end("outcome");
+    }
+
+    @Test
+    public void test_events_are_no_op_while_not_recorded() {
+        //given no recording is running, or the JVM has no flight recorder
+        //when events of every type are emitted, then nothing fails
+        for (FlightRecorderEvent.Type type : FlightRecorderEvent.Type.values()) {
+            FlightRecorderEvent.begin(type)
+                    .application(null)
+                    .serviceInstance(SERVICE_INSTANCE_ID)
+                    .detail("detail")
+                    .end(null);
+        }
+        emitCheckEvent();
+    }
+
+    @Test
+    public void test_events_are_committed_while_recorded() throws Exception {
+        //given the JVM has a flight recorder (java 11 and later)
+        Class<?> recordingClass = loadRecordingClass();
+        Assume.assumeTrue(recordingClass != null);
+        Path dump = Files.createTempFile("autosleep", ".jfr");
+        Object recording = recordingClass.getConstructor().newInstance();
+        try {
+            //and the check events are recorded
+            recordingClass.getMethod("enable", String.class).invoke(recording, "autosleep.Check");
+            recordingClass.getMethod("start").invoke(recording);
+            //when an event is emitted
+            emitCheckEvent();
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("dump", Path.class).invoke(recording, dump);
+            //then it is committed with its fields
+            List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+                    .getMethod("readAllEvents", Path.class)
+                    .invoke(null, dump);
+            Object checkEvent = null;
+            for (Object event : events) {
+                Object eventType = event.getClass().getMethod("getEventType").invoke(event);
+                if ("autosleep.Check".equals(eventType.getClass().getMethod("getName").invoke(eventType))) {
+                    checkEvent = event;
+                }
+            }
+            assertThat(checkEvent != null, is(true));
+            assertThat(getString(checkEvent, "applicationId"), is(equalTo(APPLICATION_ID)));
+            assertThat(getString(checkEvent, "serviceInstanceId"), is(equalTo(SERVICE_INSTANCE_ID)));
+            assertThat(getString(checkEvent, "detail"), is(equalTo("detail")));
+            assertThat(getString(checkEvent, "outcome"), is(equalTo("outcome")));
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+            Files.deleteIfExists(dump);
+        }
+    }
+
+    private String getString(Object recordedEvent, String field) throws ReflectiveOperationException {
+        return (String) recordedEvent.getClass().getMethod("getString", String.class).invoke(recordedEvent, field);
+    }
+
+}
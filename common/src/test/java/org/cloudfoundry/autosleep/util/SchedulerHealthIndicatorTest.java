@@ -0,0 +1,90 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import org.cloudfoundry.autosleep.config.Config;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.core.env.Environment;
+
+import java.time.Duration;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SchedulerHealthIndicatorTest {
+
+    @Mock
+    private Environment env;
+
+    @InjectMocks
+    private SchedulerHealthIndicator healthIndicator;
+
+    @Mock
+    private TimeManager timeManager;
+
+    @Before
+    public void buildMocks() {
+        when(timeManager.getLastLag()).thenReturn(Duration.ZERO);
+        when(timeManager.getOverdue()).thenReturn(Duration.ZERO);
+    }
+
+    @Test
+    public void test_scheduler_is_degraded_when_a_task_waits_too_long() {
+        //given a task waiting for a thread since longer than the threshold
+        when(timeManager.getOverdue()).thenReturn(Config.SCHEDULER_LAG_THRESHOLD.plusSeconds(1));
+        when(timeManager.getBacklog()).thenReturn(1);
+        //when health is checked
+        Health health = healthIndicator.health();
+        //then the scheduler is degraded
+        assertThat(health.getStatus(), is(equalTo(SchedulerHealthIndicator.DEGRADED)));
+        assertThat(health.getDetails().get("backlog"), is(equalTo(1)));
+    }
+
+    @Test
+    public void test_scheduler_is_degraded_when_lag_exceeds_configured_threshold() {
+        //given a lower threshold, that the last task exceeded
+        when(env.getProperty(Config.EnvKey.SCHEDULER_LAG_THRESHOLD)).thenReturn("PT1S");
+        when(timeManager.getLastLag()).thenReturn(Duration.ofSeconds(2));
+        //when health is checked
+        Health health = healthIndicator.health();
+        //then the scheduler is degraded
+        assertThat(health.getStatus(), is(equalTo(SchedulerHealthIndicator.DEGRADED)));
+    }
+
+    @Test
+    public void test_scheduler_is_up_when_tasks_are_on_time() {
+        //given tasks starting on time
+        //when health is checked
+        Health health = healthIndicator.health();
+        //then the scheduler is up
+        assertThat(health.getStatus(), is(equalTo(Status.UP)));
+    }
+
+}
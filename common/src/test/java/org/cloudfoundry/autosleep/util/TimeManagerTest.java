@@ -0,0 +1,156 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import org.cloudfoundry.autosleep.config.Config;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeManagerTest {
+
+    private static class RecordedTask implements PrioritizedTask {
+
+        private final String name;
+
+        private final Priority priority;
+
+        private final List<String> runs;
+
+        RecordedTask(String name, Priority priority, List<String> runs) {
+            this.name = name;
+            this.priority = priority;
+            this.runs = runs;
+        }
+
+        @Override
+        public Priority getPriority() {
+            return priority;
+        }
+
+        @Override
+        public void run() {
+            runs.add(name);
+        }
+
+    }
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final TimeManager timeManager = new TimeManager();
+
+    private void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue("condition not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void blockWorker() {
+        blockWorker(release);
+    }
+
+    private void blockWorker(CountDownLatch latch) {
+        timeManager.schedule(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, Duration.ZERO);
+    }
+
+    @After
+    public void shutdown() {
+        release.countDown();
+        timeManager.shutdown();
+    }
+
+    @Test
+    public void test_pool_grows_while_tasks_wait_for_a_thread() throws InterruptedException {
+        //given every thread is busy and a task waits
+        for (int i = 0; i <= Config.NB_THREAD_FOR_TASK; i++) {
+            blockWorker();
+        }
+        await(() -> timeManager.getBacklog() == 1);
+        //when the pool is resized
+        timeManager.resize();
+        //then it got one more thread, that runs the waiting task
+        assertEquals(Config.NB_THREAD_FOR_TASK + 1, timeManager.getPoolSize());
+        await(() -> timeManager.getBacklog() == 0);
+    }
+
+    @Test
+    public void test_idle_deadline_checks_run_first_when_workers_are_saturated() throws InterruptedException {
+        //given every thread is busy, one of them soon released
+        CountDownLatch releaseOne = new CountDownLatch(1);
+        blockWorker(releaseOne);
+        for (int i = 1; i < Config.NB_THREAD_FOR_TASK; i++) {
+            blockWorker();
+        }
+        await(() -> timeManager.getActiveThreads() == Config.NB_THREAD_FOR_TASK);
+        //and tasks waiting, the idle deadline check being the last due
+        List<String> runs = Collections.synchronizedList(new ArrayList<>());
+        timeManager.schedule(new RecordedTask("retry", PrioritizedTask.Priority.RETRY, runs), Duration.ZERO);
+        timeManager.schedule(new RecordedTask("recheck", PrioritizedTask.Priority.NORMAL, runs), Duration.ZERO);
+        timeManager.schedule(new RecordedTask("deadline", PrioritizedTask.Priority.IDLE_DEADLINE, runs),
+                Duration.ZERO);
+        await(() -> timeManager.getBacklog() == 3);
+        //when a single thread is released
+        releaseOne.countDown();
+        //then it runs the tasks by priority
+        await(() -> runs.size() == 3);
+        assertEquals(Arrays.asList("deadline", "recheck", "retry"), runs);
+    }
+
+    @Test
+    public void test_pool_is_not_shrunk_below_minimum() {
+        //given no task ran
+        //when the pool is resized
+        timeManager.resize();
+        //then it keeps its minimum size
+        assertEquals(Config.NB_THREAD_FOR_TASK, timeManager.getPoolSize());
+        assertEquals(0, timeManager.getUtilization());
+    }
+
+    @Test
+    public void test_task_is_run_by_a_worker() throws InterruptedException {
+        CountDownLatch run = new CountDownLatch(1);
+        timeManager.schedule(run::countDown, Duration.ofMillis(10));
+
+        assertTrue(run.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(0, timeManager.getPendingTasks());
+    }
+
+}
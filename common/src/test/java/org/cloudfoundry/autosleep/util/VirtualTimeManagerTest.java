@@ -0,0 +1,116 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.autosleep.util;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualTimeManagerTest {
+
+    private static final Instant START = Instant.parse("2016-01-01T00:00:00Z");
+
+    private final VirtualTimeManager timeManager = new VirtualTimeManager(START);
+
+    @Test
+    public void test_advance_runs_due_tasks_in_order() {
+        List<String> runs = new ArrayList<>();
+        timeManager.schedule(() -> runs.add("second"), Duration.ofMinutes(2));
+        timeManager.schedule(() -> runs.add("first"), Duration.ofMinutes(1));
+        timeManager.schedule(() -> runs.add("first again"), Duration.ofMinutes(1));
+        timeManager.schedule(() -> runs.add("late"), Duration.ofDays(1));
+
+        assertEquals(3, timeManager.advance(Duration.ofHours(1)));
+
+        assertEquals(3, runs.size());
+        assertEquals("first", runs.get(0));
+        assertEquals("first again", runs.get(1));
+        assertEquals("second", runs.get(2));
+        assertEquals(START.plus(Duration.ofHours(1)), timeManager.now());
+        assertEquals(1, timeManager.getPendingTasks());
+    }
+
+    @Test
+    public void test_advance_to_next_task_jumps_to_its_due_time() {
+        List<String> runs = new ArrayList<>();
+        timeManager.schedule(() -> runs.add("next"), Duration.ofDays(3));
+        timeManager.schedule(() -> runs.add("later"), Duration.ofDays(4));
+
+        assertEquals(1, timeManager.advanceToNextTask());
+
+        assertEquals(1, runs.size());
+        assertEquals(START.plus(Duration.ofDays(3)), timeManager.now());
+        assertEquals(1, timeManager.advanceToNextTask());
+        assertEquals(0, timeManager.advanceToNextTask());
+        assertEquals(START.plus(Duration.ofDays(4)), timeManager.now());
+    }
+
+    @Test
+    public void test_cancelled_task_is_not_run() {
+        List<String> runs = new ArrayList<>();
+        ScheduledFuture<?> handle = timeManager.schedule(() -> runs.add("cancelled"), Duration.ofMinutes(1));
+
+        assertTrue(handle.cancel(false));
+        assertEquals(0, timeManager.advance(Duration.ofHours(1)));
+
+        assertTrue(runs.isEmpty());
+        assertTrue(handle.isCancelled());
+    }
+
+    @Test
+    public void test_periodic_task_runs_over_simulated_month() {
+        List<Instant> runs = new ArrayList<>();
+        Duration period = Duration.ofHours(1);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.add(timeManager.now());
+                timeManager.schedule(this, period);
+            }
+        };
+        timeManager.schedule(task, Duration.ZERO);
+
+        timeManager.advance(Duration.ofDays(30));
+
+        assertEquals(30 * 24 + 1, runs.size());
+        assertEquals(START, runs.get(0));
+        assertEquals(START.plus(Duration.ofDays(30)), runs.get(runs.size() - 1));
+    }
+
+    @Test
+    public void test_sleep_advances_time() {
+        List<Instant> runs = new ArrayList<>();
+        timeManager.schedule(() -> runs.add(timeManager.now()), Duration.ofSeconds(10));
+
+        timeManager.sleep(Duration.ofSeconds(30));
+
+        assertEquals(1, runs.size());
+        assertEquals(START.plus(Duration.ofSeconds(10)), runs.get(0));
+        assertEquals(START.plus(Duration.ofSeconds(30)), timeManager.now());
+    }
+
+}
@@ -24,9 +24,12 @@ import org.cloudfoundry.autosleep.config.Config.ServiceInstanceParameters.Enroll
 import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.Config.ServiceInstanceParameters;
 import org.cloudfoundry.autosleep.config.DeployedApplicationConfig;
+import org.cloudfoundry.autosleep.config.EnrollmentConfig.EnrollmentParameters.EnrollmentState;
 import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.model.OrgEnrollmentConfig;
 import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.OrgEnrollmentConfigRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
 import org.cloudfoundry.autosleep.ui.servicebroker.service.parameters.ParameterReader;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
@@ -54,6 +57,7 @@ import java.time.Duration;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
 import java.util.regex.Pattern;
 
 @Service
@@ -88,6 +92,9 @@ public class AutosleepServiceInstanceService implements ServiceInstanceService {
     @Qualifier(ServiceInstanceParameters.IGNORE_ROUTE_SERVICE_ERROR)
     private ParameterReader<Boolean> ignoreRouteServiceErrorReader;
 
+    @Autowired
+    private OrgEnrollmentConfigRepository orgEnrollmentConfigRepository;
+
     @Autowired
     private PasswordEncoder passwordEncoder;
 
@@ -98,6 +105,10 @@ public class AutosleepServiceInstanceService implements ServiceInstanceService {
     @Autowired
     private SpaceEnrollerConfigRepository spaceEnrollerConfigRepository;
 
+    @Autowired
+    @Qualifier(Config.ServiceInstanceParameters.WAKE_GROUP)
+    private ParameterReader<Pattern> wakeGroupReader;
+
     @Autowired
     private WorkerManagerService workerManager;
 
@@ -130,9 +141,15 @@ public class AutosleepServiceInstanceService implements ServiceInstanceService {
         Pattern excludeFromAutoEnrollment = consumeParameter(createParameters, true,
                 excludeFromAutoEnrollmentReader);
         Boolean ignoreRouteServiceError = consumeParameter(createParameters, true, ignoreRouteServiceErrorReader);
+        Pattern wakeGroup = consumeParameter(createParameters, true, wakeGroupReader);
 
         rejectExtraUnknownParameters(createParameters);
         if (autoEnrollment == Enrollment.forced || autoEnrollment == Enrollment.transient_opt_out) {
+            if (secret == null && isImposedByOrganization(request.getOrganizationGuid(), autoEnrollment)) {
+                //created by the org enroller, which does not send the broker password through the cloud controller:
+                //a secret known by no one leaves the broker password as the only one able to change it
+                secret = UUID.randomUUID().toString();
+            }
             checkSecuredParameter(autoEnrollmentReader.getParameterName(), secret);
         }
 
@@ -147,6 +164,7 @@ public class AutosleepServiceInstanceService implements ServiceInstanceService {
                 .excludeFromAutoEnrollment(excludeFromAutoEnrollment)
                 .enrollment(autoEnrollment)
                 .secret(secret != null ? passwordEncoder.encode(secret) : null)
+                .wakeGroup(wakeGroup)
                 .build();
 
         // save in repository before calling cloudfoundry because otherwise local service binding controller will
@@ -259,6 +277,18 @@ public class AutosleepServiceInstanceService implements ServiceInstanceService {
         }
     }
 
+    /**
+     * Tell whether an auto enrollment mode is the one of an enrolled organization, in which case the organization
+     * administrator already chose it for every space.
+     */
+    private boolean isImposedByOrganization(String organizationGuid, Enrollment autoEnrollment) {
+        OrgEnrollmentConfig orgConfig = organizationGuid == null ? null
+                : orgEnrollmentConfigRepository.findOne(organizationGuid);
+        return orgConfig != null
+                && orgConfig.getAutoEnrollment() == autoEnrollment
+                && (orgConfig.getState() == null || orgConfig.getState() == EnrollmentState.enrolled);
+    }
+
     private void rejectExtraUnknownParameters(Map<String, Object> createParameters) {
         if (!createParameters.isEmpty()) {
             String parameterNames = String.join(", ", createParameters.keySet().iterator().next());
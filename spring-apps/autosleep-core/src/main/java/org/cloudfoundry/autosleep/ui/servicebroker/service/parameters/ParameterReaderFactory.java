@@ -197,6 +197,35 @@ public class ParameterReaderFactory {
         };
     }
     
+    @Bean(name = Config.ServiceInstanceParameters.WAKE_GROUP)
+    public ParameterReader<Pattern> buildWakeGroupReader() {
+        return new ParameterReader<Pattern>() {
+
+            @Override
+            public String getParameterName() {
+                return Config.ServiceInstanceParameters.WAKE_GROUP;
+            }
+
+            @Override
+            public Pattern readParameter(Object parameter, boolean withDefault) throws
+                    InvalidParameterException {
+                if (parameter != null && !((String) parameter).trim().equals("")) {
+                    String wakeGroup = (String) parameter;
+                    log.debug("wakeGroup " + wakeGroup);
+                    try {
+                        return Pattern.compile(wakeGroup);
+                    } catch (PatternSyntaxException p) {
+                        log.error("Wrong format for wake group - format cannot be compiled to a valid regexp");
+                        throw new InvalidParameterException(Config.ServiceInstanceParameters.WAKE_GROUP,
+                                "should be a valid regexp");
+                    }
+                } else {
+                    return null;
+                }
+            }
+        };
+    }
+
     @Bean(name = EnrollmentConfig.EnrollmentParameters.STATE)
     public ParameterReader<EnrollmentState> buildEnrollmentStateReader() {
         return new ParameterReader<EnrollmentState>() {
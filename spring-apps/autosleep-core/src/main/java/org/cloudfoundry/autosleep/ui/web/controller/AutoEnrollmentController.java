@@ -16,6 +16,7 @@ import org.cloudfoundry.autosleep.config.EnrollmentConfig;
 import org.cloudfoundry.autosleep.ui.servicebroker.service.parameters.ParameterReader;
 import org.cloudfoundry.autosleep.ui.web.controller.validation.EnrollmentValidator;
 import org.cloudfoundry.autosleep.ui.web.model.OrgEnrollmentConfigRequest;
+import org.cloudfoundry.autosleep.worker.WorkerManagerService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpHeaders;
@@ -49,6 +50,9 @@ public class AutoEnrollmentController {
     @Autowired
     private CloudFoundryApiService cloudfoundryApi;
 
+    @Autowired
+    private WorkerManagerService workerManager;
+
     @Autowired
     @Qualifier(Config.ServiceInstanceParameters.AUTO_ENROLLMENT)
     private ParameterReader<Config.ServiceInstanceParameters.Enrollment> autoEnrollmentReader;
@@ -134,6 +138,7 @@ public class AutoEnrollmentController {
                 .build();
 
         orgEnrollmentRepository.save(orgEnrollerConfig);
+        workerManager.registerOrgEnroller(orgEnrollerConfig);
 
         HttpHeaders headers = new HttpHeaders();
         headers.add("Location",
@@ -21,7 +21,9 @@ package org.cloudfoundry.autosleep.ui.web.controller;
 
 import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.util.SchedulerHealthIndicator;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
 import org.springframework.cloud.servicebroker.model.Catalog;
 import org.springframework.cloud.servicebroker.model.ServiceDefinition;
 import org.springframework.stereotype.Controller;
@@ -41,6 +43,9 @@ public class DebugController {
     @Autowired
     private Catalog catalog;
 
+    @Autowired
+    private SchedulerHealthIndicator schedulerHealthIndicator;
+
     @RequestMapping("/applications/")
     public ModelAndView applications() {
         log.debug("applications - rendering view");
@@ -52,6 +57,19 @@ public class DebugController {
         return new ModelAndView("views/admin/debug/applications", parameters);
     }
 
+    /**
+     * Show whether the tasks run on time, along with the figures to size the pool of threads with.
+     */
+    @RequestMapping("/scheduler/")
+    public ModelAndView scheduler() {
+        log.debug("scheduler - rendering view");
+        Health health = schedulerHealthIndicator.health();
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("status", health.getStatus().getCode());
+        parameters.put("details", health.getDetails());
+        return new ModelAndView("views/admin/debug/scheduler", parameters);
+    }
+
     @RequestMapping("/{instanceId}/bindings/")
     public ModelAndView serviceBindings(@PathVariable("instanceId") String serviceInstanceId) {
         log.debug("serviceInstances - rendering view - ", serviceInstanceId);
@@ -19,16 +19,27 @@
 
 package org.cloudfoundry.autosleep.util;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.stereotype.Service;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 @Service
 public class ApplicationLocker {
 
+    static final String WAIT_METRIC = "histogram.autosleep.locker.wait";
+
+    /**
+     * Null when built outside of a context.
+     */
+    @Autowired(required = false)
+    private GaugeService gaugeService;
+
     private Map<String, Lock> locks = new HashMap<>();
 
     public void executeThreadSafe(String applicationId, Runnable reneEbel) {
@@ -42,8 +53,12 @@ public class ApplicationLocker {
                 }
             }
         }
+        final long start = System.nanoTime();
         lock.lock();
         try {
+            if (gaugeService != null) {
+                gaugeService.submit(WAIT_METRIC, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
             reneEbel.run();
         } finally {
             lock.unlock();
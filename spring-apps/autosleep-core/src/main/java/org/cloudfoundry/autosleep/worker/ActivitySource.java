@@ -0,0 +1,39 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.worker;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+
+import java.time.Instant;
+
+/**
+ * A signal showing the activity of an application.
+ */
+@FunctionalInterface
+interface ActivitySource {
+
+    /**
+     * Look for the last activity of an application, and record what was found in its diagnostic info.
+     *
+     * @return the instant of the last activity found, null if none
+     */
+    Instant findLastActivity(ApplicationInfo applicationInfo) throws CloudFoundryException;
+
+}
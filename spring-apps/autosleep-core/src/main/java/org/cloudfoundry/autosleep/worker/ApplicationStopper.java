@@ -23,24 +23,62 @@ import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
-import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryUnavailableException;
 import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.model.Binding.ResourceType;
 import org.cloudfoundry.autosleep.access.dao.model.ProxyMapEntry;
+import org.cloudfoundry.autosleep.access.dao.model.WakeStatistics;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.WakeStatisticsRepository;
+import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
+import org.cloudfoundry.autosleep.util.FlightRecorderEvent;
 import org.cloudfoundry.autosleep.util.LastDateComputer;
 import org.cloudfoundry.autosleep.worker.scheduling.AbstractPeriodicTask;
 import org.cloudfoundry.autosleep.worker.scheduling.Clock;
+import org.springframework.boot.actuate.metrics.CounterService;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
+/**
+ * Put an application to sleep once idle. Its activity is looked for in sources ordered by cost: the activity
+ * already known, then its newest event, then the cpu usage of its containers, and last its recent logs. Evaluation
+ * stops at the first source showing activity within the idle duration, so that recent logs are only downloaded for
+ * applications close to sleep.
+ */
 @Slf4j
 class ApplicationStopper extends AbstractPeriodicTask {
 
+    static final String ACTIVITY_SOURCE_METRIC_PREFIX = "counter.autosleep.activity.source.";
+
+    static final String CACHE_SOURCE = "cache";
+
+    static final String CHECK_EXECUTED_METRIC_PREFIX = "counter.autosleep.checks.executed.";
+
+    static final String CHECK_FAILED_METRIC_PREFIX = "counter.autosleep.checks.failed.";
+
+    static final String CHECK_SLEPT_METRIC_PREFIX = "counter.autosleep.checks.slept.";
+
+    static final String CONTAINER_METRICS_SOURCE = "container-metrics";
+
+    static final String EVENT_SOURCE = "event";
+
+    static final String LOG_SOURCE = "log";
+
+    static final String PRE_WAKE_USED_METRIC = "counter.autosleep.prewake.used";
+
+    static final String PRE_WAKE_WASTED_METRIC = "counter.autosleep.prewake.wasted";
+
+    private final Map<String, ActivitySource> activitySources;
+
     private final String appUid;
 
     private final ApplicationLocker applicationLocker;
@@ -49,14 +87,27 @@ class ApplicationStopper extends AbstractPeriodicTask {
 
     private final String bindingId;
 
+    /**
+     * What came out of the current check, for its flight recorder event.
+     */
+    private String checkOutcome;
+
     private final CloudFoundryApiService cloudFoundryApi;
 
+    private final CounterService counterService;
+
     private final Boolean ignoreRouteBindingError;
 
+    private Priority nextCheckPriority = Priority.NORMAL;
+
     private final ProxyMapEntryRepository proxyMap;
 
     private final String spaceEnrollerConfigId;
 
+    private final Pattern wakeGroup;
+
+    private final WakeStatisticsRepository wakeStatisticsRepository;
+
     @Builder
     ApplicationStopper(Clock clock,
                        Duration period,
@@ -67,7 +118,11 @@ class ApplicationStopper extends AbstractPeriodicTask {
                        ApplicationRepository applicationRepository,
                        ApplicationLocker applicationLocker,
                        boolean ignoreRouteBindingError,
-                       ProxyMapEntryRepository proxyMap) {
+                       ProxyMapEntryRepository proxyMap,
+                       WakeStatisticsRepository wakeStatisticsRepository,
+                       CounterService counterService,
+                       Pattern wakeGroup,
+                       Map<String, ActivitySource> activitySources) {
         super(clock, period);
         this.appUid = appUid;
         this.spaceEnrollerConfigId = spaceEnrollerConfigId;
@@ -77,29 +132,114 @@ class ApplicationStopper extends AbstractPeriodicTask {
         this.applicationLocker = applicationLocker;
         this.ignoreRouteBindingError = ignoreRouteBindingError;
         this.proxyMap = proxyMap;
+        this.wakeStatisticsRepository = wakeStatisticsRepository;
+        this.counterService = counterService;
+        this.wakeGroup = wakeGroup;
+        this.activitySources = activitySources == null ? buildDefaultActivitySources() : activitySources;
     }
 
-    private Duration checkActiveApplication(ApplicationInfo applicationInfo, ApplicationActivity applicationActivity)
-            throws CloudFoundryException {
-        //retrieve updated info
-        Duration delta = null;
-        Instant lastEvent = LastDateComputer.computeLastDate(
-                applicationActivity.getLastLog(),
-                applicationActivity.getLastEvent());
-        if (lastEvent != null) {
-            Instant nextIdleTime = lastEvent.plus(getPeriod());
-            log.debug("last event:  {}", lastEvent.toString());
-
-            if (nextIdleTime.isBefore(Instant.now())) {
-                putApplicationToSleep(applicationInfo, applicationActivity);
-            } else {
-                //rescheduled itself
-                delta = Duration.between(Instant.now(), nextIdleTime);
+    /**
+     * Evaluate the activity sources in order, until one of them shows activity within the idle duration. The last
+     * activity already known is taken into account, as a lower bound.
+     *
+     * @return when to check the application again, null to use the default period
+     */
+    private Duration checkActiveApplication(ApplicationInfo applicationInfo) throws CloudFoundryException {
+        Instant lastActivity = getCachedActivity(applicationInfo);
+        Instant lastWakeGroupActivity = getLastWakeGroupActivity();
+        for (Map.Entry<String, ActivitySource> activitySource : activitySources.entrySet()) {
+            Instant sourceActivity = activitySource.getValue().findLastActivity(applicationInfo);
+            if (sourceActivity != null && (lastActivity == null || sourceActivity.isAfter(lastActivity))) {
+                lastActivity = sourceActivity;
             }
-        } else {
+            Instant nextIdleTime = computeNextIdleTime(lastActivity, lastWakeGroupActivity);
+            Instant now = now();
+            if (nextIdleTime != null && nextIdleTime.isAfter(now)) {
+                log.debug("app {} active according to {}, last activity: {}", appUid, activitySource.getKey(),
+                        lastActivity);
+                counterService.increment(ACTIVITY_SOURCE_METRIC_PREFIX + activitySource.getKey());
+                return Duration.between(now, nextIdleTime);
+            }
+        }
+        if (lastActivity == null) {
             log.error("cannot find last event");
+        } else {
+            putApplicationToSleep(applicationInfo);
+        }
+        return null;
+    }
+
+    private Instant computeNextIdleTime(Instant lastActivity, Instant lastWakeGroupActivity) {
+        if (lastActivity == null) {
+            return null;
+        } else if (lastWakeGroupActivity != null && lastWakeGroupActivity.isAfter(lastActivity)) {
+            return lastWakeGroupActivity.plus(getPeriod());
+        } else {
+            return lastActivity.plus(getPeriod());
+        }
+    }
+
+    private Map<String, ActivitySource> buildDefaultActivitySources() {
+        Map<String, ActivitySource> sources = new LinkedHashMap<>();
+        sources.put(EVENT_SOURCE, applicationInfo -> {
+            ApplicationInfo.DiagnosticInfo.ApplicationEvent lastEvent = cloudFoundryApi.getLastEvent(appUid);
+            if (lastEvent == null) {
+                return null;
+            }
+            applicationInfo.updateLastEvent(lastEvent);
+            return lastEvent.getTimestamp();
+        });
+        sources.put(CONTAINER_METRICS_SOURCE, applicationInfo -> cloudFoundryApi.getLastContainerActivity(appUid));
+        sources.put(LOG_SOURCE, applicationInfo -> {
+            ApplicationInfo.DiagnosticInfo.ApplicationLog lastLog = cloudFoundryApi.getLastLog(appUid);
+            if (lastLog == null) {
+                return null;
+            }
+            applicationInfo.updateLastLog(lastLog);
+            return lastLog.getTimestamp();
+        });
+        return sources;
+    }
+
+    private Instant getCachedActivity(ApplicationInfo applicationInfo) {
+        return LastDateComputer.computeLastDate(
+                applicationInfo.getDiagnosticInfo().getLastLog(),
+                applicationInfo.getDiagnosticInfo().getLastEvent());
+    }
+
+    /**
+     * A member of a wake group is not put to sleep while another awake member is still active, so that the whole
+     * group falls asleep, and is woken up, at once.
+     *
+     * @return the last activity of the other awake members of the group, null if none
+     */
+    private Instant getLastWakeGroupActivity() {
+        if (wakeGroup == null) {
+            return null;
+        }
+        Instant lastActivity = null;
+        for (ApplicationInfo member : applicationRepository.findBoundToServiceInstance(spaceEnrollerConfigId,
+                ResourceType.Application)) {
+            if (!appUid.equals(member.getUuid())
+                    && member.isWakeGroupMember(spaceEnrollerConfigId, wakeGroup)
+                    && !CloudFoundryAppState.STOPPED.equals(member.getDiagnosticInfo().getAppState())) {
+                Instant memberLastEvent = getCachedActivity(member);
+                if (memberLastEvent != null && (lastActivity == null || memberLastEvent.isAfter(lastActivity))) {
+                    log.debug("wake group member {} active at {}", member.getUuid(), memberLastEvent);
+                    lastActivity = memberLastEvent;
+                }
+            }
         }
-        return delta;
+        return lastActivity;
+    }
+
+    /**
+     * Checks planned on the idle deadline of the application come first, so that it is put to sleep on time, even
+     * when the workers are saturated.
+     */
+    @Override
+    public Priority getPriority() {
+        return nextCheckPriority;
     }
 
     @Override
@@ -109,31 +249,55 @@ class ApplicationStopper extends AbstractPeriodicTask {
 
     protected void handleApplicationBlackListed(ApplicationInfo applicationInfo) {
         log.debug("Known application, but ignored (blacklisted). Cancelling task.");
+        checkOutcome = "ignored";
         stopTask();
-        applicationInfo.clearCheckInformation();
+        applicationInfo.clearCheckInformation(now());
         applicationRepository.save(applicationInfo);
     }
 
     protected void handleApplicationEnrolled(ApplicationInfo applicationInfo) {
         Duration rescheduleDelta = null;
+        nextCheckPriority = Priority.NORMAL;
+        checkOutcome = "active";
+        counterService.increment(CHECK_EXECUTED_METRIC_PREFIX + spaceEnrollerConfigId);
         try {
-            ApplicationActivity applicationActivity = cloudFoundryApi.getApplicationActivity(appUid);
+            String previousState = applicationInfo.getDiagnosticInfo().getAppState();
+            Instant cachedNextIdleTime = CloudFoundryAppState.STARTED.equals(previousState)
+                    ? computeNextIdleTime(getCachedActivity(applicationInfo), null) : null;
+            Instant now = now();
+            if (cachedNextIdleTime != null && cachedNextIdleTime.isAfter(now)) {
+                log.debug("app {} active according to its cached activity", appUid);
+                counterService.increment(ACTIVITY_SOURCE_METRIC_PREFIX + CACHE_SOURCE);
+                rescheduleDelta = Duration.between(now, cachedNextIdleTime);
+                nextCheckPriority = Priority.IDLE_DEADLINE;
+                return;
+            }
             log.debug("Checking on app {} state", appUid);
-
-            applicationInfo.updateDiagnosticInfo(
-                    applicationActivity.getLastLog(),
-                    applicationActivity.getLastEvent(),
-                    applicationActivity.getApplication().getName(),
-                    applicationActivity.getState());
-            if (CloudFoundryAppState.STOPPED.equals(applicationActivity.getState())) {
+            applicationInfo.updateAppState(cloudFoundryApi.getApplicationState(appUid));
+            if (CloudFoundryAppState.STOPPED.equals(applicationInfo.getDiagnosticInfo().getAppState())) {
                 log.debug("App already stopped.");
+                checkOutcome = "stopped";
             } else {
-                rescheduleDelta = checkActiveApplication(applicationInfo, applicationActivity);
+                rescheduleDelta = checkActiveApplication(applicationInfo);
+                if (rescheduleDelta != null) {
+                    nextCheckPriority = Priority.IDLE_DEADLINE;
+                }
             }
+            updateWakeStatistics(previousState, applicationInfo);
+        } catch (CloudFoundryUnavailableException u) {
+            log.warn("cloudfoundry api unavailable, checking app {} again in {}", appUid, u.getRetryDelay());
+            rescheduleDelta = u.getRetryDelay();
+            nextCheckPriority = Priority.RETRY;
+            checkOutcome = "unavailable";
+            counterService.increment(CHECK_FAILED_METRIC_PREFIX + spaceEnrollerConfigId);
         } catch (CloudFoundryException c) {
             log.error("error while requesting cloudfoundry api", c);
+            checkOutcome = "failed";
+            counterService.increment(CHECK_FAILED_METRIC_PREFIX + spaceEnrollerConfigId);
         } catch (Throwable t) {
             log.error("unsuspected error", t);
+            checkOutcome = "failed";
+            counterService.increment(CHECK_FAILED_METRIC_PREFIX + spaceEnrollerConfigId);
         } finally {
             Instant nextCheckTime;
             if (rescheduleDelta == null) {
@@ -141,7 +305,7 @@ class ApplicationStopper extends AbstractPeriodicTask {
             } else {
                 nextCheckTime = reschedule(rescheduleDelta);
             }
-            applicationInfo.markAsChecked(nextCheckTime);
+            applicationInfo.markAsChecked(now(), nextCheckTime);
             applicationRepository.save(applicationInfo);
         }
 
@@ -149,15 +313,29 @@ class ApplicationStopper extends AbstractPeriodicTask {
 
     protected void handleApplicationNotFound() {
         log.debug("Application unknown (must have unbound). Cancelling task.");
+        checkOutcome = "not-found";
         stopTask();
     }
 
-    private void putApplicationToSleep(ApplicationInfo applicationInfo, ApplicationActivity applicationActivity) throws
-            CloudFoundryException {
+    private void putApplicationToSleep(ApplicationInfo applicationInfo) throws CloudFoundryException {
         log.info("Stopping app [{} / {}], last event: {}, last log: {}",
-                applicationActivity.getApplication().getName(), appUid,
-                applicationActivity.getLastEvent(), applicationActivity.getLastLog());
+                applicationInfo.getName(), appUid,
+                applicationInfo.getDiagnosticInfo().getLastEvent(), applicationInfo.getDiagnosticInfo().getLastLog());
+        FlightRecorderEvent event = FlightRecorderEvent.begin(FlightRecorderEvent.Type.STOP)
+                .application(appUid)
+                .serviceInstance(spaceEnrollerConfigId);
+        String outcome = "failed";
+        try {
+            stopApplication(applicationInfo);
+            outcome = "slept";
+        } finally {
+            event.end(outcome);
+        }
+        checkOutcome = "slept";
+        counterService.increment(CHECK_SLEPT_METRIC_PREFIX + spaceEnrollerConfigId);
+    }
 
+    private void stopApplication(ApplicationInfo applicationInfo) throws CloudFoundryException {
         //retrieve all routes for this app
         List<String> routeIds = cloudFoundryApi.listApplicationRoutes(appUid);
         /*TODO uncomment whenever route services handle stopped apps
@@ -171,22 +349,64 @@ class ApplicationStopper extends AbstractPeriodicTask {
             }
         }*/
 
-        routeIds.forEach(id -> {
-            try {
-                String host = cloudFoundryApi.getHost(id);
-                log.debug("Got host {}", host);
-                proxyMap.save(new ProxyMapEntry(host, appUid));
-            } catch (CloudFoundryException e) {
-                log.error("Couldn't get host corresponding to a route ", e);
-            }
-        });
+        List<ProxyMapEntry> proxyMapEntries = cloudFoundryApi.getHosts(routeIds).stream()
+                .map(host -> new ProxyMapEntry(host, appUid))
+                .collect(Collectors.toList());
+        log.debug("Got hosts {}", proxyMapEntries);
+        proxyMap.save(proxyMapEntries);
 
         cloudFoundryApi.stopApplication(appUid);
-        applicationInfo.markAsPutToSleep();
+        applicationInfo.markAsPutToSleep(now());
+    }
+
+    /**
+     * Record wakes seen through the application state, and whether a pending pre-wake was useful.
+     */
+    private void updateWakeStatistics(String previousState, ApplicationInfo applicationInfo) {
+        WakeStatistics statistics = wakeStatisticsRepository.findOne(appUid);
+        ApplicationInfo.DiagnosticInfo diagnosticInfo = applicationInfo.getDiagnosticInfo();
+        boolean woken = CloudFoundryAppState.STOPPED.equals(previousState)
+                && CloudFoundryAppState.STARTED.equals(diagnosticInfo.getAppState())
+                && diagnosticInfo.getLastEvent() != null;
+        if (statistics == null && !woken) {
+            return;
+        } else if (statistics == null) {
+            statistics = new WakeStatistics(appUid);
+        }
+
+        if (statistics.isPreWakePending()) {
+            Instant usageStart = Instant.ofEpochMilli(statistics.getLastPreWake())
+                    .plus(Config.PRE_WAKE_GRACE_PERIOD);
+            Instant lastActivity = getCachedActivity(applicationInfo);
+            if (lastActivity != null && lastActivity.isAfter(usageStart)) {
+                log.debug("pre-wake of {} was used", appUid);
+                statistics.resolvePreWake(true);
+                counterService.increment(PRE_WAKE_USED_METRIC);
+            } else if (CloudFoundryAppState.STOPPED.equals(diagnosticInfo.getAppState())) {
+                log.debug("pre-wake of {} was wasted", appUid);
+                statistics.resolvePreWake(false);
+                counterService.increment(PRE_WAKE_WASTED_METRIC);
+            }
+        } else if (woken) {
+            statistics.recordWake(diagnosticInfo.getLastEvent().getTimestamp());
+        }
+        wakeStatisticsRepository.save(statistics);
     }
 
     @Override
     public void run() {
+        FlightRecorderEvent event = FlightRecorderEvent.begin(FlightRecorderEvent.Type.CHECK)
+                .application(appUid)
+                .serviceInstance(spaceEnrollerConfigId);
+        checkOutcome = "failed";
+        try {
+            check();
+        } finally {
+            event.end(checkOutcome);
+        }
+    }
+
+    private void check() {
         applicationLocker.executeThreadSafe(this.appUid,
                 () -> {
                     ApplicationInfo applicationInfo = applicationRepository.findOne(appUid);
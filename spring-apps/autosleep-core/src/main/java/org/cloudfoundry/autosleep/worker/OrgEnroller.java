@@ -0,0 +1,155 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.worker;
+
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.SpaceIdentity;
+import org.cloudfoundry.autosleep.access.dao.model.OrgEnrollmentConfig;
+import org.cloudfoundry.autosleep.access.dao.repositories.OrgEnrollmentConfigRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.ServiceInstanceParameters.Enrollment;
+import org.cloudfoundry.autosleep.config.EnrollmentConfig.EnrollmentParameters.EnrollmentState;
+import org.cloudfoundry.autosleep.worker.scheduling.AbstractPeriodicTask;
+import org.cloudfoundry.autosleep.worker.scheduling.Clock;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Create an autosleep service instance in every space of an enrolled organization which does not have one yet.
+ * Spaces already enrolled are only looked up locally, so that each run only costs the listing of the spaces. Their
+ * instances keep the settings they were created with.
+ */
+@Slf4j
+class OrgEnroller extends AbstractPeriodicTask {
+
+    static final String TASK_ID_PREFIX = "org-enroller-";
+
+    private final CloudFoundryApiService cloudFoundryApi;
+
+    private final OrgEnrollmentConfigRepository orgEnrollmentConfigRepository;
+
+    private final String organizationGuid;
+
+    private final String serviceLabel;
+
+    private final SpaceEnrollerConfigRepository spaceEnrollerConfigRepository;
+
+    private final String servicePlanUniqueId;
+
+    private String servicePlanId;
+
+    @Builder
+    OrgEnroller(Clock clock,
+                Duration period,
+                String organizationGuid,
+                CloudFoundryApiService cloudFoundryApi,
+                OrgEnrollmentConfigRepository orgEnrollmentConfigRepository,
+                SpaceEnrollerConfigRepository spaceEnrollerConfigRepository,
+                String serviceLabel,
+                String servicePlanUniqueId) {
+        super(clock, period);
+        this.organizationGuid = organizationGuid;
+        this.cloudFoundryApi = cloudFoundryApi;
+        this.orgEnrollmentConfigRepository = orgEnrollmentConfigRepository;
+        this.spaceEnrollerConfigRepository = spaceEnrollerConfigRepository;
+        this.serviceLabel = serviceLabel;
+        this.servicePlanUniqueId = servicePlanUniqueId;
+    }
+
+    private Map<String, Object> buildParameters(OrgEnrollmentConfig config) {
+        Map<String, Object> parameters = new HashMap<>();
+        if (config.getIdleDuration() != null) {
+            parameters.put(Config.ServiceInstanceParameters.IDLE_DURATION, config.getIdleDuration().toString());
+        }
+        Enrollment autoEnrollment = config.getAutoEnrollment();
+        if (autoEnrollment != null) {
+            //no secret, the broker accepting the protected modes that the organization was enrolled with
+            parameters.put(Config.ServiceInstanceParameters.AUTO_ENROLLMENT, autoEnrollment.name());
+        }
+        return parameters;
+    }
+
+    @Override
+    protected String getTaskId() {
+        return TASK_ID_PREFIX + organizationGuid;
+    }
+
+    @Override
+    public void run() {
+        OrgEnrollmentConfig config = orgEnrollmentConfigRepository.findOne(organizationGuid);
+        if (config == null) {
+            log.debug("organization {} is not enrolled anymore. Cancelling task", organizationGuid);
+            stopTask();
+            return;
+        }
+        if (config.getState() != null && config.getState() != EnrollmentState.enrolled) {
+            log.debug("organization {} is {}, no space enrolled", organizationGuid, config.getState());
+        } else {
+            try {
+                enrollNewSpaces(config);
+            } catch (CloudFoundryException c) {
+                log.error("cloudfoundry error", c);
+            }
+        }
+        rescheduleWithDefaultPeriod();
+    }
+
+    private void enrollNewSpaces(OrgEnrollmentConfig config) throws CloudFoundryException {
+        Set<String> enrolledSpaces = new HashSet<>();
+        spaceEnrollerConfigRepository.findAll().forEach(spaceEnrollerConfig -> {
+            if (organizationGuid.equals(spaceEnrollerConfig.getOrganizationId())) {
+                enrolledSpaces.add(spaceEnrollerConfig.getSpaceId());
+            }
+        });
+        Pattern excludeSpaces = config.getExcludeSpacesFromAutoEnrollment();
+        List<String> newSpaces = cloudFoundryApi.listOrganizationSpaces(organizationGuid).stream()
+                .filter(space -> !enrolledSpaces.contains(space.getGuid()))
+                .filter(space -> excludeSpaces == null || !excludeSpaces.matcher(space.getName()).matches())
+                .map(SpaceIdentity::getGuid)
+                .collect(Collectors.toList());
+        log.debug("organization {} - {} spaces enrolled, {} new", organizationGuid, enrolledSpaces.size(),
+                newSpaces.size());
+        if (newSpaces.isEmpty()) {
+            return;
+        }
+        if (servicePlanId == null) {
+            servicePlanId = cloudFoundryApi.getServicePlanId(serviceLabel, servicePlanUniqueId);
+            if (servicePlanId == null) {
+                log.error("plan {} of service {} is not visible, cannot enroll spaces", servicePlanUniqueId,
+                        serviceLabel);
+                return;
+            }
+        }
+        List<String> enrolled = cloudFoundryApi.createServiceInstances(newSpaces, servicePlanId,
+                Config.ORG_ENROLLMENT_SERVICE_INSTANCE_NAME, buildParameters(config));
+        log.info("organization {} - {}/{} new spaces enrolled", organizationGuid, enrolled.size(), newSpaces.size());
+    }
+
+}
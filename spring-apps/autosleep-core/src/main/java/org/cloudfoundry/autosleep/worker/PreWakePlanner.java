@@ -0,0 +1,145 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.worker;
+
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.model.WakeStatistics;
+import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.WakeStatisticsRepository;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.autosleep.util.ApplicationLocker;
+import org.cloudfoundry.autosleep.worker.scheduling.AbstractPeriodicTask;
+import org.cloudfoundry.autosleep.worker.scheduling.Clock;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Starts sleeping applications shortly before the hours of the week during which they are usually woken up, so that
+ * their first request does not pay for a cold start.
+ */
+@Slf4j
+class PreWakePlanner extends AbstractPeriodicTask {
+
+    static final String PRE_WAKE_METRIC = "counter.autosleep.prewake.started";
+
+    static final Duration SLOT_DURATION = Duration.ofHours(1);
+
+    static final String TASK_ID = "pre-wake-planner";
+
+    private final ApplicationLocker applicationLocker;
+
+    private final ApplicationRepository applicationRepository;
+
+    private final CloudFoundryApiService cloudFoundryApi;
+
+    private final CounterService counterService;
+
+    private final Duration leadTime;
+
+    private final ProxyMapEntryRepository proxyMap;
+
+    private final WakeStatisticsRepository wakeStatisticsRepository;
+
+    @Builder
+    PreWakePlanner(Clock clock,
+                   Duration period,
+                   Duration leadTime,
+                   CloudFoundryApiService cloudFoundryApi,
+                   ApplicationRepository applicationRepository,
+                   ApplicationLocker applicationLocker,
+                   ProxyMapEntryRepository proxyMap,
+                   WakeStatisticsRepository wakeStatisticsRepository,
+                   CounterService counterService) {
+        super(clock, period);
+        this.leadTime = leadTime;
+        this.cloudFoundryApi = cloudFoundryApi;
+        this.applicationRepository = applicationRepository;
+        this.applicationLocker = applicationLocker;
+        this.proxyMap = proxyMap;
+        this.wakeStatisticsRepository = wakeStatisticsRepository;
+        this.counterService = counterService;
+    }
+
+    @Override
+    protected String getTaskId() {
+        return TASK_ID;
+    }
+
+    boolean isPreWakeDue(WakeStatistics statistics, Instant now) {
+        return !statistics.isPreWakePending()
+                && statistics.isWakeExpected(now.plus(leadTime))
+                //at most once per slot
+                && Instant.ofEpochMilli(statistics.getLastPreWake()).plus(SLOT_DURATION).isBefore(now);
+    }
+
+    private boolean isPutToSleep(String appId) {
+        ApplicationInfo applicationInfo = applicationRepository.findOne(appId);
+        //applications put to sleep by autosleep are the only ones with routes mapped to the proxy
+        return applicationInfo != null
+                && applicationInfo.getEnrollmentState().isWatched()
+                && proxyMap.countByAppId(appId) > 0;
+    }
+
+    private void preWake(String appId, Instant now) {
+        applicationLocker.executeThreadSafe(appId, () -> {
+            WakeStatistics statistics = wakeStatisticsRepository.findOne(appId);
+            if (statistics == null || !isPreWakeDue(statistics, now) || !isPutToSleep(appId)) {
+                return;
+            }
+            try {
+                //an optimistic start may report an update for an application already running: read its state first
+                if (!CloudFoundryAppState.STOPPED.equals(cloudFoundryApi.getApplicationState(appId))) {
+                    log.debug("App [{}] is not stopped, no pre-wake needed", appId);
+                    return;
+                }
+                log.info("Pre-waking app [{}], a request is expected in {}", appId, leadTime);
+                if (cloudFoundryApi.startApplication(appId)) {
+                    proxyMap.deleteByAppId(appId);
+                    statistics.markAsPreWoken(now);
+                    wakeStatisticsRepository.save(statistics);
+                    counterService.increment(PRE_WAKE_METRIC);
+                }
+            } catch (CloudFoundryException c) {
+                log.error("error while pre-waking app " + appId, c);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        Instant now = now();
+        try {
+            wakeStatisticsRepository.findAll().stream()
+                    .filter(statistics -> isPreWakeDue(statistics, now))
+                    .forEach(statistics -> preWake(statistics.getAppId(), now));
+        } catch (Throwable t) {
+            log.error("unsuspected error", t);
+        } finally {
+            rescheduleWithDefaultPeriod();
+        }
+    }
+
+}
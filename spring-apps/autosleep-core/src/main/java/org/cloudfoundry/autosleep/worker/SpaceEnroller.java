@@ -21,49 +21,101 @@ package org.cloudfoundry.autosleep.worker;
 
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.DeployedApplicationConfig;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
 import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationAuditEvent;
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.util.FlightRecorderEvent;
 import org.cloudfoundry.autosleep.worker.scheduling.AbstractPeriodicTask;
 import org.cloudfoundry.autosleep.worker.scheduling.Clock;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
 
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 @Slf4j
 class SpaceEnroller extends AbstractPeriodicTask {
 
+    static final String ENROLLED_METRIC = "counter.autosleep.enroller.applications.enrolled";
+
+    static final String SCAN_DURATION_METRIC = "histogram.autosleep.enroller.scan.duration";
+
+    private static class FailedBinding {
+
+        ApplicationIdentity application;
+
+        int attempts;
+
+        FailedBinding(ApplicationIdentity application) {
+            this.application = application;
+        }
+
+    }
+
     private final ApplicationRepository applicationRepository;
 
     private final CloudFoundryApiService cloudFoundryApi;
 
+    private final CounterService counterService;
+
+    private final Duration eventPeriod;
+
+    /**
+     * Applications that could not be bound, bound again on next run.
+     */
+    private final Map<String /**applicationId**/, FailedBinding> failedBindings = new LinkedHashMap<>();
+
     private final String spaceEnrollerConfigId;
 
+    private final GaugeService gaugeService;
+
     private final SpaceEnrollerConfigRepository spaceEnrollerConfigRepository;
 
     private DeployedApplicationConfig.Deployment deployment;
 
+    /**
+     * Instant from which audit events are read, null until a full reconciliation succeeded.
+     */
+    private Instant highWaterMark;
+
+    private Instant nextReconciliation;
+
     @Builder
     SpaceEnroller(Clock clock,
                   Duration period,
+                  Duration eventPeriod,
                   String spaceEnrollerConfigId,
                   CloudFoundryApiService cloudFoundryApi,
                   SpaceEnrollerConfigRepository spaceEnrollerConfigRepository,
                   ApplicationRepository applicationRepository,
-                  DeployedApplicationConfig.Deployment deployment) {
+                  DeployedApplicationConfig.Deployment deployment,
+                  CounterService counterService,
+                  GaugeService gaugeService) {
         super(clock, period);
+        this.eventPeriod = eventPeriod;
         this.spaceEnrollerConfigId = spaceEnrollerConfigId;
         this.cloudFoundryApi = cloudFoundryApi;
         this.spaceEnrollerConfigRepository = spaceEnrollerConfigRepository;
         this.applicationRepository = applicationRepository;
         this.deployment = deployment;
+        this.counterService = counterService;
+        this.gaugeService = gaugeService;
     }
 
     @Override
@@ -71,45 +123,180 @@ class SpaceEnroller extends AbstractPeriodicTask {
         return spaceEnrollerConfigId;
     }
 
+    /**
+     * Add the applications whose binding failed, and that are still candidates, to those to bind.
+     */
+    private List<ApplicationIdentity> addFailedBindings(List<ApplicationIdentity> newApplications) {
+        if (failedBindings.isEmpty()) {
+            return newApplications;
+        }
+        Map<String, ApplicationIdentity> applications = new LinkedHashMap<>();
+        newApplications.forEach(application -> applications.put(application.getGuid(), application));
+        failedBindings.values().stream()
+                .map(failedBinding -> failedBinding.application)
+                .filter(application -> !applications.containsKey(application.getGuid()))
+                .filter(application -> {
+                    ApplicationInfo applicationInfo = applicationRepository.findOne(application.getGuid());
+                    return applicationInfo == null
+                            || applicationInfo.getEnrollmentState().isCandidate(spaceEnrollerConfigId);
+                })
+                .forEach(application -> applications.put(application.getGuid(), application));
+        log.debug("{} applications whose binding failed", applications.size() - newApplications.size());
+        return new ArrayList<>(applications.values());
+    }
+
+    private boolean isNotItself(String applicationId) {
+        return deployment == null || !deployment.getApplicationId().equals(applicationId);
+    }
+
+    /**
+     * List the applications mentioned by audit events since the last enrollment, and not deleted since. Only they
+     * are looked up in the local repository, then checked started as in a full listing.
+     */
+    private List<ApplicationIdentity> listChangedApplications(SpaceEnrollerConfig serviceInstance)
+            throws CloudFoundryException {
+        List<ApplicationAuditEvent> events = cloudFoundryApi.listApplicationAuditEvents(serviceInstance.getSpaceId(),
+                highWaterMark);
+        log.debug("{} audit events since {}", events.size(), highWaterMark);
+        //events come oldest first, the last one of each application wins
+        Map<String, ApplicationAuditEvent> lastEvents = new LinkedHashMap<>();
+        events.forEach(event -> lastEvents.put(event.getApplication().getGuid(), event));
+        Pattern excludeNames = serviceInstance.getExcludeFromAutoEnrollment();
+        List<ApplicationIdentity> changedApplications = new ArrayList<>();
+        lastEvents.values().stream()
+                .filter(event -> !Config.CloudFoundryAuditEvent.APP_DELETE_REQUEST.equals(event.getType()))
+                .map(ApplicationAuditEvent::getApplication)
+                .filter(application -> excludeNames == null
+                        || !excludeNames.matcher(application.getName()).matches())
+                .filter(application -> isNotItself(application.getGuid()))
+                .forEach(application -> {
+                    ApplicationInfo applicationInfo = applicationRepository.findOne(application.getGuid());
+                    if (applicationInfo == null
+                            || applicationInfo.getEnrollmentState().isCandidate(spaceEnrollerConfigId)) {
+                        changedApplications.add(application);
+                    }
+                });
+        List<ApplicationIdentity> aliveApplications = changedApplications.isEmpty() ? changedApplications
+                : cloudFoundryApi.filterAliveApplications(changedApplications);
+        events.stream()
+                .map(ApplicationAuditEvent::getTimestamp)
+                .max(Comparator.naturalOrder())
+                .ifPresent(lastTimestamp -> highWaterMark = lastTimestamp);
+        return aliveApplications;
+    }
+
+    private List<ApplicationIdentity> listNewApplications(SpaceEnrollerConfig serviceInstance)
+            throws CloudFoundryException {
+        Set<String> watchedOrIgnoredApplications = new HashSet<>();
+        applicationRepository.findAll()
+                .forEach(applicationInfo -> {
+                    if (!applicationInfo.getEnrollmentState().isCandidate(spaceEnrollerConfigId)) {
+                        watchedOrIgnoredApplications.add(applicationInfo.getUuid());
+                    }
+                });
+        log.debug("{} known applications (already enrolled, or blacklisted)",
+                watchedOrIgnoredApplications.size());
+        return cloudFoundryApi
+                .listAliveApplications(serviceInstance.getSpaceId(),
+                        serviceInstance.getExcludeFromAutoEnrollment(),
+                        applicationId -> isNotItself(applicationId)
+                                && !watchedOrIgnoredApplications.contains(applicationId));
+    }
+
+    private void queueFailedBindings(List<ApplicationIdentity> failures) {
+        Map<String, FailedBinding> previousFailures = new LinkedHashMap<>(failedBindings);
+        failedBindings.clear();
+        failures.forEach(application -> {
+            FailedBinding failedBinding = previousFailures.getOrDefault(application.getGuid(),
+                    new FailedBinding(application));
+            failedBinding.attempts++;
+            if (failedBinding.attempts < Config.ENROLLMENT_BIND_MAX_ATTEMPTS) {
+                failedBindings.put(application.getGuid(), failedBinding);
+            } else {
+                log.error("giving up binding application {} after {} attempts", application.getGuid(),
+                        failedBinding.attempts);
+            }
+        });
+        if (!failures.isEmpty()) {
+            log.warn("{} applications could not be bound, {} will be bound again on next run", failures.size(),
+                    failedBindings.size());
+        }
+    }
+
     @Override
     public void run() {
+        FlightRecorderEvent event = FlightRecorderEvent.begin(FlightRecorderEvent.Type.ENROLLMENT)
+                .serviceInstance(spaceEnrollerConfigId);
+        String outcome = "failed";
+        try {
+            outcome = enroll(event);
+        } finally {
+            event.end(outcome);
+        }
+    }
+
+    /**
+     * Bind the applications of the space not enrolled yet.
+     *
+     * @return the outcome of the enrollment, for its flight recorder event
+     */
+    private String enroll(FlightRecorderEvent event) {
+        String outcome = "removed";
         SpaceEnrollerConfig serviceInstance = spaceEnrollerConfigRepository.findOne(spaceEnrollerConfigId);
         if (serviceInstance != null) {
+            Instant now = now();
+            final long start = System.nanoTime();
+            boolean reconciliation = eventPeriod == null
+                    || highWaterMark == null
+                    || !now.isBefore(nextReconciliation);
+            event.detail(reconciliation ? "reconciliation" : "events");
             try {
-                Set<String> watchedOrIgnoredApplications = new HashSet<>();
-                applicationRepository.findAll()
-                        .forEach(applicationInfo -> {
-                            if (!applicationInfo.getEnrollmentState().isCandidate(spaceEnrollerConfigId)) {
-                                watchedOrIgnoredApplications.add(applicationInfo.getUuid());
-                            }
-                        });
-                log.debug("{} known applications (already enrolled, or blacklisted)",
-                        watchedOrIgnoredApplications.size());
-                List<ApplicationIdentity> applicationIdentities = cloudFoundryApi
-                        .listAliveApplications(serviceInstance.getSpaceId(),
-                                serviceInstance.getExcludeFromAutoEnrollment());
-                List<ApplicationIdentity> newApplications = applicationIdentities.stream()
-                        .filter(application ->
-                                deployment == null || !deployment.getApplicationId().equals(application.getGuid()))
-                        .filter(application -> !(watchedOrIgnoredApplications.contains(application.getGuid())))
-                        .collect(Collectors.toList());
+                List<ApplicationIdentity> newApplications = addFailedBindings(reconciliation
+                        ? listNewApplications(serviceInstance)
+                        : listChangedApplications(serviceInstance));
                 if (!newApplications.isEmpty()) {
                     log.debug("{} - new applications", newApplications.size());
-                    cloudFoundryApi.bindApplications(serviceInstance.getId(), newApplications);
+                    List<ApplicationIdentity> failures;
+                    try {
+                        failures = cloudFoundryApi.bindApplications(serviceInstance.getId(), newApplications);
+                        outcome = (newApplications.size() - failures.size()) + " enrolled";
+                    } catch (CloudFoundryException c) {
+                        //none could be bound: queued as well, so that their attempts are counted
+                        log.error("cloudfoundry error while binding", c);
+                        failures = newApplications;
+                        outcome = "failed";
+                    }
+                    queueFailedBindings(failures);
+                    for (int i = failures.size(); i < newApplications.size(); i++) {
+                        counterService.increment(ENROLLED_METRIC);
+                    }
                 } else {
                     log.debug("No new app to bind (all already enrolled or filtered by regexp)");
+                    failedBindings.clear();
+                    outcome = "0 enrolled";
+                }
+                if (reconciliation) {
+                    highWaterMark = now.minus(Config.ENROLLMENT_EVENT_MARGIN);
+                    nextReconciliation = now.plus(getPeriod());
                 }
             } catch (CloudFoundryException c) {
                 /*a 409 "conflict" error is possible (if someone tries to delete a service at the same time
                 but without consequences
                  */
                 log.error("cloudfoundry error", c);
+                outcome = "failed";
+            }
+            gaugeService.submit(SCAN_DURATION_METRIC, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            if (eventPeriod == null) {
+                rescheduleWithDefaultPeriod();
+            } else {
+                reschedule(eventPeriod);
             }
-            rescheduleWithDefaultPeriod();
         } else {
             log.debug("service has been removed. Cancelling task");
             stopTask();
         }
+        return outcome;
     }
 
 }
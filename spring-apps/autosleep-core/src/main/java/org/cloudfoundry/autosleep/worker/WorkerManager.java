@@ -23,14 +23,20 @@ import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
 import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.DeployedApplicationConfig;
+import org.cloudfoundry.autosleep.access.dao.model.OrgEnrollmentConfig;
 import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.BindingRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.OrgEnrollmentConfigRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.WakeStatisticsRepository;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
 import org.cloudfoundry.autosleep.worker.scheduling.Clock;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
@@ -57,15 +63,30 @@ public class WorkerManager implements WorkerManagerService {
     @Autowired
     private CloudFoundryApiService cloudFoundryApi;
 
+    @Autowired
+    private CounterService counterService;
+
     @Autowired
     private DeployedApplicationConfig.Deployment deployment;
 
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private GaugeService gaugeService;
+
+    @Autowired
+    private OrgEnrollmentConfigRepository orgEnrollmentConfigRepository;
+
     @Autowired
     private SpaceEnrollerConfigRepository spaceEnrollerConfigRepository;
 
     @Autowired
     private ProxyMapEntryRepository proxyMapEntryRepository;
 
+    @Autowired
+    private WakeStatisticsRepository wakeStatisticsRepository;
+
     @PostConstruct
     public void init() {
         log.debug("Initializer watchers for every app already enrolled (except if handle by another instance of "
@@ -80,6 +101,8 @@ public class WorkerManager implements WorkerManagerService {
             }
         });
         spaceEnrollerConfigRepository.findAll().forEach(this::registerSpaceEnroller);
+        orgEnrollmentConfigRepository.findAll().forEach(this::registerOrgEnroller);
+        registerPreWakePlanner();
     }
 
     @Override
@@ -98,20 +121,64 @@ public class WorkerManager implements WorkerManagerService {
                 .period(interval)
                 .spaceEnrollerConfigId(config.getId())
                 .proxyMap(proxyMapEntryRepository)
+                .wakeStatisticsRepository(wakeStatisticsRepository)
+                .counterService(counterService)
+                .wakeGroup(config.getWakeGroup())
                 .build();
         checker.startNow();
     }
 
+    @Override
+    public void registerOrgEnroller(OrgEnrollmentConfig config) {
+        OrgEnroller orgEnroller = OrgEnroller.builder()
+                .clock(clock)
+                .period(Config.ORG_ENROLLER_PERIOD)
+                .organizationGuid(config.getOrganizationGuid())
+                .cloudFoundryApi(cloudFoundryApi)
+                .orgEnrollmentConfigRepository(orgEnrollmentConfigRepository)
+                .spaceEnrollerConfigRepository(spaceEnrollerConfigRepository)
+                .serviceLabel(env.getProperty(Config.EnvKey.CF_SERVICE_BROKER_NAME,
+                        Config.ServiceCatalog.DEFAULT_SERVICE_BROKER_NAME))
+                .servicePlanUniqueId(env.getProperty(Config.EnvKey.CF_SERVICE_PLAN_ID,
+                        Config.ServiceCatalog.DEFAULT_SERVICE_PLAN_ID))
+                .build();
+        orgEnroller.startNow();
+    }
+
+    void registerPreWakePlanner() {
+        String leadTime = env.getProperty(Config.EnvKey.PRE_WAKE_LEAD_TIME);
+        if (leadTime == null) {
+            log.debug("No pre-wake lead time, pre-wake disabled");
+            return;
+        }
+        PreWakePlanner planner = PreWakePlanner.builder()
+                .applicationLocker(applicationLocker)
+                .applicationRepository(applicationRepository)
+                .clock(clock)
+                .cloudFoundryApi(cloudFoundryApi)
+                .counterService(counterService)
+                .leadTime(Duration.parse(leadTime))
+                .period(Config.PRE_WAKE_PLANNER_PERIOD)
+                .proxyMap(proxyMapEntryRepository)
+                .wakeStatisticsRepository(wakeStatisticsRepository)
+                .build();
+        planner.start(Config.DELAY_BEFORE_FIRST_SERVICE_CHECK);
+    }
+
     @Override
     public void registerSpaceEnroller(SpaceEnrollerConfig service) {
+        String eventPeriod = env.getProperty(Config.EnvKey.ENROLLMENT_EVENT_PERIOD);
         SpaceEnroller spaceEnroller = SpaceEnroller.builder()
                 .clock(clock)
                 .period(service.getIdleDuration())
+                .eventPeriod(eventPeriod == null ? null : Duration.parse(eventPeriod))
                 .spaceEnrollerConfigId(service.getId())
                 .spaceEnrollerConfigRepository(spaceEnrollerConfigRepository)
                 .cloudFoundryApi(cloudFoundryApi)
                 .applicationRepository(applicationRepository)
                 .deployment(deployment)
+                .counterService(counterService)
+                .gaugeService(gaugeService)
                 .build();
         spaceEnroller.start(Config.DELAY_BEFORE_FIRST_SERVICE_CHECK);
     }
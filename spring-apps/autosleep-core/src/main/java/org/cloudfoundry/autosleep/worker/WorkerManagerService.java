@@ -19,12 +19,15 @@
 
 package org.cloudfoundry.autosleep.worker;
 
+import org.cloudfoundry.autosleep.access.dao.model.OrgEnrollmentConfig;
 import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
 
 public interface WorkerManagerService {
 
     void registerApplicationStopper(SpaceEnrollerConfig config, String applicationId, String appBindingId);
 
+    void registerOrgEnroller(OrgEnrollmentConfig config);
+
     void registerSpaceEnroller(SpaceEnrollerConfig config);
 
 }
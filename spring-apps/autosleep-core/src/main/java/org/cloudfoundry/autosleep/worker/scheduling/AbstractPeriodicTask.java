@@ -23,25 +23,35 @@ import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.util.PrioritizedTask;
 
 import java.time.Duration;
 import java.time.Instant;
 
 @Slf4j
 @AllArgsConstructor(access = AccessLevel.PROTECTED)
-public abstract class AbstractPeriodicTask implements Runnable {
+public abstract class AbstractPeriodicTask implements PrioritizedTask {
 
     private final Clock clock;
 
     @Getter(value = AccessLevel.PROTECTED)
     private final Duration period;
 
+    @Override
+    public Priority getPriority() {
+        return Priority.NORMAL;
+    }
+
     protected abstract String getTaskId();
 
+    protected Instant now() {
+        return clock.now();
+    }
+
     public Instant reschedule(Duration delta) {
         log.debug("Rescheduling in {}", delta.toString());
         clock.scheduleTask(getTaskId(), delta, this);
-        return Instant.now().plus(delta);
+        return now().plus(delta);
     }
 
     public Instant rescheduleWithDefaultPeriod() {
@@ -25,10 +25,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.time.Duration;
+import java.time.Instant;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 
 @Service
@@ -38,7 +39,10 @@ public class Clock {
     @Autowired
     private TimeManager timeManager;
 
-    private final Map<String/*taskId*/, ScheduledFuture<?>> tasks = new HashMap<>();
+    /**
+     * Tasks reschedule and remove themselves from the worker threads, several at once.
+     */
+    private final Map<String/*taskId*/, ScheduledFuture<?>> tasks = new ConcurrentHashMap<>();
 
     /**
      * Access to the task ids.
@@ -48,6 +52,14 @@ public class Clock {
         return Collections.unmodifiableSet(tasks.keySet());
     }
 
+    /**
+     * Current time, to compute the next runs of the tasks with.
+     * @return the time of the underlying time manager, which may be virtual
+     */
+    public Instant now() {
+        return timeManager.now();
+    }
+
     /**
      * Remove a task by its id.
      * @param id task id, will be used to cancel it
@@ -9,6 +9,9 @@ div(class: 'navbar') {
                 li(){
                     a(href: "/admin/debug/applications/", "Applications")
                 }
+                li(){
+                    a(href: "/admin/debug/scheduler/", "Scheduler")
+                }
             }
         }
 
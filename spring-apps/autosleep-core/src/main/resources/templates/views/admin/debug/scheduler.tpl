@@ -0,0 +1,33 @@
+package templates.views.admin.debug
+
+layout 'layouts/main.tpl',
+        pageTitle: 'Scheduler',
+        additionalScripts: contents {
+            script(type: "text/javascript") {
+                yieldUnescaped 'window.onload = function(){ '
+                yieldUnescaped 'initNavbar();'
+                yieldUnescaped '}'
+            }
+        },
+        mainBody: contents {
+
+            div(class: "panel panel-default") {
+                div(class: "panel-heading") {
+                    h3(class: "panel-title") {
+                        yield "Status : $status"
+                    }
+                }
+                div(class: "panel-body") {
+                    ul(class: "o-square-list") {
+                        details.each { name, value ->
+                            li {
+                                span {
+                                    yield "$name : $value"
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+
+        }
@@ -21,13 +21,16 @@ package org.cloudfoundry.autosleep.ui.servicebroker.service;
 
 import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.model.OrgEnrollmentConfig;
 import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.OrgEnrollmentConfigRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
 import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.Config.ServiceInstanceParameters;
 import org.cloudfoundry.autosleep.config.Config.ServiceInstanceParameters.Enrollment;
 import org.cloudfoundry.autosleep.config.DeployedApplicationConfig;
+import org.cloudfoundry.autosleep.config.EnrollmentConfig.EnrollmentParameters.EnrollmentState;
 import org.cloudfoundry.autosleep.ui.servicebroker.service.parameters.ParameterReader;
 import org.cloudfoundry.autosleep.ui.servicebroker.service.parameters.ParameterReaderFactory;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
@@ -115,6 +118,9 @@ public class AutosleepServiceInstanceServiceTest {
     @InjectMocks
     private AutosleepServiceInstanceService instanceService;
 
+    @Mock
+    private OrgEnrollmentConfigRepository orgEnrollmentConfigRepository;
+
     private ParameterReaderFactory parameterReaderFactory = new ParameterReaderFactory();
 
     @Spy
@@ -152,6 +158,10 @@ public class AutosleepServiceInstanceServiceTest {
 
     private String superPassword = "MEGAPASS";
 
+    @Spy
+    @Qualifier(Config.ServiceInstanceParameters.WAKE_GROUP)
+    private ParameterReader<Pattern> wakeGroupReader = parameterReaderFactory.buildWakeGroupReader();
+
     @Mock
     private WorkerManagerService workerManager;
 
@@ -364,6 +374,31 @@ public class AutosleepServiceInstanceServiceTest {
                                 is(equalTo(Config.ServiceInstanceParameters.AUTO_ENROLLMENT))));
     }
 
+    @Test
+    public void test_forced_auto_enrollment_of_enrolled_organization_succeeds_without_secret() throws Exception {
+        //given the service does not exist
+        when(spaceEnrollerConfigRepository.exists(SERVICE_INSTANCE_ID)).thenReturn(false);
+        //and its organization is enrolled in forced auto enrollment
+        when(orgEnrollmentConfigRepository.findOne(ORG_TEST)).thenReturn(OrgEnrollmentConfig.builder()
+                .organizationGuid(ORG_TEST)
+                .autoEnrollment(Enrollment.forced)
+                .state(EnrollmentState.enrolled)
+                .build());
+
+        //when the org enroller only gives forced auto enrollment
+        Map<String, Object> params = singletonMap(Config.ServiceInstanceParameters.AUTO_ENROLLMENT,
+                Enrollment.forced.name());
+        instanceService.createServiceInstance(getCreateRequestWithArbitraryParams(params));
+
+        //then service is saved with forced auto enrollment
+        assertThat(serviceInstances.size(), is(equalTo(1)));
+        SpaceEnrollerConfig serviceInstance = serviceInstances.get(0);
+        assertTrue(serviceInstance.getEnrollment() == Enrollment.forced);
+        //and a secret that is not the broker password, that remains the only way to change it
+        assertThat(serviceInstance.getSecret(), is(notNullValue()));
+        verify(passwordEncoder, never()).encode(superPassword);
+    }
+
     @Test
     public void test_forced_auto_enrollment_succeeds_with_secret() throws Exception {
         //given the service does not exist
@@ -447,6 +482,22 @@ public class AutosleepServiceInstanceServiceTest {
         assertThat(serviceInstance.getSecret(), is(equalTo(passwordEncoded)));
     }
 
+    @Test
+    public void test_wake_group_is_well_read() throws Exception {
+        //given the service does not exist
+        when(spaceEnrollerConfigRepository.exists(SERVICE_INSTANCE_ID)).thenReturn(false);
+
+        //when user submit only the wake group
+        Map<String, Object> params = singletonMap(Config.ServiceInstanceParameters.WAKE_GROUP, "shop-.*");
+        CreateServiceInstanceRequest createRequest = getCreateRequestWithArbitraryParams(params);
+        instanceService.createServiceInstance(createRequest);
+
+        //then  service is saved with good wake group
+        assertThat(serviceInstances.size(), is(equalTo(1)));
+        SpaceEnrollerConfig serviceInstance = serviceInstances.get(0);
+        assertThat(serviceInstance.getWakeGroup().pattern(), is(equalTo("shop-.*")));
+    }
+
     @Test
     public void test_update_accept_secret_password() throws Exception {
         //given service exists and password matches
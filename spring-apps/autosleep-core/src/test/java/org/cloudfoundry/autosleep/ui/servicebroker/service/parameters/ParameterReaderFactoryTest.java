@@ -401,4 +401,29 @@ public class ParameterReaderFactoryTest {
                         is(equalTo(EnrollmentConfig.EnrollmentParameters.STATE))));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void test_wake_group_fails_to_read_bad_syntax() {
+        //Given the parameter reader for wake group
+        ParameterReader<Pattern> wakeGroupReader = factory.buildWakeGroupReader();
+        assertThat(wakeGroupReader.getParameterName(), is(equalTo(ServiceInstanceParameters.WAKE_GROUP)));
+        //When we submit a bad syntax
+        //Then it fails
+        verifyThrown(() -> wakeGroupReader.readParameter("*", true),
+                InvalidParameterException.class,
+                parameterChecked -> assertThat(parameterChecked.getParameterName(),
+                        is(equalTo(ServiceInstanceParameters.WAKE_GROUP))));
+    }
+
+    @Test
+    public void test_wake_group_read_parameter() {
+        //Given the parameter reader for wake group
+        ParameterReader<Pattern> wakeGroupReader = factory.buildWakeGroupReader();
+        //When we read a good syntax
+        Pattern result = wakeGroupReader.readParameter("shop-.*", true);
+        //Then we obtained the right compiled pattern
+        assertThat(result.pattern(), is(equalTo("shop-.*")));
+        //and no group is the default
+        assertThat(wakeGroupReader.readParameter(null, true), is(nullValue()));
+    }
+
+}
@@ -27,6 +27,7 @@ import org.cloudfoundry.autosleep.config.EnrollmentConfig.EnrollmentParameters.E
 import org.cloudfoundry.autosleep.ui.servicebroker.service.parameters.ParameterReader;
 import org.cloudfoundry.autosleep.ui.web.controller.validation.EnrollmentValidator;
 import org.cloudfoundry.autosleep.ui.web.model.OrgEnrollmentConfigRequest;
+import org.cloudfoundry.autosleep.worker.WorkerManagerService;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
@@ -59,6 +60,9 @@ public class AutoEnrollmentControllerTest {
     @Mock
     private EnrollmentValidator validator;
 
+    @Mock
+    private WorkerManagerService workerManager;
+
     @Mock
     private ParameterReader<Config.ServiceInstanceParameters.Enrollment> autoEnrollmentReader;
 
@@ -153,6 +157,7 @@ public class AutoEnrollmentControllerTest {
 
         verify(orgEnrollmentConfigRepository, times(1)).exists(fakeOrgGuid);
         verify(orgEnrollmentConfigRepository, times(1)).save(any(OrgEnrollmentConfig.class));
+        verify(workerManager, times(1)).registerOrgEnroller(any(OrgEnrollmentConfig.class));
 
         assertTrue(response.getStatusCode() == HttpStatus.CREATED);
         assertTrue(response.getHeaders().getFirst("Location")
@@ -174,6 +179,7 @@ public class AutoEnrollmentControllerTest {
 
         verify(orgEnrollmentConfigRepository, times(1)).exists(fakeOrgGuid);
         verify(orgEnrollmentConfigRepository, never()).save(any(OrgEnrollmentConfig.class));
+        verify(workerManager, never()).registerOrgEnroller(any(OrgEnrollmentConfig.class));
 
         assertTrue(response.getStatusCode() == HttpStatus.METHOD_NOT_ALLOWED);
         assertTrue(response.getHeaders().getFirst(HttpHeaders.ALLOW)
@@ -25,6 +25,7 @@ import org.cloudfoundry.autosleep.ui.web.controller.DebugController;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.BindingRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
+import org.cloudfoundry.autosleep.util.SchedulerHealthIndicator;
 import org.springframework.cloud.servicebroker.model.Catalog;
 import org.springframework.cloud.servicebroker.model.Plan;
 import org.springframework.cloud.servicebroker.model.ServiceDefinition;
@@ -35,6 +36,7 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.health.Health;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.ResultActions;
@@ -71,6 +73,9 @@ public class DebugControllerTest {
 
     private MockMvc mockMvc;
 
+    @Mock
+    private SchedulerHealthIndicator schedulerHealthIndicator;
+
     @Mock
     private SpaceEnrollerConfigRepository spaceEnrollerConfigRepository;
 
@@ -81,6 +86,7 @@ public class DebugControllerTest {
         when(catalog.getServiceDefinitions()).thenReturn(Collections.singletonList(
                 new ServiceDefinition("serviceDefinitionId", "serviceDefinition", "", true,
                         Collections.singletonList(new Plan("planId", "plan", "")))));
+        when(schedulerHealthIndicator.health()).thenReturn(Health.up().withDetail("backlog", 0).build());
 
     }
 
@@ -114,4 +120,14 @@ public class DebugControllerTest {
         resultActions.andExpect(status().isOk());
     }
 
+    @Test
+    public void test_scheduler_page() throws Exception {
+        //Given nothing
+        //When a request is done on scheduler page
+        ResultActions resultActions = mockMvc.perform(get("/admin/debug/scheduler/")
+                .accept(MediaType.TEXT_HTML));
+        //Then status is OK
+        resultActions.andExpect(status().isOk());
+    }
+
 }
\ No newline at end of file
@@ -22,27 +22,37 @@ package org.cloudfoundry.autosleep.worker;
 import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
-import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationActivity;
-import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryUnavailableException;
 import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.model.Binding.ResourceType;
 import org.cloudfoundry.autosleep.access.dao.model.ProxyMapEntry;
+import org.cloudfoundry.autosleep.access.dao.model.WakeStatistics;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.WakeStatisticsRepository;
 import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
 import org.cloudfoundry.autosleep.util.BeanGenerator;
+import org.cloudfoundry.autosleep.util.PrioritizedTask.Priority;
 import org.cloudfoundry.autosleep.worker.scheduling.Clock;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Pattern;
 
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyObject;
@@ -69,11 +79,7 @@ public class ApplicationStopperTest {
 
     private static final Duration INTERVAL = Duration.ofMillis(300);
 
-    @Mock
-    private ApplicationIdentity application;
-
-    @Mock
-    private ApplicationActivity applicationActivity;
+    private static final Instant IDLE_SINCE = Instant.now().minus(INTERVAL.multipliedBy(2));
 
     private ApplicationInfo applicationInfo;
 
@@ -91,25 +97,30 @@ public class ApplicationStopperTest {
     @Mock
     private CloudFoundryApiService cloudFoundryApi;
 
+    @Mock
+    private CounterService counterService;
+
+    @Captor
+    private ArgumentCaptor<List<ProxyMapEntry>> proxyMapEntries;
+
     @Mock
     private ProxyMapEntryRepository proxyMapEntryRepository;
 
+    @Mock
+    private WakeStatisticsRepository wakeStatisticsRepository;
+
     /**
      * Build mocks.
      */
     @Before
     public void buildMocks() throws  CloudFoundryException {
-        //default
-
-        when(application.getGuid()).thenReturn(APP_UID);
-        when(application.getName()).thenReturn(APPLICATION_NAME);
-        when(applicationActivity.getApplication()).thenReturn(application);
-
+        when(clock.now()).thenAnswer(invocationOnMock -> Instant.now());
+        //default: the application is started, and was last seen active before the idle duration
         applicationInfo = spy(BeanGenerator.createAppInfoWithDiagnostic(APP_UID, APPLICATION_NAME,
-                CloudFoundryAppState.STARTED));
+                CloudFoundryAppState.STARTED, IDLE_SINCE, IDLE_SINCE));
         applicationInfo.getEnrollmentState().addEnrollmentState(INSTANCE_ID);
 
-        when(cloudFoundryApi.getApplicationActivity(APP_UID)).thenReturn(applicationActivity);
+        when(cloudFoundryApi.getApplicationState(APP_UID)).thenReturn(CloudFoundryAppState.STARTED);
 
         when(applicationRepository.findOne(APP_UID)).thenReturn(
                 applicationInfo
@@ -131,13 +142,58 @@ public class ApplicationStopperTest {
                 .ignoreRouteBindingError(Boolean.TRUE)
                 .period(INTERVAL)
                 .spaceEnrollerConfigId(INSTANCE_ID)
+                .wakeStatisticsRepository(wakeStatisticsRepository)
+                .counterService(counterService)
                 .build());
     }
 
+    private void givenRemoteActivity(Instant lastEvent, Instant lastContainerActivity, Instant lastLog)
+            throws CloudFoundryException {
+        when(cloudFoundryApi.getLastEvent(APP_UID))
+                .thenReturn(lastEvent == null ? null : BeanGenerator.createCloudEvent(lastEvent));
+        when(cloudFoundryApi.getLastContainerActivity(APP_UID)).thenReturn(lastContainerActivity);
+        when(cloudFoundryApi.getLastLog(APP_UID))
+                .thenReturn(lastLog == null ? null : BeanGenerator.createAppLog(lastLog));
+    }
+
+    @Test
+    public void test_application_activity_is_taken_from_cache_first() throws Exception {
+        //given the application was seen active recently
+        applicationInfo.updateDiagnosticInfo(BeanGenerator.createAppLog(), BeanGenerator.createCloudEvent(),
+                APPLICATION_NAME, CloudFoundryAppState.STARTED);
+        //when task is run
+        applicationStopper.run();
+        //then cloudfoundry is not requested
+        verify(cloudFoundryApi, never()).getApplicationState(APP_UID);
+        verify(cloudFoundryApi, never()).getLastEvent(APP_UID);
+        verify(cloudFoundryApi, never()).getLastLog(APP_UID);
+        verify(counterService, times(1))
+                .increment(ApplicationStopper.ACTIVITY_SOURCE_METRIC_PREFIX + ApplicationStopper.CACHE_SOURCE);
+        //and the task is rescheduled at the idle deadline
+        verify(applicationStopper, never()).rescheduleWithDefaultPeriod();
+        verify(applicationRepository, times(1)).save(any(ApplicationInfo.class));
+    }
+
+    @Test
+    public void test_recent_logs_are_not_downloaded_when_container_metrics_show_activity() throws Exception {
+        //given the application has no recent event, but its containers are busy
+        givenRemoteActivity(IDLE_SINCE, Instant.now(), null);
+        //when task is run
+        applicationStopper.run();
+        //then logs are not requested
+        verify(cloudFoundryApi, times(1)).getLastContainerActivity(APP_UID);
+        verify(cloudFoundryApi, never()).getLastLog(APP_UID);
+        verify(counterService, times(1)).increment(ApplicationStopper.ACTIVITY_SOURCE_METRIC_PREFIX
+                + ApplicationStopper.CONTAINER_METRICS_SOURCE);
+        //and the application is not stopped
+        verify(cloudFoundryApi, never()).stopApplication(APP_UID);
+        verify(applicationStopper, never()).rescheduleWithDefaultPeriod();
+    }
+
     @Test
     public void test_application_is_not_stopped_if_already_stopped() throws Exception {
         //given the application is stopped
-        when(applicationActivity.getState()).thenReturn(CloudFoundryAppState.STOPPED);
+        when(cloudFoundryApi.getApplicationState(APP_UID)).thenReturn(CloudFoundryAppState.STOPPED);
         //when task is run
         applicationStopper.run();
         //then it see the application as monitored
@@ -153,8 +209,8 @@ public class ApplicationStopperTest {
     @Test
     public void test_application_is_not_stopped_if_no_activity_found() throws Exception {
         //given cloudfoundry activity is not found
-        when(applicationActivity.getLastLog()).thenReturn(null);
-        when(applicationActivity.getLastEvent()).thenReturn(null);
+        applicationInfo.updateDiagnosticInfo(null, null, APPLICATION_NAME, CloudFoundryAppState.STARTED);
+        givenRemoteActivity(null, null, null);
         //when task is run
         applicationStopper.run();
         //then it see the application as monitored
@@ -170,11 +226,12 @@ public class ApplicationStopperTest {
     @Test
     public void test_application_is_not_stopped_when_active() throws Exception {
         //given the application is started and active
-        when(applicationActivity.getState()).thenReturn(CloudFoundryAppState.STARTED);
-        when(applicationActivity.getLastEvent()).thenReturn(BeanGenerator.createCloudEvent());
-        when(applicationActivity.getLastLog()).thenReturn(BeanGenerator.createAppLog());
+        givenRemoteActivity(Instant.now(), null, Instant.now());
         //when task is run
         applicationStopper.run();
+        //then its newest event is enough, logs are not requested
+        verify(cloudFoundryApi, never()).getLastContainerActivity(APP_UID);
+        verify(cloudFoundryApi, never()).getLastLog(APP_UID);
 
         //then it see the application as monitored
         verify(applicationStopper, times(1)).handleApplicationEnrolled(applicationInfo);
@@ -183,6 +240,8 @@ public class ApplicationStopperTest {
         //and it schedules task on default period
         verify(clock, times(1)).scheduleTask(any(), anyObject(), any());
         verify(applicationStopper, never()).rescheduleWithDefaultPeriod();
+        //on its idle deadline, to be run first when the workers are saturated
+        assertThat(applicationStopper.getPriority(), is(equalTo(Priority.IDLE_DEADLINE)));
         // and application is saved at the end
         verify(applicationRepository, times(1)).save(any(ApplicationInfo.class));
 
@@ -192,11 +251,7 @@ public class ApplicationStopperTest {
     public void test_application_is_stopped_when_bind_route_fails_and_ignore_route_error() throws Exception {
         //given the application is started but not active and does skip route error
         List<String> applicationsRoutes = Arrays.asList("route_1", "route_2");
-        when(applicationActivity.getState()).thenReturn(CloudFoundryAppState.STARTED);
-        when(applicationActivity.getLastEvent()).thenReturn(BeanGenerator.createCloudEvent(Instant.now().minus(
-                INTERVAL.multipliedBy(2))));
-        when(applicationActivity.getLastLog()).thenReturn(BeanGenerator.createAppLog(Instant.now()
-                .minus(INTERVAL.multipliedBy(2))));
+        givenRemoteActivity(IDLE_SINCE, null, IDLE_SINCE);
         when(cloudFoundryApi.listApplicationRoutes(APP_UID)).thenReturn(applicationsRoutes);
         doThrow(new CloudFoundryException(new Exception("test")))
                 .when(cloudFoundryApi).bindRoutes(INSTANCE_ID, applicationsRoutes);
@@ -207,7 +262,7 @@ public class ApplicationStopperTest {
         verify(applicationStopper, times(1)).handleApplicationEnrolled(applicationInfo);
         //and it did stop the application
         verify(cloudFoundryApi, times(1)).stopApplication(APP_UID);
-        verify(applicationInfo, times(1)).markAsPutToSleep();
+        verify(applicationInfo, times(1)).markAsPutToSleep(any(Instant.class));
         //and it schedules task on default period
         verify(applicationStopper, times(1)).rescheduleWithDefaultPeriod();
         // and application is saved at the end
@@ -218,33 +273,69 @@ public class ApplicationStopperTest {
     public void test_application_is_stopped_when_inactive() throws Exception {
         //given the application is started but not active and supports route and has some routes
         List<String> applicationsRoutes = Arrays.asList("route_1", "route_2");
-        when(applicationActivity.getState()).thenReturn(CloudFoundryAppState.STARTED);
-        when(applicationActivity.getLastEvent()).thenReturn(BeanGenerator.createCloudEvent(Instant.now().minus(
-                INTERVAL.multipliedBy(2))));
-        when(applicationActivity.getLastLog()).thenReturn(BeanGenerator.createAppLog(Instant.now()
-                .minus(INTERVAL.multipliedBy(2))));
+        givenRemoteActivity(IDLE_SINCE, null, IDLE_SINCE);
         when(cloudFoundryApi.listApplicationRoutes(APP_UID)).thenReturn(applicationsRoutes);
+        when(cloudFoundryApi.getHosts(applicationsRoutes)).thenReturn(Arrays.asList("host_1", "host_2"));
         //when task is run
         applicationStopper.run();
         //then it see the application as monitored
         verify(applicationStopper, times(1)).handleApplicationEnrolled(applicationInfo);
+        //and every activity source was evaluated
+        verify(cloudFoundryApi, times(1)).getLastLog(APP_UID);
         //and it list routes
         verify(cloudFoundryApi, times(1)).listApplicationRoutes(APP_UID);
         /*TODO uncomment whenever route service ready to route when app stopped
         //and on each routes it binds the service to ir
         verify(cloudFoundryApi, times(1)).bindRoutes(INSTANCE_ID, applicationsRoutes);*/
-        verify(cloudFoundryApi, times(2)).getHost(anyString());
-        verify(proxyMapEntryRepository, times(2)).save(any(ProxyMapEntry.class));
+        //and it resolves all hosts at once
+        verify(cloudFoundryApi, times(1)).getHosts(applicationsRoutes);
+        verify(cloudFoundryApi, never()).getHost(anyString());
+        //and it maps them to the proxy in a single batch
+        verify(proxyMapEntryRepository, times(1)).save(proxyMapEntries.capture());
+        assertThat(proxyMapEntries.getValue().size(), is(equalTo(2)));
 
         //and it did stop the application
         verify(cloudFoundryApi, times(1)).stopApplication(APP_UID);
-        verify(applicationInfo, times(1)).markAsPutToSleep();
+        verify(applicationInfo, times(1)).markAsPutToSleep(any(Instant.class));
+        //and the check is counted as reaching sleep
+        verify(counterService, times(1)).increment(ApplicationStopper.CHECK_EXECUTED_METRIC_PREFIX + INSTANCE_ID);
+        verify(counterService, times(1)).increment(ApplicationStopper.CHECK_SLEPT_METRIC_PREFIX + INSTANCE_ID);
         //and it schedules task on default period
         verify(applicationStopper, times(1)).rescheduleWithDefaultPeriod();
         // and application is saved at the end
         verify(applicationRepository, times(1)).save(any(ApplicationInfo.class));
     }
 
+    @Test
+    public void test_application_is_not_stopped_when_wake_group_member_active() throws Exception {
+        //given the application is not active, but belongs to a wake group with an active member
+        ApplicationInfo member = BeanGenerator.createAppInfoWithDiagnostic("member-uid", "backend",
+                CloudFoundryAppState.STARTED, Instant.now(), Instant.now());
+        member.getEnrollmentState().addEnrollmentState(INSTANCE_ID);
+        when(applicationRepository.findBoundToServiceInstance(INSTANCE_ID, ResourceType.Application))
+                .thenReturn(Arrays.asList(applicationInfo, member));
+        ApplicationStopper groupStopper = spy(ApplicationStopper.builder()
+                .proxyMap(proxyMapEntryRepository)
+                .applicationLocker(applicationLocker)
+                .applicationRepository(applicationRepository)
+                .appUid(APP_UID)
+                .bindingId(BINDING_ID)
+                .clock(clock)
+                .cloudFoundryApi(cloudFoundryApi)
+                .period(INTERVAL)
+                .spaceEnrollerConfigId(INSTANCE_ID)
+                .wakeStatisticsRepository(wakeStatisticsRepository)
+                .counterService(counterService)
+                .wakeGroup(Pattern.compile(APPLICATION_NAME + "|backend"))
+                .build());
+        givenRemoteActivity(IDLE_SINCE, null, IDLE_SINCE);
+        //when task is run
+        groupStopper.run();
+        //then the application is kept awake with its group
+        verify(cloudFoundryApi, never()).stopApplication(APP_UID);
+        verify(groupStopper, never()).rescheduleWithDefaultPeriod();
+    }
+
     @Test
     public void test_task_is_removed_when_application_not_watched_by_service() throws Exception {
         //given application is marked as ignored
@@ -256,7 +347,7 @@ public class ApplicationStopperTest {
         //and it never stops application
         verify(cloudFoundryApi, never()).stopApplication(APP_UID);
         //and clears information
-        verify(applicationInfo, times(1)).clearCheckInformation();
+        verify(applicationInfo, times(1)).clearCheckInformation(any(Instant.class));
         //and it never reschedules task
         verify(applicationStopper, never()).rescheduleWithDefaultPeriod();
         //and it removes task from known tasks
@@ -286,7 +377,7 @@ public class ApplicationStopperTest {
     @Test
     public void test_task_is_reschedule_even_when_not_found_remotely() throws Exception {
         //given cloudfoundry application is not found
-        when(cloudFoundryApi.getApplicationActivity(APP_UID))
+        when(cloudFoundryApi.getApplicationState(APP_UID))
                 .thenThrow(
                         new CloudFoundryException(
                                 new org.cloudfoundry.client.v2.ClientV2Exception(null, 666 , "", "")));
@@ -303,18 +394,37 @@ public class ApplicationStopperTest {
     @Test
     public void test_task_is_reschedule_even_when_remote_error() throws Exception {
         //given cloudfoundry call fails for some reason
-        when(cloudFoundryApi.getApplicationActivity(APP_UID))
+        when(cloudFoundryApi.getApplicationState(APP_UID))
                 .thenThrow(new CloudFoundryException(new Exception("Mock call")));
         //when task is run
         applicationStopper.run();
         //then it never stopped application
         verify(cloudFoundryApi, never()).stopApplication(APP_UID);
+        //and the check is counted as failed
+        verify(counterService, times(1)).increment(ApplicationStopper.CHECK_FAILED_METRIC_PREFIX + INSTANCE_ID);
         //and task is rescheduled
         verify(applicationStopper, times(1)).rescheduleWithDefaultPeriod();
         //and application is saved
         verify(applicationRepository, times(1)).save(any(ApplicationInfo.class));
     }
 
+    @Test
+    public void test_task_is_rescheduled_shortly_when_cloudfoundry_unavailable() throws Exception {
+        //given the circuit to cloudfoundry api is open
+        Duration retryDelay = Duration.ofSeconds(30);
+        when(cloudFoundryApi.getApplicationState(APP_UID))
+                .thenThrow(new CloudFoundryUnavailableException("applications.get", retryDelay));
+        //when task is run
+        applicationStopper.run();
+        //then it never stopped application
+        verify(cloudFoundryApi, never()).stopApplication(APP_UID);
+        //and task is rescheduled once the circuit may be closed again, not after a whole period
+        verify(applicationStopper, times(1)).reschedule(retryDelay);
+        verify(applicationStopper, never()).rescheduleWithDefaultPeriod();
+        //as a retry, that may wait for the other checks
+        assertThat(applicationStopper.getPriority(), is(equalTo(Priority.RETRY)));
+    }
+
     @Test
     public void test_test_start_execute_task() throws Exception {
         doAnswer(invocationOnMock -> {
@@ -330,4 +440,36 @@ public class ApplicationStopperTest {
         verify(applicationRepository, times(1)).save(any(ApplicationInfo.class));
     }
 
+    @Test
+    public void test_wake_is_recorded_when_application_was_restarted() throws Exception {
+        //given the application was put to sleep, then restarted
+        applicationInfo.markAsPutToSleep(Instant.now());
+        Instant restart = Instant.now().minus(INTERVAL.dividedBy(2));
+        givenRemoteActivity(restart, null, restart);
+        //when task is run
+        applicationStopper.run();
+        //then the wake is recorded
+        ArgumentCaptor<WakeStatistics> captor = ArgumentCaptor.forClass(WakeStatistics.class);
+        verify(wakeStatisticsRepository, times(1)).save(captor.capture());
+        assertThat(captor.getValue().getWakeCount(restart), is(equalTo(1)));
+    }
+
+    @Test
+    public void test_pre_wake_is_wasted_when_application_is_put_back_to_sleep() throws Exception {
+        //given the application was pre-woken, and did nothing since
+        WakeStatistics statistics = new WakeStatistics(APP_UID);
+        statistics.markAsPreWoken(Instant.now().minus(INTERVAL.multipliedBy(3)));
+        when(wakeStatisticsRepository.findOne(APP_UID)).thenReturn(statistics);
+        givenRemoteActivity(IDLE_SINCE, null, IDLE_SINCE);
+        when(cloudFoundryApi.listApplicationRoutes(APP_UID)).thenReturn(Arrays.asList("route_1"));
+        //when task is run
+        applicationStopper.run();
+        //then the application is put to sleep
+        verify(cloudFoundryApi, times(1)).stopApplication(APP_UID);
+        //and the pre-wake is counted as wasted
+        verify(counterService, times(1)).increment(ApplicationStopper.PRE_WAKE_WASTED_METRIC);
+        assertThat(statistics.getWastedPreWakes(), is(equalTo(1)));
+        assertThat(statistics.isPreWakePending(), is(false));
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,195 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.worker;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.SpaceIdentity;
+import org.cloudfoundry.autosleep.access.dao.model.OrgEnrollmentConfig;
+import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
+import org.cloudfoundry.autosleep.access.dao.repositories.OrgEnrollmentConfigRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.EnrollmentConfig.EnrollmentParameters.EnrollmentState;
+import org.cloudfoundry.autosleep.worker.scheduling.Clock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class OrgEnrollerTest {
+
+    private static final Duration INTERVAL = Duration.ofMillis(300);
+
+    private static final String ORGANIZATION_ID = "organization-id";
+
+    private static final String PLAN_ID = "plan-id";
+
+    @Mock
+    private Clock clock;
+
+    @Mock
+    private CloudFoundryApiService cloudFoundryApi;
+
+    private OrgEnroller orgEnroller;
+
+    @Mock
+    private OrgEnrollmentConfigRepository orgEnrollmentConfigRepository;
+
+    @Mock
+    private SpaceEnrollerConfigRepository spaceEnrollerConfigRepository;
+
+    @Before
+    public void buildMocks() throws CloudFoundryException {
+        when(clock.now()).thenAnswer(invocationOnMock -> Instant.now());
+        when(cloudFoundryApi.getServicePlanId(anyString(), anyString())).thenReturn(PLAN_ID);
+        when(cloudFoundryApi.listOrganizationSpaces(ORGANIZATION_ID)).thenReturn(Arrays.asList(
+                space("enrolled-space"),
+                space("new-space"),
+                space("excluded-space")));
+        when(spaceEnrollerConfigRepository.findAll()).thenReturn(Arrays.asList(
+                SpaceEnrollerConfig.builder()
+                        .id("service-id")
+                        .organizationId(ORGANIZATION_ID)
+                        .spaceId("enrolled-space")
+                        .build(),
+                SpaceEnrollerConfig.builder()
+                        .id("other-service-id")
+                        .organizationId("other-organization-id")
+                        .spaceId("new-space")
+                        .build()));
+
+        orgEnroller = spy(OrgEnroller.builder()
+                .clock(clock)
+                .period(INTERVAL)
+                .organizationGuid(ORGANIZATION_ID)
+                .cloudFoundryApi(cloudFoundryApi)
+                .orgEnrollmentConfigRepository(orgEnrollmentConfigRepository)
+                .spaceEnrollerConfigRepository(spaceEnrollerConfigRepository)
+                .serviceLabel(Config.ServiceCatalog.DEFAULT_SERVICE_BROKER_NAME)
+                .servicePlanUniqueId(Config.ServiceCatalog.DEFAULT_SERVICE_PLAN_ID)
+                .build());
+    }
+
+    private SpaceIdentity space(String id) {
+        return SpaceIdentity.builder()
+                .guid(id)
+                .name(id)
+                .build();
+    }
+
+    @Test
+    public void test_enroller_creates_instances_only_in_new_spaces() throws Exception {
+        //Given the organization is enrolled, excluding some spaces
+        when(orgEnrollmentConfigRepository.findOne(ORGANIZATION_ID)).thenReturn(OrgEnrollmentConfig.builder()
+                .organizationGuid(ORGANIZATION_ID)
+                .idleDuration(Duration.ofHours(2))
+                .excludeSpacesFromAutoEnrollment(Pattern.compile("excluded-.*"))
+                .autoEnrollment(Config.ServiceInstanceParameters.Enrollment.forced)
+                .state(EnrollmentState.enrolled)
+                .build());
+        when(cloudFoundryApi.createServiceInstances(anyListOf(String.class), eq(PLAN_ID), anyString(),
+                anyMapOf(String.class, Object.class)))
+                .thenReturn(Collections.singletonList("new-space"));
+        //When the task runs
+        orgEnroller.run();
+        //Then an instance is only created in the space neither enrolled nor excluded
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, Object>> parameters = ArgumentCaptor.forClass((Class) Map.class);
+        verify(cloudFoundryApi, times(1)).createServiceInstances(eq(Collections.singletonList("new-space")),
+                eq(PLAN_ID), eq(Config.ORG_ENROLLMENT_SERVICE_INSTANCE_NAME), parameters.capture());
+        //With the organization parameters
+        assertEquals("PT2H", parameters.getValue().get(Config.ServiceInstanceParameters.IDLE_DURATION));
+        assertEquals("forced", parameters.getValue().get(Config.ServiceInstanceParameters.AUTO_ENROLLMENT));
+        //But no secret, that the cloud controller would show to anyone reading the instance
+        assertFalse(parameters.getValue().containsKey(Config.ServiceInstanceParameters.SECRET));
+        //And it reschedules itself
+        verify(orgEnroller, times(1)).rescheduleWithDefaultPeriod();
+
+        //When it runs again
+        orgEnroller.run();
+        //Then the service plan is not looked up again
+        verify(cloudFoundryApi, times(1)).getServicePlanId(anyString(), anyString());
+    }
+
+    @Test
+    public void test_enroller_does_not_enroll_spaces_of_opted_out_organization() throws Exception {
+        //Given the organization opted out
+        when(orgEnrollmentConfigRepository.findOne(ORGANIZATION_ID)).thenReturn(OrgEnrollmentConfig.builder()
+                .organizationGuid(ORGANIZATION_ID)
+                .state(EnrollmentState.backoffice_opted_out)
+                .build());
+        //When the task runs
+        orgEnroller.run();
+        //Then no space is listed nor enrolled
+        verify(cloudFoundryApi, never()).listOrganizationSpaces(anyString());
+        verify(cloudFoundryApi, never()).createServiceInstances(anyListOf(String.class), anyString(), anyString(),
+                anyMapOf(String.class, Object.class));
+        //And it reschedules itself
+        verify(orgEnroller, times(1)).rescheduleWithDefaultPeriod();
+    }
+
+    @Test
+    public void test_enroller_stops_when_organization_is_not_enrolled_anymore() {
+        //Given the organization configuration was removed
+        when(orgEnrollmentConfigRepository.findOne(ORGANIZATION_ID)).thenReturn(null);
+        //When the task runs
+        orgEnroller.run();
+        //Then it removes itself
+        verify(clock, times(1)).removeTask(eq(OrgEnroller.TASK_ID_PREFIX + ORGANIZATION_ID));
+        verify(orgEnroller, never()).rescheduleWithDefaultPeriod();
+    }
+
+    @Test
+    public void test_enroller_reschedules_itself_when_remote_error_occurs() throws Exception {
+        //Given the organization is enrolled
+        when(orgEnrollmentConfigRepository.findOne(ORGANIZATION_ID)).thenReturn(OrgEnrollmentConfig.builder()
+                .organizationGuid(ORGANIZATION_ID)
+                .build());
+        //And its spaces cannot be listed
+        when(cloudFoundryApi.listOrganizationSpaces(ORGANIZATION_ID)).thenThrow(new CloudFoundryException(null));
+        //When the task runs
+        orgEnroller.run();
+        //Then it reschedules itself
+        verify(orgEnroller, times(1)).rescheduleWithDefaultPeriod();
+    }
+
+}
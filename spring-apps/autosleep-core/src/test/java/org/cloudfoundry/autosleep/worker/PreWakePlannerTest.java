@@ -0,0 +1,177 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.worker;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.model.WakeStatistics;
+import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.WakeStatisticsRepository;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.autosleep.util.ApplicationLocker;
+import org.cloudfoundry.autosleep.util.BeanGenerator;
+import org.cloudfoundry.autosleep.worker.scheduling.Clock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PreWakePlannerTest {
+
+    private static final String APP_UID = "9AF63B10-9D25-4162-9AD2-5AA8173FFC3B";
+
+    private static final Duration LEAD_TIME = Duration.ofMinutes(10);
+
+    @Mock
+    private ApplicationLocker applicationLocker;
+
+    @Mock
+    private ApplicationRepository applicationRepository;
+
+    @Mock
+    private Clock clock;
+
+    @Mock
+    private CloudFoundryApiService cloudFoundryApi;
+
+    @Mock
+    private CounterService counterService;
+
+    private PreWakePlanner planner;
+
+    @Mock
+    private ProxyMapEntryRepository proxyMap;
+
+    private WakeStatistics statistics;
+
+    @Mock
+    private WakeStatisticsRepository wakeStatisticsRepository;
+
+    @Before
+    public void buildMocks() throws Exception {
+        when(clock.now()).thenAnswer(invocationOnMock -> Instant.now());
+        doAnswer(invocationOnMock -> {
+            ((Runnable) invocationOnMock.getArguments()[1]).run();
+            return null;
+        }).when(applicationLocker).executeThreadSafe(anyString(), any(Runnable.class));
+
+        //the application is usually woken up in the coming minutes
+        statistics = new WakeStatistics(APP_UID);
+        Instant expectedRequest = Instant.now().plus(LEAD_TIME);
+        for (int week = 1; week <= Config.PRE_WAKE_MIN_OCCURRENCES; week++) {
+            statistics.recordWake(expectedRequest.minus(Duration.ofDays(7 * week)));
+        }
+        when(wakeStatisticsRepository.findAll()).thenReturn(Collections.singletonList(statistics));
+        when(wakeStatisticsRepository.findOne(APP_UID)).thenReturn(statistics);
+
+        ApplicationInfo applicationInfo = BeanGenerator.createAppInfoWithDiagnostic(APP_UID, "app",
+                CloudFoundryAppState.STOPPED);
+        applicationInfo.getEnrollmentState().addEnrollmentState("serviceId");
+        when(applicationRepository.findOne(APP_UID)).thenReturn(applicationInfo);
+        when(cloudFoundryApi.getApplicationState(APP_UID)).thenReturn(CloudFoundryAppState.STOPPED);
+        when(cloudFoundryApi.startApplication(APP_UID)).thenReturn(true);
+
+        planner = spy(PreWakePlanner.builder()
+                .applicationLocker(applicationLocker)
+                .applicationRepository(applicationRepository)
+                .clock(clock)
+                .cloudFoundryApi(cloudFoundryApi)
+                .counterService(counterService)
+                .leadTime(LEAD_TIME)
+                .period(Config.PRE_WAKE_PLANNER_PERIOD)
+                .proxyMap(proxyMap)
+                .wakeStatisticsRepository(wakeStatisticsRepository)
+                .build());
+    }
+
+    @Test
+    public void test_application_put_to_sleep_is_pre_woken() throws Exception {
+        //given the application was put to sleep by autosleep
+        when(proxyMap.countByAppId(APP_UID)).thenReturn(1L);
+        //when planner runs
+        planner.run();
+        //then the application is started
+        verify(cloudFoundryApi, times(1)).startApplication(APP_UID);
+        verify(proxyMap, times(1)).deleteByAppId(APP_UID);
+        verify(counterService, times(1)).increment(PreWakePlanner.PRE_WAKE_METRIC);
+        //and the pre-wake waits for its outcome
+        assertThat(statistics.isPreWakePending(), is(true));
+        verify(wakeStatisticsRepository, times(1)).save(statistics);
+        //and the planner runs again later
+        verify(planner, times(1)).rescheduleWithDefaultPeriod();
+    }
+
+    @Test
+    public void test_application_not_put_to_sleep_is_not_pre_woken() throws Exception {
+        //given the application has no route mapped to the proxy
+        when(proxyMap.countByAppId(APP_UID)).thenReturn(0L);
+        //when planner runs
+        planner.run();
+        //then the application is not started
+        verify(cloudFoundryApi, never()).startApplication(APP_UID);
+        verify(planner, times(1)).rescheduleWithDefaultPeriod();
+    }
+
+    @Test
+    public void test_application_already_running_is_not_pre_woken() throws Exception {
+        //given the application was put to sleep by autosleep but started meanwhile
+        when(proxyMap.countByAppId(APP_UID)).thenReturn(1L);
+        when(cloudFoundryApi.getApplicationState(APP_UID)).thenReturn(CloudFoundryAppState.STARTED);
+        //when planner runs
+        planner.run();
+        //then the application is neither started nor counted as pre-woken
+        verify(cloudFoundryApi, never()).startApplication(APP_UID);
+        verify(proxyMap, never()).deleteByAppId(APP_UID);
+        verify(counterService, never()).increment(PreWakePlanner.PRE_WAKE_METRIC);
+        assertThat(statistics.isPreWakePending(), is(false));
+        verify(planner, times(1)).rescheduleWithDefaultPeriod();
+    }
+
+    @Test
+    public void test_application_is_pre_woken_once() throws Exception {
+        //given the application was already pre-woken
+        when(proxyMap.countByAppId(APP_UID)).thenReturn(1L);
+        statistics.markAsPreWoken(Instant.now());
+        //when planner runs
+        planner.run();
+        //then the application is not started again
+        verify(cloudFoundryApi, never()).startApplication(APP_UID);
+    }
+
+}
@@ -21,10 +21,12 @@ package org.cloudfoundry.autosleep.worker;
 
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationAuditEvent;
 import org.cloudfoundry.autosleep.access.cloudfoundry.model.ApplicationIdentity;
 import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
+import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.DeployedApplicationConfig;
 import org.cloudfoundry.autosleep.util.BeanGenerator;
 import org.cloudfoundry.autosleep.worker.scheduling.Clock;
@@ -32,18 +34,25 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentMatcher;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
 
 import java.time.Duration;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
 import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
@@ -77,9 +86,15 @@ public class SpaceEnrollerTest {
     @Mock
     private CloudFoundryApiService cloudFoundryApi;
 
+    @Mock
+    private CounterService counterService;
+
     @Mock
     private DeployedApplicationConfig.Deployment deployment;
 
+    @Mock
+    private GaugeService gaugeService;
+
     private List<String> remoteApplicationIds = Arrays.asList(UUID.randomUUID().toString(),
             UUID.randomUUID().toString(),
             NEW_APP_ID,
@@ -103,8 +118,34 @@ public class SpaceEnrollerTest {
         };
     }
 
+    private ApplicationAuditEvent auditEvent(String applicationId, String type, Instant timestamp) {
+        return ApplicationAuditEvent.builder()
+                .application(ApplicationIdentity.builder()
+                        .guid(applicationId)
+                        .name(applicationId)
+                        .build())
+                .timestamp(timestamp)
+                .type(type)
+                .build();
+    }
+
+    private Answer<List<ApplicationIdentity>> aliveApplicationsAmong(List<String> applicationIds) {
+        return invocation -> {
+            @SuppressWarnings("unchecked")
+            Predicate<String> isCandidate = (Predicate<String>) invocation.getArguments()[2];
+            return applicationIds.stream()
+                    .filter(isCandidate)
+                    .map(applicationId -> ApplicationIdentity.builder()
+                            .guid(applicationId)
+                            .name(applicationId)
+                            .build())
+                    .collect(Collectors.toList());
+        };
+    }
+
     @Before
     public void buildMocks() throws CloudFoundryException {
+        when(clock.now()).thenAnswer(invocationOnMock -> Instant.now());
         //default
         when(spaceEnrollerConfig.getSpaceId()).thenReturn(SPACE_ID);
         when(spaceEnrollerConfig.getId()).thenReturn(SERVICE_ID);
@@ -119,6 +160,8 @@ public class SpaceEnrollerTest {
                 .cloudFoundryApi(cloudFoundryApi)
                 .applicationRepository(applicationRepository)
                 .deployment(deployment)
+                .counterService(counterService)
+                .gaugeService(gaugeService)
                 .build());
     }
 
@@ -136,13 +179,8 @@ public class SpaceEnrollerTest {
                         SERVICE_ID + "-other"))
                 .collect(Collectors.toList()));
         //And cloudfoundry applications contain the same applications
-        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), eq(null)))
-                .thenReturn(remoteApplicationIds.stream()
-                        .map(applicationId -> ApplicationIdentity.builder()
-                                .guid(applicationId)
-                                .name(applicationId)
-                                .build())
-                        .collect(Collectors.toList()));
+        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), eq(null), Matchers.<Predicate<String>>any()))
+                .then(aliveApplicationsAmong(remoteApplicationIds));
         //When we run the task
         spaceEnroller.run();
         //Then it reschedule itself
@@ -168,13 +206,8 @@ public class SpaceEnrollerTest {
                         SERVICE_ID))
                 .collect(Collectors.toList()));
         //And cloudfoundry applications contain the all applications
-        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), eq(null)))
-                .thenReturn(remoteApplicationIds.stream()
-                        .map(applicationId -> ApplicationIdentity.builder()
-                                .guid(applicationId)
-                                .name(applicationId)
-                                .build())
-                        .collect(Collectors.toList()));
+        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), eq(null), Matchers.<Predicate<String>>any()))
+                .then(aliveApplicationsAmong(remoteApplicationIds));
         //When we run the task
         spaceEnroller.run();
         //Then it reschedule itself
@@ -182,7 +215,161 @@ public class SpaceEnrollerTest {
         //Normally cloudfoundry app has been bound
         verify(cloudFoundryApi, times(1))
                 .bindApplications(anyString(), argThat(anyListOfSize(1)));
+        //And counted as enrolled, along with the duration of the scan
+        verify(counterService, times(1)).increment(SpaceEnroller.ENROLLED_METRIC);
+        verify(gaugeService, times(1)).submit(eq(SpaceEnroller.SCAN_DURATION_METRIC), anyDouble());
+
+    }
+
+    @Test
+    public void test_enroller_binds_applications_from_audit_events_between_reconciliations() throws Exception {
+        final Duration eventPeriod = Duration.ofMillis(10);
+        final String deletedAppId = UUID.randomUUID().toString();
+        final String createdAppId = UUID.randomUUID().toString();
+        SpaceEnroller incrementalEnroller = spy(SpaceEnroller.builder()
+                .clock(clock)
+                .period(INTERVAL)
+                .eventPeriod(eventPeriod)
+                .spaceEnrollerConfigId(SERVICE_ID)
+                .spaceEnrollerConfigRepository(spaceEnrollerConfigRepository)
+                .cloudFoundryApi(cloudFoundryApi)
+                .applicationRepository(applicationRepository)
+                .deployment(deployment)
+                .counterService(counterService)
+                .gaugeService(gaugeService)
+                .build());
+        //Given the service exist
+        when(spaceEnrollerConfigRepository.findOne(eq(SERVICE_ID))).thenReturn(spaceEnrollerConfig);
+        //And every application but the new one is already known
+        when(applicationRepository.findAll()).thenReturn(Collections.emptyList());
+        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), eq(null), Matchers.<Predicate<String>>any()))
+                .thenReturn(Collections.emptyList());
+        //And audit events tell the new application started, another one was created but never started, and a third
+        //one was created then deleted
+        Instant lastEventTimestamp = Instant.now();
+        when(cloudFoundryApi.listApplicationAuditEvents(eq(SPACE_ID), any(Instant.class)))
+                .thenReturn(Arrays.asList(
+                        auditEvent(NEW_APP_ID, Config.CloudFoundryAuditEvent.APP_START, lastEventTimestamp),
+                        auditEvent(createdAppId, Config.CloudFoundryAuditEvent.APP_CREATE, lastEventTimestamp),
+                        auditEvent(deletedAppId, Config.CloudFoundryAuditEvent.APP_CREATE, lastEventTimestamp),
+                        auditEvent(deletedAppId, Config.CloudFoundryAuditEvent.APP_DELETE_REQUEST,
+                                lastEventTimestamp)));
+        //And only the started application is alive
+        when(cloudFoundryApi.filterAliveApplications(anyListOf(ApplicationIdentity.class)))
+                .thenAnswer(invocation -> {
+                    @SuppressWarnings("unchecked")
+                    List<ApplicationIdentity> applications = (List<ApplicationIdentity>) invocation.getArguments()[0];
+                    return applications.stream()
+                            .filter(application -> NEW_APP_ID.equals(application.getGuid()))
+                            .collect(Collectors.toList());
+                });
+
+        //When the task runs twice
+        incrementalEnroller.run();
+        incrementalEnroller.run();
+
+        //Then the space was listed once, on first run
+        verify(cloudFoundryApi, times(1))
+                .listAliveApplications(eq(SPACE_ID), eq(null), Matchers.<Predicate<String>>any());
+        verify(cloudFoundryApi, times(1)).listApplicationAuditEvents(eq(SPACE_ID), any(Instant.class));
+        //And the applications not deleted were checked alive, as in a full listing
+        verify(cloudFoundryApi, times(1)).filterAliveApplications(argThat(anyListOfSize(2)));
+        //And only the started application was bound
+        verify(cloudFoundryApi, times(1)).bindApplications(eq(SERVICE_ID),
+                argThat(new ArgumentMatcher<List<ApplicationIdentity>>() {
+
+                    @Override
+                    public boolean matches(Object object) {
+                        List<?> applications = List.class.cast(object);
+                        return applications.size() == 1
+                                && NEW_APP_ID.equals(((ApplicationIdentity) applications.get(0)).getGuid());
+                    }
+                }));
+        //And the task polls events at their own period
+        verify(incrementalEnroller, times(2)).reschedule(eq(eventPeriod));
+
+        //When it runs again
+        incrementalEnroller.run();
+        //Then events are read from the last one seen
+        verify(cloudFoundryApi, times(1)).listApplicationAuditEvents(eq(SPACE_ID), eq(lastEventTimestamp));
+    }
 
+    @Test
+    public void test_enroller_binds_again_applications_whose_binding_failed() throws Exception {
+        ApplicationIdentity failingApplication = ApplicationIdentity.builder()
+                .guid(NEW_APP_ID)
+                .name(NEW_APP_ID)
+                .build();
+        //Given the service exist
+        when(spaceEnrollerConfigRepository.findOne(eq(SERVICE_ID))).thenReturn(spaceEnrollerConfig);
+        when(applicationRepository.findAll()).thenReturn(Collections.emptyList());
+        //And the new application is only listed once
+        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), eq(null), Matchers.<Predicate<String>>any()))
+                .thenReturn(Arrays.asList(failingApplication, ApplicationIdentity.builder()
+                        .guid(APP_ID + "-other")
+                        .name(APP_ID + "-other")
+                        .build()))
+                .thenReturn(Collections.emptyList());
+        //And its binding fails once
+        when(cloudFoundryApi.bindApplications(eq(SERVICE_ID), anyListOf(ApplicationIdentity.class)))
+                .thenReturn(Collections.singletonList(failingApplication))
+                .thenReturn(Collections.emptyList());
+
+        //When the task runs three times
+        spaceEnroller.run();
+        spaceEnroller.run();
+        spaceEnroller.run();
+
+        //Then the failed application was bound again on second run, and only then
+        verify(cloudFoundryApi, times(1)).bindApplications(eq(SERVICE_ID), argThat(anyListOfSize(2)));
+        verify(cloudFoundryApi, times(1)).bindApplications(eq(SERVICE_ID),
+                eq(Collections.singletonList(failingApplication)));
+    }
+
+    @Test
+    public void test_enroller_gives_up_binding_applications_whose_binding_always_fails() throws Exception {
+        SpaceEnroller incrementalEnroller = spy(SpaceEnroller.builder()
+                .clock(clock)
+                .period(INTERVAL)
+                .eventPeriod(Duration.ofMillis(10))
+                .spaceEnrollerConfigId(SERVICE_ID)
+                .spaceEnrollerConfigRepository(spaceEnrollerConfigRepository)
+                .cloudFoundryApi(cloudFoundryApi)
+                .applicationRepository(applicationRepository)
+                .deployment(deployment)
+                .counterService(counterService)
+                .gaugeService(gaugeService)
+                .build());
+        //Given time does not pass, the next reconciliation never being due
+        Instant now = Instant.now();
+        when(clock.now()).thenReturn(now);
+        //And the service exist
+        when(spaceEnrollerConfigRepository.findOne(eq(SERVICE_ID))).thenReturn(spaceEnrollerConfig);
+        when(applicationRepository.findAll()).thenReturn(Collections.emptyList());
+        //And a new application is listed
+        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), eq(null), Matchers.<Predicate<String>>any()))
+                .thenReturn(Collections.singletonList(ApplicationIdentity.builder()
+                        .guid(NEW_APP_ID)
+                        .name(NEW_APP_ID)
+                        .build()));
+        //And it can never be bound
+        doThrow(new CloudFoundryException("failed binding all of 1 objects", null))
+                .when(cloudFoundryApi)
+                .bindApplications(eq(SERVICE_ID), anyListOf(ApplicationIdentity.class));
+
+        //When the task runs once more than the maximum attempts
+        for (int run = 0; run <= Config.ENROLLMENT_BIND_MAX_ATTEMPTS; run++) {
+            incrementalEnroller.run();
+        }
+
+        //Then the space was listed once, later runs reading events only
+        verify(cloudFoundryApi, times(1))
+                .listAliveApplications(eq(SPACE_ID), eq(null), Matchers.<Predicate<String>>any());
+        verify(cloudFoundryApi, times(Config.ENROLLMENT_BIND_MAX_ATTEMPTS))
+                .listApplicationAuditEvents(eq(SPACE_ID), any(Instant.class));
+        //And the application was bound again until the maximum attempts only
+        verify(cloudFoundryApi, times(Config.ENROLLMENT_BIND_MAX_ATTEMPTS))
+                .bindApplications(eq(SERVICE_ID), argThat(anyListOfSize(1)));
     }
 
     @Test
@@ -209,13 +396,8 @@ public class SpaceEnrollerTest {
                         SERVICE_ID))
                 .collect(Collectors.toList()));
         //And cloudfoundry applications contain the all applications
-        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), any(Pattern.class)))
-                .thenReturn(remoteApplicationIds.stream()
-                        .map(applicationId -> ApplicationIdentity.builder()
-                                .guid(applicationId)
-                                .name(applicationId)
-                                .build())
-                        .collect(Collectors.toList()));
+        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), any(Pattern.class), Matchers.<Predicate<String>>any()))
+                .then(aliveApplicationsAmong(remoteApplicationIds));
         //When we run the task
         spaceEnroller.run();
         //Then it reschedule itself
@@ -234,13 +416,8 @@ public class SpaceEnrollerTest {
         //And local repository is empty
         when(applicationRepository.findAll()).thenReturn(Collections.emptyList());
         //And list of application returns some applications
-        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), any(Pattern.class)))
-                .thenReturn(remoteApplicationIds.stream()
-                        .map(applicationId -> ApplicationIdentity.builder()
-                                .guid(applicationId)
-                                .name(applicationId)
-                                .build())
-                        .collect(Collectors.toList()));
+        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), any(Pattern.class), Matchers.<Predicate<String>>any()))
+                .then(aliveApplicationsAmong(remoteApplicationIds));
         //And binding will throw an error
         doThrow(new CloudFoundryException(
                 new org.cloudfoundry.client.v2.ClientV2Exception(null, 666, "", "")))
@@ -260,7 +437,7 @@ public class SpaceEnrollerTest {
         //And local repository is empty
         when(applicationRepository.findAll()).thenReturn(Collections.emptyList());
         //And list of application will fail
-        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), any(Pattern.class)))
+        when(cloudFoundryApi.listAliveApplications(eq(SPACE_ID), any(Pattern.class), Matchers.<Predicate<String>>any()))
                 .thenThrow(new CloudFoundryException(null));
         //When task is run
         spaceEnroller.run();
@@ -23,10 +23,13 @@ import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.DeployedApplicationConfig;
 import org.cloudfoundry.autosleep.access.dao.model.Binding;
+import org.cloudfoundry.autosleep.access.dao.model.OrgEnrollmentConfig;
 import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
 import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.BindingRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.OrgEnrollmentConfigRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.WakeStatisticsRepository;
 import org.cloudfoundry.autosleep.util.ApplicationLocker;
 import org.cloudfoundry.autosleep.util.BeanGenerator;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
@@ -37,14 +40,19 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Spy;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.core.env.Environment;
 
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -75,9 +83,18 @@ public class WorkerManagerTest {
     @Mock
     private CloudFoundryApiService cloudFoundryApi;
 
+    @Mock
+    private CounterService counterService;
+
     @Mock
     private DeployedApplicationConfig.Deployment deployment;
 
+    @Mock
+    private Environment env;
+
+    @Mock
+    private GaugeService gaugeService;
+
     @Mock
     private ApplicationRepository mockAppRepo;
 
@@ -90,6 +107,12 @@ public class WorkerManagerTest {
     @Mock
     private SpaceEnrollerConfigRepository mockServiceRepo;
 
+    @Mock
+    private OrgEnrollmentConfigRepository orgEnrollmentConfigRepository;
+
+    @Mock
+    private WakeStatisticsRepository wakeStatisticsRepository;
+
     private List<UUID> remoteApplications = Arrays.asList(UUID.randomUUID(), UUID.randomUUID());
 
     private List<String> serviceIds = Arrays.asList("serviceId1", "serviceId2");
@@ -124,7 +147,8 @@ public class WorkerManagerTest {
                 .collect(Collectors.toList());
         when(mockServiceRepo.findAll()).thenReturn(fakeServices);
 
-        when(cloudFoundryApi.listAliveApplications(any(String.class), any(Pattern.class)))
+        when(cloudFoundryApi.listAliveApplications(any(String.class), any(Pattern.class),
+                Matchers.<Predicate<String>>any()))
                 .thenReturn(remoteApplications.stream()
                         .map(id -> ApplicationIdentity.builder()
                                 .guid(id.toString())
@@ -140,6 +164,22 @@ public class WorkerManagerTest {
         verify(spyWatcher, times(unattachedBinding.size()))
                 .registerApplicationStopper(any(SpaceEnrollerConfig.class), anyString(), anyString());
         verify(spyWatcher, times(serviceIds.size())).registerSpaceEnroller(any(SpaceEnrollerConfig.class));
+        verify(orgEnrollmentConfigRepository, times(1)).findAll();
+    }
+
+    @Test
+    public void test_pre_wake_planner_is_scheduled_when_lead_time_configured() {
+        when(env.getProperty(Config.EnvKey.PRE_WAKE_LEAD_TIME)).thenReturn("PT10M");
+        spyWatcher.init();
+        verify(clock).scheduleTask(eq(PreWakePlanner.TASK_ID), eq(Config.DELAY_BEFORE_FIRST_SERVICE_CHECK),
+                any(PreWakePlanner.class));
+    }
+
+    @Test
+    public void test_pre_wake_planner_is_not_scheduled_by_default() {
+        spyWatcher.init();
+        verify(clock, times(0)).scheduleTask(eq(PreWakePlanner.TASK_ID), any(Duration.class),
+                any(PreWakePlanner.class));
     }
 
     @Test
@@ -150,6 +190,16 @@ public class WorkerManagerTest {
                 any(SpaceEnroller.class));
     }
 
+    @Test
+    public void test_org_enrollment_task_is_scheduled() throws Exception {
+        String organizationGuid = "organization-guid";
+        spyWatcher.registerOrgEnroller(OrgEnrollmentConfig.builder()
+                .organizationGuid(organizationGuid)
+                .build());
+        verify(clock).scheduleTask(eq(OrgEnroller.TASK_ID_PREFIX + organizationGuid), eq(Duration.ofSeconds(0)),
+                any(OrgEnroller.class));
+    }
+
     @Test
     public void test_task_of_stop_is_scheduled() {
         SpaceEnrollerConfig config = BeanGenerator.createServiceInstance();
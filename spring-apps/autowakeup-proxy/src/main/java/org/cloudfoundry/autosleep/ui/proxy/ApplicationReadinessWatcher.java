@@ -0,0 +1,213 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.ui.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.util.TimeManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Waits for a waking application to have a running instance. Checks are done with an exponential backoff, starting
+ * fast as most of the applications start in a few seconds. When enabled, the application log stream is listened to
+ * so that the first readiness log interrupts the current wait. The requests parked meanwhile are counted.
+ * <p>
+ * A wake runs once per application at a time in this instance: the requests reaching the application meanwhile wait
+ * for its outcome.
+ */
+@Component
+@Slf4j
+public class ApplicationReadinessWatcher implements PublicMetrics {
+
+    /**
+     * Wake of an application, starting it or waiting for someone else to.
+     */
+    @FunctionalInterface
+    interface Wake {
+
+        /**
+         * Run the wake.
+         *
+         * @return true if the application is running before the deadline of the wake
+         */
+        boolean run() throws CloudFoundryException, InterruptedException;
+    }
+
+    static final String LOG_STREAM_ENABLED_KEY = "autowakeup.readiness.log.stream";
+
+    static final String PARKED_REQUESTS_METRIC = "autowakeup.requests.parked";
+
+    static final String WAKE_LATENCY_METRIC = "histogram.autowakeup.wake.latency";
+
+    @Autowired
+    private CloudFoundryApiService cfApi;
+
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private GaugeService gaugeService;
+
+    private final AtomicInteger parkedRequests = new AtomicInteger();
+
+    @Autowired
+    private TimeManager timeManager;
+
+    private final ConcurrentMap<String, CompletableFuture<Boolean>> wakes = new ConcurrentHashMap<>();
+
+    /**
+     * Wait for an application, already started by someone else, to be running.
+     *
+     * @return false if the application is still not running at the deadline
+     */
+    public boolean awaitRunning(String appId, Instant deadline) throws CloudFoundryException, InterruptedException {
+        return awaitRunning(appId, deadline, false);
+    }
+
+    private boolean awaitRunning(String appId, Instant deadline, boolean startFirst)
+            throws CloudFoundryException, InterruptedException {
+        Instant wakeStart = timeManager.now();
+        //listen before starting, not to miss the readiness log
+        CompletableFuture<Void> readinessLog = isLogStreamEnabled() ? cfApi.watchApplicationReadiness(appId) : null;
+        parkedRequests.incrementAndGet();
+        try {
+            if (startFirst) {
+                log.info("Starting app [{}]", appId);
+                cfApi.startApplication(appId);
+            }
+            Duration period = Config.READINESS_CHECK_INITIAL_PERIOD;
+            while (!cfApi.isAppRunning(appId)) {
+                Duration remaining = Duration.between(timeManager.now(), deadline);
+                if (remaining.isNegative() || remaining.isZero()) {
+                    log.debug("app {} still not running at {}", appId, deadline);
+                    return false;
+                }
+                log.debug("waiting {} for app {} restart...", period, appId);
+                waitFor(readinessLog, period.compareTo(remaining) < 0 ? period : remaining);
+                period = nextPeriod(period);
+            }
+        } finally {
+            parkedRequests.decrementAndGet();
+            if (readinessLog != null) {
+                readinessLog.cancel(true);
+            }
+        }
+        long latency = Duration.between(wakeStart, timeManager.now()).toMillis();
+        log.debug("app {} running after {} ms", appId, latency);
+        gaugeService.submit(WAKE_LATENCY_METRIC, latency);
+        return true;
+    }
+
+    /**
+     * Run the wake of an application, unless one is already in progress in this instance, in which case wait for its
+     * outcome instead.
+     *
+     * @return true if the application is running before the deadline
+     */
+    public boolean awaitWake(String appId, Instant deadline, Wake wake)
+            throws CloudFoundryException, InterruptedException {
+        CompletableFuture<Boolean> inProgress = new CompletableFuture<>();
+        CompletableFuture<Boolean> previous = wakes.putIfAbsent(appId, inProgress);
+        if (previous == null) {
+            try {
+                boolean running = wake.run();
+                inProgress.complete(running);
+                return running;
+            } catch (CloudFoundryException | InterruptedException | RuntimeException e) {
+                inProgress.completeExceptionally(e);
+                throw e;
+            } finally {
+                wakes.remove(appId, inProgress);
+            }
+        }
+        log.debug("app {} is being woken by another request", appId);
+        parkedRequests.incrementAndGet();
+        try {
+            return previous.get(Math.max(0, Duration.between(timeManager.now(), deadline).toMillis()),
+                    TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            log.warn("wake of app {} failed", appId, e.getCause());
+            return false;
+        } finally {
+            parkedRequests.decrementAndGet();
+        }
+    }
+
+    private boolean isLogStreamEnabled() {
+        return env.getProperty(LOG_STREAM_ENABLED_KEY, Boolean.class, Boolean.FALSE);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Collections.singletonList(new Metric<>(PARKED_REQUESTS_METRIC, parkedRequests.get()));
+    }
+
+    static Duration nextPeriod(Duration period) {
+        Duration next = period.multipliedBy(Config.READINESS_CHECK_BACKOFF_FACTOR);
+        return next.compareTo(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART) > 0
+                ? Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART : next;
+    }
+
+    /**
+     * Start a stopped application and wait for it to be running.
+     *
+     * @return false if the application is still not running at the deadline
+     */
+    public boolean startAndAwaitRunning(String appId, Instant deadline)
+            throws CloudFoundryException, InterruptedException {
+        return awaitRunning(appId, deadline, true);
+    }
+
+    private void waitFor(CompletableFuture<Void> readinessLog, Duration period) throws InterruptedException {
+        if (readinessLog == null || readinessLog.isDone()) {
+            timeManager.sleep(period);
+        } else {
+            try {
+                readinessLog.get(period.toMillis(), TimeUnit.MILLISECONDS);
+                log.debug("readiness log received");
+            } catch (TimeoutException ignored) {
+                //no readiness log during this period, check again
+            } catch (ExecutionException e) {
+                log.warn("log stream failed, falling back to polling", e.getCause());
+            }
+        }
+    }
+
+}
@@ -28,6 +28,7 @@ import org.cloudfoundry.autosleep.config.Config.Path;
 import org.cloudfoundry.autosleep.util.TimeManager;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.RequestEntity;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
@@ -37,6 +38,7 @@ import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.client.RestTemplate;
 
 import java.net.URI;
+import java.time.Instant;
 
 @Controller
 @RequestMapping(Path.PROXY_CONTEXT)
@@ -64,9 +66,18 @@ public class ProxyController {
     @Autowired
     RestTemplate restTemplate;
 
+    @Autowired
+    private ApplicationReadinessWatcher readinessWatcher;
+
     @Autowired
     private TimeManager timeManager;
 
+    @Autowired
+    private WakeGroupStarter wakeGroupStarter;
+
+    @Autowired
+    private WakeLeaseManager wakeLeaseManager;
+
     @RequestMapping(value = "/{appGuidToRestart}", headers = {HEADER_FORWARD_URL})
     @ResponseBody
     ResponseEntity<?> proxify(@PathVariable("appGuidToRestart") String appId, RequestEntity<byte[]> request)
@@ -74,14 +85,17 @@ public class ProxyController {
 
         log.debug("Incoming HTTP request for app {} : {}", appId, request);
 
+        Instant deadline = timeManager.now().plus(Config.WAKE_TIMEOUT);
+        boolean running;
         if (!CloudFoundryAppState.STARTED.equals(cfApi.getApplicationState(appId))) {
-            cfApi.startApplication(appId);
-            timeManager.sleep(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
+            running = wakeLeaseManager.wake(appId, deadline, () -> wakeGroupStarter.startOtherMembers(appId));
+        } else {
+            running = readinessWatcher.awaitRunning(appId, deadline);
         }
-        while (!CloudFoundryAppState.STARTED.equals(cfApi.getApplicationState(appId))) {
-            log.debug("waiting for app {} restart...", appId);
-            timeManager.sleep(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
-            //TODO add timeout that would log error and reset semaphore?
+        if (!running) {
+            log.warn("App [{}] still not running after {}", appId, Config.WAKE_TIMEOUT);
+            return new ResponseEntity<>("The app is starting, please retry in few seconds",
+                    HttpStatus.SERVICE_UNAVAILABLE);
         }
 
         //unqueue traffic
@@ -0,0 +1,121 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.ui.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.model.Binding.ResourceType;
+import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Starts the other members of the wake groups of a woken application, so that they restart concurrently with it
+ * instead of one after the other as requests reach them. Starts are sent from a pool of its own, not to hold the
+ * request waking the application.
+ */
+@Component
+@Slf4j
+public class WakeGroupStarter {
+
+    @Autowired
+    private ApplicationRepository applicationRepository;
+
+    @Autowired
+    private CloudFoundryApiService cfApi;
+
+    @Autowired
+    private SpaceEnrollerConfigRepository spaceEnrollerConfigRepository;
+
+    private final ThreadPoolExecutor starters = buildStarters();
+
+    @Autowired
+    private WakeLeaseManager wakeLeaseManager;
+
+    private static ThreadPoolExecutor buildStarters() {
+        ThreadPoolExecutor starters = new ThreadPoolExecutor(Config.WAKE_GROUP_START_THREADS,
+                Config.WAKE_GROUP_START_THREADS, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>(Config.WAKE_GROUP_START_QUEUE_CAPACITY),
+                (start, executor) -> log.warn("Too many wake group members starting, one left to its own traffic"));
+        starters.allowCoreThreadTimeOut(true);
+        return starters;
+    }
+
+    /**
+     * Only the applications bound to the service instances of the woken one are read.
+     */
+    List<String> findOtherMembers(String appId) {
+        ApplicationInfo applicationInfo = applicationRepository.findOne(appId);
+        if (applicationInfo == null) {
+            return Collections.emptyList();
+        }
+        return spaceEnrollerConfigRepository.findBoundToResource(appId, ResourceType.Application).stream()
+                .filter(config -> config.isWakeGroupMember(applicationInfo))
+                .flatMap(config -> applicationRepository
+                        .findBoundToServiceInstance(config.getId(), ResourceType.Application).stream()
+                        .filter(config::isWakeGroupMember))
+                .map(ApplicationInfo::getUuid)
+                .filter(memberId -> !appId.equals(memberId))
+                .distinct()
+                .collect(Collectors.toList());
+    }
+
+    @PreDestroy
+    void shutdown() {
+        starters.shutdownNow();
+    }
+
+    private void startMember(String memberId) {
+        if (!wakeLeaseManager.tryAcquire(memberId)) {
+            log.debug("App [{}] is being started by another proxy instance", memberId);
+            return;
+        }
+        try {
+            if (CloudFoundryAppState.STOPPED.equals(cfApi.getApplicationState(memberId))) {
+                log.info("Starting app [{}] with its wake group", memberId);
+                cfApi.startApplication(memberId);
+            }
+        } catch (CloudFoundryException c) {
+            log.error("Couldn't start wake group member " + memberId, c);
+        } finally {
+            wakeLeaseManager.release(memberId);
+        }
+    }
+
+    /**
+     * Request the start of the sleeping members of the wake groups of an application, without waiting for them.
+     */
+    public void startOtherMembers(String appId) {
+        findOtherMembers(appId).forEach(memberId -> starters.execute(() -> startMember(memberId)));
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.ui.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.dao.model.WakeLease;
+import org.cloudfoundry.autosleep.access.dao.repositories.WakeLeaseRepository;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.autosleep.util.TimeManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Elects, among all the proxy instances, the one that starts a sleeping application. The others only wait for it to
+ * be running, and take the lease over once released or expired, should the owner fail to start it.
+ */
+@Component
+@Slf4j
+public class WakeLeaseManager {
+
+    @Autowired
+    private CloudFoundryApiService cfApi;
+
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private WakeLeaseRepository leaseRepository;
+
+    @Autowired
+    private ApplicationReadinessWatcher readinessWatcher;
+
+    @Autowired
+    private TimeManager timeManager;
+
+    String owner;
+
+    @PostConstruct
+    void init() {
+        owner = env.getProperty(Config.EnvKey.CF_INSTANCE_GUID, UUID.randomUUID().toString());
+    }
+
+    public void release(String appId) {
+        leaseRepository.release(appId, owner);
+    }
+
+    /**
+     * Try to own the wake of an application.
+     *
+     * @return true if this instance owns the lease, either a new one or a previously expired one
+     */
+    public boolean tryAcquire(String appId) {
+        long now = Instant.now().toEpochMilli();
+        long expiration = now + Config.WAKE_LEASE_DURATION.toMillis();
+        if (leaseRepository.takeOver(appId, owner, now, expiration) > 0) {
+            log.debug("lease on {} taken over", appId);
+            return true;
+        }
+        try {
+            leaseRepository.saveAndFlush(WakeLease.builder()
+                    .appId(appId)
+                    .owner(owner)
+                    .expiration(expiration)
+                    .build());
+            log.debug("lease on {} acquired", appId);
+            return true;
+        } catch (DataIntegrityViolationException e) {
+            log.debug("lease on {} already held", appId);
+            return false;
+        }
+    }
+
+    /**
+     * Wake a sleeping application, once per application at a time in this instance.
+     *
+     * @param beforeStart run before starting the application, by the owner of its lease
+     * @return true if the application is running before the deadline
+     */
+    public boolean wake(String appId, Instant deadline, Runnable beforeStart)
+            throws CloudFoundryException, InterruptedException {
+        return readinessWatcher.awaitWake(appId, deadline, () -> {
+            while (true) {
+                if (tryAcquire(appId)) {
+                    try {
+                        if (CloudFoundryAppState.STOPPED.equals(cfApi.getApplicationState(appId))) {
+                            beforeStart.run();
+                            return readinessWatcher.startAndAwaitRunning(appId, deadline);
+                        }
+                        return readinessWatcher.awaitRunning(appId, deadline);
+                    } finally {
+                        release(appId);
+                    }
+                }
+                log.info("App [{}] is being started by another proxy instance", appId);
+                Instant retry = timeManager.now().plus(Config.WAKE_LEASE_RETRY_PERIOD);
+                if (!retry.isBefore(deadline)) {
+                    return readinessWatcher.awaitRunning(appId, deadline);
+                }
+                if (readinessWatcher.awaitRunning(appId, retry)) {
+                    return true;
+                }
+            }
+        });
+    }
+
+}
@@ -23,9 +23,12 @@ import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
 import org.cloudfoundry.autosleep.access.dao.model.ProxyMapEntry;
+import org.cloudfoundry.autosleep.access.dao.model.WakeStatistics;
 import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.WakeStatisticsRepository;
 import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.autosleep.util.FlightRecorderEvent;
 import org.cloudfoundry.autosleep.util.TimeManager;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
@@ -49,6 +52,7 @@ import java.net.URI;
 import java.net.UnknownHostException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -81,6 +85,15 @@ public class WildcardProxy {
     @Autowired
     private TimeManager timeManager;
 
+    @Autowired
+    private WakeGroupStarter wakeGroupStarter;
+
+    @Autowired
+    private WakeLeaseManager wakeLeaseManager;
+
+    @Autowired
+    private WakeStatisticsRepository wakeStatisticsRepository;
+
     private RequestEntity<?> getOutgoingRequest(RequestEntity<?> incoming, URI destination) {
         HttpHeaders headers = new HttpHeaders();
         headers.putAll(incoming.getHeaders());
@@ -110,10 +123,19 @@ public class WildcardProxy {
 
     }
 
-    @RequestMapping(headers = {HEADER_PROTOCOL, HEADER_HOST})
-    ResponseEntity<?> proxify(@RequestHeader(HEADER_HOST) String targetHost,
-                              RequestEntity<byte[]> incoming,
-                              HttpServletRequest request) throws InterruptedException, CloudFoundryException {
+    private void recordWake(String appId) {
+        WakeStatistics statistics = wakeStatisticsRepository.findOne(appId);
+        if (statistics == null) {
+            statistics = new WakeStatistics(appId);
+        }
+        statistics.recordWake(timeManager.now());
+        wakeStatisticsRepository.save(statistics);
+    }
+
+    private ResponseEntity<?> forward(String targetHost,
+                                     RequestEntity<byte[]> incoming,
+                                     HttpServletRequest request,
+                                     FlightRecorderEvent event) throws InterruptedException, CloudFoundryException {
 
         List<String> alreadyForwardedHeader = incoming.getHeaders().get(HEADER_FORWARDED);
         String path = (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
@@ -131,6 +153,7 @@ public class WildcardProxy {
         }
 
         String appId = mapEntry.getAppId();
+        event.application(appId);
 
         String applicationState = cfApi.getApplicationState(appId);
         if (CloudFoundryAppState.STARTED.equals(applicationState) && !cfApi.isAppRunning(appId)) {
@@ -138,16 +161,18 @@ public class WildcardProxy {
             return new ResponseEntity<>("The app is starting, please retry in few seconds", HttpStatus
                     .SERVICE_UNAVAILABLE);
         } else if (CloudFoundryAppState.STOPPED.equals(applicationState)) {
-            log.info("Starting app [{}]", appId);
-            cfApi.startApplication(appId);
-            timeManager.sleep(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
-        }
-        while (!cfApi.isAppRunning(appId)) {
-            log.debug("waiting for app {} restart...", appId);
-            timeManager.sleep(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
-            //TODO add timeout that would log error and reset mapEntry.isStarting to false
+            Instant deadline = timeManager.now().plus(Config.WAKE_TIMEOUT);
+            boolean running = wakeLeaseManager.wake(appId, deadline, () -> {
+                recordWake(appId);
+                wakeGroupStarter.startOtherMembers(appId);
+            });
+            if (!running) {
+                log.warn("App [{}] still not running after {}", appId, Config.WAKE_TIMEOUT);
+                return new ResponseEntity<>("The app is starting, please retry in few seconds", HttpStatus
+                        .SERVICE_UNAVAILABLE);
+            }
         }
-        //if exist, to prevent exception when two instances started the app in //
+        //if exist, as every instance waiting for the app removes it
         proxyMap.deleteIfExists(mapEntry.getHost());
         String protocol = incoming.getHeaders().get(HEADER_PROTOCOL).get(0);
         URI uri = URI.create(protocol + "://" + targetHost + path);
@@ -159,4 +184,20 @@ public class WildcardProxy {
 
     }
 
+    @RequestMapping(headers = {HEADER_PROTOCOL, HEADER_HOST})
+    ResponseEntity<?> proxify(@RequestHeader(HEADER_HOST) String targetHost,
+                              RequestEntity<byte[]> incoming,
+                              HttpServletRequest request) throws InterruptedException, CloudFoundryException {
+        FlightRecorderEvent event = FlightRecorderEvent.begin(FlightRecorderEvent.Type.PROXY)
+                .detail(targetHost);
+        String outcome = "failed";
+        try {
+            ResponseEntity<?> response = forward(targetHost, incoming, request, event);
+            outcome = String.valueOf(response.getStatusCode().value());
+            return response;
+        } finally {
+            event.end(outcome);
+        }
+    }
+
 }
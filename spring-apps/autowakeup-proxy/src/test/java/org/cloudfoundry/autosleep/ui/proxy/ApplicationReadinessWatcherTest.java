@@ -0,0 +1,221 @@
+/*
+ * Autosleep
+ * Copyright (C) 2016 Orange
+ * Authors: Benjamin Einaudi   benjamin.einaudi@orange.com
+ *          Arnaud Ruffin      arnaud.ruffin@orange.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.autosleep.ui.proxy;
+
+import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
+import org.cloudfoundry.autosleep.config.Config;
+import org.cloudfoundry.autosleep.util.TimeManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.core.env.Environment;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ApplicationReadinessWatcherTest {
+
+    private static final String APP_ID = "test-app-id";
+
+    @Mock
+    private CloudFoundryApiService cfApi;
+
+    @Mock
+    private Environment env;
+
+    @Mock
+    private GaugeService gaugeService;
+
+    @Mock
+    private TimeManager timeManager;
+
+    @InjectMocks
+    private ApplicationReadinessWatcher watcher;
+
+    @Before
+    public void buildMocks() {
+        when(timeManager.now()).thenAnswer(invocationOnMock -> Instant.now());
+    }
+
+    @Test
+    public void should_cap_backoff_period() {
+        Duration period = Config.READINESS_CHECK_INITIAL_PERIOD;
+        for (int i = 0; i < 20; i++) {
+            period = ApplicationReadinessWatcher.nextPeriod(period);
+        }
+        assertThat(period, is(equalTo(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART)));
+    }
+
+    @Test
+    public void should_count_parked_requests_while_waiting() throws Exception {
+        //GIVEN that the log stream is disabled
+        when(env.getProperty(ApplicationReadinessWatcher.LOG_STREAM_ENABLED_KEY, Boolean.class, Boolean.FALSE))
+                .thenReturn(Boolean.FALSE);
+        //and that the application is running on second check, the parked requests being read on each check
+        List<Number> parkedRequests = new ArrayList<>();
+        when(cfApi.isAppRunning(APP_ID)).thenAnswer(invocationOnMock -> {
+            parkedRequests.add(watcher.metrics().iterator().next().getValue());
+            return parkedRequests.size() > 1;
+        });
+
+        //WHEN we wait for an application started by someone else
+        watcher.awaitRunning(APP_ID, Instant.now().plus(Config.WAKE_TIMEOUT));
+
+        //THEN the request was parked while waiting
+        assertThat(parkedRequests.get(0).intValue(), is(equalTo(1)));
+        //and released once the application is running
+        assertThat(watcher.metrics().iterator().next().getValue().intValue(), is(equalTo(0)));
+    }
+
+    @Test
+    public void should_give_up_waiting_at_deadline() throws Exception {
+        //GIVEN that time only passes while waiting
+        AtomicReference<Instant> clock = new AtomicReference<>(Instant.now());
+        when(timeManager.now()).thenAnswer(invocationOnMock -> clock.get());
+        doAnswer(invocationOnMock -> clock.updateAndGet(now -> now.plus((Duration) invocationOnMock
+                .getArguments()[0]))).when(timeManager).sleep(any(Duration.class));
+        when(env.getProperty(ApplicationReadinessWatcher.LOG_STREAM_ENABLED_KEY, Boolean.class, Boolean.FALSE))
+                .thenReturn(Boolean.FALSE);
+        //and that the application never runs
+        when(cfApi.isAppRunning(APP_ID)).thenReturn(false);
+
+        //WHEN we wait for it
+        Instant deadline = clock.get().plus(Config.WAKE_TIMEOUT);
+        boolean running = watcher.awaitRunning(APP_ID, deadline);
+
+        //THEN we gave up exactly at the deadline
+        assertFalse(running);
+        assertThat(clock.get(), is(equalTo(deadline)));
+        //and no latency was recorded
+        verify(gaugeService, never()).submit(eq(ApplicationReadinessWatcher.WAKE_LATENCY_METRIC), anyDouble());
+        //and the request is no longer parked
+        assertThat(watcher.metrics().iterator().next().getValue().intValue(), is(equalTo(0)));
+    }
+
+    @Test
+    public void should_poll_with_backoff_when_log_stream_disabled() throws Exception {
+        //GIVEN that the log stream is disabled
+        when(env.getProperty(ApplicationReadinessWatcher.LOG_STREAM_ENABLED_KEY, Boolean.class, Boolean.FALSE))
+                .thenReturn(Boolean.FALSE);
+        //and that the application needs three checks to be running
+        when(cfApi.isAppRunning(APP_ID)).thenReturn(false, false, true);
+
+        //WHEN we start it and wait
+        watcher.startAndAwaitRunning(APP_ID, Instant.now().plus(Config.WAKE_TIMEOUT));
+
+        //THEN it was started once
+        verify(cfApi, times(1)).startApplication(APP_ID);
+        //and we never listened to its logs
+        verify(cfApi, never()).watchApplicationReadiness(APP_ID);
+        //and we waited with an increasing period
+        verify(timeManager, times(1)).sleep(Config.READINESS_CHECK_INITIAL_PERIOD);
+        verify(timeManager, times(1)).sleep(ApplicationReadinessWatcher.nextPeriod(
+                Config.READINESS_CHECK_INITIAL_PERIOD));
+        verify(gaugeService, times(1)).submit(eq(ApplicationReadinessWatcher.WAKE_LATENCY_METRIC), anyDouble());
+    }
+
+    @Test
+    public void should_run_concurrent_wakes_once() throws Exception {
+        //GIVEN a wake in progress, blocked until released
+        CountDownLatch wakeStarted = new CountDownLatch(1);
+        CountDownLatch releaseWake = new CountDownLatch(1);
+        AtomicInteger wakes = new AtomicInteger();
+        ApplicationReadinessWatcher.Wake wake = () -> {
+            wakes.incrementAndGet();
+            wakeStarted.countDown();
+            releaseWake.await();
+            return true;
+        };
+        Instant deadline = Instant.now().plus(Config.WAKE_TIMEOUT);
+        CompletableFuture<Boolean> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return watcher.awaitWake(APP_ID, deadline, wake);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertTrue(wakeStarted.await(10, TimeUnit.SECONDS));
+
+        //WHEN another request wakes the same application meanwhile
+        CompletableFuture<Boolean> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return watcher.awaitWake(APP_ID, deadline, wake);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (watcher.metrics().iterator().next().getValue().intValue() == 0) {
+            Thread.sleep(10);
+        }
+        releaseWake.countDown();
+
+        //THEN both requests get the outcome of the single wake
+        assertTrue(first.get(10, TimeUnit.SECONDS));
+        assertTrue(second.get(10, TimeUnit.SECONDS));
+        assertThat(wakes.get(), is(equalTo(1)));
+    }
+
+    @Test
+    public void should_wait_on_log_stream_when_enabled() throws Exception {
+        //GIVEN that the log stream is enabled
+        CompletableFuture<Void> readinessLog = new CompletableFuture<>();
+        when(env.getProperty(ApplicationReadinessWatcher.LOG_STREAM_ENABLED_KEY, Boolean.class, Boolean.FALSE))
+                .thenReturn(Boolean.TRUE);
+        when(cfApi.watchApplicationReadiness(APP_ID)).thenReturn(readinessLog);
+        //and that the application is running on second check
+        when(cfApi.isAppRunning(APP_ID)).thenReturn(false, true);
+
+        //WHEN we wait for an application started by someone else
+        watcher.awaitRunning(APP_ID, Instant.now().plus(Config.WAKE_TIMEOUT));
+
+        //THEN it was not started
+        verify(cfApi, never()).startApplication(APP_ID);
+        //and we waited on the log stream rather than sleeping
+        verify(timeManager, never()).sleep(any(Duration.class));
+        //and the log stream was released
+        assertTrue(readinessLog.isCancelled());
+    }
+
+}
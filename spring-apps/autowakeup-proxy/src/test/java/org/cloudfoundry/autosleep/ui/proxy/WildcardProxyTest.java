@@ -21,15 +21,27 @@ package org.cloudfoundry.autosleep.ui.proxy;
 
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryApiService;
 import org.cloudfoundry.autosleep.access.cloudfoundry.CloudFoundryException;
+import org.cloudfoundry.autosleep.access.dao.model.ApplicationInfo;
+import org.cloudfoundry.autosleep.access.dao.model.Binding.ResourceType;
 import org.cloudfoundry.autosleep.access.dao.model.ProxyMapEntry;
+import org.cloudfoundry.autosleep.access.dao.model.SpaceEnrollerConfig;
+import org.cloudfoundry.autosleep.access.dao.model.WakeLease;
+import org.cloudfoundry.autosleep.access.dao.model.WakeStatistics;
+import org.cloudfoundry.autosleep.access.dao.repositories.ApplicationRepository;
 import org.cloudfoundry.autosleep.access.dao.repositories.ProxyMapEntryRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.SpaceEnrollerConfigRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.WakeLeaseRepository;
+import org.cloudfoundry.autosleep.access.dao.repositories.WakeStatisticsRepository;
 import org.cloudfoundry.autosleep.config.Config;
 import org.cloudfoundry.autosleep.config.Config.CloudFoundryAppState;
+import org.cloudfoundry.autosleep.util.BeanGenerator;
 import org.cloudfoundry.autosleep.util.TimeManager;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.ComponentScan.Filter;
@@ -46,15 +58,31 @@ import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.client.RestTemplate;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
 import static org.cloudfoundry.autosleep.ui.proxy.WildcardProxy.HEADER_FORWARDED;
 import static org.cloudfoundry.autosleep.ui.proxy.WildcardProxy.HEADER_HOST;
 import static org.cloudfoundry.autosleep.ui.proxy.WildcardProxy.HEADER_PROTOCOL;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -73,6 +101,11 @@ public class WildcardProxyTest {
             excludeFilters = @Filter(org.springframework.context.annotation.Configuration.class))
     public static class Configuration {
 
+        @Bean
+        ApplicationRepository applicationRepository() {
+            return mock(ApplicationRepository.class);
+        }
+
         @Bean
         CloudFoundryApiService cfApi() {
             return mock(CloudFoundryApiService.class);
@@ -83,6 +116,11 @@ public class WildcardProxyTest {
             return mock(ProxyMapEntryRepository.class);
         }
 
+        @Bean
+        SpaceEnrollerConfigRepository spaceEnrollerConfigRepository() {
+            return mock(SpaceEnrollerConfigRepository.class);
+        }
+
         @Bean
         RestTemplate restTemplate() {
             return mock(RestTemplate.class);
@@ -93,6 +131,21 @@ public class WildcardProxyTest {
             return mock(TimeManager.class);
         }
 
+        @Bean
+        GaugeService gaugeService() {
+            return mock(GaugeService.class);
+        }
+
+        @Bean
+        WakeLeaseRepository wakeLeaseRepository() {
+            return mock(WakeLeaseRepository.class);
+        }
+
+        @Bean
+        WakeStatisticsRepository wakeStatisticsRepository() {
+            return mock(WakeStatisticsRepository.class);
+        }
+
     }
 
     private static final String APP_ID = "test-app-id";
@@ -103,9 +156,15 @@ public class WildcardProxyTest {
 
     private static final String PROTOCOL_TEST_VALUE = "http";
 
+    @Autowired
+    private ApplicationRepository applicationRepository;
+
     @Autowired
     private CloudFoundryApiService cfApi;
 
+    @Autowired
+    private GaugeService gaugeService;
+
     private MockMvc mockMvc;
 
     @Autowired
@@ -117,16 +176,36 @@ public class WildcardProxyTest {
     @Autowired
     private RestTemplate restTemplate;
 
+    @Autowired
+    private SpaceEnrollerConfigRepository spaceEnrollerConfigRepository;
+
     @Autowired
     private TimeManager timeManager;
 
+    @Autowired
+    private WakeLeaseRepository wakeLeaseRepository;
+
+    @Autowired
+    private WakeStatisticsRepository wakeStatisticsRepository;
+
     @Before
     public void init() {
-        reset(timeManager, proxyMap, cfApi, restTemplate);
+        reset(timeManager, proxyMap, cfApi, restTemplate, gaugeService, wakeLeaseRepository,
+                wakeStatisticsRepository, applicationRepository, spaceEnrollerConfigRepository);
+        when(timeManager.now()).thenAnswer(invocationOnMock -> Instant.now());
         this.mockMvc = MockMvcBuilders.standaloneSetup(proxy)
                 .build();
     }
 
+    private AtomicReference<Instant> mockClock() throws InterruptedException {
+        //time only passes while waiting
+        AtomicReference<Instant> clock = new AtomicReference<>(Instant.now());
+        when(timeManager.now()).thenAnswer(invocationOnMock -> clock.get());
+        doAnswer(invocationOnMock -> clock.updateAndGet(now -> now.plus((Duration) invocationOnMock
+                .getArguments()[0]))).when(timeManager).sleep(any(Duration.class));
+        return clock;
+    }
+
     private void mockRemoteExchange(HttpStatus statusCode, MediaType contentType, String body) {
         when(restTemplate.exchange(any(RequestEntity.class), eq(byte[].class)))
                 .then(invocation -> {
@@ -168,7 +247,7 @@ public class WildcardProxyTest {
         // and start was not called
         verify(cfApi, never()).startApplication(APP_ID);
         // and we never wait for anything
-        verify(timeManager, never()).sleep(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
+        verify(timeManager, never()).sleep(any(Duration.class));
         //and we removed the application from repository
         verify(proxyMap, times(1)).deleteIfExists(HOST_TEST_VALUE);
     }
@@ -254,6 +333,8 @@ public class WildcardProxyTest {
                 .host(HOST_TEST_VALUE)
                 .build());
         when(cfApi.getApplicationState(APP_ID)).thenReturn(CloudFoundryAppState.STOPPED);
+        // and no other instance is starting it
+        when(wakeLeaseRepository.takeOver(eq(APP_ID), anyString(), anyLong(), anyLong())).thenReturn(0);
         // is app running will return false the two first times
         when(cfApi.isAppRunning(APP_ID)).thenReturn(false)
                 .thenReturn(false)
@@ -275,9 +356,169 @@ public class WildcardProxyTest {
 
         // and start was called
         verify(cfApi, times(1)).startApplication(APP_ID);
-        verify(timeManager, times(3)).sleep(Config.PERIOD_BETWEEN_STATE_CHECKS_DURING_RESTART);
+        // and each wait was longer than the previous one
+        verify(timeManager, times(1)).sleep(Config.READINESS_CHECK_INITIAL_PERIOD);
+        verify(timeManager, times(1)).sleep(Config.READINESS_CHECK_INITIAL_PERIOD
+                .multipliedBy(Config.READINESS_CHECK_BACKOFF_FACTOR));
+        // and wake latency was recorded
+        verify(gaugeService, times(1)).submit(eq(ApplicationReadinessWatcher.WAKE_LATENCY_METRIC), anyDouble());
+        // and the wake lease was taken then released
+        verify(wakeLeaseRepository, times(1)).saveAndFlush(any(WakeLease.class));
+        verify(wakeLeaseRepository, times(1)).release(eq(APP_ID), anyString());
+        // and the wake was recorded for pre-wake planning
+        verify(wakeStatisticsRepository, times(1)).save(any(WakeStatistics.class));
         //and we removed the application from repository
         verify(proxyMap, times(1)).deleteIfExists(HOST_TEST_VALUE);
     }
 
+    @Test
+    public void should_start_the_wake_group_of_a_stopped_application() throws Exception {
+        //GIVEN that we have a map route in database (for stopped app)
+        when(proxyMap.findOne(HOST_TEST_VALUE)).thenReturn(ProxyMapEntry.builder()
+                .appId(APP_ID)
+                .host(HOST_TEST_VALUE)
+                .build());
+        when(cfApi.getApplicationState(APP_ID)).thenReturn(CloudFoundryAppState.STOPPED);
+        when(cfApi.isAppRunning(APP_ID)).thenReturn(true);
+        when(wakeLeaseRepository.takeOver(anyString(), anyString(), anyLong(), anyLong())).thenReturn(1);
+        // and the application belongs to a wake group with a sleeping back end
+        String serviceId = "wake-group-service";
+        ApplicationInfo frontEnd = BeanGenerator.createAppInfoWithDiagnostic(APP_ID, "front",
+                CloudFoundryAppState.STOPPED);
+        frontEnd.getEnrollmentState().addEnrollmentState(serviceId);
+        ApplicationInfo backEnd = BeanGenerator.createAppInfoWithDiagnostic("back-id", "back",
+                CloudFoundryAppState.STOPPED);
+        backEnd.getEnrollmentState().addEnrollmentState(serviceId);
+        when(applicationRepository.findOne(APP_ID)).thenReturn(frontEnd);
+        when(applicationRepository.findBoundToServiceInstance(serviceId, ResourceType.Application))
+                .thenReturn(Arrays.asList(frontEnd, backEnd));
+        when(spaceEnrollerConfigRepository.findBoundToResource(APP_ID, ResourceType.Application))
+                .thenReturn(Collections.singletonList(SpaceEnrollerConfig.builder()
+                        .id(serviceId)
+                        .wakeGroup(Pattern.compile("front|back"))
+                        .build()));
+        when(cfApi.getApplicationState("back-id")).thenReturn(CloudFoundryAppState.STOPPED);
+        mockRemoteExchange(HttpStatus.OK, MediaType.TEXT_PLAIN, BODY_VALUE);
+
+        //WHEN an incoming message target this same route
+        this.mockMvc
+                .perform(get("http://localhost/anything")
+                        .header(HEADER_HOST, HOST_TEST_VALUE)
+                        .header(HEADER_PROTOCOL, PROTOCOL_TEST_VALUE))
+                .andExpect(status().isOk());
+
+        // then both the application and its back end were started, the back end asynchronously
+        verify(cfApi, times(1)).startApplication(APP_ID);
+        verify(cfApi, timeout(1000).times(1)).startApplication("back-id");
+        verify(wakeLeaseRepository, timeout(1000).times(1)).release(eq("back-id"), anyString());
+    }
+
+    @Test
+    public void should_send_service_unavailable_if_application_not_running_in_time() throws Exception {
+        //GIVEN that we have a map route in database (for stopped app)
+        when(proxyMap.findOne(HOST_TEST_VALUE)).thenReturn(ProxyMapEntry.builder()
+                .appId(APP_ID)
+                .host(HOST_TEST_VALUE)
+                .build());
+        when(cfApi.getApplicationState(APP_ID)).thenReturn(CloudFoundryAppState.STOPPED);
+        AtomicReference<Instant> clock = mockClock();
+        Instant start = clock.get();
+        // and another instance holds a valid wake lease, but never starts the application
+        when(wakeLeaseRepository.takeOver(eq(APP_ID), anyString(), anyLong(), anyLong())).thenReturn(0);
+        when(wakeLeaseRepository.saveAndFlush(any(WakeLease.class)))
+                .thenThrow(new DataIntegrityViolationException("duplicate key"));
+        when(cfApi.isAppRunning(APP_ID)).thenReturn(false);
+
+        //WHEN an incoming message target this same route
+        this.mockMvc
+                .perform(get("http://localhost/anything")
+                        .header(HEADER_HOST, HOST_TEST_VALUE)
+                        .header(HEADER_PROTOCOL, PROTOCOL_TEST_VALUE))
+                //then the request is answered once the wake timed out
+                .andExpect(status().isServiceUnavailable());
+
+        assertThat(clock.get(), is(equalTo(start.plus(Config.WAKE_TIMEOUT))));
+        // and the lease was tried again while waiting
+        verify(wakeLeaseRepository, times((int) (Config.WAKE_TIMEOUT.toMillis()
+                / Config.WAKE_LEASE_RETRY_PERIOD.toMillis()))).saveAndFlush(any(WakeLease.class));
+        verify(cfApi, never()).startApplication(APP_ID);
+        verify(restTemplate, never()).exchange(any(RequestEntity.class), eq(byte[].class));
+        verify(proxyMap, never()).deleteIfExists(HOST_TEST_VALUE);
+    }
+
+    @Test
+    public void should_take_over_the_wake_of_an_application_left_stopped_by_its_owner() throws Exception {
+        //GIVEN that we have a map route in database (for stopped app)
+        when(proxyMap.findOne(HOST_TEST_VALUE)).thenReturn(ProxyMapEntry.builder()
+                .appId(APP_ID)
+                .host(HOST_TEST_VALUE)
+                .build());
+        when(cfApi.getApplicationState(APP_ID)).thenReturn(CloudFoundryAppState.STOPPED);
+        mockClock();
+        // and another instance holds the wake lease, then releases it without having started the application
+        when(wakeLeaseRepository.takeOver(eq(APP_ID), anyString(), anyLong(), anyLong())).thenReturn(0);
+        when(wakeLeaseRepository.saveAndFlush(any(WakeLease.class)))
+                .thenThrow(new DataIntegrityViolationException("duplicate key"))
+                .thenReturn(null);
+        // and the application runs only once started
+        AtomicBoolean started = new AtomicBoolean();
+        doAnswer(invocationOnMock -> {
+            started.set(true);
+            return null;
+        }).when(cfApi).startApplication(APP_ID);
+        when(cfApi.isAppRunning(APP_ID)).thenAnswer(invocationOnMock -> started.get());
+        mockRemoteExchange(HttpStatus.OK, MediaType.TEXT_PLAIN, BODY_VALUE);
+
+        //WHEN an incoming message target this same route
+        this.mockMvc
+                .perform(get("http://localhost/anything")
+                        .header(HEADER_HOST, HOST_TEST_VALUE)
+                        .header(HEADER_PROTOCOL, PROTOCOL_TEST_VALUE))
+                //then traffic is forwarded once the application is running
+                .andExpect(status().isOk())
+                .andExpect(content().string(BODY_VALUE));
+
+        // and this instance took the lease over and started the application
+        verify(wakeLeaseRepository, times(2)).saveAndFlush(any(WakeLease.class));
+        verify(cfApi, times(1)).startApplication(APP_ID);
+        verify(wakeLeaseRepository, times(1)).release(eq(APP_ID), anyString());
+        verify(wakeStatisticsRepository, times(1)).save(any(WakeStatistics.class));
+    }
+
+    @Test
+    public void should_wait_for_an_application_started_by_another_instance() throws Exception {
+        //GIVEN that we have a map route in database (for stopped app)
+        when(proxyMap.findOne(HOST_TEST_VALUE)).thenReturn(ProxyMapEntry.builder()
+                .appId(APP_ID)
+                .host(HOST_TEST_VALUE)
+                .build());
+        when(cfApi.getApplicationState(APP_ID)).thenReturn(CloudFoundryAppState.STOPPED);
+        // and another instance holds a valid wake lease
+        when(wakeLeaseRepository.takeOver(eq(APP_ID), anyString(), anyLong(), anyLong())).thenReturn(0);
+        when(wakeLeaseRepository.saveAndFlush(any(WakeLease.class)))
+                .thenThrow(new DataIntegrityViolationException("duplicate key"));
+        // is app running will return false the first time
+        when(cfApi.isAppRunning(APP_ID)).thenReturn(false)
+                .thenReturn(true);
+        mockRemoteExchange(HttpStatus.OK, MediaType.TEXT_PLAIN, BODY_VALUE);
+
+        //WHEN an incoming message target this same route
+        this.mockMvc
+                .perform(get("http://localhost/anything")
+                        .header(HEADER_HOST, HOST_TEST_VALUE)
+                        .header(HEADER_PROTOCOL, PROTOCOL_TEST_VALUE))
+                //then traffic is forwarded once the application is running
+                .andExpect(status().isOk())
+                .andExpect(content().string(BODY_VALUE));
+
+        // and start was never called by this instance
+        verify(cfApi, never()).startApplication(APP_ID);
+        verify(timeManager, times(1)).sleep(Config.READINESS_CHECK_INITIAL_PERIOD);
+        // and the lease of the other instance was left untouched
+        verify(wakeLeaseRepository, never()).release(eq(APP_ID), anyString());
+        // and the wake was recorded by the other instance only
+        verify(wakeStatisticsRepository, never()).save(any(WakeStatistics.class));
+        verify(proxyMap, times(1)).deleteIfExists(HOST_TEST_VALUE);
+    }
+
 }